@@ -21,9 +21,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.text.Html;
-import android.text.TextUtils;
-import android.util.Base64;
-import android.util.Base64OutputStream;
 
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.MessagingException;
@@ -31,16 +28,10 @@ import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Body;
 import com.android.emailcommon.provider.EmailContent.Message;
 
-import org.apache.commons.io.IOUtils;
-
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -49,12 +40,13 @@ import java.util.regex.Pattern;
 
 /**
  * Utility class to output RFC 822 messages from provider email messages
+ *
+ * The message is streamed:  body text is quoted and encoded as it is written, and attachments
+ * are base64 encoded a line at a time, so no part is ever held in memory as a whole.  The same
+ * code computes the exact size of the message without writing it (see {@link #getSize}).
  */
 public class Rfc822Output {
 
-    private static final Pattern PATTERN_START_OF_LINE = Pattern.compile("(?m)^");
-    private static final Pattern PATTERN_ENDLINE_CRLF = Pattern.compile("\r\n");
-
     // In MIME, en_US-like date format should be used. In other words "MMM" should be encoded to
     // "Jan", not the other localized format like "Ene" (meaning January in locale es).
     private static final SimpleDateFormat DATE_FORMAT =
@@ -67,11 +59,8 @@ public class Rfc822Output {
     private static final Pattern BODY_PATTERN = Pattern.compile(
                 "(?:<\\s*body[^>]*>)(.*)(?:<\\s*/\\s*body\\s*>)",
                 Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-    /** Match group in {@code BODDY_PATTERN} for the body HTML */ 
+    /** Match group in {@code BODDY_PATTERN} for the body HTML */
     private static final int BODY_PATTERN_GROUP = 1;
-    /** Pattern to find both dos and unix newlines */
-    private static final Pattern NEWLINE_PATTERN =
-        Pattern.compile("\\r?\\n");
     /** HTML string to use when replacing text newlines */
     private static final String NEWLINE_HTML = "<br>";
     /** Index of the plain text version of the message body */
@@ -87,12 +76,13 @@ public class Rfc822Output {
      * the <body> tag (e.g. a '>' in a java script block).
      */
     /*package*/ static String getHtmlBody(String html) {
-        Matcher match = BODY_PATTERN.matcher(html);
-        if (match.find()) {
-            return match.group(BODY_PATTERN_GROUP);    // Found body; return
-        } else {
-            return html;              // Body not found; return the full HTML and hope for the best
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendHtmlBody(sb, html);
+        } catch (IOException e) {
+            // A StringBuilder doesn't throw
         }
+        return sb.toString();
     }
 
     /**
@@ -102,18 +92,11 @@ public class Rfc822Output {
         if (body.mHtmlReply == null) {
             return null;
         }
-        StringBuffer altMessage = new StringBuffer();
-        String htmlContent = TextUtils.htmlEncode(body.mTextContent); // Escape HTML reserved chars
-        htmlContent = NEWLINE_PATTERN.matcher(htmlContent).replaceAll(NEWLINE_HTML);
-        altMessage.append(htmlContent);
-        if (body.mIntroText != null) {
-            String htmlIntro = TextUtils.htmlEncode(body.mIntroText);
-            htmlIntro = NEWLINE_PATTERN.matcher(htmlIntro).replaceAll(NEWLINE_HTML);
-            altMessage.append(htmlIntro);
-        }
-        if (!useSmartReply) {
-            String htmlBody = getHtmlBody(body.mHtmlReply);
-            altMessage.append(htmlBody);
+        StringBuilder altMessage = new StringBuilder();
+        try {
+            appendHtmlAlternate(altMessage, body, useSmartReply);
+        } catch (IOException e) {
+            // A StringBuilder doesn't throw
         }
         return altMessage.toString();
     }
@@ -123,58 +106,178 @@ public class Rfc822Output {
      */
     /*package*/ static String[] buildBodyText(Body body, int flags, boolean useSmartReply) {
         String[] messageBody = new String[] { null, null };
-        if (body == null) {
+        if (!hasBodyText(body, flags)) {
             return messageBody;
         }
-        String text = body.mTextContent;
+        StringBuilder text = new StringBuilder();
+        try {
+            appendBodyText(text, body, flags, useSmartReply);
+        } catch (IOException e) {
+            // A StringBuilder doesn't throw
+        }
+        messageBody[INDEX_BODY_TEXT] = text.toString();
+        if (hasHtmlAlternate(body, useSmartReply)) {
+            messageBody[INDEX_BODY_HTML] = getHtmlAlternate(body, useSmartReply);
+        }
+        return messageBody;
+    }
+
+    /**
+     * Returns whether the message has a plain text body at all
+     */
+    private static boolean hasBodyText(Body body, int flags) {
+        return body != null && (body.mTextContent != null
+                || (flags & (Message.FLAG_TYPE_REPLY | Message.FLAG_TYPE_FORWARD)) != 0);
+    }
+
+    /**
+     * Returns whether the plain text body needs an HTML alternate
+     */
+    private static boolean hasHtmlAlternate(Body body, boolean useSmartReply) {
+        // Exchange 2003 doesn't seem to support multipart w/SmartReply and SmartForward, so
+        // we'll skip this.  Really, it would only matter if we could compose HTML replies
+        return body != null && !useSmartReply && body.mHtmlReply != null;
+    }
+
+    /**
+     * Appends the plain text version of the message body:  the user's text, the intro text and
+     * the quoted text of the original message, as needed.
+     */
+    private static void appendBodyText(Appendable out, Body body, int flags,
+            boolean useSmartReply) throws IOException {
+        out.append(body.mTextContent);
         boolean isReply = (flags & Message.FLAG_TYPE_REPLY) != 0;
         boolean isForward = (flags & Message.FLAG_TYPE_FORWARD) != 0;
         // For all forwards/replies, we add the intro text
         if (isReply || isForward) {
-            String intro = body.mIntroText == null ? "" : body.mIntroText;
-            text += intro;
+            if (body.mIntroText != null) {
+                out.append(body.mIntroText);
+            }
         }
         if (useSmartReply) {
             // useSmartReply is set to true for use by SmartReply/SmartForward in EAS.
             // SmartForward doesn't put a break between the original and new text, so we add an LF
             if (isForward) {
-                text += "\n";
+                out.append('\n');
             }
-        } else {
-            String quotedText = body.mTextReply;
+        } else if (isReply || isForward) {
+            CharSequence quotedText = body.mTextReply;
             // If there is no plain-text body, use de-tagified HTML as the text body
             if (quotedText == null && body.mHtmlReply != null) {
-                quotedText = Html.fromHtml(body.mHtmlReply).toString();
+                quotedText = Html.fromHtml(body.mHtmlReply);
             }
             if (quotedText != null) {
-                // fix CR-LF line endings to LF-only needed by EditText.
-                Matcher matcher = PATTERN_ENDLINE_CRLF.matcher(quotedText);
-                quotedText = matcher.replaceAll("\n");
+                appendQuotedText(out, quotedText, isReply);
             }
-            if (isReply) {
-                if (quotedText != null) {
-                    Matcher matcher = PATTERN_START_OF_LINE.matcher(quotedText);
-                    text += matcher.replaceAll(">");
-                }
-            } else if (isForward) {
-                if (quotedText != null) {
-                    text += quotedText;
-                }
+        }
+    }
+
+    /**
+     * Appends the text of the original message, with CR-LF line endings fixed to the LF-only
+     * ones needed by EditText and, for a reply, a ">" at the start of each line.
+     *
+     * Lines are found the way the {@code (?m)^} regex would:  after any line terminator, a CR-LF
+     * counting as one, but not at the very end of the text.
+     */
+    private static void appendQuotedText(Appendable out, CharSequence text, boolean quote)
+            throws IOException {
+        final int length = text.length();
+        char previous = 0;
+        boolean first = true;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n') {
+                continue;
+            }
+            if (quote && (first || (isLineTerminator(previous)
+                    && !(previous == '\r' && c == '\n')))) {
+                out.append('>');
             }
+            out.append(c);
+            previous = c;
+            first = false;
+        }
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Appends the HTML version of the message body
+     */
+    private static void appendHtmlAlternate(Appendable out, Body body, boolean useSmartReply)
+            throws IOException {
+        appendHtmlText(out, body.mTextContent);
+        if (body.mIntroText != null) {
+            appendHtmlText(out, body.mIntroText);
         }
-        messageBody[INDEX_BODY_TEXT] = text;
-        // Exchange 2003 doesn't seem to support multipart w/SmartReply and SmartForward, so
-        // we'll skip this.  Really, it would only matter if we could compose HTML replies
         if (!useSmartReply) {
-            messageBody[INDEX_BODY_HTML] = getHtmlAlternate(body, useSmartReply);
+            appendHtmlBody(out, body.mHtmlReply);
+        }
+    }
+
+    /**
+     * Appends text as HTML:  reserved chars are escaped as by
+     * {@link android.text.TextUtils#htmlEncode}, and both dos and unix newlines are replaced with
+     * {@link #NEWLINE_HTML}.
+     */
+    private static void appendHtmlText(Appendable out, String text) throws IOException {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '\'':
+                    out.append("&apos;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\r':
+                    if (i + 1 < length && text.charAt(i + 1) == '\n') {
+                        break;
+                    }
+                    out.append(c);
+                    break;
+                case '\n':
+                    out.append(NEWLINE_HTML);
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends the content between the <body></body> tags (see {@link #getHtmlBody}), without
+     * copying it out of the HTML first.
+     */
+    private static void appendHtmlBody(Appendable out, String html) throws IOException {
+        Matcher match = BODY_PATTERN.matcher(html);
+        if (match.find()) {
+            // Found body
+            out.append(html, match.start(BODY_PATTERN_GROUP), match.end(BODY_PATTERN_GROUP));
+        } else {
+            out.append(html);         // Body not found; use the full HTML and hope for the best
         }
-        return messageBody;
     }
 
     /**
      * Write the entire message to an output stream.  This method provides buffering, so it is
      * not necessary to pass in a buffered output stream here.
      *
+     * The message is written with CR-LF line endings only, so the number of bytes written is
+     * the size returned by {@link #getSize}, with or without an EOL converting stream.
+     *
      * @param context system context for accessing the provider
      * @param messageId the message to write out
      * @param out the output stream to write the message to
@@ -182,15 +285,35 @@ public class Rfc822Output {
      */
     public static void writeTo(Context context, long messageId, OutputStream out,
             boolean useSmartReply, boolean sendBcc) throws IOException, MessagingException {
+        MessageSink sink = new MessageSink(out);
+        writeMessage(context, messageId, sink, useSmartReply, sendBcc);
+        sink.flush();
+    }
+
+    /**
+     * Returns the exact number of bytes {@link #writeTo} would write for the message, e.g. for
+     * SMTP SIZE.  Nothing is encoded; attachments stored as files are only read through to find
+     * their length.
+     *
+     * @param context system context for accessing the provider
+     * @param messageId the message to measure
+     * @param useSmartReply whether or not quoted text is appended to a reply/forward
+     */
+    public static long getSize(Context context, long messageId, boolean useSmartReply,
+            boolean sendBcc) throws IOException, MessagingException {
+        MessageSink sink = new MessageSink(null);
+        writeMessage(context, messageId, sink, useSmartReply, sendBcc);
+        return sink.getCount();
+    }
+
+    private static void writeMessage(Context context, long messageId, MessageSink writer,
+            boolean useSmartReply, boolean sendBcc) throws IOException, MessagingException {
         Message message = Message.restoreMessageWithId(context, messageId);
         if (message == null) {
             // throw something?
             return;
         }
 
-        OutputStream stream = new BufferedOutputStream(out, 1024);
-        Writer writer = new OutputStreamWriter(stream);
-
         // Write the fixed headers.  Ordering is arbitrary (the legacy code iterated through a
         // hashmap here).
 
@@ -214,7 +337,6 @@ public class Rfc822Output {
 
         // Analyze message and determine if we have multiparts
         Body body = Body.restoreBodyWithMessageId(context, message.mId);
-        String[] bodyText = buildBodyText(body, message.mFlags, useSmartReply);
 
         Uri uri = ContentUris.withAppendedId(Attachment.MESSAGE_ID_URI, messageId);
         Cursor attachmentsCursor = context.getContentResolver().query(uri,
@@ -228,7 +350,7 @@ public class Rfc822Output {
 
             // Simplified case for no multipart - just emit text and be done.
             if (!multipart) {
-                writeTextWithHeaders(writer, stream, bodyText);
+                writeTextWithHeaders(writer, body, message.mFlags, useSmartReply);
             } else {
                 // continue with multipart headers, then into multipart body
                 multipartBoundary = getNextBoundary();
@@ -247,12 +369,12 @@ public class Rfc822Output {
                 writeHeader(writer, "Content-Type",
                         "multipart/" + multipartType + "; boundary=\"" + multipartBoundary + "\"");
                 // Finish headers and prepare for body section(s)
-                writer.write("\r\n");
+                writer.append("\r\n");
 
                 // first multipart element is the body
-                if (bodyText[INDEX_BODY_TEXT] != null) {
+                if (hasBodyText(body, message.mFlags)) {
                     writeBoundary(writer, multipartBoundary, false);
-                    writeTextWithHeaders(writer, stream, bodyText);
+                    writeTextWithHeaders(writer, body, message.mFlags, useSmartReply);
                 }
 
                 // Write out the attachments until we run out
@@ -261,8 +383,8 @@ public class Rfc822Output {
                     Attachment attachment =
                         Attachment.getContent(attachmentsCursor, Attachment.class);
                     attachment.mAccountKey = message.mAccountKey;
-                    writeOneAttachment(context, writer, stream, attachment);
-                    writer.write("\r\n");
+                    writeOneAttachment(context, writer, attachment);
+                    writer.append("\r\n");
                 } while (attachmentsCursor.moveToNext());
 
                 // end of multipart section
@@ -271,29 +393,27 @@ public class Rfc822Output {
         } finally {
             attachmentsCursor.close();
         }
-
-        writer.flush();
-        out.flush();
     }
 
     /**
      * Write a single attachment and its payload
      */
-    private static void writeOneAttachment(Context context, Writer writer, OutputStream out,
+    private static void writeOneAttachment(Context context, MessageSink writer,
             Attachment attachment) throws IOException, MessagingException {
         // Caused by the file maybe not named by the English alphabet,
         // so accroding to RFC822, need encoded it.
         writeHeader(writer, "Content-Type",
                 attachment.mMimeType
-                + ";\n name=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0) + "\"");
+                + ";\r\n name=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0) + "\"");
         writeHeader(writer, "Content-Transfer-Encoding", "base64");
         // Most attachments (real files) will send Content-Disposition.  The suppression option
         // is used when sending calendar invites.
         if ((attachment.mFlags & Attachment.FLAG_ICS_ALTERNATIVE_PART) == 0) {
             writeHeader(writer, "Content-Disposition",
                     "attachment;"
-                    + "\n filename=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0) + "\";"
-                    + "\n size=" + Long.toString(attachment.mSize));
+                    + "\r\n filename=\"" + MimeUtility.foldAndEncode2(attachment.mFileName, 0)
+                    + "\";"
+                    + "\r\n size=" + Long.toString(attachment.mSize));
         }
         if (attachment.mContentId != null) {
             writeHeader(writer, "Content-ID", attachment.mContentId);
@@ -305,26 +425,21 @@ public class Rfc822Output {
         try {
             // Use content, if provided; otherwise, use the contentUri
             if (attachment.mContentBytes != null) {
-                inStream = new ByteArrayInputStream(attachment.mContentBytes);
+                writer.startBase64();
+                writer.writeBase64(attachment.mContentBytes, 0, attachment.mContentBytes.length);
             } else {
                 // try to open the file
                 Uri fileUri = Uri.parse(attachment.mContentUri);
                 inStream = context.getContentResolver().openInputStream(fileUri);
+                writer.startBase64();
+                writer.writeBase64(inStream);
             }
-            // switch to output stream for base64 text output
-            writer.flush();
-            Base64OutputStream base64Out = new Base64OutputStream(
-                out, Base64.CRLF | Base64.NO_CLOSE);
-            // copy base64 data and close up
-            IOUtils.copy(inStream, base64Out);
-            base64Out.close();
+            writer.endBase64();
 
             // The old Base64OutputStream wrote an extra CRLF after
             // the output.  It's not required by the base-64 spec; not
             // sure if it's required by RFC 822 or not.
-            out.write('\r');
-            out.write('\n');
-            out.flush();
+            writer.append("\r\n");
         } catch (final FileNotFoundException fnfe) {
             // Ignore this - empty file is OK
         } catch (final IOException ioe) {
@@ -332,6 +447,14 @@ public class Rfc822Output {
         } catch (final SecurityException se) {
             throw new MessagingException(MessagingException.GENERAL_SECURITY,
                     "No permissions for attachment", attachment);
+        } finally {
+            if (inStream != null) {
+                try {
+                    inStream.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
         }
     }
 
@@ -342,7 +465,8 @@ public class Rfc822Output {
      * @param name the header name
      * @param value the header value
      */
-    private static void writeHeader(Writer writer, String name, String value) throws IOException {
+    private static void writeHeader(MessageSink writer, String name, String value)
+            throws IOException {
         if (value != null && value.length() > 0) {
             writer.append(name);
             writer.append(": ");
@@ -358,7 +482,7 @@ public class Rfc822Output {
      * @param name the header name
      * @param value the header value
      */
-    private static void writeEncodedHeader(Writer writer, String name, String value)
+    private static void writeEncodedHeader(MessageSink writer, String name, String value)
             throws IOException {
         if (value != null && value.length() > 0) {
             writer.append(name);
@@ -375,7 +499,7 @@ public class Rfc822Output {
      * @param name the header name
      * @param value the header value (a packed list of addresses)
      */
-    private static void writeAddressHeader(Writer writer, String name, String value)
+    private static void writeAddressHeader(MessageSink writer, String name, String value)
             throws IOException {
         if (value != null && value.length() > 0) {
             writer.append(name);
@@ -392,7 +516,7 @@ public class Rfc822Output {
      * @param boundary the boundary string
      * @param end false if inner boundary, true if final boundary
      */
-    private static void writeBoundary(Writer writer, String boundary, boolean end)
+    private static void writeBoundary(MessageSink writer, String boundary, boolean end)
             throws IOException {
         writer.append("--");
         writer.append(boundary);
@@ -412,19 +536,17 @@ public class Rfc822Output {
      * optimization might be to prescan the string for safety and send raw if possible.
      *
      * @param writer the output writer
-     * @param out the output stream inside the writer (used for byte[] access)
-     * @param bodyText Plain text and HTML versions of the original text of the message
+     * @param body the body of the message
+     * @param flags the flags of the message
+     * @param useSmartReply whether or not quoted text is appended to a reply/forward
      */
-    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText)
-            throws IOException {
-        String text = bodyText[INDEX_BODY_TEXT];
-        String html = bodyText[INDEX_BODY_HTML];
-
-        if (text == null) {
-            writer.write("\r\n");       // a truly empty message
+    private static void writeTextWithHeaders(MessageSink writer, Body body, int flags,
+            boolean useSmartReply) throws IOException {
+        if (!hasBodyText(body, flags)) {
+            writer.append("\r\n");       // a truly empty message
         } else {
             String multipartBoundary = null;
-            boolean multipart = html != null;
+            boolean multipart = hasHtmlAlternate(body, useSmartReply);
 
             // Simplified case for no multipart - just emit text and be done.
             if (multipart) {
@@ -434,17 +556,17 @@ public class Rfc822Output {
                 writeHeader(writer, "Content-Type",
                         "multipart/alternative; boundary=\"" + multipartBoundary + "\"");
                 // Finish headers and prepare for body section(s)
-                writer.write("\r\n");
+                writer.append("\r\n");
                 writeBoundary(writer, multipartBoundary, false);
             }
 
             // first multipart element is the body
             writeHeader(writer, "Content-Type", "text/plain; charset=utf-8");
             writeHeader(writer, "Content-Transfer-Encoding", "base64");
-            writer.write("\r\n");
-            byte[] textBytes = text.getBytes("UTF-8");
-            writer.flush();
-            out.write(Base64.encode(textBytes, Base64.CRLF));
+            writer.append("\r\n");
+            writer.startBase64();
+            appendBodyText(writer, body, flags, useSmartReply);
+            writer.endBase64();
 
             if (multipart) {
                 // next multipart section
@@ -452,10 +574,10 @@ public class Rfc822Output {
 
                 writeHeader(writer, "Content-Type", "text/html; charset=utf-8");
                 writeHeader(writer, "Content-Transfer-Encoding", "base64");
-                writer.write("\r\n");
-                byte[] htmlBytes = html.getBytes("UTF-8");
-                writer.flush();
-                out.write(Base64.encode(htmlBytes, Base64.CRLF));
+                writer.append("\r\n");
+                writer.startBase64();
+                appendHtmlAlternate(writer, body, useSmartReply);
+                writer.endBase64();
 
                 // end of multipart section
                 writeBoundary(writer, multipartBoundary, true);
@@ -464,15 +586,257 @@ public class Rfc822Output {
     }
 
     /**
-     * Returns a unique boundary string.
+     * Returns a unique boundary string.  Boundaries all have the same length, so that a
+     * message measured by {@link #getSize} is written in exactly as many bytes.
      */
     /*package*/ static String getNextBoundary() {
         StringBuilder boundary = new StringBuilder();
-        boundary.append("--_com.android.email_").append(System.nanoTime());
+        boundary.append("--_com.android.email_")
+                .append(String.format(Locale.US, "%016x", System.nanoTime()));
         synchronized (Rfc822Output.class) {
             boundary = boundary.append(sBoundaryDigit);
             sBoundaryDigit = (byte)((sBoundaryDigit + 1) % 10);
         }
         return boundary.toString();
     }
+
+    /**
+     * Returns the length of the base64 encoding of {@code length} bytes, as written by
+     * {@link MessageSink}:  lines of 76 chars, each (including the last) ending with CR-LF.
+     */
+    /*package*/ static long getBase64Length(long length) {
+        long size = (length / MessageSink.BASE64_LINE_BYTES) * (MessageSink.BASE64_LINE_CHARS + 2);
+        int rest = (int) (length % MessageSink.BASE64_LINE_BYTES);
+        if (rest > 0) {
+            size += (rest + 2) / 3 * 4 + 2;
+        }
+        return size;
+    }
+
+    /**
+     * Where a message is written:  a buffered output stream, or nowhere when only its size is
+     * wanted.  Chars are encoded to UTF-8 as they are appended, with bare LFs in headers turned
+     * into CR-LFs.  Between {@link #startBase64} and {@link #endBase64}, bytes are base64 encoded
+     * instead, a line (57 bytes) at a time, straight into the output buffer; when only counting,
+     * they aren't encoded at all.
+     */
+    private static class MessageSink implements Appendable {
+        /*package*/ static final int BASE64_LINE_BYTES = 57;
+        /*package*/ static final int BASE64_LINE_CHARS = 76;
+        private static final int BUFFER_SIZE = 8192;
+        private static final byte[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+        private final OutputStream mOut;
+        private final byte[] mBuffer;
+        private int mBufferLength;
+        private long mCount;
+        private int mLastByte;
+
+        private boolean mBase64;
+        /** Bytes waiting to be base64 encoded, less than a line's worth */
+        private final byte[] mBase64Input = new byte[BASE64_LINE_BYTES];
+        private int mBase64InputLength;
+        /** Bytes to be base64 encoded, when only counting */
+        private long mBase64InputCount;
+        /** The first half of a surrogate pair, waiting for the second */
+        private char mHighSurrogate;
+
+        /**
+         * @param out the stream to write to, or null to only count the bytes
+         */
+        public MessageSink(OutputStream out) {
+            mOut = out;
+            mBuffer = (out != null) ? new byte[BUFFER_SIZE] : null;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public void flush() throws IOException {
+            if (mOut != null) {
+                flushBuffer();
+                mOut.flush();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            mOut.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+
+        @Override
+        public MessageSink append(CharSequence s) throws IOException {
+            if (s == null) {
+                s = "null";
+            }
+            return append(s, 0, s.length());
+        }
+
+        @Override
+        public MessageSink append(CharSequence s, int start, int end) throws IOException {
+            if (s == null) {
+                s = "null";
+            }
+            for (int i = start; i < end; i++) {
+                append(s.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public MessageSink append(char c) throws IOException {
+            if (mHighSurrogate != 0) {
+                char high = mHighSurrogate;
+                mHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    writeUtf8(Character.toCodePoint(high, c));
+                    return this;
+                }
+                writeByte('?');
+            }
+            if (Character.isHighSurrogate(c)) {
+                mHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                writeByte('?');
+            } else {
+                if (c == '\n' && !mBase64 && mLastByte != '\r') {
+                    writeByte('\r');
+                }
+                writeUtf8(c);
+            }
+            return this;
+        }
+
+        private void writeUtf8(int codePoint) throws IOException {
+            if (codePoint < 0x80) {
+                writeByte(codePoint);
+            } else if (codePoint < 0x800) {
+                writeByte(0xc0 | (codePoint >> 6));
+                writeByte(0x80 | (codePoint & 0x3f));
+            } else if (codePoint < 0x10000) {
+                writeByte(0xe0 | (codePoint >> 12));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+            } else {
+                writeByte(0xf0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+            }
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (mBase64) {
+                if (mOut == null) {
+                    mBase64InputCount++;
+                    return;
+                }
+                mBase64Input[mBase64InputLength++] = (byte) b;
+                if (mBase64InputLength == BASE64_LINE_BYTES) {
+                    encodeBase64Line(mBase64Input, 0, BASE64_LINE_BYTES);
+                    mBase64InputLength = 0;
+                }
+            } else {
+                if (mOut != null) {
+                    if (mBufferLength == mBuffer.length) {
+                        flushBuffer();
+                    }
+                    mBuffer[mBufferLength++] = (byte) b;
+                }
+                mCount++;
+                mLastByte = b;
+            }
+        }
+
+        public void startBase64() {
+            mBase64 = true;
+        }
+
+        public void writeBase64(byte[] b, int offset, int length) throws IOException {
+            if (mOut == null) {
+                mBase64InputCount += length;
+                return;
+            }
+            // Top up the bytes left over from the last write first
+            while (mBase64InputLength > 0 && length > 0) {
+                writeByte(b[offset++]);
+                length--;
+            }
+            while (length >= BASE64_LINE_BYTES) {
+                encodeBase64Line(b, offset, BASE64_LINE_BYTES);
+                offset += BASE64_LINE_BYTES;
+                length -= BASE64_LINE_BYTES;
+            }
+            System.arraycopy(b, offset, mBase64Input, 0, length);
+            mBase64InputLength = length;
+        }
+
+        public void writeBase64(InputStream in) throws IOException {
+            byte[] buffer = new byte[BASE64_LINE_BYTES * 64];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                writeBase64(buffer, 0, count);
+            }
+        }
+
+        public void endBase64() throws IOException {
+            if (mHighSurrogate != 0) {
+                mHighSurrogate = 0;
+                writeByte('?');
+            }
+            if (mOut == null) {
+                mCount += getBase64Length(mBase64InputCount);
+                mBase64InputCount = 0;
+            } else if (mBase64InputLength > 0) {
+                encodeBase64Line(mBase64Input, 0, mBase64InputLength);
+                mBase64InputLength = 0;
+            }
+            mBase64 = false;
+            mLastByte = '\n';
+        }
+
+        /**
+         * Encodes up to a line's worth of bytes, padding the last group if needed, and ends the
+         * line with CR-LF.
+         */
+        private void encodeBase64Line(byte[] b, int offset, int length) throws IOException {
+            if (mBufferLength + BASE64_LINE_CHARS + 2 > mBuffer.length) {
+                flushBuffer();
+            }
+            final byte[] buffer = mBuffer;
+            int p = mBufferLength;
+            final int end = offset + length - length % 3;
+            for (int i = offset; i < end; i += 3) {
+                int bits = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] & 0xff);
+                buffer[p++] = BASE64_ALPHABET[bits >> 18];
+                buffer[p++] = BASE64_ALPHABET[(bits >> 12) & 0x3f];
+                buffer[p++] = BASE64_ALPHABET[(bits >> 6) & 0x3f];
+                buffer[p++] = BASE64_ALPHABET[bits & 0x3f];
+            }
+            switch (length % 3) {
+                case 1: {
+                    int bits = (b[end] & 0xff) << 16;
+                    buffer[p++] = BASE64_ALPHABET[bits >> 18];
+                    buffer[p++] = BASE64_ALPHABET[(bits >> 12) & 0x3f];
+                    buffer[p++] = '=';
+                    buffer[p++] = '=';
+                    break;
+                }
+                case 2: {
+                    int bits = ((b[end] & 0xff) << 16) | ((b[end + 1] & 0xff) << 8);
+                    buffer[p++] = BASE64_ALPHABET[bits >> 18];
+                    buffer[p++] = BASE64_ALPHABET[(bits >> 12) & 0x3f];
+                    buffer[p++] = BASE64_ALPHABET[(bits >> 6) & 0x3f];
+                    buffer[p++] = '=';
+                    break;
+                }
+            }
+            buffer[p++] = '\r';
+            buffer[p++] = '\n';
+            mCount += p - mBufferLength;
+            mBufferLength = p;
+        }
+    }
 }
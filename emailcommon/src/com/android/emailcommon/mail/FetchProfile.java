@@ -16,6 +16,7 @@
 
 package com.android.emailcommon.mail;
 
+import java.io.File;
 import java.util.ArrayList;
 
 /**
@@ -70,6 +71,26 @@ public class FetchProfile extends ArrayList<Fetchable> {
         BODY,
     }
 
+    /** Where to write the content of the {@link Part} being fetched; see below. */
+    private File mPartDestination;
+
+    /**
+     * Asks the provider to write the decoded content of the {@link Part} being fetched straight
+     * to {@code destination} as it's downloaded, if it can, instead of spooling it to temp files.
+     * If it does, the part's body will be a {@link com.android.emailcommon.internet.FileBody}
+     * backed by {@code destination}.
+     */
+    public void setPartDestination(File destination) {
+        mPartDestination = destination;
+    }
+
+    /**
+     * @return the file set with {@link #setPartDestination}, or null.
+     */
+    public File getPartDestination() {
+        return mPartDestination;
+    }
+
     /**
      * @return the first {@link Part} in this collection, or null if it doesn't contain
      * {@link Part}.
@@ -19,6 +19,9 @@ package com.android.emailcommon.mail;
 import com.android.emailcommon.service.SearchParams;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.Arrays;
+import java.util.Set;
+
 
 public abstract class Folder {
     public enum OpenMode {
@@ -123,6 +126,37 @@ public abstract class Folder {
     public abstract Message[] getMessages(SearchParams params,MessageRetrievalListener listener)
             throws MessagingException;
 
+    /**
+     * Returns the UIDs of the messages matching a search, most recent first.  Stores that can
+     * page through search results on the server return only the page selected by
+     * {@code params.mOffset} and {@code params.mLimit}; the others return all the matches.
+     * Either way {@code params.mTotalCount} is set to the number of matches, so the result is
+     * complete if its length equals that.
+     */
+    public long[] getMessageUids(SearchParams params) throws MessagingException {
+        final Message[] messages = getMessages(params, null);
+        final long[] uids = new long[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            uids[i] = Long.parseLong(messages[i].getUid());
+        }
+        sortMostRecentFirst(uids);
+        params.mTotalCount = uids.length;
+        return uids;
+    }
+
+    /**
+     * Sorts numeric uids in place, most recent (i.e. highest) first.  Not all servers return
+     * search results in order.
+     */
+    protected static void sortMostRecentFirst(long[] uids) {
+        Arrays.sort(uids);
+        for (int i = 0, j = uids.length - 1; i < j; i++, j--) {
+            final long uid = uids[i];
+            uids[i] = uids[j];
+            uids[j] = uid;
+        }
+    }
+
     public abstract Message[] getMessages(String[] uids, MessageRetrievalListener listener)
             throws MessagingException;
 
@@ -143,20 +177,98 @@ public abstract class Folder {
 
     public abstract void appendMessages(Message[] messages) throws MessagingException;
 
+    /**
+     * Like {@link #appendMessages(Message[])}, but also reports the server UID assigned to each
+     * message, where it's known, through {@code callbacks}.
+     */
+    public void appendMessages(Message[] messages, MessageUpdateCallbacks callbacks)
+            throws MessagingException {
+        final String[] oldUids = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            oldUids[i] = messages[i].getUid();
+        }
+        appendMessages(messages);
+        for (int i = 0; i < messages.length; i++) {
+            final String uid = messages[i].getUid();
+            if (uid != null && uid.length() > 0 && !uid.equals(oldUids[i])) {
+                callbacks.onMessageUidChange(messages[i], uid);
+            }
+        }
+    }
+
     /**
      * Copies the given messages to the destination folder.
      */
     public abstract void copyMessages(Message[] msgs, Folder folder,
             MessageUpdateCallbacks callbacks) throws MessagingException;
 
+    /**
+     * Moves the given messages to the destination folder.  This copies them, then deletes them
+     * from this folder and expunges it; stores that can move messages in one step override this.
+     */
+    public void moveMessages(Message[] msgs, Folder folder, MessageUpdateCallbacks callbacks)
+            throws MessagingException {
+        copyMessages(msgs, folder, callbacks);
+        updateFlags(msgs, new Flag[] { Flag.DELETED }, null, true);
+    }
+
     public abstract void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException;
 
     public abstract Message[] expunge() throws MessagingException;
 
+    /**
+     * Sets and clears flags on the given messages, then optionally expunges the folder.
+     * Stores that can send several commands in a single round trip override this.
+     *
+     * @param setFlags the flags to set; may be null
+     * @param clearFlags the flags to clear; may be null
+     * @param expunge whether to expunge the folder afterwards
+     */
+    public void updateFlags(Message[] messages, Flag[] setFlags, Flag[] clearFlags,
+            boolean expunge) throws MessagingException {
+        if (setFlags != null && setFlags.length > 0) {
+            setFlags(messages, setFlags, true);
+        }
+        if (clearFlags != null && clearFlags.length > 0) {
+            setFlags(messages, clearFlags, false);
+        }
+        if (expunge) {
+            expunge();
+        }
+    }
+
     public abstract void fetch(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException;
 
+    /**
+     * Returns an opaque token describing the server-side state of the open folder, suitable for
+     * storing in {@link com.android.emailcommon.provider.Mailbox#mSyncKey} and passing back to
+     * {@link #fetchChangedFlags} on the next sync.
+     * Note: Only implemented by stores that can track changes, so not abstract.
+     *
+     * @return the sync key, or null if the store has no notion of one.
+     */
+    public String getSyncKey() throws MessagingException {
+        return null;
+    }
+
+    /**
+     * Fetches the flags of only those messages whose flags changed since the folder state
+     * described by {@code syncKey}.
+     * Note: Only implemented by stores that can track changes, so not abstract.
+     *
+     * @param messages the messages to consider
+     * @param syncKey a value previously returned by {@link #getSyncKey}; may be null
+     * @param vanishedUids if not null, receives the UIDs the server reports as expunged
+     * @return the messages whose flags were fetched, or null if the changes can't be determined;
+     * in that case the caller must fetch the flags of all messages.
+     */
+    public Message[] fetchChangedFlags(Message[] messages, String syncKey,
+            Set<String> vanishedUids) throws MessagingException {
+        return null;
+    }
+
     public abstract void delete(boolean recurse) throws MessagingException;
 
     public abstract String getName();
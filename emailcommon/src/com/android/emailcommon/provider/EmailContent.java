@@ -534,6 +534,8 @@ public abstract class EmailContent {
         public static final String TABLE_NAME = "Message";
         public static final String UPDATED_TABLE_NAME = "Message_Updates";
         public static final String DELETED_TABLE_NAME = "Message_Deletes";
+        // The full-text index of the messages, kept in the body database
+        public static final String SEARCH_TABLE_NAME = "Message_Search";
 
         // To refer to a specific message, use ContentUris.withAppendedId(CONTENT_URI, id)
         @SuppressWarnings("hiding")
@@ -547,6 +549,10 @@ public abstract class EmailContent {
             Uri.parse(EmailContent.CONTENT_URI + "/updatedMessage");
         public static final Uri NOTIFIER_URI =
             Uri.parse(EmailContent.CONTENT_NOTIFIER_URI + "/message");
+        // Local full-text search of the messages; see buildSearchUri()
+        public static final Uri SEARCH_CONTENT_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/messageSearch");
+        public static final String SEARCH_PARAMETER_QUERY = "query";
 
         public static final String KEY_TIMESTAMP_DESC = MessageColumns.TIMESTAMP + " desc";
 
@@ -839,6 +845,23 @@ public abstract class EmailContent {
             return values;
         }
 
+        /**
+         * Returns the uri of a page of the local messages matching a search, best matches first.
+         * The words of the query match the words of the subject, sender, recipients and text of
+         * the messages that start with them.  A selection on the message columns (e.g. of a
+         * mailbox) may be given with the query.
+         *
+         * @param query the words to search for
+         * @param offset the number of matching messages to skip
+         * @param count the maximum number of matching messages to return
+         */
+        public static Uri buildSearchUri(String query, int offset, int count) {
+            return SEARCH_CONTENT_URI.buildUpon()
+                    .appendQueryParameter(SEARCH_PARAMETER_QUERY, query)
+                    .appendQueryParameter(EmailContent.PARAMETER_LIMIT, offset + "," + count)
+                    .build();
+        }
+
         public static Message restoreMessageWithId(Context context, long id) {
             return EmailContent.restoreContentWithId(context, Message.class,
                     Message.CONTENT_URI, Message.CONTENT_PROJECTION, id);
@@ -42,6 +42,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
 
 public class AttachmentUtilities {
     public static final String AUTHORITY = "com.android.email.attachmentprovider";
@@ -366,6 +367,55 @@ public class AttachmentUtilities {
         }
     }
 
+    /**
+     * Deletes the attachment files of an account whose attachments no longer exist, e.g. after
+     * their messages were deleted in bulk.  This is a sweep over the attachment directory, and
+     * so belongs on a background thread.
+     *
+     * @param context
+     * @param accountId the account to sweep
+     * @return the number of files deleted
+     */
+    public static int deleteOrphanAttachmentFiles(Context context, long accountId) {
+        File[] files = getAttachmentDirectory(context, accountId).listFiles();
+        if (files == null) return 0;
+        // Look up the attachments of the files (named by attachment id, as by
+        // getAttachmentFilename), rather than all the attachments of the account
+        StringBuilder ids = new StringBuilder();
+        for (File file : files) {
+            String name = file.getName();
+            if (TextUtils.isDigitsOnly(name) && name.length() > 0) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(name);
+            }
+        }
+        if (ids.length() == 0) return 0;
+        HashSet<String> existingIds = new HashSet<String>();
+        Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                Attachment.ID_PROJECTION, AttachmentColumns.ID + " in (" + ids + ")", null, null);
+        try {
+            while (c.moveToNext()) {
+                existingIds.add(Long.toString(c.getLong(Attachment.ID_PROJECTION_COLUMN)));
+            }
+        } finally {
+            c.close();
+        }
+        int deleted = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (TextUtils.isDigitsOnly(name) && name.length() > 0
+                    && !existingIds.contains(name)) {
+                // Best-effort, as for the other deletions
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
     private static long copyFile(InputStream in, File file) throws IOException {
         FileOutputStream out = new FileOutputStream(file);
         long size = IOUtils.copy(in, out);
@@ -334,6 +334,14 @@ public class TextUtilities {
         return makeSnippetFromText(text, false);
     }
 
+    /**
+     * Strips HTML text as {@link #makeSnippetFromHtmlText} does, but keeps all of the text (e.g.
+     * for the search index)
+     */
+    public static String makeTextFromHtmlText(String text) {
+        return makeTextFromText(text, true, Integer.MAX_VALUE);
+    }
+
     /**
      * Find the end of this tag; there are two alternatives: <tag .../> or <tag ...> ... </tag>
      * @param htmlText some HTML text
@@ -362,12 +370,18 @@ public class TextUtilities {
     }
 
     public static String makeSnippetFromText(String text, boolean stripHtml) {
+        return makeTextFromText(text, stripHtml, MAX_SNIPPET_LENGTH);
+    }
+
+    private static String makeTextFromText(String text, boolean stripHtml, int maxLength) {
         // Handle null and empty string
         if (TextUtils.isEmpty(text)) return "";
 
         final int length = text.length();
         // Use char[] instead of StringBuilder purely for performance; fewer method calls, etc.
-        char[] buffer = new char[MAX_SNIPPET_LENGTH];
+        // Each character of the result takes at least one of the text
+        maxLength = Math.min(maxLength, length);
+        char[] buffer = new char[maxLength];
         // skipCount is an array of a single int; that int is set inside stripHtmlEntity and is
         // used to determine how many characters can be "skipped" due to the transformation of the
         // entity to a single character.  When Java allows multiple return values, we can make this
@@ -380,7 +394,7 @@ public class TextUtilities {
         boolean inTag = false;
 
         // Walk through the text until we're done with the input OR we've got a large enough snippet
-        for (int i = 0; i < length && bufferCount < MAX_SNIPPET_LENGTH; i++) {
+        for (int i = 0; i < length && bufferCount < maxLength; i++) {
             char c = text.charAt(i);
             if (stripHtml && !inTag && (c == '<')) {
                 // Find tags to strip; they will begin with <! or !- or </ or <letter
@@ -31,6 +31,8 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.email.mail.store.Pop3Store.Pop3Message;
+import com.android.email.mail.store.Pop3UidlIndex;
+import com.android.email.mail.transport.SmtpSender;
 import com.android.email.provider.AccountBackupRestore;
 import com.android.email.service.EmailServiceUtils;
 import com.android.email.service.MailService;
@@ -111,6 +113,12 @@ public class Controller {
         MAILBOXES_FOR_ACCOUNT_SELECTION + " AND " + MailboxColumns.TYPE + "!=" +
         Mailbox.TYPE_EAS_ACCOUNT_MAILBOX;
     private static final String MESSAGES_FOR_ACCOUNT_SELECTION = MessageColumns.ACCOUNT_KEY + "=?";
+    /** The inbox, and the mail-holding mailboxes of an account that have been synced before */
+    private static final String ALL_SYNCABLE_MAILBOXES_SELECTION =
+        MAILBOXES_FOR_ACCOUNT_SELECTION + " AND (" + MailboxColumns.FLAGS + "&" +
+        Mailbox.FLAG_HOLDS_MAIL + ")!=0 AND " + MailboxColumns.TYPE + " NOT IN (" +
+        Mailbox.TYPE_OUTBOX + "," + Mailbox.TYPE_SEARCH + ") AND (" + MailboxColumns.TYPE +
+        "=" + Mailbox.TYPE_INBOX + " OR " + MailboxColumns.SYNC_TIME + ">0)";
 
     // Service callbacks as set up via setCallback
     private static RemoteCallbackList<IEmailServiceCallback> sCallbackList =
@@ -428,6 +436,43 @@ public class Controller {
         }
     }
 
+    /**
+     * Request a remote update of the inbox of an account, and of every other mailbox that has
+     * been synced before.  For POP/IMAP accounts the mailboxes are synced several at a time,
+     * inbox first; see {@link MessagingController#synchronizeMailboxes}.
+     */
+    public void updateAllMailboxes(final long accountId) {
+        if (isMessagingController(accountId)) {
+            Utility.runAsync(new Runnable() {
+                public void run() {
+                    Account account = Account.restoreAccountWithId(mProviderContext, accountId);
+                    if (account == null) {
+                        return;
+                    }
+                    ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+                    Cursor c = mProviderContext.getContentResolver().query(Mailbox.CONTENT_URI,
+                            Mailbox.CONTENT_PROJECTION, ALL_SYNCABLE_MAILBOXES_SELECTION,
+                            new String[] { Long.toString(accountId) }, null);
+                    if (c == null) return;
+                    try {
+                        while (c.moveToNext()) {
+                            mailboxes.add(EmailContent.getContent(c, Mailbox.class));
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    mLegacyController.synchronizeMailboxes(account, mailboxes, mLegacyListener);
+                }
+            });
+        } else {
+            long inboxId = Mailbox.findMailboxOfType(mProviderContext, accountId,
+                    Mailbox.TYPE_INBOX);
+            if (inboxId != Mailbox.NO_MAILBOX) {
+                updateMailbox(accountId, inboxId, false);
+            }
+        }
+    }
+
     /**
      * Request that any final work necessary be done, to load a message.
      *
@@ -1168,6 +1213,9 @@ public class Controller {
 
             // Delete account data, attachments, PIM data, etc.
             deleteSyncedDataSync(accountId);
+            Pop3UidlIndex.delete(context, accountId);
+            // Close the account's SMTP session, if one is being kept open
+            SmtpSender.removeInstance(account);
 
             // Now delete the account itself
             Uri uri = ContentUris.withAppendedId(Account.CONTENT_URI, accountId);
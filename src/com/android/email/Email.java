@@ -26,6 +26,7 @@ import android.util.Log;
 
 import com.android.email.activity.MessageCompose;
 import com.android.email.activity.ShortcutPicker;
+import com.android.email.mail.store.ImapStore;
 import com.android.email.service.AttachmentDownloadService;
 import com.android.email.service.MailService;
 import com.android.email.widget.WidgetConfiguration;
@@ -196,6 +197,16 @@ public class Email extends Application {
         enableStrictMode(prefs.getEnableStrictMode());
         TempDirectory.setTempDirectory(this);
 
+        // Pooled IMAP connections don't survive a change of network; replace them.
+        new EmailConnectivityManager(this, "ImapConnectionPool") {
+            @Override
+            public void onConnectivityRestored(int networkType) {
+                if (!isInitialStickyBroadcast()) {
+                    ImapStore.onNetworkChanged();
+                }
+            }
+        };
+
         // Tie MailRefreshManager to the Controller.
         RefreshManager.getInstance(this);
         // Reset all accounts to default visible window
@@ -27,6 +27,7 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.internet.FileBody;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMessage;
@@ -193,26 +194,13 @@ public class LegacyConversions {
     }
 
     /**
-     * Add a single attachment part to the message
-     *
-     * This will skip adding attachments if they are already found in the attachments table.
-     * The heuristic for this will fail (false-positive) if two identical attachments are
-     * included in a single POP3 message.
-     * TODO: Fix that, by (elsewhere) simulating an mLocation value based on the attachments
-     * position within the list of multipart/mixed elements.  This would make every POP3 attachment
-     * unique, and might also simplify the code (since we could just look at the positions, and
-     * ignore the filename, etc.)
+     * Creates a provider attachment (not yet saved) from a legacy attachment part.
      *
-     * TODO: Take a closer look at encoding and deal with it if necessary.
-     *
-     * @param context a context for file operations
-     * @param localMessage the attachments will be built against this message
-     * @param part a single attachment part from POP or IMAP
-     * @throws IOException
+     * @param localMessage the local message the attachment belongs to
+     * @param part the attachment part
      */
-    private static void addOneAttachment(Context context, EmailContent.Message localMessage,
-            Part part) throws MessagingException, IOException {
-
+    public static Attachment makeAttachment(EmailContent.Message localMessage, Part part)
+            throws MessagingException {
         Attachment localAttachment = new Attachment();
 
         // Transfer fields from mime format to provider format
@@ -252,6 +240,31 @@ public class LegacyConversions {
             Log.d(Logging.LOG_TAG, "Add attachment " + localAttachment);
         }
 
+        return localAttachment;
+    }
+
+    /**
+     * Add a single attachment part to the message
+     *
+     * This will skip adding attachments if they are already found in the attachments table.
+     * The heuristic for this will fail (false-positive) if two identical attachments are
+     * included in a single POP3 message.
+     * TODO: Fix that, by (elsewhere) simulating an mLocation value based on the attachments
+     * position within the list of multipart/mixed elements.  This would make every POP3 attachment
+     * unique, and might also simplify the code (since we could just look at the positions, and
+     * ignore the filename, etc.)
+     *
+     * TODO: Take a closer look at encoding and deal with it if necessary.
+     *
+     * @param context a context for file operations
+     * @param localMessage the attachments will be built against this message
+     * @param part a single attachment part from POP or IMAP
+     * @throws IOException
+     */
+    private static void addOneAttachment(Context context, EmailContent.Message localMessage,
+            Part part) throws MessagingException, IOException {
+        Attachment localAttachment = makeAttachment(localMessage, part);
+
         // To prevent duplication - do we already have a matching attachment?
         // The fields we'll check for equality are:
         //  mFileName, mMimeType, mContentId, mMessageKey, mLocation
@@ -317,19 +330,25 @@ public class LegacyConversions {
         if (part.getBody() != null) {
             long attachmentId = localAttachment.mId;
 
-            InputStream in = part.getBody().getInputStream();
-
             File saveIn = AttachmentUtilities.getAttachmentDirectory(context, accountId);
             if (!saveIn.exists()) {
                 saveIn.mkdirs();
             }
             File saveAs = AttachmentUtilities.getAttachmentFilename(context, accountId,
                     attachmentId);
-            saveAs.createNewFile();
-            FileOutputStream out = new FileOutputStream(saveAs);
-            long copySize = IOUtils.copy(in, out);
-            in.close();
-            out.close();
+            long copySize;
+            if (part.getBody() instanceof FileBody
+                    && saveAs.equals(((FileBody) part.getBody()).getFile())) {
+                // The store already wrote it in place
+                copySize = saveAs.length();
+            } else {
+                InputStream in = part.getBody().getInputStream();
+                saveAs.createNewFile();
+                FileOutputStream out = new FileOutputStream(saveAs);
+                copySize = IOUtils.copy(in, out);
+                in.close();
+                out.close();
+            }
 
             // update the attachment with the extra information we now know
             String contentUriString = AttachmentUtilities.getAttachmentUri(
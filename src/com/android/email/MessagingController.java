@@ -16,14 +16,18 @@
 
 package com.android.email;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Process;
+import android.os.RemoteException;
 import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
@@ -51,6 +55,7 @@ import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
@@ -63,10 +68,13 @@ import com.android.emailcommon.utility.Utility;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -104,9 +112,26 @@ public class MessagingController implements Runnable {
      */
     private static final int MAX_SMALL_MESSAGE_SIZE = (25 * 1024);
 
-    private static final Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
-    private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
-    private static final Flag[] FLAG_LIST_ANSWERED = new Flag[] { Flag.ANSWERED };
+    /**
+     * How many downloaded messages are written to the provider in one transaction
+     * (see {@link MessageBatch}).
+     */
+    private static final int MESSAGE_BATCH_SIZE = 50;
+
+    /**
+     * How many messages are named in each statement of {@link #deleteLocalMessages}.
+     */
+    private static final int DELETE_BATCH_SIZE = 500;
+
+    private static final Flag[] FLAG_LIST_DELETED = new Flag[] { Flag.DELETED };
+
+    /**
+     * The maximum number of mailboxes of an account {@link #synchronizeMailboxes} syncs at the
+     * same time, each over its own connection.  Can be overridden with
+     * {@link #PROPERTY_MAX_PARALLEL_SYNCS}; 1 syncs the mailboxes one after another.
+     */
+    private static final int DEFAULT_MAX_PARALLEL_SYNCS = 4;
+    private static final String PROPERTY_MAX_PARALLEL_SYNCS = "persist.env.email.parallelsync";
 
     /**
      * We write this into the serverId field of messages that will never be upsynced.
@@ -114,12 +139,10 @@ public class MessagingController implements Runnable {
     private static final String LOCAL_SERVERID_PREFIX = "Local-";
 
     /**
-     * Cache search results by account; this allows for "load more" support without having to
-     * redo the search (which can be quite slow).  SortableMessage is a smallish class, so memory
-     * shouldn't be an issue
+     * Cache search results; this allows for "load more" support without having to redo the
+     * search (which can be quite slow).
      */
-    private static final HashMap<Long, SortableMessage[]> sSearchResults =
-        new HashMap<Long, SortableMessage[]>();
+    private static final SearchResultCache sSearchResults = new SearchResultCache();
 
     private static final ContentValues PRUNE_ATTACHMENT_CV = new ContentValues();
     static {
@@ -264,7 +287,7 @@ public class MessagingController implements Runnable {
                 try {
                     // Step 1: Get remote mailboxes
                     Store store = Store.getInstance(account, mContext);
-                    Folder[] remoteFolders = store.updateFolders();
+                    Folder[] remoteFolders = store.updateFoldersAndStatus();
                     HashSet<String> remoteFolderNames = new HashSet<String>();
                     for (int i = 0, count = remoteFolders.length; i < count; i++) {
                         remoteFolderNames.add(remoteFolders[i].getName());
@@ -343,6 +366,157 @@ public class MessagingController implements Runnable {
         });
     }
 
+    /**
+     * Start background synchronization of several folders of an account.  Up to
+     * {@link #DEFAULT_MAX_PARALLEL_SYNCS} folders are synced at the same time, over separate
+     * (pooled) connections; the inbox always goes first.  Results are reported per folder, as
+     * with {@link #synchronizeMailbox}.
+     */
+    public void synchronizeMailboxes(final Account account, List<Mailbox> folders,
+            MessagingListener listener) {
+        final ArrayList<Mailbox> queue = getFoldersToSync(folders);
+        if (queue.isEmpty()) {
+            return;
+        }
+        for (Mailbox folder : queue) {
+            mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
+        }
+        put("synchronizeMailboxes", listener, new Runnable() {
+            public void run() {
+                synchronizeMailboxesSynchronous(account, queue);
+            }
+        });
+    }
+
+    /**
+     * Returns the folders to sync, in the order they should be started: the inbox first, and
+     * the others in the given order.  The outbox is never synced.
+     */
+    /*package*/ static ArrayList<Mailbox> getFoldersToSync(List<Mailbox> folders) {
+        final ArrayList<Mailbox> queue = new ArrayList<Mailbox>(folders.size());
+        for (Mailbox folder : folders) {
+            if (folder.mType != Mailbox.TYPE_OUTBOX) {
+                queue.add(folder);
+            }
+        }
+        // Stable sort, so the other folders keep the caller's order
+        Collections.sort(queue, new Comparator<Mailbox>() {
+            @Override
+            public int compare(Mailbox lhs, Mailbox rhs) {
+                final boolean lhsInbox = lhs.mType == Mailbox.TYPE_INBOX;
+                final boolean rhsInbox = rhs.mType == Mailbox.TYPE_INBOX;
+                return (lhsInbox == rhsInbox) ? 0 : (lhsInbox ? -1 : 1);
+            }
+        });
+        return queue;
+    }
+
+    /**
+     * Work done on each of the folders of {@link #runOnFolders}.
+     */
+    /*package*/ interface FolderTask {
+        public void run(Mailbox folder);
+    }
+
+    /**
+     * Runs a task on each of the folders, starting them in order, on up to maxThreads threads
+     * at a time, this one included.  Returns when all of them are done.  A task that fails on
+     * one folder doesn't keep the others from running.
+     */
+    /*package*/ static void runOnFolders(List<Mailbox> folders, int maxThreads,
+            final FolderTask task) {
+        final LinkedBlockingQueue<Mailbox> queue = new LinkedBlockingQueue<Mailbox>(folders);
+        final Runnable worker = new Runnable() {
+            public void run() {
+                Mailbox folder;
+                while ((folder = queue.poll()) != null) {
+                    try {
+                        task.run(folder);
+                    } catch (RuntimeException e) {
+                        Log.w(Logging.LOG_TAG, "Unable to sync " + folder.mDisplayName, e);
+                    }
+                }
+            }
+        };
+        final int threadCount = Math.min(Math.max(maxThreads, 1), folders.size());
+        final Thread[] threads = new Thread[Math.max(threadCount - 1, 0)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    worker.run();
+                }
+            }, "MessagingController-sync-" + i);
+            threads[i].start();
+        }
+        // This thread is a worker too
+        worker.run();
+        for (Thread thread : threads) {
+            boolean joined = false;
+            while (!joined) {
+                try {
+                    thread.join();
+                    joined = true;
+                } catch (InterruptedException e) {
+                    // Commands mustn't overlap; keep waiting
+                }
+            }
+        }
+    }
+
+    /**
+     * Synchronizes the given folders, several at a time.  Returns when all of them are done.
+     *
+     * @param folders the folders, in the order they should be started.
+     */
+    private void synchronizeMailboxesSynchronous(final Account account,
+            List<Mailbox> folders) {
+        // Upsync once for all the folders, rather than once per folder
+        try {
+            processPendingActionsSynchronous(account);
+        } catch (MessagingException e) {
+            for (Mailbox folder : folders) {
+                reportSyncFailure(account, folder, e);
+            }
+            return;
+        }
+
+        // Find out which folders have changed since they were last synced, in one exchange
+        Store store = null;
+        try {
+            store = Store.getInstance(account, mContext);
+            store.updateFoldersAndStatus();
+        } catch (MessagingException e) {
+            // Sync all the folders then
+            Log.d(Logging.LOG_TAG, "Unable to get the status of the folders", e);
+        }
+
+        final Store statusStore = store;
+        final int maxParallelSyncs = SystemProperties.getInt(PROPERTY_MAX_PARALLEL_SYNCS,
+                DEFAULT_MAX_PARALLEL_SYNCS);
+        runOnFolders(folders, maxParallelSyncs, new FolderTask() {
+            public void run(Mailbox folder) {
+                final String status = (statusStore != null)
+                        ? statusStore.takeFolderStatus(folder.mServerId) : null;
+                if (status != null && status.equals(folder.mSyncStatus)) {
+                    // Nothing has changed on the server since the last sync.  The store only
+                    // reports a status that covers flag changes too (e.g. HIGHESTMODSEQ).
+                    mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
+                    mListeners.synchronizeMailboxFinished(account.mId, folder.mId, 0, 0,
+                            new ArrayList<Long>());
+                    return;
+                }
+                if (synchronizeMailboxSynchronous(account, folder, false) && status != null) {
+                    // The status was taken before the sync, so any later change is noticed
+                    ContentValues cv = new ContentValues();
+                    cv.put(MailboxColumns.SYNC_STATUS, status);
+                    folder.update(mContext, cv);
+                    folder.mSyncStatus = status;
+                }
+            }
+        });
+    }
+
     /**
      * Start foreground synchronization of the specified folder. This is called by
      * synchronizeMailbox or checkMail.
@@ -352,39 +526,56 @@ public class MessagingController implements Runnable {
      */
     private void synchronizeMailboxSynchronous(final Account account,
             final Mailbox folder) {
+        synchronizeMailboxSynchronous(account, folder, true);
+    }
+
+    /**
+     * @param processPendingActions whether to upsync pending changes before syncing
+     * @return whether the folder was synced successfully
+     */
+    private boolean synchronizeMailboxSynchronous(final Account account,
+            final Mailbox folder, boolean processPendingActions) {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
         mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
         if ((folder.mFlags & Mailbox.FLAG_HOLDS_MAIL) == 0) {
             // We don't hold messages, so, nothing to synchronize
             mListeners.synchronizeMailboxFinished(account.mId, folder.mId, 0, 0, null);
-            return;
+            return false;
         }
         NotificationController nc = NotificationController.getInstance(mContext);
         try {
-            processPendingActionsSynchronous(account);
+            if (processPendingActions) {
+                processPendingActionsSynchronous(account);
+            }
 
             // Select generic sync or store-specific sync
             SyncResults results = synchronizeMailboxGeneric(account, folder);
             // The account might have been deleted
-            if (results == null) return;
+            if (results == null) return false;
             mListeners.synchronizeMailboxFinished(account.mId, folder.mId,
                                                   results.mTotalMessages,
                                                   results.mAddedMessages.size(),
                                                   results.mAddedMessages);
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(account.mId);
+            return true;
         } catch (MessagingException e) {
-            if (Logging.LOGD) {
-                Log.v(Logging.LOG_TAG, "synchronizeMailbox", e);
-            }
-            if (e instanceof AuthenticationFailedException) {
-                // Generate authentication notification
-                nc.showLoginFailedNotification(account.mId);
-            }
-            mListeners.synchronizeMailboxFailed(account.mId, folder.mId, e);
+            reportSyncFailure(account, folder, e);
+            return false;
         }
     }
 
+    private void reportSyncFailure(Account account, Mailbox folder, MessagingException e) {
+        if (Logging.LOGD) {
+            Log.v(Logging.LOG_TAG, "synchronizeMailbox", e);
+        }
+        if (e instanceof AuthenticationFailedException) {
+            // Generate authentication notification
+            NotificationController.getInstance(mContext).showLoginFailedNotification(account.mId);
+        }
+        mListeners.synchronizeMailboxFailed(account.mId, folder.mId, e);
+    }
+
     /**
      * Lightweight record for the first pass of message sync, where I'm just seeing if
      * the local message requires sync.  Later (for messages that need syncing) we'll do a full
@@ -476,18 +667,24 @@ public class MessagingController implements Runnable {
         // For small messages, we specify "body", which returns everything (incl. attachments)
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.BODY);
-        remoteFolder.fetch(smallMessages.toArray(new Message[smallMessages.size()]), fp,
-                new MessageRetrievalListener() {
-                    public void messageRetrieved(Message message) {
-                        // Store the updated message locally and mark it fully loaded
-                        copyOneMessageToProvider(message, account, toMailbox,
-                                EmailContent.Message.FLAG_LOADED_COMPLETE);
-                    }
+        // They are written to the provider in batches, as fast as they come in
+        final MessageBatch batch = new MessageBatch();
+        try {
+            remoteFolder.fetch(smallMessages.toArray(new Message[smallMessages.size()]), fp,
+                    new MessageRetrievalListener() {
+                        public void messageRetrieved(Message message) {
+                            // Store the updated message locally and mark it fully loaded
+                            copyOneMessageToProvider(message, account, toMailbox,
+                                    EmailContent.Message.FLAG_LOADED_COMPLETE, batch);
+                        }
 
-                    @Override
-                    public void loadAttachmentProgress(int progress) {
-                    }
-        });
+                        @Override
+                        public void loadAttachmentProgress(int progress) {
+                        }
+            });
+        } finally {
+            batch.flush();
+        }
 
         // 3. Download large messages.  We ask the server to give us the message structure,
         // but not all of the attachments.
@@ -549,6 +746,10 @@ public class MessagingController implements Runnable {
             Folder remoteFolder, ArrayList<Message> unsyncedMessages,
             HashMap<String, LocalMessageInfo> localMessageMap, final ArrayList<Long> unseenMessages)
             throws MessagingException {
+        final MessageBatch batch = new MessageBatch();
+        // The new messages have no ids until their batch is written
+        final ArrayList<EmailContent.Message> unseenLocalMessages =
+                new ArrayList<EmailContent.Message>();
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.FLAGS);
         fp.add(FetchProfile.Item.ENVELOPE);
@@ -560,64 +761,59 @@ public class MessagingController implements Runnable {
             localMapCopy = new HashMap<String, LocalMessageInfo>();
         }
 
-        remoteFolder.fetch(unsyncedMessages.toArray(new Message[0]), fp,
-                new MessageRetrievalListener() {
-                    @Override
-                    public void messageRetrieved(Message message) {
-                        try {
-                            // Determine if the new message was already known (e.g. partial)
-                            // And create or reload the full message info
-                            LocalMessageInfo localMessageInfo =
-                                localMapCopy.get(message.getUid());
-                            EmailContent.Message localMessage = null;
-                            if (localMessageInfo == null) {
-                                localMessage = new EmailContent.Message();
-                            } else {
-                                localMessage = EmailContent.Message.restoreMessageWithId(
-                                        mContext, localMessageInfo.mId);
-                            }
+        try {
+            remoteFolder.fetch(unsyncedMessages.toArray(new Message[0]), fp,
+                    new MessageRetrievalListener() {
+                        @Override
+                        public void messageRetrieved(Message message) {
+                            try {
+                                // Determine if the new message was already known (e.g. partial)
+                                // And create or reload the full message info
+                                LocalMessageInfo localMessageInfo =
+                                    localMapCopy.get(message.getUid());
+                                EmailContent.Message localMessage = null;
+                                if (localMessageInfo == null) {
+                                    localMessage = new EmailContent.Message();
+                                } else {
+                                    localMessage = EmailContent.Message.restoreMessageWithId(
+                                            mContext, localMessageInfo.mId);
+                                }
 
-                            if (localMessage != null) {
-                                try {
-                                    // Copy the fields that are available into the message
-                                    LegacyConversions.updateMessageFields(localMessage,
-                                            message, account.mId, mailbox.mId);
-                                    // Commit the message to the local store
-                                    saveOrUpdate(localMessage, mContext);
-                                    // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
+                                if (localMessage != null) {
+                                    try {
+                                        // Copy the fields that are available into the message
+                                        LegacyConversions.updateMessageFields(localMessage,
+                                                message, account.mId, mailbox.mId);
+                                        // Queue the message for the local store
+                                        batch.addEnvelope(localMessage);
+                                        // Track the "new" ness of the downloaded message
+                                        if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
+                                            unseenLocalMessages.add(localMessage);
+                                        }
+                                    } catch (MessagingException me) {
+                                        Log.e(Logging.LOG_TAG,
+                                                "Error while copying downloaded message." + me);
                                     }
-                                } catch (MessagingException me) {
-                                    Log.e(Logging.LOG_TAG,
-                                            "Error while copying downloaded message." + me);
-                                }
 
+                                }
+                            }
+                            catch (Exception e) {
+                                Log.e(Logging.LOG_TAG,
+                                        "Error while storing downloaded message." + e.toString());
                             }
                         }
-                        catch (Exception e) {
-                            Log.e(Logging.LOG_TAG,
-                                    "Error while storing downloaded message." + e.toString());
-                        }
-                    }
-
-                    @Override
-                    public void loadAttachmentProgress(int progress) {
-                    }
-                });
-
-    }
 
-    /**
-     * A message and numeric uid that's easily sortable
-     */
-    private static class SortableMessage {
-        private final Message mMessage;
-        private final long mUid;
-
-        SortableMessage(Message message, long uid) {
-            mMessage = message;
-            mUid = uid;
+                        @Override
+                        public void loadAttachmentProgress(int progress) {
+                        }
+                    });
+        } finally {
+            batch.flush();
+            for (EmailContent.Message localMessage : unseenLocalMessages) {
+                if (localMessage.isSaved()) {
+                    unseenMessages.add(localMessage.mId);
+                }
+            }
         }
     }
 
@@ -650,43 +846,53 @@ public class MessagingController implements Runnable {
         Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
         remoteFolder.open(OpenMode.READ_WRITE);
 
-        SortableMessage[] sortableMessages = new SortableMessage[0];
+        // A new search (offset 0) always goes to the server; later pages use the cached results,
+        // if they're still around.
+        final String filter = searchParams.mFilter;
+        long[] allUids = null;
         if (searchParams.mOffset == 0) {
-            // Get the "bare" messages (basically uid)
-            Message[] remoteMessages = remoteFolder.getMessages(searchParams, null);
-            int remoteCount = remoteMessages.length;
-            if (remoteCount > 0) {
-                sortableMessages = new SortableMessage[remoteCount];
-                int i = 0;
-                for (Message msg : remoteMessages) {
-                    sortableMessages[i++] = new SortableMessage(msg, Long.parseLong(msg.getUid()));
-                }
-                // Sort the uid's, most recent first
-                // Note: Not all servers will be nice and return results in the order of request;
-                // those that do will see messages arrive from newest to oldest
-                Arrays.sort(sortableMessages, new Comparator<SortableMessage>() {
-                    @Override
-                    public int compare(SortableMessage lhs, SortableMessage rhs) {
-                        return lhs.mUid > rhs.mUid ? -1 : lhs.mUid < rhs.mUid ? 1 : 0;
-                    }
-                });
-                sSearchResults.put(accountId, sortableMessages);
+            sSearchResults.remove(accountId, mailbox.mId, filter);
+        } else {
+            allUids = sSearchResults.get(accountId, mailbox.mId, filter);
+        }
+        final int numSearchResults;
+        final long[] pageUids;
+        if (allUids == null) {
+            // Servers that page search results return just this page, most recent first
+            final long[] uids = remoteFolder.getMessageUids(searchParams);
+            if (uids.length == searchParams.mTotalCount) {
+                allUids = uids;
+                sSearchResults.put(accountId, mailbox.mId, filter, allUids);
+                pageUids = null;
+            } else {
+                pageUids = uids;
             }
+            numSearchResults = searchParams.mTotalCount;
         } else {
-            sortableMessages = sSearchResults.get(accountId);
+            numSearchResults = allUids.length;
+            pageUids = null;
         }
-
-        final int numSearchResults = sortableMessages.length;
-        final int numToLoad =
-            Math.min(numSearchResults - searchParams.mOffset, searchParams.mLimit);
-        if (numToLoad <= 0) {
+        final long[] uidsToLoad;
+        if (pageUids != null) {
+            uidsToLoad = pageUids;
+        } else {
+            final int numToLoad =
+                Math.min(numSearchResults - searchParams.mOffset, searchParams.mLimit);
+            if (numToLoad <= 0) {
+                return 0;
+            }
+            uidsToLoad = Arrays.copyOfRange(allUids, searchParams.mOffset,
+                    searchParams.mOffset + numToLoad);
+        }
+        if (uidsToLoad.length == 0) {
             return 0;
         }
 
-        final ArrayList<Message> messageList = new ArrayList<Message>();
-        for (int i = searchParams.mOffset; i < numToLoad + searchParams.mOffset; i++) {
-            messageList.add(sortableMessages[i].mMessage);
+        final String[] uidStrings = new String[uidsToLoad.length];
+        for (int i = 0; i < uidsToLoad.length; i++) {
+            uidStrings[i] = Long.toString(uidsToLoad[i]);
         }
+        final Message[] messages = remoteFolder.getMessages(uidStrings, null);
         // Get everything in one pass, rather than two (as in sync); this starts getting us
         // usable results quickly.
         FetchProfile fp = new FetchProfile();
@@ -694,44 +900,47 @@ public class MessagingController implements Runnable {
         fp.add(FetchProfile.Item.ENVELOPE);
         fp.add(FetchProfile.Item.STRUCTURE);
         fp.add(FetchProfile.Item.BODY_SANE);
-        remoteFolder.fetch(messageList.toArray(new Message[0]), fp,
-                new MessageRetrievalListener() {
-            public void messageRetrieved(Message message) {
-                try {
-                    // Determine if the new message was already known (e.g. partial)
-                    // And create or reload the full message info
-                    EmailContent.Message localMessage = new EmailContent.Message();
+        final MessageBatch batch = new MessageBatch();
+        try {
+            remoteFolder.fetch(messages, fp,
+                    new MessageRetrievalListener() {
+                public void messageRetrieved(Message message) {
                     try {
-                        // Copy the fields that are available into the message
-                        LegacyConversions.updateMessageFields(localMessage,
-                                message, account.mId, mailbox.mId);
-                        // Commit the message to the local store
-                        saveOrUpdate(localMessage, mContext);
-                        localMessage.mMailboxKey = destMailboxId;
-                        // We load 50k or so; maybe it's complete, maybe not...
-                        int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
-                        // We store the serverId of the source mailbox into protocolSearchInfo
-                        // This will be used by loadMessageForView, etc. to use the proper remote
-                        // folder
-                        localMessage.mProtocolSearchInfo = mailbox.mServerId;
-                        if (message.getSize() > Store.FETCH_BODY_SANE_SUGGESTED_SIZE) {
-                            flag = EmailContent.Message.FLAG_LOADED_PARTIAL;
+                        // Determine if the new message was already known (e.g. partial)
+                        // And create or reload the full message info
+                        EmailContent.Message localMessage = new EmailContent.Message();
+                        try {
+                            // Copy the fields that are available into the message
+                            LegacyConversions.updateMessageFields(localMessage,
+                                    message, account.mId, mailbox.mId);
+                            localMessage.mMailboxKey = destMailboxId;
+                            // We load 50k or so; maybe it's complete, maybe not...
+                            int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
+                            // We store the serverId of the source mailbox into
+                            // protocolSearchInfo.  This will be used by loadMessageForView, etc.
+                            // to use the proper remote folder
+                            localMessage.mProtocolSearchInfo = mailbox.mServerId;
+                            if (message.getSize() > Store.FETCH_BODY_SANE_SUGGESTED_SIZE) {
+                                flag = EmailContent.Message.FLAG_LOADED_PARTIAL;
+                            }
+                            batch.addMessage(message, localMessage, flag);
+                        } catch (MessagingException me) {
+                            Log.e(Logging.LOG_TAG,
+                                    "Error while copying downloaded message." + me);
                         }
-                        copyOneMessageToProvider(message, localMessage, flag, mContext);
-                    } catch (MessagingException me) {
+                    } catch (Exception e) {
                         Log.e(Logging.LOG_TAG,
-                                "Error while copying downloaded message." + me);
+                                "Error while storing downloaded message." + e.toString());
                     }
-                } catch (Exception e) {
-                    Log.e(Logging.LOG_TAG,
-                            "Error while storing downloaded message." + e.toString());
                 }
-            }
 
-            @Override
-            public void loadAttachmentProgress(int progress) {
-            }
-        });
+                @Override
+                public void loadAttachmentProgress(int progress) {
+                }
+            });
+        } finally {
+            batch.flush();
+        }
         return numSearchResults;
     }
 
@@ -883,10 +1092,17 @@ public class MessagingController implements Runnable {
         }
 
         // 9. Refresh the flags for any messages in the local store that we didn't just download.
-        // Fetch FLAGS
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.FLAGS);
-        remoteFolder.fetch(remoteMessages, fp, null);
+        // If the server can tell us which messages changed since the last sync, only fetch FLAGS
+        // for those; otherwise fetch FLAGS for every message in the window.
+        final HashSet<String> vanishedUids = new HashSet<String>();
+        Message[] flagMessages =
+                remoteFolder.fetchChangedFlags(remoteMessages, mailbox.mSyncKey, vanishedUids);
+        if (flagMessages == null) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            remoteFolder.fetch(remoteMessages, fp, null);
+            flagMessages = remoteMessages;
+        }
         boolean remoteSupportsSeen = false;
         boolean remoteSupportsFlagged = false;
         boolean remoteSupportsAnswered = false;
@@ -903,7 +1119,7 @@ public class MessagingController implements Runnable {
         }
         // Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
         if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-            for (Message remoteMessage : remoteMessages) {
+            for (Message remoteMessage : flagMessages) {
                 LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
                 if (localMessageInfo == null) {
                     continue;
@@ -938,31 +1154,35 @@ public class MessagingController implements Runnable {
         // 10. Remove any messages that are in the local store but no longer on the remote store.
         HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
         localUidsToDelete.removeAll(remoteUidMap.keySet());
-        for (String uidToDelete : localUidsToDelete) {
-            LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
-
-            // Delete associated data (attachment files)
-            // Attachment & Body records are auto-deleted when we delete the Message record
-            AttachmentUtilities.deleteAllAttachmentFiles(mContext, account.mId,
-                    infoToDelete.mId);
-
-            // Delete the message itself
-            Uri uriToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.CONTENT_URI, infoToDelete.mId);
-            resolver.delete(uriToDelete, null, null);
-
-            // Delete extra rows (e.g. synced or deleted)
-            Uri syncRowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(syncRowToDelete, null, null);
-            Uri deletERowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(deletERowToDelete, null, null);
+        localUidsToDelete.addAll(vanishedUids);
+        localUidsToDelete.retainAll(localMessageMap.keySet());
+        if (!localUidsToDelete.isEmpty()) {
+            ArrayList<Long> messageIdsToDelete = new ArrayList<Long>(localUidsToDelete.size());
+            for (String uidToDelete : localUidsToDelete) {
+                messageIdsToDelete.add(localMessageMap.get(uidToDelete).mId);
+            }
+            deleteLocalMessages(resolver, messageIdsToDelete);
+            // The attachment files are left to a sweep of the account's attachment directory
+            final long accountId = account.mId;
+            put("deleteOrphanAttachmentFiles", null, new Runnable() {
+                public void run() {
+                    AttachmentUtilities.deleteOrphanAttachmentFiles(mContext, accountId);
+                }
+            });
         }
 
         // Fetch BODY
         loadUnsyncedMessages(account, remoteFolder, unsyncedMessages, mailbox);
 
+        // 13. Remember the server state so the next sync only needs to ask for what changed
+        final String syncKey = remoteFolder.getSyncKey();
+        if (!TextUtils.equals(syncKey, mailbox.mSyncKey)) {
+            ContentValues cv = new ContentValues();
+            cv.put(MailboxColumns.SYNC_KEY, syncKey);
+            mailbox.update(mContext, cv);
+            mailbox.mSyncKey = syncKey;
+        }
+
         // 14. Clean up and report results
         remoteFolder.close(false);
 
@@ -981,6 +1201,15 @@ public class MessagingController implements Runnable {
      */
     public void copyOneMessageToProvider(Message message, Account account,
             Mailbox folder, int loadStatus) {
+        copyOneMessageToProvider(message, account, folder, loadStatus, null);
+    }
+
+    /**
+     * As {@link #copyOneMessageToProvider(Message, Account, Mailbox, int)}, but queues the
+     * message in the given batch, if any, instead of writing it right away.
+     */
+    private void copyOneMessageToProvider(Message message, Account account,
+            Mailbox folder, int loadStatus, MessageBatch batch) {
         EmailContent.Message localMessage = null;
         Cursor c = null;
         try {
@@ -1000,7 +1229,15 @@ public class MessagingController implements Runnable {
                 localMessage = EmailContent.getContent(c, EmailContent.Message.class);
                 localMessage.mMailboxKey = folder.mId;
                 localMessage.mAccountKey = account.mId;
-                copyOneMessageToProvider(message, localMessage, loadStatus, mContext);
+                if (batch == null) {
+                    copyOneMessageToProvider(message, localMessage, loadStatus, mContext);
+                } else {
+                    try {
+                        batch.addMessage(message, localMessage, loadStatus);
+                    } catch (MessagingException me) {
+                        Log.e(Logging.LOG_TAG, "Error while copying downloaded message." + me);
+                    }
+                }
             }
         } finally {
             if (c != null) {
@@ -1068,6 +1305,232 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Downloaded messages waiting to be written to the provider.  The messages, their bodies and
+     * their attachments are written {@link #MESSAGE_BATCH_SIZE} messages at a time, with a single
+     * {@link ContentResolver#applyBatch}:  one transaction across the message and body databases,
+     * and one change notification of each kind.  Attachment files, if any were downloaded, are
+     * written once their rows have ids.
+     *
+     * Messages are converted as they are added, exactly as by
+     * {@link #copyOneMessageToProvider(Message, EmailContent.Message, int, Context)}; if a batch
+     * can't be written, its messages are written one at a time instead.
+     */
+    /*package*/ class MessageBatch {
+        private final ArrayList<BatchEntry> mEntries = new ArrayList<BatchEntry>();
+
+        /**
+         * Queues a message with only its envelope (i.e. its fields already updated), to be
+         * saved or updated.
+         */
+        public void addEnvelope(EmailContent.Message localMessage) {
+            mEntries.add(new BatchEntry(null, localMessage, null, null));
+            flushIfFull();
+        }
+
+        /**
+         * Queues a message with its body and attachments (replacing those saved before).
+         *
+         * @param message the remote message we've just downloaded
+         * @param localMessage the EmailProvider Message, which may not be saved yet
+         * @param loadStatus the message will be marked with this status
+         */
+        public void addMessage(Message message, EmailContent.Message localMessage,
+                int loadStatus) throws MessagingException {
+            EmailContent.Body body = null;
+            if (localMessage.isSaved()) {
+                body = EmailContent.Body.restoreBodyWithMessageId(mContext, localMessage.mId);
+            }
+            if (body == null) {
+                body = new EmailContent.Body();
+            }
+            // Copy the fields that are available into the message object
+            LegacyConversions.updateMessageFields(localMessage, message,
+                    localMessage.mAccountKey, localMessage.mMailboxKey);
+
+            // Now process body parts & attachments
+            ArrayList<Part> viewables = new ArrayList<Part>();
+            ArrayList<Part> attachmentParts = new ArrayList<Part>();
+            MimeUtility.collectParts(message, viewables, attachmentParts);
+            ConversionUtilities.updateBodyFields(body, localMessage, viewables);
+
+            ArrayList<Attachment> attachments = new ArrayList<Attachment>();
+            for (Part part : attachmentParts) {
+                attachments.add(LegacyConversions.makeAttachment(localMessage, part));
+            }
+            // The attachments are kept in the entry only; with mAttachments set, a fallback to
+            // copyOneMessageToProvider() would save them, and an empty body, with the message
+            if (!attachments.isEmpty()) {
+                localMessage.mFlagAttachment = true;
+            }
+            localMessage.mFlagLoaded = loadStatus;
+
+            BatchEntry entry = new BatchEntry(message, localMessage, body, attachmentParts);
+            entry.mAttachments = attachments;
+            mEntries.add(entry);
+            flushIfFull();
+        }
+
+        private void flushIfFull() {
+            if (mEntries.size() >= MESSAGE_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes the queued messages.  Errors are logged, as when messages are written one at a
+         * time.
+         */
+        public void flush() {
+            if (mEntries.isEmpty()) {
+                return;
+            }
+            final ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>();
+            for (BatchEntry entry : mEntries) {
+                entry.addOperations(ops);
+            }
+            ContentProviderResult[] results = null;
+            try {
+                results = applyBatch(ops);
+            } catch (RemoteException e) {
+                Log.w(Logging.LOG_TAG, "Unable to write downloaded messages in a batch." + e);
+            } catch (OperationApplicationException e) {
+                Log.w(Logging.LOG_TAG, "Unable to write downloaded messages in a batch." + e);
+            } catch (RuntimeException e) {
+                Log.w(Logging.LOG_TAG, "Unable to write downloaded messages in a batch." + e);
+            }
+            for (BatchEntry entry : mEntries) {
+                if (results != null) {
+                    entry.saveResults(results, mContext);
+                } else if (entry.mBody == null) {
+                    try {
+                        saveOrUpdate(entry.mLocalMessage, mContext);
+                    } catch (RuntimeException rte) {
+                        Log.e(Logging.LOG_TAG,
+                                "Error while storing downloaded message." + rte.toString());
+                    }
+                } else {
+                    copyOneMessageToProvider(entry.mMessage, entry.mLocalMessage,
+                            entry.mLocalMessage.mFlagLoaded, mContext);
+                }
+            }
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, "Wrote " + mEntries.size() + " downloaded messages in "
+                        + ops.size() + " operations");
+            }
+            mEntries.clear();
+        }
+
+        /**
+         * Applies the operations of a batch; overridden by tests to make it fail.
+         */
+        /*package*/ ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws RemoteException, OperationApplicationException {
+            return mContext.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        }
+    }
+
+    /**
+     * One message of a {@link MessageBatch}
+     */
+    private static class BatchEntry {
+        final Message mMessage;
+        final EmailContent.Message mLocalMessage;
+        /** The body to write, or null if only the envelope is written */
+        final EmailContent.Body mBody;
+        final ArrayList<Part> mAttachmentParts;
+        ArrayList<Attachment> mAttachments;
+        /** Indices of this entry's operations in the batch */
+        int mMessageIndex;
+        int mBodyIndex;
+        int mFirstAttachmentIndex;
+
+        BatchEntry(Message message, EmailContent.Message localMessage, EmailContent.Body body,
+                ArrayList<Part> attachmentParts) {
+            mMessage = message;
+            mLocalMessage = localMessage;
+            mBody = body;
+            mAttachmentParts = attachmentParts;
+        }
+
+        void addOperations(ArrayList<ContentProviderOperation> ops) {
+            final boolean isNew = !mLocalMessage.isSaved();
+            mMessageIndex = ops.size();
+            if (isNew) {
+                ops.add(ContentProviderOperation.newInsert(EmailContent.Message.CONTENT_URI)
+                        .withValues(mLocalMessage.toContentValues()).build());
+            } else {
+                ops.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                        EmailContent.Message.CONTENT_URI, mLocalMessage.mId))
+                        .withValues(mLocalMessage.toContentValues()).build());
+            }
+            if (mBody == null) {
+                return;
+            }
+
+            mBodyIndex = ops.size();
+            ContentProviderOperation.Builder builder;
+            if (mBody.isSaved()) {
+                builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                        EmailContent.Body.CONTENT_URI, mBody.mId));
+            } else {
+                builder = ContentProviderOperation.newInsert(EmailContent.Body.CONTENT_URI);
+            }
+            builder.withValues(mBody.toContentValues());
+            if (isNew) {
+                builder.withValueBackReference(BodyColumns.MESSAGE_KEY, mMessageIndex);
+            }
+            ops.add(builder.build());
+
+            // The attachments replace those saved before
+            if (!isNew) {
+                ops.add(ContentProviderOperation.newDelete(Attachment.CONTENT_URI)
+                        .withSelection(AttachmentColumns.MESSAGE_KEY + "=?",
+                                new String[] { Long.toString(mLocalMessage.mId) })
+                        .build());
+            }
+            mFirstAttachmentIndex = ops.size();
+            for (Attachment attachment : mAttachments) {
+                builder = ContentProviderOperation.newInsert(Attachment.CONTENT_URI)
+                        .withValues(attachment.toContentValues());
+                if (isNew) {
+                    builder.withValueBackReference(AttachmentColumns.MESSAGE_KEY, mMessageIndex);
+                }
+                ops.add(builder.build());
+            }
+        }
+
+        /**
+         * Picks up the ids of the rows inserted, and writes the attachment files.
+         */
+        void saveResults(ContentProviderResult[] results, Context context) {
+            if (!mLocalMessage.isSaved()) {
+                mLocalMessage.mId = ContentUris.parseId(results[mMessageIndex].uri);
+            }
+            if (mBody == null) {
+                return;
+            }
+            mBody.mMessageKey = mLocalMessage.mId;
+            if (!mBody.isSaved()) {
+                mBody.mId = ContentUris.parseId(results[mBodyIndex].uri);
+            }
+            for (int i = 0; i < mAttachments.size(); i++) {
+                Attachment attachment = mAttachments.get(i);
+                attachment.mId = ContentUris.parseId(results[mFirstAttachmentIndex + i].uri);
+                attachment.mMessageKey = mLocalMessage.mId;
+                try {
+                    LegacyConversions.saveAttachmentBody(context, mAttachmentParts.get(i),
+                            attachment, mLocalMessage.mAccountKey);
+                } catch (MessagingException me) {
+                    Log.e(Logging.LOG_TAG, "Error while copying downloaded message." + me);
+                } catch (IOException ioe) {
+                    Log.e(Logging.LOG_TAG, "Error while storing attachment." + ioe.toString());
+                }
+            }
+        }
+    }
+
     public void processPendingActions(final long accountId) {
         put("processPendingActions", null, new Runnable() {
             public void run() {
@@ -1346,6 +1809,14 @@ public class MessagingController implements Runnable {
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 EmailContent.MessageColumns.MAILBOX_KEY);
         long lastMessageId = -1;
+        // Flag changes and moves are sent once all the updates have been read: one command per
+        // mailbox, flag and value, then one per source and destination mailbox
+        final LinkedHashMap<String, PendingFlagChanges> flagChanges =
+                new LinkedHashMap<String, PendingFlagChanges>();
+        final LinkedHashMap<String, PendingMoves> moves = new LinkedHashMap<String, PendingMoves>();
+        // The updates that are done once the flag changes are
+        final ArrayList<Long> doneUpdates = new ArrayList<Long>();
+        int flagChangeCount = 0;
         try {
             // Defer setting up the store until we know we need to access it
             Store remoteStore = null;
@@ -1390,19 +1861,49 @@ public class MessagingController implements Runnable {
                 }
 
                 // Dispatch here for specific change types
+                boolean moveQueued = false;
                 if (changeMoveToTrash) {
                     // Move message to trash
-                    processPendingMoveToTrash(remoteStore, account, mailbox, oldMessage,
+                    moveQueued = queuePendingMoveToTrash(moves, account, mailbox, oldMessage,
                             newMessage);
-                } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
-                    processPendingDataChange(remoteStore, mailbox, changeRead, changeFlagged,
-                            changeMailbox, changeAnswered, oldMessage, newMessage);
+                } else {
+                    if (changeRead || changeFlagged || changeAnswered) {
+                        flagChangeCount += queuePendingDataChange(flagChanges, changeRead,
+                                changeFlagged, changeAnswered, oldMessage, newMessage);
+                    }
+                    if (changeMailbox) {
+                        moveQueued = queuePendingMove(moves, mailbox, oldMessage, newMessage);
+                    }
                 }
 
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI,
-                        oldMessage.mId);
-                resolver.delete(uri, null, null);
+                // Finally, delete the update; that of a move once the move is done
+                if (!moveQueued) {
+                    doneUpdates.add(oldMessage.mId);
+                }
+            }
+
+            // Flags go first, while the messages are still in their old mailboxes
+            for (PendingFlagChanges pendingFlagChanges : flagChanges.values()) {
+                lastMessageId = pendingFlagChanges.mMessages.get(0).mId;
+                processPendingFlagChanges(remoteStore, pendingFlagChanges);
+            }
+            if (Email.DEBUG && flagChangeCount > 0) {
+                Log.d(Logging.LOG_TAG, "Sent " + flagChangeCount + " flag changes in "
+                        + flagChanges.size() + " commands");
+            }
+            deletePendingUpdates(resolver, doneUpdates);
+
+            for (PendingMoves pendingMoves : moves.values()) {
+                lastMessageId = pendingMoves.mMessages.get(0).mId;
+                if (!processPendingMoves(remoteStore, pendingMoves)) {
+                    // Leave the updates, so that the move is tried again
+                    continue;
+                }
+                final ArrayList<Long> movedUpdates = new ArrayList<Long>();
+                for (EmailContent.Message message : pendingMoves.mMessages) {
+                    movedUpdates.add(message.mId);
+                }
+                deletePendingUpdates(resolver, movedUpdates);
             }
 
         } catch (MessagingException me) {
@@ -1469,118 +1970,251 @@ public class MessagingController implements Runnable {
     }
 
     /**
-     * Upsync changes to read, flagged, or mailbox
+     * Deletes the given local messages, along with their bodies, attachments and the rows of the
+     * updates and deletes tables, in a single transaction.  The attachment files are not deleted;
+     * see {@link AttachmentUtilities#deleteOrphanAttachmentFiles}.
+     */
+    /*package*/ static void deleteLocalMessages(ContentResolver resolver,
+            ArrayList<Long> messageIds) throws MessagingException {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>();
+        for (int start = 0; start < messageIds.size(); start += DELETE_BATCH_SIZE) {
+            List<Long> chunk = messageIds.subList(start,
+                    Math.min(start + DELETE_BATCH_SIZE, messageIds.size()));
+            String selection = EmailContent.RECORD_ID + " in ("
+                    + TextUtils.join(",", chunk) + ")";
+            // Bodies are deleted along with the messages, and attachments by trigger
+            ops.add(ContentProviderOperation.newDelete(EmailContent.Message.CONTENT_URI)
+                    .withSelection(selection, null).build());
+            ops.add(ContentProviderOperation.newDelete(EmailContent.Message.UPDATED_CONTENT_URI)
+                    .withSelection(selection, null).build());
+            ops.add(ContentProviderOperation.newDelete(EmailContent.Message.DELETED_CONTENT_URI)
+                    .withSelection(selection, null).build());
+        }
+        try {
+            resolver.applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            throw new MessagingException("Unable to delete local messages.", e);
+        } catch (OperationApplicationException e) {
+            throw new MessagingException("Unable to delete local messages.", e);
+        }
+    }
+
+    /**
+     * Deletes the given rows of the updates table, in a single transaction.
+     */
+    private static void deletePendingUpdates(ContentResolver resolver, ArrayList<Long> messageIds)
+            throws MessagingException {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(messageIds.size());
+        for (long messageId : messageIds) {
+            ops.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    EmailContent.Message.UPDATED_CONTENT_URI, messageId)).build());
+        }
+        try {
+            resolver.applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            throw new MessagingException("Unable to delete pending updates.", e);
+        } catch (OperationApplicationException e) {
+            throw new MessagingException("Unable to delete pending updates.", e);
+        }
+    }
+
+    /**
+     * Messages whose flag is to be set or cleared in a remote mailbox, in a single command.
+     */
+    private static class PendingFlagChanges {
+        final Mailbox mMailbox;
+        final Flag mFlag;
+        final boolean mValue;
+        /** The current versions of the messages */
+        final ArrayList<EmailContent.Message> mMessages = new ArrayList<EmailContent.Message>();
+
+        PendingFlagChanges(Mailbox mailbox, Flag flag, boolean value) {
+            mMailbox = mailbox;
+            mFlag = flag;
+            mValue = value;
+        }
+    }
+
+    private static void addPendingFlagChange(LinkedHashMap<String, PendingFlagChanges> changes,
+            Mailbox mailbox, Flag flag, boolean value, EmailContent.Message message) {
+        final String key = mailbox.mId + ":" + flag + ":" + value;
+        PendingFlagChanges pendingFlagChanges = changes.get(key);
+        if (pendingFlagChanges == null) {
+            pendingFlagChanges = new PendingFlagChanges(mailbox, flag, value);
+            changes.put(key, pendingFlagChanges);
+        }
+        pendingFlagChanges.mMessages.add(message);
+    }
+
+    /**
+     * Queues changes to read, flagged, or answered, for {@link #processPendingFlagChanges}.
+     * Mailbox changes are queued separately, with {@link #queuePendingMove}.
      *
-     * @param remoteStore the remote store for this mailbox
-     * @param mailbox the mailbox the message is stored in
+     * @param changes the flag changes queued so far
      * @param changeRead whether the message's read state has changed
      * @param changeFlagged whether the message's flagged state has changed
-     * @param changeMailbox whether the message's mailbox has changed
+     * @param changeAnswered whether the message's answered state has changed
      * @param oldMessage the message in it's pre-change state
      * @param newMessage the current version of the message
+     * @return the number of flag changes queued
      */
-    private void processPendingDataChange(Store remoteStore, Mailbox mailbox, boolean changeRead,
-            boolean changeFlagged, boolean changeMailbox, boolean changeAnswered,
-            EmailContent.Message oldMessage, final EmailContent.Message newMessage)
-            throws MessagingException {
-        // New mailbox is the mailbox this message WILL be in (same as the one it WAS in if it isn't
-        // being moved
-        Mailbox newMailbox = mailbox;
+    private int queuePendingDataChange(LinkedHashMap<String, PendingFlagChanges> changes,
+            boolean changeRead, boolean changeFlagged, boolean changeAnswered,
+            EmailContent.Message oldMessage, EmailContent.Message newMessage) {
         // Mailbox is the original remote mailbox (the one we're acting on)
-        mailbox = getRemoteMailboxForMessage(oldMessage);
+        final Mailbox mailbox = getRemoteMailboxForMessage(oldMessage);
 
         // 0. No remote update if the message is local-only
         if (newMessage.mServerId == null || newMessage.mServerId.equals("")
                 || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX) || (mailbox == null)) {
-            return;
+            return 0;
         }
 
         // 1. No remote update for DRAFTS or OUTBOX
         if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
-            return;
-        }
-
-        // 2. Open the remote store & folder
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            return;
+            return 0;
         }
 
-        // 3. Finally, apply the changes to the message
-        Message remoteMessage = remoteFolder.getMessage(newMessage.mServerId);
-        if (remoteMessage == null) {
-            return;
-        }
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG,
                     "Update for msg id=" + newMessage.mId
                     + " read=" + newMessage.mFlagRead
                     + " flagged=" + newMessage.mFlagFavorite
                     + " answered="
-                    + ((newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0)
-                    + " new mailbox=" + newMessage.mMailboxKey);
+                    + ((newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0));
         }
-        Message[] messages = new Message[] { remoteMessage };
+        int count = 0;
         if (changeRead) {
-            remoteFolder.setFlags(messages, FLAG_LIST_SEEN, newMessage.mFlagRead);
+            addPendingFlagChange(changes, mailbox, Flag.SEEN, newMessage.mFlagRead, newMessage);
+            count++;
         }
         if (changeFlagged) {
-            remoteFolder.setFlags(messages, FLAG_LIST_FLAGGED, newMessage.mFlagFavorite);
+            addPendingFlagChange(changes, mailbox, Flag.FLAGGED, newMessage.mFlagFavorite,
+                    newMessage);
+            count++;
         }
         if (changeAnswered) {
-            remoteFolder.setFlags(messages, FLAG_LIST_ANSWERED,
-                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0);
+            boolean answered = (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
+            addPendingFlagChange(changes, mailbox, Flag.ANSWERED, answered, newMessage);
+            count++;
         }
-        if (changeMailbox) {
-            Folder toFolder = remoteStore.getFolder(newMailbox.mServerId);
-            if (!remoteFolder.exists()) {
-                return;
-            }
-            // We may need the message id to search for the message in the destination folder
-            remoteMessage.setMessageId(newMessage.mMessageId);
-            // Copy the message to its new folder
-            remoteFolder.copyMessages(messages, toFolder, new MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    ContentValues cv = new ContentValues();
-                    cv.put(EmailContent.Message.SERVER_ID, newUid);
-                    // We only have one message, so, any updates _must_ be for it. Otherwise,
-                    // we'd have to cycle through to find the one with the same server ID.
-                    mContext.getContentResolver().update(ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, newMessage.mId), cv, null, null);
-                }
-                @Override
-                public void onMessageNotFound(Message message) {
-                }
-            });
-            // Delete the message from the remote source folder
-            remoteMessage.setFlag(Flag.DELETED, true);
-            remoteFolder.expunge();
+        return count;
+    }
+
+    /**
+     * Sets or clears a flag of messages on the server, with a single command.  Messages that are
+     * no longer on the server are left alone by the server.
+     */
+    private void processPendingFlagChanges(Store remoteStore,
+            PendingFlagChanges pendingFlagChanges) throws MessagingException {
+        // 1. Open the remote store & folder
+        Folder remoteFolder = remoteStore.getFolder(pendingFlagChanges.mMailbox.mServerId);
+        if (!remoteFolder.exists()) {
+            return;
+        }
+        remoteFolder.open(OpenMode.READ_WRITE);
+        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
+            remoteFolder.close(false);
+            return;
+        }
+
+        // 2. Apply the change to all the messages at once
+        final int count = pendingFlagChanges.mMessages.size();
+        final Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = remoteFolder.createMessage(pendingFlagChanges.mMessages.get(i).mServerId);
+        }
+        final Flag[] flags = new Flag[] { pendingFlagChanges.mFlag };
+        if (pendingFlagChanges.mValue) {
+            remoteFolder.updateFlags(messages, flags, null, false);
+        } else {
+            remoteFolder.updateFlags(messages, null, flags, false);
         }
         remoteFolder.close(false);
     }
 
+    /**
+     * Messages to move from one remote mailbox to another, in a single command.
+     */
+    private static class PendingMoves {
+        final Mailbox mFromMailbox;
+        final Mailbox mToMailbox;
+        /** The current versions of the messages */
+        final ArrayList<EmailContent.Message> mMessages = new ArrayList<EmailContent.Message>();
+
+        PendingMoves(Mailbox fromMailbox, Mailbox toMailbox) {
+            mFromMailbox = fromMailbox;
+            mToMailbox = toMailbox;
+        }
+    }
+
+    private static void addPendingMove(LinkedHashMap<String, PendingMoves> moves,
+            Mailbox fromMailbox, Mailbox toMailbox, EmailContent.Message message) {
+        final String key = fromMailbox.mId + ":" + toMailbox.mId;
+        PendingMoves pendingMoves = moves.get(key);
+        if (pendingMoves == null) {
+            pendingMoves = new PendingMoves(fromMailbox, toMailbox);
+            moves.put(key, pendingMoves);
+        }
+        pendingMoves.mMessages.add(message);
+    }
+
+    /**
+     * Queues the move of a message to another mailbox, for {@link #processPendingMoves}.
+     *
+     * @param moves the moves queued so far
+     * @param newMailbox the mailbox the message has been moved to
+     * @param oldMessage the message in it's pre-change state
+     * @param newMessage the current version of the message
+     * @return whether the move was queued; if not, there's nothing to do on the server
+     */
+    private boolean queuePendingMove(LinkedHashMap<String, PendingMoves> moves,
+            Mailbox newMailbox, EmailContent.Message oldMessage,
+            EmailContent.Message newMessage) {
+        // Mailbox is the original remote mailbox (the one we're acting on)
+        final Mailbox mailbox = getRemoteMailboxForMessage(oldMessage);
+
+        // 0. No remote update if the message is local-only
+        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
+                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX) || (mailbox == null)) {
+            return false;
+        }
+
+        // 1. No remote update for DRAFTS or OUTBOX
+        if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
+            return false;
+        }
+
+        addPendingMove(moves, mailbox, newMailbox, newMessage);
+        return true;
+    }
+
     /**
      * Process a pending trash message command.
      *
-     * @param remoteStore the remote store we're working in
+     * @param moves the moves queued so far; the move to the trash is added to them
      * @param account The account in which we are working
      * @param newMailbox The local trash mailbox
      * @param oldMessage The message copy that was saved in the updates shadow table
      * @param newMessage The message that was moved to the mailbox
+     * @return whether the move was queued; if not, there's nothing (more) to do on the server
      */
-    private void processPendingMoveToTrash(Store remoteStore,
+    private boolean queuePendingMoveToTrash(LinkedHashMap<String, PendingMoves> moves,
             Account account, Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+            final EmailContent.Message newMessage) {
 
         // 0. No remote move if the message is local-only
         if (newMessage.mServerId == null || newMessage.mServerId.equals("")
                 || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
-            return;
+            return false;
         }
 
         // 1. Escape early if we can't find the local mailbox
@@ -1588,11 +2222,11 @@ public class MessagingController implements Runnable {
         Mailbox oldMailbox = getRemoteMailboxForMessage(oldMessage);
         if (oldMailbox == null) {
             // can't find old mailbox, it may have been deleted.  just return.
-            return;
+            return false;
         }
         // 2. We don't support delete-from-trash here
         if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
-            return;
+            return false;
         }
 
         // 3. If DELETE_POLICY_NEVER, simply write back the deleted sentinel and return
@@ -1610,60 +2244,75 @@ public class MessagingController implements Runnable {
             sentinel.mServerId = oldMessage.mServerId;
             sentinel.save(mContext);
 
-            return;
+            return false;
         }
 
-        // The rest of this method handles server-side deletion
+        // The rest happens in processPendingMoves(), which handles server-side deletion
+        addPendingMove(moves, oldMailbox, newMailbox, newMessage);
+        return true;
+    }
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
+    /**
+     * Moves messages on the server, with a single command where the server supports MOVE, and
+     * copies followed by a deletion otherwise.  Messages moved to a trash folder that doesn't
+     * exist on the server (e.g. with POP3) are just deleted; moves to any other folder that
+     * doesn't exist are left to be tried again.
+     *
+     * @return false if the move couldn't be done yet, and should be tried again
+     */
+    private boolean processPendingMoves(Store remoteStore, PendingMoves pendingMoves)
+            throws MessagingException {
+        final boolean toTrash = pendingMoves.mToMailbox.mType == Mailbox.TYPE_TRASH;
+
+        // 1.  Find the remote mailbox (that we're moving from), and open it
+        Folder remoteFolder = remoteStore.getFolder(pendingMoves.mFromMailbox.mServerId);
         if (!remoteFolder.exists()) {
-            return;
+            return true;
         }
 
         remoteFolder.open(OpenMode.READ_WRITE);
         if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
             remoteFolder.close(false);
-            return;
+            return true;
+        }
+
+        // 2. Create the remote original messages, without looking each of them up; messages
+        // that are already gone from the server are just ignored by the move
+        final int count = pendingMoves.mMessages.size();
+        final Message[] messages = new Message[count];
+        final HashMap<String, EmailContent.Message> localMessages =
+                new HashMap<String, EmailContent.Message>(count);
+        for (int i = 0; i < count; i++) {
+            final EmailContent.Message message = pendingMoves.mMessages.get(i);
+            messages[i] = remoteFolder.createMessage(message.mServerId);
+            // We may need the message id to search for the message in the destination folder
+            messages[i].setMessageId(message.mMessageId);
+            localMessages.put(message.mServerId, message);
         }
 
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
-            remoteFolder.close(false);
-            return;
+        // 3. Find the remote destination folder; the trash is created if not found
+        Folder remoteToFolder = remoteStore.getFolder(pendingMoves.mToMailbox.mServerId);
+        if (!remoteToFolder.exists() && toTrash) {
+            remoteToFolder.create(FolderType.HOLDS_MESSAGES);
         }
 
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            /*
-             * If the remote trash folder doesn't exist we try to create it.
-             */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
-        }
-
-        // 7.  Try to copy the message into the remote trash folder
-        // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
-            /*
-             * Because remoteTrashFolder may be new, we need to explicitly open it
-             */
-            remoteTrashFolder.open(OpenMode.READ_WRITE);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-                remoteFolder.close(false);
-                remoteTrashFolder.close(false);
-                return;
-            }
-
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
+        // 4. Move the messages
+        // Note, POP3 has no remote trash, so the messages are just deleted
+        if (remoteToFolder.exists()) {
+            remoteFolder.moveMessages(messages, remoteToFolder,
                     new Folder.MessageUpdateCallbacks() {
+                @Override
                 public void onMessageUidChange(Message message, String newUid) {
-                    // update the UID in the local trash folder, because some stores will
-                    // have to change it when copying to remoteTrashFolder
-                    ContentValues cv = new ContentValues();
-                    cv.put(EmailContent.Message.SERVER_ID, newUid);
-                    mContext.getContentResolver().update(newMessage.getUri(), cv, null, null);
+                    // update the UID in the local folder, because the server assigns a new one
+                    // in the destination folder
+                    final EmailContent.Message localMessage =
+                            localMessages.get(message.getUid());
+                    if (localMessage != null) {
+                        ContentValues cv = new ContentValues();
+                        cv.put(EmailContent.Message.SERVER_ID, newUid);
+                        mContext.getContentResolver().update(
+                                localMessage.getUri(), cv, null, null);
+                    }
                 }
 
                 /**
@@ -1671,17 +2320,25 @@ public class MessagingController implements Runnable {
                  * deleted (e.g. it was already deleted from the server.)  In this case,
                  * attempt to delete the local copy as well.
                  */
+                @Override
                 public void onMessageNotFound(Message message) {
-                    mContext.getContentResolver().delete(newMessage.getUri(), null, null);
+                    final EmailContent.Message localMessage =
+                            localMessages.get(message.getUid());
+                    if (toTrash && localMessage != null) {
+                        mContext.getContentResolver().delete(localMessage.getUri(), null, null);
+                    }
                 }
             });
-            remoteTrashFolder.close(false);
+        } else if (toTrash) {
+            remoteFolder.updateFlags(messages, FLAG_LIST_DELETED, null, true);
+        } else {
+            Log.w(Logging.LOG_TAG, "Unable to move " + messages.length + " messages to "
+                    + pendingMoves.mToMailbox.mDisplayName + ", which isn't on the server");
+            remoteFolder.close(false);
+            return false;
         }
-
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
         remoteFolder.close(false);
+        return true;
     }
 
     /**
@@ -1721,8 +2378,8 @@ public class MessagingController implements Runnable {
         }
 
         // 4. Delete the message from the remote trash folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteTrashFolder.expunge();
+        remoteTrashFolder.updateFlags(new Message[] { remoteMessage }, FLAG_LIST_DELETED, null,
+                true);
         remoteTrashFolder.close(false);
     }
 
@@ -1744,6 +2401,18 @@ public class MessagingController implements Runnable {
         boolean updateInternalDate = false;
         boolean updateMessage = false;
         boolean deleteMessage = false;
+        // The UID the server gave the uploaded message, if known
+        final String[] newUid = new String[1];
+        final MessageUpdateCallbacks uidCallbacks = new MessageUpdateCallbacks() {
+            @Override
+            public void onMessageUidChange(Message msg, String uid) {
+                newUid[0] = uid;
+            }
+
+            @Override
+            public void onMessageNotFound(Message msg) {
+            }
+        };
 
         // 1. Find the remote folder that we're appending to and create and/or open it
         Folder remoteFolder = remoteStore.getFolder(newMailbox.mServerId);
@@ -1785,7 +2454,7 @@ public class MessagingController implements Runnable {
             // 3b. Upload it
             FetchProfile fp = new FetchProfile();
             fp.add(FetchProfile.Item.BODY);
-            remoteFolder.appendMessages(new Message[] { localMessage });
+            remoteFolder.appendMessages(new Message[] { localMessage }, uidCallbacks);
 
             // 3b. And record the UID from the server
             message.mServerId = localMessage.getUid();
@@ -1813,7 +2482,7 @@ public class MessagingController implements Runnable {
                 fp.clear();
                 fp = new FetchProfile();
                 fp.add(FetchProfile.Item.BODY);
-                remoteFolder.appendMessages(new Message[] { localMessage });
+                remoteFolder.appendMessages(new Message[] { localMessage }, uidCallbacks);
 
                 // 4d. Record the UID and new internalDate from the server
                 message.mServerId = localMessage.getUid();
@@ -1828,7 +2497,10 @@ public class MessagingController implements Runnable {
         // 5. If requested, Best-effort to capture new "internaldate" from the server
         if (updateInternalDate && message.mServerId != null) {
             try {
-                Message remoteMessage2 = remoteFolder.getMessage(message.mServerId);
+                // The server just told us the UID, so there's no need to look the message up
+                Message remoteMessage2 = message.mServerId.equals(newUid[0])
+                        ? remoteFolder.createMessage(message.mServerId)
+                        : remoteFolder.getMessage(message.mServerId);
                 if (remoteMessage2 != null) {
                     FetchProfile fp2 = new FetchProfile();
                     fp2.add(FetchProfile.Item.ENVELOPE);
@@ -2033,9 +2705,12 @@ public class MessagingController implements Runnable {
                     storeMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "multipart/mixed");
                     storeMessage.setBody(multipart);
 
-                    // 4. Now ask for the attachment to be fetched
+                    // 4. Now ask for the attachment to be fetched, straight into its final
+                    // location if the store can do that
                     FetchProfile fp = new FetchProfile();
                     fp.add(storePart);
+                    fp.setPartDestination(AttachmentUtilities.getAttachmentFilename(mContext,
+                            accountId, attachmentId));
                     remoteFolder.fetch(new Message[] { storeMessage }, fp,
                             mController.new MessageRetrievalListenerBridge(
                                     messageId, attachmentId));
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.google.common.base.Objects;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the UIDs matched by remote searches, so that "load more" doesn't have to redo the
+ * search (which can be quite slow).
+ *
+ * Results are keyed by account, mailbox and query, and only the numeric UIDs are kept.  At most
+ * {@link #MAX_ENTRIES} results are kept, the least recently used being dropped first, and none
+ * for longer than {@link #MAX_AGE_MILLIS}, after which the server's results have likely changed.
+ */
+public class SearchResultCache {
+    /* package */ static final int MAX_ENTRIES = 4;
+    /* package */ static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    private static class Key {
+        final long mAccountId;
+        final long mMailboxId;
+        final String mFilter;
+
+        Key(long accountId, long mailboxId, String filter) {
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            mFilter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mAccountId == other.mAccountId && mMailboxId == other.mMailboxId
+                    && Objects.equal(mFilter, other.mFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mAccountId, mMailboxId, mFilter);
+        }
+    }
+
+    private static class Entry {
+        final long[] mUids;
+        final long mTime;
+
+        Entry(long[] uids, long time) {
+            mUids = uids;
+            mTime = time;
+        }
+    }
+
+    private final Clock mClock;
+
+    /** In access order, so that the eldest entry is the least recently used. */
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(
+            MAX_ENTRIES + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public SearchResultCache() {
+        this(Clock.INSTANCE);
+    }
+
+    /* package */ SearchResultCache(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @return the cached UIDs, or null if there are none or they're too old.
+     */
+    public synchronized long[] get(long accountId, long mailboxId, String filter) {
+        final Key key = new Key(accountId, mailboxId, filter);
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (mClock.getTime() - entry.mTime > MAX_AGE_MILLIS) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry.mUids;
+    }
+
+    /**
+     * Caches the UIDs matched by a search, replacing any previous results of the same search.
+     */
+    public synchronized void put(long accountId, long mailboxId, String filter, long[] uids) {
+        mEntries.put(new Key(accountId, mailboxId, filter), new Entry(uids, mClock.getTime()));
+    }
+
+    /**
+     * Drops the results of a search.
+     */
+    public synchronized void remove(long accountId, long mailboxId, String filter) {
+        mEntries.remove(new Key(accountId, mailboxId, filter));
+    }
+
+    /* package */ synchronized int size() {
+        return mEntries.size();
+    }
+}
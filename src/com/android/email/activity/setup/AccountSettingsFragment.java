@@ -435,7 +435,7 @@ public class AccountSettingsFragment extends PreferenceFragment {
 
         // TODO Move protocol into Account to avoid retrieving the HostAuth (implicitly)
         String protocol = Account.getProtocol(mContext, mAccount.mId);
-        if (HostAuth.SCHEME_EAS.equals(protocol)) {
+        if (HostAuth.SCHEME_EAS.equals(protocol) || HostAuth.SCHEME_IMAP.equals(protocol)) {
             mCheckFrequency.setEntries(R.array.account_settings_check_frequency_entries_push);
             mCheckFrequency.setEntryValues(R.array.account_settings_check_frequency_values_push);
         }
@@ -109,7 +109,7 @@ public class AccountSetupOptions extends AccountSetupActivity implements OnClick
         HostAuth host = account.getOrCreateHostAuthRecv(this);
         String protocol = host != null ? host.mProtocol : "";
         boolean eas = HostAuth.SCHEME_EAS.equals(protocol);
-        if (eas) {
+        if (eas || HostAuth.SCHEME_IMAP.equals(protocol)) {
             frequencyValuesId = R.array.account_settings_check_frequency_values_push;
             frequencyEntriesId = R.array.account_settings_check_frequency_entries_push;
         } else {
@@ -169,6 +169,27 @@ public abstract class Store {
         return null;
     }
 
+    /**
+     * Like {@link #updateFolders}, but also fetches the status of every folder in as few round
+     * trips as the server allows, for {@link #takeFolderStatus}.  Stores that can't do this
+     * just update the folders.
+     */
+    public Folder[] updateFoldersAndStatus() throws MessagingException {
+        return updateFolders();
+    }
+
+    /**
+     * Returns the status of a folder as of the last {@link #updateFoldersAndStatus}, and
+     * forgets it, so that a status is used for one sync at most.  The status is an opaque
+     * string that changes whenever the folder's messages do, flags included; stores that can't
+     * promise that for a folder return null.
+     *
+     * @return the status, or null if it isn't known
+     */
+    public String takeFolderStatus(String name) {
+        return null;
+    }
+
     public abstract Bundle checkSettings() throws MessagingException;
 
     /**
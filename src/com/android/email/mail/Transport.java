@@ -16,6 +16,7 @@
 
 package com.android.email.mail;
 
+import com.android.email.mail.transport.CompressionStats;
 import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 
@@ -118,6 +119,18 @@ public interface Transport extends Cloneable {
      */
     public void reopenTls() throws MessagingException;
 
+    /**
+     * Compresses everything sent and received from now on with raw DEFLATE (RFC 1951), e.g.
+     * after IMAP COMPRESS DEFLATE (RFC 4978).
+     */
+    public void startCompression();
+
+    /**
+     * @return the byte counters of the compression started with {@link #startCompression}, or
+     * null if the connection isn't compressed.
+     */
+    public CompressionStats getCompressionStats();
+
     /**
      * @return true if the connection is open
      */
@@ -27,6 +27,7 @@ import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapUtility;
+import com.android.email.mail.transport.CompressionStats;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
@@ -37,6 +38,7 @@ import com.android.emailcommon.mail.MessagingException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -57,9 +59,29 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** CONDSTORE capability per RFC 7162 */
+    public static final int CAPABILITY_CONDSTORE = 1 << 4;
+    /** QRESYNC capability per RFC 7162 */
+    public static final int CAPABILITY_QRESYNC   = 1 << 5;
+    /** IDLE capability per RFC 2177 */
+    public static final int CAPABILITY_IDLE      = 1 << 6;
+    /** COMPRESS=DEFLATE capability per RFC 4978 */
+    public static final int CAPABILITY_COMPRESS  = 1 << 7;
+    /** ESEARCH capability per RFC 4731 */
+    public static final int CAPABILITY_ESEARCH   = 1 << 8;
+    /** PARTIAL capability per RFC 9394 */
+    public static final int CAPABILITY_PARTIAL   = 1 << 9;
+    /** BINARY capability per RFC 3516 */
+    public static final int CAPABILITY_BINARY    = 1 << 10;
+    /** LIST-STATUS capability per RFC 5819 */
+    public static final int CAPABILITY_LIST_STATUS = 1 << 11;
+    /** MOVE capability per RFC 6851 */
+    public static final int CAPABILITY_MOVE      = 1 << 12;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
+    /** Whether QRESYNC has been enabled on this connection with the ENABLE command. */
+    private boolean mQresyncEnabled;
     private static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
     Transport mTransport;
     private ImapResponseParser mParser;
@@ -138,6 +160,12 @@ class ImapConnection {
             // LOGIN
             doLogin();
 
+            // COMPRESS DEFLATE (only valid once authenticated)
+            doCompress(isCapable(CAPABILITY_COMPRESS));
+
+            // ENABLE QRESYNC (only valid in the Authenticated state)
+            doEnableQresync(isCapable(CAPABILITY_QRESYNC));
+
             // NAMESPACE (only valid in the Authenticated state)
             doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
 
@@ -169,21 +197,41 @@ class ImapConnection {
      */
     void close() {
         if (mTransport != null) {
+            if (Email.DEBUG && mTransport.getCompressionStats() != null) {
+                Log.d(Logging.LOG_TAG, "IMAP compression: " + mTransport.getCompressionStats());
+            }
             mTransport.close();
             mTransport = null;
         }
         destroyResponses();
         mParser = null;
         mImapStore = null;
+        mQresyncEnabled = false;
     }
 
     /**
      * Returns whether or not the specified capability is supported by the server.
      */
-    private boolean isCapable(int capability) {
+    boolean isCapable(int capability) {
         return (mCapabilities & capability) != 0;
     }
 
+    /**
+     * Returns the byte counters of this connection's compression, or null if the connection
+     * isn't compressed.
+     */
+    CompressionStats getCompressionStats() {
+        return (mTransport != null) ? mTransport.getCompressionStats() : null;
+    }
+
+    /**
+     * Returns whether QRESYNC is enabled on this connection; i.e. the server will send VANISHED
+     * responses instead of EXPUNGE, and accepts the VANISHED modifier on UID FETCH.
+     */
+    boolean isQresyncEnabled() {
+        return mQresyncEnabled;
+    }
+
     /**
      * Sets the capability flags according to the response provided by the server.
      * Note: We only set the capability flags that we are interested in. There are many IMAP
@@ -202,6 +250,37 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.STARTTLS)) {
             mCapabilities |= CAPABILITY_STARTTLS;
         }
+        // QRESYNC implies CONDSTORE (RFC 7162 3.2)
+        if (capabilities.contains(ImapConstants.CONDSTORE)
+                || capabilities.contains(ImapConstants.QRESYNC)) {
+            mCapabilities |= CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.QRESYNC)) {
+            mCapabilities |= CAPABILITY_QRESYNC;
+        }
+        if (capabilities.contains(ImapConstants.IDLE)) {
+            mCapabilities |= CAPABILITY_IDLE;
+        }
+        if (capabilities.contains(ImapConstants.COMPRESS_DEFLATE)) {
+            mCapabilities |= CAPABILITY_COMPRESS;
+        }
+        if (capabilities.contains(ImapConstants.BINARY)) {
+            mCapabilities |= CAPABILITY_BINARY;
+        }
+        if (capabilities.contains(ImapConstants.ESEARCH)) {
+            mCapabilities |= CAPABILITY_ESEARCH;
+        }
+        if (capabilities.contains(ImapConstants.LIST_STATUS)) {
+            mCapabilities |= CAPABILITY_LIST_STATUS;
+        }
+        if (capabilities.contains(ImapConstants.MOVE)) {
+            mCapabilities |= CAPABILITY_MOVE;
+        }
+        // PARTIAL is a SEARCH RETURN option, and so needs ESEARCH (RFC 9394 2)
+        if (capabilities.contains(ImapConstants.PARTIAL)
+                && capabilities.contains(ImapConstants.ESEARCH)) {
+            mCapabilities |= CAPABILITY_PARTIAL;
+        }
     }
 
     /**
@@ -213,7 +292,7 @@ class ImapConnection {
      */
     private void createParser() {
         destroyResponses();
-        mParser = new ImapResponseParser(mTransport.getInputStream(), mDiscourse);
+        mParser = new ImapResponseParser(mTransport.getInputStream(), mDiscourse, true);
     }
 
     void destroyResponses() {
@@ -222,10 +301,14 @@ class ImapConnection {
         }
     }
 
-    boolean isTransportOpenForTest() {
+    boolean isTransportOpen() {
         return mTransport != null ? mTransport.isOpen() : false;
     }
 
+    boolean isTransportOpenForTest() {
+        return isTransportOpen();
+    }
+
     ImapResponse readResponse() throws IOException, MessagingException {
         return mParser.readResponse();
     }
@@ -282,6 +365,35 @@ class ImapConnection {
         return tag;
     }
 
+    /**
+     * Ends an IDLE command per RFC 2177.  This must only be sent after the server has answered
+     * the IDLE command with a continuation request; the caller is responsible for reading the
+     * tagged response.  May be called from a thread other than the one reading responses.
+     */
+    synchronized void sendIdleDone() throws IOException {
+        final Transport transport = mTransport;
+        if (transport == null) {
+            throw new IOException("Connection closed");
+        }
+        transport.writeLine(ImapConstants.DONE, null);
+        mDiscourse.addSentCommand(ImapConstants.DONE);
+    }
+
+    /**
+     * Sets the handler for literals in responses read from now on; see
+     * {@link ImapResponseParser#setLiteralHandler}.
+     */
+    void setLiteralHandler(ImapResponseParser.LiteralHandler handler) {
+        mParser.setLiteralHandler(handler);
+    }
+
+    /**
+     * Sets the socket read timeout; e.g. to wait longer than usual for responses while idling.
+     */
+    void setReadTimeout(int timeoutMillis) throws IOException {
+        mTransport.setSoTimeout(timeoutMillis);
+    }
+
     List<ImapResponse> executeSimpleCommand(String command) throws IOException,
             MessagingException {
         return executeSimpleCommand(command, false);
@@ -310,6 +422,102 @@ class ImapConnection {
         return responses;
     }
 
+    /**
+     * Callback for each response read by {@link #executePipelinedCommands}.
+     */
+    interface PipelinedResponseHandler {
+        /**
+         * Called for each untagged response.  The response is destroyed once this returns.
+         *
+         * @param commandIndex the index of the command the response is attributed to; i.e. the
+         * oldest command that hasn't completed yet.
+         */
+        void handleResponse(int commandIndex, ImapResponse response)
+                throws IOException, MessagingException;
+    }
+
+    /**
+     * Sends several simple commands back to back without waiting for the responses of the
+     * earlier ones (RFC 3501 section 5.5), then reads the responses of all of them, which saves
+     * a round trip per command on high-latency links.  Tagged responses are matched to their
+     * commands by tag.
+     *
+     * Unlike {@link #executeSimpleCommand}, a NO or BAD response doesn't throw, as the responses
+     * of the remaining commands must still be read; the caller should check the returned status
+     * responses.  Callers must only pipeline commands whose outcome doesn't depend on each other
+     * beyond "later commands fail if an earlier one did", e.g. not sequence number based commands
+     * after a command that may expunge.
+     *
+     * @param commands the commands to send, without tags
+     * @param handler if not null, called with each untagged response
+     * @return the tagged status response of each command, in the order of {@code commands}.
+     * They're valid until {@link #destroyResponses} is called.
+     */
+    ImapResponse[] executePipelinedCommands(List<String> commands,
+            PipelinedResponseHandler handler) throws IOException, MessagingException {
+        return executePipelinedCommands(commands, handler, true);
+    }
+
+    /**
+     * Like {@link #executePipelinedCommands(List, PipelinedResponseHandler)}, but collects the
+     * responses of each command the way {@link #getCommandResponses} does.
+     *
+     * @return the responses of each command, in the order of {@code commands}.  The last
+     * response of each is its tagged status response, which may be NO or BAD.
+     */
+    List<List<ImapResponse>> executePipelinedCommands(List<String> commands)
+            throws IOException, MessagingException {
+        final int count = commands.size();
+        final ArrayList<List<ImapResponse>> responses = new ArrayList<List<ImapResponse>>(count);
+        for (int i = 0; i < count; i++) {
+            responses.add(new ArrayList<ImapResponse>());
+        }
+        final ImapResponse[] statuses = executePipelinedCommands(commands,
+                new PipelinedResponseHandler() {
+                    @Override
+                    public void handleResponse(int commandIndex, ImapResponse response) {
+                        responses.get(commandIndex).add(response);
+                    }
+                }, false);
+        for (int i = 0; i < count; i++) {
+            responses.get(i).add(statuses[i]);
+        }
+        return responses;
+    }
+
+    private ImapResponse[] executePipelinedCommands(List<String> commands,
+            PipelinedResponseHandler handler, boolean destroyUntagged)
+            throws IOException, MessagingException {
+        final int count = commands.size();
+        final HashMap<String, Integer> tags = new HashMap<String, Integer>(count);
+        for (int i = 0; i < count; i++) {
+            tags.put(sendCommand(commands.get(i), false), i);
+        }
+        final ImapResponse[] statuses = new ImapResponse[count];
+        int oldestPending = 0;
+        while (oldestPending < count) {
+            final ImapResponse response = mParser.readResponse();
+            if (!response.isTagged()) {
+                if (handler != null) {
+                    handler.handleResponse(oldestPending, response);
+                }
+                if (destroyUntagged) {
+                    mParser.destroyResponse(response);
+                }
+                continue;
+            }
+            final Integer index = tags.get(response.getTag());
+            if (index == null) {
+                throw new MessagingException("Unexpected tagged response: " + response);
+            }
+            statuses[index] = response;
+            while (oldestPending < count && statuses[oldestPending] != null) {
+                oldestPending++;
+            }
+        }
+        return statuses;
+    }
+
     /**
      * Execute a simple command at the server, a simple command being one that is sent in a single
      * line of text
@@ -457,6 +665,52 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Turns on DEFLATE compression per RFC 4978.  If the server does not support it, this will
+     * perform no operation.  A refusal is not fatal; we simply stay uncompressed.
+     */
+    private void doCompress(boolean hasCompressCapability)
+            throws IOException, MessagingException {
+        if (!hasCompressCapability) return;
+        try {
+            executeSimpleCommand(ImapConstants.COMPRESS + " " + ImapConstants.DEFLATE);
+        } catch (ImapException ie) {
+            // e.g. compression is already active at the TLS layer
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, ie.toString());
+            }
+            return;
+        }
+        // Everything after the tagged OK is compressed, in both directions.
+        mTransport.startCompression();
+        createParser();
+    }
+
+    /**
+     * Enables QRESYNC per RFC 7162. If the server does not support QRESYNC, this will perform
+     * no operation. Failure is not fatal; we simply fall back to CONDSTORE or a full flag sync.
+     */
+    private void doEnableQresync(boolean hasQresyncCapability) throws MessagingException {
+        if (!hasQresyncCapability) return;
+        try {
+            for (ImapResponse response : executeSimpleCommand(
+                    ImapConstants.ENABLE + " " + ImapConstants.QRESYNC)) {
+                // S: * ENABLED QRESYNC
+                if (response.isDataResponse(0, ImapConstants.ENABLED)
+                        && response.contains(ImapConstants.QRESYNC)) {
+                    mQresyncEnabled = true;
+                }
+            }
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, ie.toString());
+            }
+        } catch (IOException ioe) {
+            // Special case to handle malformed OK responses and ignore them.
+        }
+    }
+
     /**
      * Gets the path separator per the LIST command in RFC 3501. If the path separator
      * was obtained while obtaining the namespace or there is no prefix defined, this
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import com.android.email.Clock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The idle, authenticated connections of an {@link ImapStore}, kept for reuse.
+ *
+ * The pool holds at most {@link #DEFAULT_MAX_SIZE} connections; beyond that, the connection that
+ * has been idle the longest is closed.  Connections idle for more than
+ * {@link #DEFAULT_MAX_IDLE_MILLIS} are closed too, rather than handed out: by then the server or
+ * a NAT on the way has most likely dropped them, and finding out costs a round trip.  The most
+ * recently used connection is handed out first, as it's the most likely to still be alive.
+ *
+ * The pool doesn't check connections itself; {@link ImapStore} probes them with a NOOP and
+ * reports the outcome with {@link #recordHit} or {@link #discard}.
+ */
+class ImapConnectionPool {
+    /** Matches the number of mailboxes synced in parallel by the MessagingController. */
+    static final int DEFAULT_MAX_SIZE = 4;
+    /** Well below the idle timeouts of mobile carrier NATs. */
+    static final long DEFAULT_MAX_IDLE_MILLIS = 5 * 60 * 1000;
+
+    private static class Entry {
+        final ImapConnection mConnection;
+        final long mPooledTime;
+
+        Entry(ImapConnection connection, long pooledTime) {
+            mConnection = connection;
+            mPooledTime = pooledTime;
+        }
+    }
+
+    private final int mMaxSize;
+    private final long mMaxIdleMillis;
+    private final Clock mClock;
+
+    /** Least recently pooled first.  Guarded by "this", as are the counters. */
+    private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mWarmUps;
+
+    ImapConnectionPool() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_IDLE_MILLIS, Clock.INSTANCE);
+    }
+
+    ImapConnectionPool(int maxSize, long maxIdleMillis, Clock clock) {
+        mMaxSize = maxSize;
+        mMaxIdleMillis = maxIdleMillis;
+        mClock = clock;
+    }
+
+    /**
+     * Takes the most recently pooled connection, after closing those that have been idle for
+     * too long.
+     *
+     * @return the connection, or null if the pool is empty.
+     */
+    ImapConnection take() {
+        final ArrayList<ImapConnection> evicted = new ArrayList<ImapConnection>();
+        final ImapConnection connection;
+        synchronized (this) {
+            final long oldest = mClock.getTime() - mMaxIdleMillis;
+            final Iterator<Entry> iterator = mEntries.iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.mPooledTime >= oldest) {
+                    break;
+                }
+                iterator.remove();
+                evicted.add(entry.mConnection);
+            }
+            mEvictions += evicted.size();
+            connection = mEntries.isEmpty() ? null : mEntries.removeLast().mConnection;
+        }
+        closeAll(evicted);
+        return connection;
+    }
+
+    /**
+     * Adds a connection to the pool, closing the least recently pooled one if the pool is full.
+     */
+    void put(ImapConnection connection) {
+        ImapConnection evicted = null;
+        synchronized (this) {
+            mEntries.addLast(new Entry(connection, mClock.getTime()));
+            if (mEntries.size() > mMaxSize) {
+                evicted = mEntries.removeFirst().mConnection;
+                mEvictions++;
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * Closes a connection taken from the pool that turned out to be unusable.
+     */
+    void discard(ImapConnection connection) {
+        synchronized (this) {
+            mEvictions++;
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes all the pooled connections; e.g. because the network they were opened on is gone.
+     */
+    void evictAll() {
+        final ArrayList<ImapConnection> evicted = new ArrayList<ImapConnection>();
+        synchronized (this) {
+            for (Entry entry : mEntries) {
+                evicted.add(entry.mConnection);
+            }
+            mEntries.clear();
+            mEvictions += evicted.size();
+        }
+        closeAll(evicted);
+    }
+
+    private static void closeAll(List<ImapConnection> connections) {
+        for (ImapConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /** Records that a connection taken from the pool passed its liveness check. */
+    synchronized void recordHit() {
+        mHits++;
+    }
+
+    /** Records that a new connection had to be created, as the pool had no usable one. */
+    synchronized void recordMiss() {
+        mMisses++;
+    }
+
+    /** Records that a connection was opened only to be put in the pool. */
+    synchronized void recordWarmUp() {
+        mWarmUps++;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** @return the pooled connections, least recently pooled first. */
+    synchronized List<ImapConnection> getConnections() {
+        final ArrayList<ImapConnection> connections = new ArrayList<ImapConnection>();
+        for (Entry entry : mEntries) {
+            connections.add(entry.mConnection);
+        }
+        return connections;
+    }
+
+    /** @return whether a connection has ever been asked of the pool. */
+    synchronized boolean hasBeenUsed() {
+        return mHits + mMisses > 0;
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * @return the number of connects and logins saved by reusing connections, less those spent
+     * on warming up the pool.
+     */
+    synchronized long getHandshakesSaved() {
+        return Math.max(mHits - mWarmUps, 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + mEntries.size() + " hits=" + mHits + " misses=" + mMisses
+                + " evictions=" + mEvictions + " warmups=" + mWarmUps
+                + " saved=" + getHandshakesSaved();
+    }
+}
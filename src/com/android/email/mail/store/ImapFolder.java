@@ -16,6 +16,7 @@
 
 package com.android.email.mail.store;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.os.SystemProperties;
 import android.text.TextUtils;
@@ -29,12 +30,14 @@ import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.CountingOutputStream;
 import com.android.email.mail.transport.EOLConvertingOutputStream;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.BinaryTempFileBody;
+import com.android.emailcommon.internet.FileBody;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
@@ -45,6 +48,7 @@ import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.Multipart;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Mailbox;
@@ -52,6 +56,8 @@ import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -60,13 +66,30 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
+    /** Maximum number of UIDs in a single UID FETCH command */
+    private static final int FETCH_CHUNK_SIZE = 1000;
+    /**
+     * Maximum length of the UID set of a single command, which keeps command lines well within
+     * the 8192 octets servers are expected to accept (RFC 7162 section 4)
+     */
+    private static final int MAX_UID_SET_LENGTH = 4000;
+    /** Maximum number of UID FETCH commands pipelined at a time */
+    private static final int MAX_PIPELINED_FETCHES = 4;
+    /** The size parameter of a Content-Disposition, as built by parseBodyStructure */
+    private static final Pattern DISPOSITION_SIZE_PATTERN =
+            Pattern.compile("(;\\s*size=)\"?\\d+\"?", Pattern.CASE_INSENSITIVE);
 
     private final ImapStore mStore;
     private final String mName;
@@ -74,6 +97,10 @@ class ImapFolder extends Folder {
     private ImapConnection mConnection;
     private OpenMode mMode;
     private boolean mExists;
+    /** UIDVALIDITY reported by the last SELECT; 0 if unknown */
+    private long mUidValidity;
+    /** HIGHESTMODSEQ reported by the last SELECT; 0 if unknown or NOMODSEQ (RFC 7162) */
+    private long mHighestModSeq;
     /** The local mailbox associated with this remote folder */
     Mailbox mMailbox;
     /** A set of hashes that can be used to track dirtiness */
@@ -112,6 +139,27 @@ class ImapFolder extends Folder {
                     close(false);
                 }
             }
+            // A pooled connection is checked with a NOOP pipelined with the SELECT, saving the
+            // round trip of checking it first.
+            final ImapConnection pooled = mStore.getPooledConnection();
+            if (pooled != null) {
+                synchronized (this) {
+                    mConnection = pooled;
+                }
+                try {
+                    doSelect(true);
+                    mStore.onPooledConnectionChecked(pooled, true);
+                    return;
+                } catch (IOException ioe) {
+                    // The pooled connection has gone stale; fall back to a checked one
+                    mStore.onPooledConnectionChecked(pooled, false);
+                    synchronized (this) {
+                        mConnection = null;
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            }
             synchronized (this) {
                 mConnection = mStore.getConnection();
             }
@@ -125,7 +173,7 @@ class ImapFolder extends Folder {
             // * OK [UIDNEXT 57576] Predicted next UID
             // 2 OK [READ-WRITE] Select completed.
             try {
-                doSelect();
+                doSelect(false);
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
             } finally {
@@ -257,78 +305,65 @@ class ImapFolder extends Folder {
     public void copyMessages(Message[] messages, Folder folder,
             MessageUpdateCallbacks callbacks) throws MessagingException {
         checkOpen();
+        final HashMap<String, Message> messageMap = getMessageMap(messages);
+        final String folderName = ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix);
+        boolean handledUidPlus = false;
         try {
-            List<ImapResponse> responseList = mConnection.executeSimpleCommand(
-                    String.format(Locale.US, ImapConstants.UID_COPY + " %s \"%s\"",
-                            ImapStore.joinMessageUids(messages),
-                            ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
-            // Build a message map for faster UID matching
-            HashMap<String, Message> messageMap = new HashMap<String, Message>();
-            boolean handledUidPlus = false;
-            for (Message m : messages) {
-                messageMap.put(m.getUid(), m);
-            }
-            // Process response to get the new UIDs
-            for (ImapResponse response : responseList) {
-                // All "BAD" responses are bad. Only "NO", tagged responses are bad.
-                if (response.isBad() || (response.isNo() && response.isTagged())) {
-                    String responseText = response.getStatusResponseTextOrEmpty().getString();
-                    throw new MessagingException(responseText);
-                }
-                // Skip untagged responses; they're just status
-                if (!response.isTagged()) {
-                    continue;
-                }
-                // No callback provided to report of UID changes; nothing more to do here
-                // NOTE: We check this here to catch any server errors
-                if (callbacks == null) {
-                    continue;
-                }
-                ImapList copyResponse = response.getListOrEmpty(1);
-                String responseCode = copyResponse.getStringOrEmpty(0).getString();
-                if (ImapConstants.COPYUID.equals(responseCode)) {
-                    handledUidPlus = true;
-                    String origIdSet = copyResponse.getStringOrEmpty(2).getString();
-                    String newIdSet = copyResponse.getStringOrEmpty(3).getString();
-                    String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
-                    String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
-                    // There has to be a 1:1 mapping between old and new IDs
-                    if (origIdArray.length != newIdArray.length) {
-                        throw new MessagingException("Set length mis-match; orig IDs \"" +
-                                origIdSet + "\"  new IDs \"" + newIdSet + "\"");
-                    }
-                    for (int i = 0; i < origIdArray.length; i++) {
-                        final String id = origIdArray[i];
-                        final Message m = messageMap.get(id);
-                        if (m != null) {
-                            callbacks.onMessageUidChange(m, newIdArray[i]);
-                        }
-                    }
+            for (String uidSet : ImapStore.getMessageUidSets(messages, Integer.MAX_VALUE,
+                    MAX_UID_SET_LENGTH)) {
+                try {
+                    List<ImapResponse> responseList = mConnection.executeSimpleCommand(
+                            String.format(Locale.US, ImapConstants.UID_COPY + " %s \"%s\"",
+                                    uidSet, folderName));
+                    handledUidPlus |= reportNewUids(responseList, messageMap, callbacks);
+                } finally {
+                    destroyResponses();
                 }
             }
-            // If the server doesn't support UIDPLUS, try a different way to get the new UID(s)
             if (callbacks != null && !handledUidPlus) {
-                final ImapFolder newFolder = (ImapFolder)folder;
+                searchNewUids(messages, folder, callbacks);
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Uses UID MOVE (RFC 6851) where the server supports it, which moves the messages with a
+     * single command per UID set, without copies being visible in both folders in the meantime.
+     */
+    @Override
+    public void moveMessages(Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks) throws MessagingException {
+        checkOpen();
+        if (!mConnection.isCapable(ImapConnection.CAPABILITY_MOVE)) {
+            super.moveMessages(messages, folder, callbacks);
+            return;
+        }
+        final HashMap<String, Message> messageMap = getMessageMap(messages);
+        final String folderName = ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix);
+        boolean handledUidPlus = false;
+        try {
+            for (String uidSet : ImapStore.getMessageUidSets(messages, Integer.MAX_VALUE,
+                    MAX_UID_SET_LENGTH)) {
                 try {
-                    // Temporarily select the destination folder
-                    newFolder.open(OpenMode.READ_WRITE);
-                    // Do the search(es) ...
-                    for (Message m : messages) {
-                        final String searchString =
-                                "HEADER Message-Id \"" + m.getMessageId() + "\"";
-                        final String[] newIdArray = newFolder.searchForUids(searchString);
-                        if (newIdArray.length == 1) {
-                            callbacks.onMessageUidChange(m, newIdArray[0]);
-                        }
-                    }
-                } catch (MessagingException e) {
-                    // Log, but, don't abort; failures here don't need to be propagated
-                    Log.d(Logging.LOG_TAG, "Failed to find message", e);
+                    // S: * OK [COPYUID 432432 42:43 7:8]
+                    // S: * 22 EXPUNGE
+                    // S: * 22 EXPUNGE
+                    // S: A003 OK Done
+                    List<ImapResponse> responseList = mConnection.executeSimpleCommand(
+                            String.format(Locale.US, ImapConstants.UID_MOVE + " %s \"%s\"",
+                                    uidSet, folderName));
+                    handleUntaggedResponses(responseList);
+                    handledUidPlus |= reportNewUids(responseList, messageMap, callbacks);
                 } finally {
-                    newFolder.close(false);
+                    destroyResponses();
                 }
-                // Re-select the original folder
-                doSelect();
+            }
+            if (callbacks != null && !handledUidPlus) {
+                searchNewUids(messages, folder, callbacks);
             }
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
@@ -337,6 +372,98 @@ class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * Returns the given messages keyed by UID, for faster UID matching.
+     */
+    private static HashMap<String, Message> getMessageMap(Message[] messages) {
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        for (Message m : messages) {
+            messageMap.put(m.getUid(), m);
+        }
+        return messageMap;
+    }
+
+    /**
+     * Reports the UIDs of messages copied or moved, as given by the COPYUID response code
+     * (RFC 4315) of a UID COPY or UID MOVE command.
+     *
+     * @return whether the server sent a COPYUID response code
+     */
+    private static boolean reportNewUids(List<ImapResponse> responseList,
+            HashMap<String, Message> messageMap, MessageUpdateCallbacks callbacks)
+            throws MessagingException {
+        boolean handledUidPlus = false;
+        // Process response to get the new UIDs
+        for (ImapResponse response : responseList) {
+            // All "BAD" responses are bad. Only "NO", tagged responses are bad.
+            if (response.isBad() || (response.isNo() && response.isTagged())) {
+                String responseText = response.getStatusResponseTextOrEmpty().getString();
+                throw new MessagingException(responseText);
+            }
+            // Skip other untagged responses; they're just status.  COPYUID comes with the
+            // tagged response of COPY, but in an untagged OK response with MOVE.
+            if (!response.isTagged() && !response.isOk()) {
+                continue;
+            }
+            // No callback provided to report of UID changes; nothing more to do here
+            // NOTE: We check this here to catch any server errors
+            if (callbacks == null) {
+                continue;
+            }
+            ImapList copyResponse = response.getListOrEmpty(1);
+            String responseCode = copyResponse.getStringOrEmpty(0).getString();
+            if (ImapConstants.COPYUID.equals(responseCode)) {
+                handledUidPlus = true;
+                String origIdSet = copyResponse.getStringOrEmpty(2).getString();
+                String newIdSet = copyResponse.getStringOrEmpty(3).getString();
+                String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
+                String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
+                // There has to be a 1:1 mapping between old and new IDs
+                if (origIdArray.length != newIdArray.length) {
+                    throw new MessagingException("Set length mis-match; orig IDs \"" +
+                            origIdSet + "\"  new IDs \"" + newIdSet + "\"");
+                }
+                for (int i = 0; i < origIdArray.length; i++) {
+                    final String id = origIdArray[i];
+                    final Message m = messageMap.get(id);
+                    if (m != null) {
+                        callbacks.onMessageUidChange(m, newIdArray[i]);
+                    }
+                }
+            }
+        }
+        return handledUidPlus;
+    }
+
+    /**
+     * Finds the UIDs of messages copied or moved to {@code folder} by searching for their
+     * Message-Id there, for servers that don't support UIDPLUS.
+     */
+    private void searchNewUids(Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks) throws IOException, MessagingException {
+        final ImapFolder newFolder = (ImapFolder)folder;
+        try {
+            // Temporarily select the destination folder
+            newFolder.open(OpenMode.READ_WRITE);
+            // Do the search(es) ...
+            for (Message m : messages) {
+                final String searchString =
+                        "HEADER Message-Id \"" + m.getMessageId() + "\"";
+                final String[] newIdArray = newFolder.searchForUids(searchString);
+                if (newIdArray.length == 1) {
+                    callbacks.onMessageUidChange(m, newIdArray[0]);
+                }
+            }
+        } catch (MessagingException e) {
+            // Log, but, don't abort; failures here don't need to be propagated
+            Log.d(Logging.LOG_TAG, "Failed to find message", e);
+        } finally {
+            newFolder.close(false);
+        }
+        // Re-select the original folder
+        doSelect();
+    }
+
     @Override
     public int getMessageCount() {
         return mMessageCount;
@@ -440,8 +567,19 @@ class ImapFolder extends Folder {
     @VisibleForTesting
     public Message[] getMessages(SearchParams params, MessageRetrievalListener listener)
             throws MessagingException {
+        return getMessagesInternal(
+                complexSearchForUids(getSearchCommands(params.mFilter, null)), listener);
+    }
+
+    /**
+     * Builds the pieces of the UID SEARCH command for {@code filter}, each ending with the
+     * length of the literal that follows.
+     *
+     * @param returnOptions the ESEARCH RETURN options (RFC 4731), e.g. "(ALL)"; or null for a
+     * plain SEARCH.
+     */
+    private static List<String> getSearchCommands(String filter, String returnOptions) {
         List<String> commands = new ArrayList<String>();
-        final String filter = params.mFilter;
         // All servers MUST accept US-ASCII, so we'll send this as the CHARSET unless we're really
         // dealing with a string that contains non-ascii characters
         String charset = "US-ASCII";
@@ -450,14 +588,83 @@ class ImapFolder extends Folder {
         }
         // This is the length of the string in octets (bytes), formatted as a string literal {n}
         final String octetLength = "{" + filter.getBytes().length + "}";
+        final String search = (returnOptions == null) ? ImapConstants.UID_SEARCH
+                : ImapConstants.UID_SEARCH + " " + ImapConstants.RETURN + " " + returnOptions;
         // Break the command up into pieces ending with the string literal length
-        commands.add(ImapConstants.UID_SEARCH + " CHARSET " + charset + " OR FROM " + octetLength);
+        commands.add(search + " CHARSET " + charset + " OR FROM " + octetLength);
         commands.add(filter + " (OR TO " + octetLength);
         commands.add(filter + " (OR CC " + octetLength);
         commands.add(filter + " (OR SUBJECT " + octetLength);
         commands.add(filter + " BODY " + octetLength);
         commands.add(filter + ")))");
-        return getMessagesInternal(complexSearchForUids(commands), listener);
+        return commands;
+    }
+
+    /**
+     * Uses ESEARCH when the server supports it.  With PARTIAL, only the UIDs of the requested
+     * page are returned; otherwise all the matches come as a compact sequence set, rather than
+     * one number each.
+     */
+    @Override
+    public long[] getMessageUids(SearchParams params) throws MessagingException {
+        checkOpen();
+        final String returnOptions;
+        if (mConnection.isCapable(ImapConnection.CAPABILITY_PARTIAL)) {
+            // Negative positions count back from the most recent match
+            returnOptions = String.format(Locale.US, "(COUNT PARTIAL -%d:-%d)",
+                    params.mOffset + 1, params.mOffset + Math.max(params.mLimit, 1));
+        } else if (mConnection.isCapable(ImapConnection.CAPABILITY_ESEARCH)) {
+            returnOptions = "(ALL)";
+        } else {
+            return super.getMessageUids(params);
+        }
+        try {
+            try {
+                return getESearchUids(mConnection.executeComplexCommand(
+                        getSearchCommands(params.mFilter, returnOptions), false), params);
+            } catch (ImapException e) {
+                params.mTotalCount = 0;
+                return new long[0]; // not found;
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Gets the UIDs from ESEARCH responses, most recent first, and sets
+     * {@code params.mTotalCount} to the number of matches.
+     */
+    long[] getESearchUids(List<ImapResponse> responses, SearchParams params) {
+        // S: * ESEARCH (TAG "A1") UID ALL 4:18,21
+        // S: * ESEARCH (TAG "A1") UID COUNT 250 PARTIAL (-1:-10 200:210)
+        long[] uids = new long[0];
+        int count = -1;
+        for (ImapResponse response : responses) {
+            if (!response.isDataResponse(0, ImapConstants.ESEARCH)) {
+                continue;
+            }
+            for (int i = 1; i < response.size(); i++) {
+                // Skips the (TAG ...) correlator, and the UID indicator
+                final ImapString item = response.getStringOrEmpty(i);
+                if (item.is(ImapConstants.COUNT)) {
+                    count = response.getStringOrEmpty(++i).getNumberOrZero();
+                } else if (item.is(ImapConstants.ALL)) {
+                    uids = ImapUtility.getImapSequenceNumbers(
+                            response.getStringOrEmpty(++i).getString());
+                } else if (item.is(ImapConstants.PARTIAL)) {
+                    final ImapString set = response.getListOrEmpty(++i).getStringOrEmpty(1);
+                    if (!set.isEmpty() && !set.is(ImapConstants.NIL)) {
+                        uids = ImapUtility.getImapSequenceNumbers(set.getString());
+                    }
+                }
+            }
+        }
+        sortMostRecentFirst(uids);
+        params.mTotalCount = (count >= 0) ? count : uids.length;
+        return uids;
     }
 
     /* package */ String[] complexSearchForUids(List<String> commands) throws MessagingException {
@@ -523,16 +730,45 @@ class ImapFolder extends Folder {
         }
     }
 
-    public void fetchInternal(Message[] messages, FetchProfile fp,
-            MessageRetrievalListener listener) throws MessagingException {
+    public void fetchInternal(Message[] messages, final FetchProfile fp,
+            final MessageRetrievalListener listener) throws MessagingException {
         if (messages.length == 0) {
             return;
         }
         checkOpen();
-        HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        final Part fetchPart = fp.getFirstPart();
+        final boolean binary = fetchPart != null
+                && mConnection.isCapable(ImapConnection.CAPABILITY_BINARY)
+                && isBinaryFetchable(fetchPart);
+        final Message[] failed = fetchInternal(messages, fp, listener, binary);
+        if (failed.length > 0) {
+            // The server couldn't decode the part; e.g. NO [UNKNOWN-CTE].  Decode it ourselves,
+            // for the messages that weren't retrieved only.
+            Log.d(Logging.LOG_TAG, "BINARY fetch failed; retrying " + failed.length
+                    + " messages with BODY");
+            fetchInternal(failed, fp, listener, false);
+        }
+        if (fp.contains(FetchProfile.Item.STRUCTURE) && listener == null
+                && mConnection.isCapable(ImapConnection.CAPABILITY_BINARY)) {
+            fetchDecodedSizes(messages);
+        }
+    }
+
+    /**
+     * @param binary whether to fetch the part in the profile with BINARY (RFC 3516), which has
+     * the server remove its content transfer encoding.
+     * @return the messages that weren't retrieved, if a BINARY fetch failed; none otherwise.
+     */
+    private Message[] fetchInternal(Message[] messages, final FetchProfile fp,
+            final MessageRetrievalListener listener, final boolean binary)
+            throws MessagingException {
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
         for (Message m : messages) {
             messageMap.put(m.getUid(), m);
         }
+        // The UIDs of the messages reported to the listener, so that those a failed BINARY
+        // fetch leaves out can be fetched again without the others being reported twice
+        final HashSet<String> retrievedUids = new HashSet<String>();
 
         /*
          * Figure out what command we are going to run:
@@ -546,10 +782,357 @@ class ImapFolder extends Folder {
          * Part_SANE - UID FETCH (BODY.PEEK[ID]<0.N>) where ID = mime part ID
          *                        and N = max bytes returned
          *           - this is add for sync size.
+         * With BINARY, parts are fetched with BINARY.PEEK instead of BODY.PEEK.
          */
+        final Part fetchPart = fp.getFirstPart();
 
+        // The sync size is part of the command for partial body fetches, so messages with
+        // different sync sizes need separate commands.  Large fetches are split into chunks, so
+        // that command lines stay short, and the chunks are pipelined.
+        final boolean sizeDependent = fp.contains(FetchProfile.Item.BODY_SANE) || fetchPart != null;
+        final LinkedHashMap<Integer, ArrayList<Message>> messagesBySyncSize =
+                new LinkedHashMap<Integer, ArrayList<Message>>();
+        for (Message m : messages) {
+            final int syncSize =
+                    sizeDependent ? m.getNeedSyncSize() : messages[0].getNeedSyncSize();
+            ArrayList<Message> group = messagesBySyncSize.get(syncSize);
+            if (group == null) {
+                group = new ArrayList<Message>();
+                messagesBySyncSize.put(syncSize, group);
+            }
+            group.add(m);
+        }
+        final ArrayList<String> commands = new ArrayList<String>(messagesBySyncSize.size());
+        for (Map.Entry<Integer, ArrayList<Message>> entry : messagesBySyncSize.entrySet()) {
+            final ArrayList<Message> group = entry.getValue();
+            final LinkedHashSet<String> fetchFields =
+                    getFetchFields(fp, fetchPart, entry.getKey(), binary);
+            final String fields =
+                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
+            for (String uidSet : ImapStore.getMessageUidSets(
+                    group.toArray(new Message[group.size()]), FETCH_CHUNK_SIZE,
+                    MAX_UID_SET_LENGTH)) {
+                commands.add(ImapConstants.UID_FETCH + " " + uidSet + " (" + fields + ")");
+            }
+        }
+
+        // If the caller knows where the part will be stored, decode it there while it's being
+        // read from the socket, instead of spooling it to a temp literal and a temp body first.
+        final PartStreamer partStreamer = (fetchPart != null && fetchPart.getSize() > 0
+                && fp.getPartDestination() != null)
+                ? PartStreamer.create(fetchPart, fp.getPartDestination(), listener, binary)
+                : null;
+
+        final ImapConnection.PipelinedResponseHandler handler =
+                new ImapConnection.PipelinedResponseHandler() {
+            @Override
+            public void handleResponse(int commandIndex, ImapResponse response)
+                    throws IOException, MessagingException {
+                if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                    return; // Ignore
+                }
+                final ImapList fetchList = response.getListOrEmpty(2);
+                final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                        .getString();
+                if (TextUtils.isEmpty(uid)) return;
+
+                ImapMessage message = (ImapMessage) messageMap.get(uid);
+                if (message == null) return;
+
+                if (fp.contains(FetchProfile.Item.FLAGS)) {
+                    parseFlags(fetchList, message);
+                }
+                if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+                    final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                            ImapConstants.INTERNALDATE).getDateOrNull();
+                    final int size = fetchList.getKeyedStringOrEmpty(
+                            ImapConstants.RFC822_SIZE).getNumberOrZero();
+                    final String header = fetchList.getKeyedStringOrEmpty(
+                            ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+                    message.setInternalDate(internalDate);
+                    message.setSize(size);
+                    message.parse(Utility.streamFromAsciiString(header));
+                }
+                if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                    ImapList bs = fetchList.getKeyedListOrEmpty(
+                            ImapConstants.BODYSTRUCTURE);
+                    if (!bs.isEmpty()) {
+                        try {
+                            parseBodyStructure(bs, message, ImapConstants.TEXT);
+                        } catch (MessagingException e) {
+                            if (Logging.LOGD) {
+                                Log.v(Logging.LOG_TAG, "Error handling message", e);
+                            }
+                            message.setBody(null);
+                        }
+                    }
+                }
+                if (fp.contains(FetchProfile.Item.BODY)
+                        || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                    // Body is keyed by "BODY[]...".
+                    // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+                    // TODO Should we accept "RFC822" as well??
+                    ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+                    InputStream bodyStream = body.getAsStream();
+                    message.parse(bodyStream);
+                }
+                if (partStreamer != null && partStreamer.mStreamed) {
+                    fetchPart.setBody(new FileBody(partStreamer.mDestination));
+                } else if (fetchPart != null && fetchPart.getSize() > 0) {
+                    final ImapString partString = fetchList.getKeyedStringOrEmpty(
+                            binary ? "BINARY[" : "BODY[", true);
+                    if (binary && partString.isEmpty()) {
+                        // The server couldn't decode it; it's fetched again with BODY
+                        return;
+                    }
+                    InputStream bodyStream = partString.getAsStream();
+                    // BINARY content arrives decoded
+                    String contentTransferEncoding = binary ? null : fetchPart.getHeader(
+                            MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
+
+                    fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                            fetchPart.getSize(), listener));
+                }
+
+                retrievedUids.add(uid);
+                if (listener != null) {
+                    listener.messageRetrieved(message);
+                }
+            }
+        };
+        boolean binaryFailed = false;
+        boolean success = false;
+        try {
+            if (partStreamer != null) {
+                mConnection.setLiteralHandler(partStreamer);
+            }
+            // Responses are handled as they arrive; only a few chunks are in flight at a time,
+            // so we don't write more than the server will buffer while we aren't reading.
+            for (int start = 0; start < commands.size(); start += MAX_PIPELINED_FETCHES) {
+                final int end = Math.min(start + MAX_PIPELINED_FETCHES, commands.size());
+                final ImapResponse[] statuses =
+                        mConnection.executePipelinedCommands(commands.subList(start, end), handler);
+                if (binary) {
+                    for (ImapResponse status : statuses) {
+                        if (!status.isOk()) {
+                            binaryFailed = true;
+                        }
+                    }
+                }
+                destroyResponses();
+            }
+            success = !binaryFailed;
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            if (partStreamer != null) {
+                if (mConnection != null) {
+                    mConnection.setLiteralHandler(null);
+                }
+                if (!success) {
+                    // Don't leave a partial attachment behind
+                    partStreamer.mDestination.delete();
+                }
+            }
+            destroyResponses();
+        }
+        if (!binaryFailed) {
+            return new Message[0];
+        }
+        final ArrayList<Message> failed = new ArrayList<Message>();
+        for (Message m : messages) {
+            if (!retrievedUids.contains(m.getUid())) {
+                failed.add(m);
+            }
+        }
+        return failed.toArray(new Message[failed.size()]);
+    }
+
+    /**
+     * @return whether {@code part} can be fetched with BINARY: it's a numbered body part
+     * (BINARY has no TEXT section) whose content transfer encoding the server would remove.
+     */
+    private static boolean isBinaryFetchable(Part part) throws MessagingException {
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        final String[] encodings = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        if (partIds == null || encodings == null || partIds[0].length() == 0
+                || !Character.isDigit(partIds[0].charAt(0))) {
+            return false;
+        }
+        final String encoding = MimeUtility.getHeaderParameter(encodings[0], null);
+        return "base64".equalsIgnoreCase(encoding)
+                || "quoted-printable".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * The sizes in a BODYSTRUCTURE are those of the encoded content, about a third larger than
+     * the attachments for base64.  Replaces them with the decoded sizes, using BINARY.SIZE.
+     * Done only for callers that don't get the messages through a listener, as it takes another
+     * round trip.
+     */
+    private void fetchDecodedSizes(Message[] messages) throws MessagingException {
+        final HashMap<String, HashMap<String, Part>> partsByUid =
+                new HashMap<String, HashMap<String, Part>>();
+        final ArrayList<String> commands = new ArrayList<String>();
+        for (Message message : messages) {
+            final HashMap<String, Part> parts = new HashMap<String, Part>();
+            collectBinaryFetchableParts(message, parts);
+            if (parts.isEmpty()) {
+                continue;
+            }
+            partsByUid.put(message.getUid(), parts);
+            final StringBuilder command = new StringBuilder(ImapConstants.UID_FETCH)
+                    .append(' ').append(message.getUid()).append(" (").append(ImapConstants.UID);
+            for (String partId : parts.keySet()) {
+                command.append(' ').append(ImapConstants.BINARY_SIZE)
+                        .append('[').append(partId).append(']');
+            }
+            commands.add(command.append(')').toString());
+        }
+        if (commands.isEmpty()) {
+            return;
+        }
+
+        final ImapConnection.PipelinedResponseHandler handler =
+                new ImapConnection.PipelinedResponseHandler() {
+            @Override
+            public void handleResponse(int commandIndex, ImapResponse response)
+                    throws MessagingException {
+                // S: * 3 FETCH (UID 12 BINARY.SIZE[2] 10240 BINARY.SIZE[3.1] 512)
+                if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                    return;
+                }
+                final ImapList fetchList = response.getListOrEmpty(2);
+                final HashMap<String, Part> parts = partsByUid.get(
+                        fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+                if (parts == null) {
+                    return;
+                }
+                final String prefix = ImapConstants.BINARY_SIZE + "[";
+                for (int i = 0; i < fetchList.size() - 1; i += 2) {
+                    final String key = fetchList.getStringOrEmpty(i).getString();
+                    if (!key.regionMatches(true, 0, prefix, 0, prefix.length())
+                            || !key.endsWith("]")) {
+                        continue;
+                    }
+                    final Part part = parts.get(key.substring(prefix.length(), key.length() - 1));
+                    final int size = fetchList.getStringOrEmpty(i + 1).getNumberOrZero();
+                    if (part != null && size > 0) {
+                        setDecodedSize(part, size);
+                    }
+                }
+            }
+        };
+        try {
+            for (int start = 0; start < commands.size(); start += MAX_PIPELINED_FETCHES) {
+                final int end = Math.min(start + MAX_PIPELINED_FETCHES, commands.size());
+                // A failure only leaves the encoded sizes in place
+                mConnection.executePipelinedCommands(commands.subList(start, end), handler);
+                destroyResponses();
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    private static void collectBinaryFetchableParts(Part part, HashMap<String, Part> parts)
+            throws MessagingException {
+        final Body body = part.getBody();
+        if (body instanceof Multipart) {
+            final Multipart multipart = (Multipart) body;
+            for (int i = 0, count = multipart.getCount(); i < count; i++) {
+                collectBinaryFetchableParts(multipart.getBodyPart(i), parts);
+            }
+        } else if (isBinaryFetchable(part)) {
+            parts.put(part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA)[0], part);
+        }
+    }
+
+    private static void setDecodedSize(Part part, int size) throws MessagingException {
+        final String[] disposition = part.getHeader(MimeHeader.HEADER_CONTENT_DISPOSITION);
+        if (disposition != null) {
+            part.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,
+                    DISPOSITION_SIZE_PATTERN.matcher(disposition[0]).replaceFirst("$1" + size));
+        }
+        if (part instanceof MimeBodyPart) {
+            ((MimeBodyPart) part).setSize(size);
+        }
+    }
+
+    /**
+     * Decodes the content of a part straight into its destination file while it's being read
+     * from the socket.
+     */
+    private static class PartStreamer implements ImapResponseParser.LiteralHandler {
+        private final String mKey;
+        private final String mContentTransferEncoding;
+        private final int mSize;
+        private final File mDestination;
+        private final MessageRetrievalListener mListener;
+        /** Whether the part has been written to {@link #mDestination} */
+        private boolean mStreamed;
+
+        private PartStreamer(String key, String contentTransferEncoding, int size,
+                File destination, MessageRetrievalListener listener) {
+            mKey = key;
+            mContentTransferEncoding = contentTransferEncoding;
+            mSize = size;
+            mDestination = destination;
+            mListener = listener;
+        }
+
+        /**
+         * @return a PartStreamer for {@code part}, or null if the part can't be streamed.
+         */
+        static PartStreamer create(Part part, File destination,
+                MessageRetrievalListener listener, boolean binary) throws MessagingException {
+            final String[] partIds =
+                    part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            final String[] encodings =
+                    part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+            if (partIds == null || encodings == null) {
+                return null;
+            }
+            if (binary) {
+                // The content arrives decoded
+                return new PartStreamer(ImapConstants.BINARY + "[" + partIds[0] + "]", null,
+                        part.getSize(), destination, listener);
+            }
+            return new PartStreamer(ImapConstants.BODY + "[" + partIds[0] + "]", encodings[0],
+                    part.getSize(), destination, listener);
+        }
+
+        @Override
+        public boolean handleLiteral(String key, InputStream in, int size) throws IOException {
+            if (mStreamed || key == null || !key.regionMatches(true, 0, mKey, 0, mKey.length())) {
+                return false;
+            }
+            final File dir = mDestination.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            final OutputStream out = new FileOutputStream(mDestination);
+            try {
+                copyDecoded(in, mContentTransferEncoding, mSize, out, mListener);
+            } finally {
+                out.close();
+            }
+            mStreamed = true;
+            return true;
+        }
+    }
+
+    /**
+     * Returns the items to ask for in a UID FETCH command for the given fetch profile.
+     *
+     * @param syncSize the number of bytes to fetch for partial body fetches
+     */
+    private static LinkedHashSet<String> getFetchFields(FetchProfile fp, Part fetchPart,
+            int syncSize, boolean binary) throws MessagingException {
         final LinkedHashSet<String> fetchFields = new LinkedHashSet<String>();
-        int syncSize = messages[0].getNeedSyncSize();
         fetchFields.add(ImapConstants.UID);
         if (fp.contains(FetchProfile.Item.FLAGS)) {
             fetchFields.add(ImapConstants.FLAGS);
@@ -575,13 +1158,12 @@ class ImapFolder extends Folder {
             fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK);
         }
 
-        final Part fetchPart = fp.getFirstPart();
         if (fetchPart != null) {
             final String[] partIds =
                     fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
             if (partIds != null) {
-                String fetchFieldCommand = ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
-                        + "[" + partIds[0] + "]";
+                String fetchFieldCommand = (binary ? ImapConstants.FETCH_FIELD_BINARY_PEEK_BARE
+                        : ImapConstants.FETCH_FIELD_BODY_PEEK_BARE) + "[" + partIds[0] + "]";
                 if (SystemProperties.getBoolean("persist.env.email.syncsize", true)
                         && syncSize != Utility.ENTIRE_MAIL
                         && fetchPart.getMimeType().contains(ImapConstants.TEXT.toLowerCase())) {
@@ -590,98 +1172,117 @@ class ImapFolder extends Folder {
                 fetchFields.add(fetchFieldCommand);
             }
         }
+        return fetchFields;
+    }
+
+    /**
+     * Sets the flags found in the FLAGS item of a FETCH response on the given message.
+     */
+    private static void parseFlags(ImapList fetchList, ImapMessage message)
+            throws MessagingException {
+        final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+        for (int i = 0, count = flags.size(); i < count; i++) {
+            final ImapString flag = flags.getStringOrEmpty(i);
+            if (flag.is(ImapConstants.FLAG_DELETED)) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            }
+        }
+    }
+
+    /**
+     * Returns "UIDVALIDITY:HIGHESTMODSEQ" as reported by the last SELECT, or null if the server
+     * didn't report a UIDVALIDITY.
+     */
+    @Override
+    public String getSyncKey() {
+        if (mUidValidity == 0) {
+            return null;
+        }
+        return mUidValidity + ":" + mHighestModSeq;
+    }
+
+    /**
+     * Uses CONDSTORE (RFC 7162) to fetch FLAGS only for the messages modified since the
+     * HIGHESTMODSEQ stored in {@code syncKey}.  If QRESYNC is enabled, UIDs expunged since then
+     * are reported through {@code vanishedUids}.
+     */
+    @Override
+    public Message[] fetchChangedFlags(Message[] messages, String syncKey,
+            Set<String> vanishedUids) throws MessagingException {
+        checkOpen();
+        if (syncKey == null || mHighestModSeq == 0
+                || !mConnection.isCapable(ImapConnection.CAPABILITY_CONDSTORE)) {
+            return null;
+        }
+        final int separator = syncKey.indexOf(':');
+        if (separator == -1) {
+            return null;
+        }
+        final long lastModSeq;
+        try {
+            if (Long.parseLong(syncKey.substring(0, separator)) != mUidValidity) {
+                return null; // UIDs have been reassigned; nothing we know is valid any more
+            }
+            lastModSeq = Long.parseLong(syncKey.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (lastModSeq == 0 || lastModSeq > mHighestModSeq) {
+            return null;
+        }
+        if (messages.length == 0 || lastModSeq == mHighestModSeq) {
+            return Message.EMPTY_ARRAY; // Nothing has changed
+        }
 
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        for (Message m : messages) {
+            messageMap.put(m.getUid(), m);
+        }
+        final ArrayList<Message> changedMessages = new ArrayList<Message>();
+        final boolean vanished = mConnection.isQresyncEnabled() && vanishedUids != null;
         try {
+            // C: UID FETCH 1:100 (UID FLAGS) (CHANGEDSINCE 12345 VANISHED)
             mConnection.sendCommand(String.format(Locale.US,
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
+                    ImapConstants.UID_FETCH + " %s (" + ImapConstants.UID + " "
+                            + ImapConstants.FLAGS + ") (" + ImapConstants.CHANGEDSINCE + " %d%s)",
+                    ImapStore.getMessageUidSets(messages, Integer.MAX_VALUE,
+                            Integer.MAX_VALUE)[0], lastModSeq,
+                    vanished ? " " + ImapConstants.VANISHED : ""), false);
             ImapResponse response;
-            int messageNumber = 0;
             do {
                 response = null;
                 try {
                     response = mConnection.readResponse();
-
-                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
-                    }
-                    final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
+                    if (response.isTagged()) {
+                        if (!response.isOk()) {
+                            // Server didn't like CHANGEDSINCE; have the caller do a full scan
+                            return null;
                         }
-                    }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
-                    }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    Log.v(Logging.LOG_TAG, "Error handling message", e);
-                                }
-                                message.setBody(null);
+                    } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                        // S: * VANISHED (EARLIER) 41,43:116
+                        if (vanished) {
+                            final String uidSet =
+                                    response.getStringOrEmpty(response.size() - 1).getString();
+                            for (String uid : ImapUtility.getImapSequenceValues(uidSet)) {
+                                vanishedUids.add(uid);
                             }
                         }
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
-                    }
-                    if (fetchPart != null && fetchPart.getSize() > 0) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String contentType = fetchPart.getContentType();
-                        String contentTransferEncoding = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
-
-                        // TODO Don't create 2 temp files.
-                        // decodeBody creates BinaryTempFileBody, but we could avoid this
-                        // if we implement ImapStringBody.
-                        // (We'll need to share a temp file.  Protect it with a ref-count.)
-                        fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                fetchPart.getSize(), listener));
-                    }
-
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
+                    } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                        // S: * 2 FETCH (UID 6 MODSEQ (12121231000) FLAGS (\Seen))
+                        final ImapList fetchList = response.getListOrEmpty(2);
+                        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                                .getString();
+                        final ImapMessage message = (ImapMessage) messageMap.get(uid);
+                        if (message != null) {
+                            parseFlags(fetchList, message);
+                            changedMessages.add(message);
+                        }
                     }
                 } finally {
                     destroyResponses();
@@ -690,6 +1291,7 @@ class ImapFolder extends Folder {
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         }
+        return changedMessages.toArray(Message.EMPTY_ARRAY);
     }
 
     /**
@@ -698,10 +1300,24 @@ class ImapFolder extends Folder {
      */
     private Body decodeBody(InputStream in, String contentTransferEncoding, int size,
             MessageRetrievalListener listener) throws IOException {
-        // Get a properly wrapped input stream
-        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
         BinaryTempFileBody tempBody = new BinaryTempFileBody();
         OutputStream out = tempBody.getOutputStream();
+        try {
+            copyDecoded(in, contentTransferEncoding, size, out, listener);
+        } finally {
+            out.close();
+        }
+        return tempBody;
+    }
+
+    /**
+     * Removes any content transfer encoding from the stream and writes the result to
+     * {@code out}, reporting the progress to {@code listener}.
+     */
+    private static void copyDecoded(InputStream in, String contentTransferEncoding, int size,
+            OutputStream out, MessageRetrievalListener listener) throws IOException {
+        // Get a properly wrapped input stream
+        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
         try {
             byte[] buffer = new byte[COPY_BUFFER_SIZE];
             int n = 0;
@@ -716,10 +1332,7 @@ class ImapFolder extends Folder {
         } catch (Base64DataException bde) {
             String warning = "\n\n" + Email.getMessageDecodeErrorString();
             out.write(warning.getBytes());
-        } finally {
-            out.close();
         }
-        return tempBody;
     }
 
     @Override
@@ -940,6 +1553,16 @@ class ImapFolder extends Folder {
      */
     @Override
     public void appendMessages(Message[] messages) throws MessagingException {
+        appendMessages(messages, null);
+    }
+
+    /**
+     * Reports the UIDs of the appended messages straight from the APPENDUID response code
+     * (RFC 4315) where the server sends one, which saves searching for them.
+     */
+    @Override
+    public void appendMessages(Message[] messages, MessageUpdateCallbacks callbacks)
+            throws MessagingException {
         checkOpen();
         try {
             for (Message message : messages) {
@@ -997,6 +1620,9 @@ class ImapFolder extends Folder {
                     String serverUid = appendList.getStringOrEmpty(2).getString();
                     if (!TextUtils.isEmpty(serverUid)) {
                         message.setUid(serverUid);
+                        if (callbacks != null) {
+                            callbacks.onMessageUidChange(message, serverUid);
+                        }
                         continue;
                     }
                 }
@@ -1014,14 +1640,17 @@ class ImapFolder extends Folder {
                 // fail to work if they are used]
                 String[] uids = searchForUids(
                         String.format(Locale.US, "HEADER MESSAGE-ID %s", messageId));
-                if (uids.length > 0) {
-                    message.setUid(uids[0]);
+                if (uids.length == 0) {
+                    // However, there's at least one server [AOL] that fails to work unless there
+                    // are parenthesis, so, try this as a last resort
+                    uids = searchForUids(
+                            String.format(Locale.US, "(HEADER MESSAGE-ID %s)", messageId));
                 }
-                // However, there's at least one server [AOL] that fails to work unless there
-                // are parenthesis, so, try this as a last resort
-                uids = searchForUids(String.format(Locale.US, "(HEADER MESSAGE-ID %s)", messageId));
                 if (uids.length > 0) {
                     message.setUid(uids[0]);
+                    if (callbacks != null) {
+                        callbacks.onMessageUidChange(message, uids[0]);
+                    }
                 }
             }
         } catch (IOException ioe) {
@@ -1048,7 +1677,86 @@ class ImapFolder extends Folder {
     public void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException {
         checkOpen();
+        try {
+            mConnection.executeSimpleCommand(
+                    getStoreCommand(ImapStore.joinMessageUids(messages), flags, value));
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
 
+    /**
+     * Pipelines the UID STORE commands, so they take a single round trip.  The folder is only
+     * expunged once all of them have succeeded, so that a failed STORE can't be followed by an
+     * expunge of the messages it didn't change.  With UIDPLUS, only the given messages are
+     * expunged (UID EXPUNGE), so that messages other clients have marked as deleted are left for
+     * them to deal with.  Runs of consecutive UIDs are sent as ranges, and long UID sets are split
+     * over several commands.
+     */
+    @Override
+    public void updateFlags(Message[] messages, Flag[] setFlags, Flag[] clearFlags,
+            boolean expunge) throws MessagingException {
+        checkOpen();
+        final String[] uidSets = ImapStore.getMessageUidSets(messages, Integer.MAX_VALUE,
+                MAX_UID_SET_LENGTH);
+        final ArrayList<String> commands = new ArrayList<String>(2 * uidSets.length);
+        if (setFlags != null && setFlags.length > 0) {
+            for (String uidSet : uidSets) {
+                commands.add(getStoreCommand(uidSet, setFlags, true));
+            }
+        }
+        if (clearFlags != null && clearFlags.length > 0) {
+            for (String uidSet : uidSets) {
+                commands.add(getStoreCommand(uidSet, clearFlags, false));
+            }
+        }
+        try {
+            if (!commands.isEmpty()) {
+                executePipelinedAndCheck(commands);
+            }
+            if (expunge) {
+                commands.clear();
+                if (mConnection.isCapable(ImapConnection.CAPABILITY_UIDPLUS)) {
+                    for (String uidSet : uidSets) {
+                        commands.add(ImapConstants.UID_EXPUNGE + " " + uidSet);
+                    }
+                } else {
+                    // A plain EXPUNGE also removes messages other clients have marked as
+                    // deleted, so it's only ever sent on its own
+                    commands.add(ImapConstants.EXPUNGE);
+                }
+                executePipelinedAndCheck(commands);
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Pipelines the given commands, and throws if any of them didn't succeed once the responses
+     * of all of them have been read.
+     */
+    private void executePipelinedAndCheck(List<String> commands)
+            throws IOException, MessagingException {
+        final List<List<ImapResponse>> pipelined = mConnection.executePipelinedCommands(commands);
+        for (List<ImapResponse> responses : pipelined) {
+            final ImapResponse status = getStatusResponse(responses);
+            if (!status.isOk()) {
+                throw new ImapException(status.toString(),
+                        status.getAlertTextOrEmpty().getString());
+            }
+            handleUntaggedResponses(responses);
+        }
+    }
+
+    /**
+     * Builds a UID STORE command that sets or clears the given flags.
+     */
+    private static String getStoreCommand(String uidSet, Flag[] flags, boolean value) {
         String allFlags = "";
         if (flags.length > 0) {
             StringBuilder flagList = new StringBuilder();
@@ -1066,26 +1774,22 @@ class ImapFolder extends Folder {
             }
             allFlags = flagList.substring(1);
         }
-        try {
-            mConnection.executeSimpleCommand(String.format(Locale.US,
-                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
-
-        } catch (IOException ioe) {
-            throw ioExceptionHandler(mConnection, ioe);
-        } finally {
-            destroyResponses();
-        }
+        return String.format(Locale.US,
+                ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
+                uidSet,
+                value ? "+" : "-",
+                allFlags);
     }
 
     /**
      * Persists this folder. We will always perform the proper database operation (e.g.
      * 'save' or 'update'). As an optimization, if a folder has not been modified, no
      * database operations are performed.
+     *
+     * @param ops updates of existing mailboxes are added to this list, to be applied in a batch
+     * by the caller
      */
-    void save(Context context) {
+    void save(Context context, ArrayList<ContentProviderOperation> ops) {
         final Mailbox mailbox = mMailbox;
         if (!mailbox.isSaved()) {
             mailbox.save(context);
@@ -1093,7 +1797,8 @@ class ImapFolder extends Folder {
         } else {
             Object[] hash = mailbox.getHashes();
             if (!Arrays.equals(mHash, hash)) {
-                mailbox.update(context, mailbox.toContentValues());
+                ops.add(ContentProviderOperation.newUpdate(mailbox.getUri())
+                        .withValues(mailbox.toContentValues()).build());
                 mHash = hash;  // Save updated hash
             }
         }
@@ -1102,14 +1807,35 @@ class ImapFolder extends Folder {
     /**
      * Selects the folder for use. Before performing any operations on this folder, it
      * must be selected.
+     *
+     * @param checkConnection if true, a NOOP is pipelined ahead of the SELECT to check that a
+     * pooled connection is still usable; an IOException is thrown if it isn't.
      */
-    private void doSelect() throws IOException, MessagingException {
-        final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
-                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+    private void doSelect(boolean checkConnection) throws IOException, MessagingException {
+        // Ask for HIGHESTMODSEQ if the server can keep track of flag changes
+        final boolean condstore = mConnection.isCapable(ImapConnection.CAPABILITY_CONDSTORE);
+        final ArrayList<String> commands = new ArrayList<String>(2);
+        if (checkConnection) {
+            commands.add(ImapConstants.NOOP);
+        }
+        commands.add(String.format(Locale.US, ImapConstants.SELECT + " \"%s\"%s",
+                ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
+                condstore ? " (" + ImapConstants.CONDSTORE + ")" : ""));
+        final List<List<ImapResponse>> pipelined = mConnection.executePipelinedCommands(commands);
+        if (checkConnection && !getStatusResponse(pipelined.get(0)).isOk()) {
+            throw new IOException("Pooled connection is no longer usable");
+        }
+        final List<ImapResponse> responses = pipelined.get(pipelined.size() - 1);
+        final ImapResponse status = getStatusResponse(responses);
+        if (!status.isOk()) {
+            throw new ImapException(status.toString(),
+                    status.getAlertTextOrEmpty().getString());
+        }
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
+        mUidValidity = 0;
+        mHighestModSeq = 0;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -1120,6 +1846,16 @@ class ImapFolder extends Folder {
                     mMode = OpenMode.READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = OpenMode.READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    // S: * OK [UIDVALIDITY 3857529045] UIDs valid
+                    mUidValidity = response.getListOrEmpty(1).getStringOrEmpty(1).getLongOrZero();
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    // S: * OK [HIGHESTMODSEQ 715194045007] Highest
+                    mHighestModSeq =
+                            response.getListOrEmpty(1).getStringOrEmpty(1).getLongOrZero();
+                } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                    // S: * OK [NOMODSEQ] Sorry, this mailbox format doesn't support modsequences
+                    mHighestModSeq = 0;
                 }
             } else if (response.isTagged()) { // Not OK
                 throw new MessagingException("Can't open mailbox: "
@@ -1133,6 +1869,13 @@ class ImapFolder extends Folder {
         mExists = true;
     }
 
+    /**
+     * @return the tagged status response, which is the last of a command's responses.
+     */
+    private static ImapResponse getStatusResponse(List<ImapResponse> responses) {
+        return responses.get(responses.size() - 1);
+    }
+
     private void checkOpen() throws MessagingException {
         if (!isOpen()) {
             throw new MessagingException("Folder " + mName + " is not open.");
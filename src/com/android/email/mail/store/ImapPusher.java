@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.email.Email;
+import com.android.email.mail.Store;
+import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.transport.MailTransport;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.AuthenticationFailedException;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps a dedicated connection to an account's inbox in the IDLE state (RFC 2177) and reports
+ * when the server announces a change to it, so that the inbox can be synced right away instead
+ * of on the next polling alarm.
+ *
+ * If the server doesn't support IDLE, {@link Callback#onPushUnavailable} is called once and the
+ * pusher stops; the account should then be polled.
+ */
+public class ImapPusher {
+    /**
+     * Servers may log out clients that have been idle for 30 minutes, so IDLE must be re-issued
+     * before then (RFC 2177).
+     */
+    private static final long IDLE_REFRESH_MILLIS = 28 * 60 * 1000;
+    /** Read timeout while idling; if nothing arrives for this long, the connection is dead. */
+    private static final int IDLE_READ_TIMEOUT = (int) IDLE_REFRESH_MILLIS + 2 * 60 * 1000;
+    /** Delays between reconnection attempts after a failure */
+    private static final long MIN_RETRY_DELAY_MILLIS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30 * 60 * 1000;
+
+    public interface Callback {
+        /**
+         * The server reported new, expunged or changed messages in the inbox.  Called on the
+         * pusher's thread.
+         */
+        public void onMailboxChanged(long accountId);
+
+        /**
+         * The server can't push (e.g. no IDLE capability); the account should be polled instead.
+         */
+        public void onPushUnavailable(long accountId);
+    }
+
+    private final Context mContext;
+    private final long mAccountId;
+    private final Callback mCallback;
+    private final Timer mRefreshTimer = new Timer("ImapPusherRefresh", true);
+    /** Held while a change reported by the server is handled, so the device can't fall asleep */
+    private final WakeLock mWakeLock;
+    private Thread mThread;
+    private volatile boolean mStopped;
+    private volatile ImapConnection mConnection;
+    /** Whether the current connection got as far as idling.  Only used on the pusher thread. */
+    private boolean mConnected;
+
+    public ImapPusher(Context context, long accountId, Callback callback) {
+        mContext = context.getApplicationContext();
+        mAccountId = accountId;
+        mCallback = callback;
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "ImapPusher-" + accountId);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    public long getAccountId() {
+        return mAccountId;
+    }
+
+    /**
+     * Starts the pusher thread.  Does nothing if it's already been started.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runPush();
+            }
+        }, "ImapPusher-" + mAccountId);
+        mThread.start();
+    }
+
+    /**
+     * Stops the pusher and closes its connection.  A stopped pusher can't be restarted.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        mRefreshTimer.cancel();
+        final ImapConnection connection = mConnection;
+        if (connection != null) {
+            // Unblocks the pusher thread if it's waiting for a response
+            connection.close();
+        }
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    private void runPush() {
+        long retryDelay = MIN_RETRY_DELAY_MILLIS;
+        while (!mStopped) {
+            final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+            if (account == null) {
+                return; // Account was deleted
+            }
+            ImapConnection connection = null;
+            try {
+                final Store store = Store.getInstance(account, mContext);
+                if (!(store instanceof ImapStore)) {
+                    mCallback.onPushUnavailable(mAccountId);
+                    return;
+                }
+                connection = ((ImapStore) store).createConnection();
+                mConnection = connection;
+                if (!push(connection)) {
+                    return;
+                }
+            } catch (AuthenticationFailedException afe) {
+                // Let the polling sync surface the login failure to the user
+                mCallback.onPushUnavailable(mAccountId);
+                return;
+            } catch (MessagingException me) {
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, "IMAP push failed for account " + mAccountId, me);
+                }
+            } catch (IOException ioe) {
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, "IMAP push failed for account " + mAccountId, ioe);
+                }
+            } finally {
+                mConnection = null;
+                if (connection != null) {
+                    connection.close();
+                }
+                if (mWakeLock.isHeld()) {
+                    mWakeLock.release();
+                }
+            }
+            if (mStopped) {
+                return;
+            }
+            if (mConnected) {
+                // The connection was working, so start over with the shortest delay
+                mConnected = false;
+                retryDelay = MIN_RETRY_DELAY_MILLIS;
+            }
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                // Re-check mStopped
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Opens the connection, selects the inbox and idles until the pusher is stopped or the
+     * connection fails.
+     *
+     * @return false if the server can't IDLE, in which case
+     *     {@link Callback#onPushUnavailable} has been called
+     */
+    /* package */ boolean push(ImapConnection connection) throws IOException, MessagingException {
+        connection.open();
+        if (!connection.isCapable(ImapConnection.CAPABILITY_IDLE)) {
+            Log.i(Logging.LOG_TAG, "IMAP server can't IDLE; push unavailable for account "
+                    + mAccountId);
+            mCallback.onPushUnavailable(mAccountId);
+            return false;
+        }
+        // EXAMINE, so that idling doesn't affect \Recent for the real sync
+        connection.executeSimpleCommand(
+                ImapConstants.EXAMINE + " \"" + ImapConstants.INBOX + "\"");
+        connection.destroyResponses();
+        mConnected = true;
+
+        // Catch up with anything that arrived while we weren't connected
+        reportMailboxChanged();
+        while (!mStopped) {
+            if (idle(connection)) {
+                reportMailboxChanged();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Has the callback start a sync, holding a wake lock until it has.  The server's response
+     * wakes the device up, but nothing keeps it awake after that.  The wake lock isn't reference
+     * counted, so this also releases the one taken by {@link #idle} when it saw the change.
+     */
+    private void reportMailboxChanged() {
+        mWakeLock.acquire();
+        try {
+            mCallback.onMailboxChanged(mAccountId);
+        } finally {
+            mWakeLock.release();
+        }
+    }
+
+    /**
+     * Issues a single IDLE command and waits for it to finish.  IDLE is ended as soon as the
+     * server reports a change to the mailbox, or after {@link #IDLE_REFRESH_MILLIS}.
+     *
+     * @return whether the server reported a change to the mailbox
+     */
+    /* package */ boolean idle(final ImapConnection connection)
+            throws IOException, MessagingException {
+        boolean changed = false;
+        boolean doneSent = false;
+        TimerTask refreshTask = null;
+        connection.sendCommand(ImapConstants.IDLE, false);
+        try {
+            ImapResponse response;
+            do {
+                response = connection.readResponse();
+                if (response.isContinuationRequest()) {
+                    // S: + idling
+                    connection.setReadTimeout(IDLE_READ_TIMEOUT);
+                    refreshTask = new TimerTask() {
+                        @Override
+                        public void run() {
+                            try {
+                                connection.sendIdleDone();
+                            } catch (IOException ioe) {
+                                // The pusher thread will see the failure on its next read
+                            }
+                        }
+                    };
+                    mRefreshTimer.schedule(refreshTask, IDLE_REFRESH_MILLIS);
+                } else if (!response.isTagged() && isMailboxChange(response)) {
+                    // S: * 23 EXISTS
+                    changed = true;
+                    // Stay awake until the sync has been started (see reportMailboxChanged)
+                    mWakeLock.acquire();
+                    if (refreshTask != null && refreshTask.cancel() && !doneSent) {
+                        connection.sendIdleDone();
+                        doneSent = true;
+                    }
+                }
+                if (!response.isTagged()) {
+                    connection.destroyResponses();
+                }
+            } while (!response.isTagged());
+            if (!response.isOk()) {
+                throw new MessagingException("IDLE failed: " + response);
+            }
+            return changed;
+        } finally {
+            if (refreshTask != null) {
+                refreshTask.cancel();
+            }
+            connection.destroyResponses();
+            if (!mStopped) {
+                connection.setReadTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+            }
+        }
+    }
+
+    private static boolean isMailboxChange(ImapResponse response) {
+        return response.isDataResponse(1, ImapConstants.EXISTS)
+                || response.isDataResponse(1, ImapConstants.EXPUNGE)
+                || response.isDataResponse(1, ImapConstants.FETCH)
+                || response.isDataResponse(0, ImapConstants.VANISHED);
+    }
+}
@@ -16,9 +16,12 @@
 
 package com.android.email.mail.store;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -30,8 +33,10 @@ import com.android.email.VendorPolicyLoader;
 import com.android.email.mail.Store;
 import com.android.email.mail.Transport;
 import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.MimeMessage;
@@ -41,6 +46,7 @@ import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceProxy;
@@ -54,11 +60,14 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.WeakHashMap;
 import java.util.regex.Pattern;
 
 
@@ -87,8 +96,20 @@ public class ImapStore extends Store {
     @VisibleForTesting String mPathPrefix;
     @VisibleForTesting String mPathSeparator;
 
-    private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
-            new ConcurrentLinkedQueue<ImapConnection>();
+    /** The live IMAP stores, for {@link #onNetworkChanged}. */
+    private static final Set<ImapStore> sStores =
+            Collections.newSetFromMap(new WeakHashMap<ImapStore, Boolean>());
+
+    private final ImapConnectionPool mConnectionPool = new ImapConnectionPool();
+
+    /** Maximum number of STATUS commands pipelined at a time */
+    private static final int MAX_PIPELINED_STATUS = 50;
+
+    /**
+     * The status of each folder as of the last {@link #updateFoldersAndStatus}, keyed by folder
+     * name; see {@link #takeFolderStatus}.  Guarded by "this".
+     */
+    private final HashMap<String, String> mFolderStatus = new HashMap<String, String>();
 
     /**
      * Static named constructor.
@@ -139,13 +160,66 @@ public class ImapStore extends Store {
             mPassword = null;
         }
         mPathPrefix = recvAuth.mDomain;
+        synchronized (sStores) {
+            sStores.add(this);
+        }
     }
 
     @VisibleForTesting
     Collection<ImapConnection> getConnectionPoolForTest() {
+        return mConnectionPool.getConnections();
+    }
+
+    /** @return the connection pool, e.g. for its counters. */
+    ImapConnectionPool getConnectionPool() {
         return mConnectionPool;
     }
 
+    /**
+     * Replaces the pooled connections of all the IMAP stores in use, which were opened on a
+     * network that's gone, with a fresh authenticated connection each.  This runs in the
+     * background.
+     */
+    public static void onNetworkChanged() {
+        final ArrayList<ImapStore> stores;
+        synchronized (sStores) {
+            stores = new ArrayList<ImapStore>(sStores);
+        }
+        for (final ImapStore store : stores) {
+            Utility.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    store.mConnectionPool.evictAll();
+                    // Don't open connections for accounts that haven't synced in this process
+                    if (store.mConnectionPool.hasBeenUsed()) {
+                        store.warmUpConnectionPool();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens and logs in a connection, and puts it in the pool, unless the pool already has one.
+     */
+    void warmUpConnectionPool() {
+        if (mConnectionPool.size() > 0) {
+            return;
+        }
+        final ImapConnection connection = new ImapConnection(this, mUsername, mPassword);
+        try {
+            connection.open();
+            mConnectionPool.recordWarmUp();
+            poolConnection(connection);
+        } catch (MessagingException e) {
+            Log.d(Logging.LOG_TAG, "Failed to warm up IMAP connection pool: " + e);
+            connection.close();
+        } catch (IOException e) {
+            Log.d(Logging.LOG_TAG, "Failed to warm up IMAP connection pool: " + e);
+            connection.close();
+        }
+    }
+
     /**
      * For testing only.  Injects a different root transport (it will be copied using
      * newInstanceWithConfiguration() each time IMAP sets up a new channel).  The transport
@@ -374,16 +448,60 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Persists the folders in the given list.
+     * Persists the folders in the given list.  Changes to existing mailboxes are written in a
+     * single transaction.
      */
-    private static void saveMailboxList(Context context, HashMap<String, ImapFolder> folderMap) {
+    private static void saveMailboxList(Context context, HashMap<String, ImapFolder> folderMap)
+            throws MessagingException {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
         for (ImapFolder imapFolder : folderMap.values()) {
-            imapFolder.save(context);
+            imapFolder.save(context, ops);
+        }
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            throw new MessagingException("Unable to save folder list.", e);
+        } catch (OperationApplicationException e) {
+            throw new MessagingException("Unable to save folder list.", e);
         }
     }
 
     @Override
     public Folder[] updateFolders() throws MessagingException {
+        return updateFolders(false);
+    }
+
+    /**
+     * Also fetches MESSAGES, UNSEEN, UIDNEXT and UIDVALIDITY (and HIGHESTMODSEQ with CONDSTORE)
+     * for every selectable folder: along with the LIST if the server supports LIST-STATUS
+     * (RFC 5819), with pipelined STATUS commands otherwise.  MESSAGES is stored as the total
+     * count of each mailbox.
+     */
+    @Override
+    public Folder[] updateFoldersAndStatus() throws MessagingException {
+        return updateFolders(true);
+    }
+
+    /**
+     * Returns "UIDVALIDITY:UIDNEXT:MESSAGES:UNSEEN:HIGHESTMODSEQ"; any change to the folder's
+     * messages changes at least one of these.  Without CONDSTORE, or for a mailbox that doesn't
+     * keep mod-sequences, flag changes other than \Seen change none of the others, so no status
+     * is returned.
+     */
+    @Override
+    public synchronized String takeFolderStatus(String name) {
+        return mFolderStatus.remove(name);
+    }
+
+    private Folder[] updateFolders(boolean withStatus) throws MessagingException {
+        if (withStatus) {
+            synchronized (this) {
+                mFolderStatus.clear();
+            }
+        }
         ImapConnection connection = getConnection();
         try {
             HashMap<String, ImapFolder> mailboxes = new HashMap<String, ImapFolder>();
@@ -394,6 +512,14 @@ public class ImapStore extends Store {
             if (mPathPrefix != null) {
                 imapCommand = ImapConstants.LIST + " \"\" \"" + mPathPrefix + "*\"";
             }
+            final String statusItems = withStatus ? getStatusItems(connection) : null;
+            final boolean listStatus = withStatus
+                    && connection.isCapable(ImapConnection.CAPABILITY_LIST_STATUS);
+            if (listStatus) {
+                imapCommand += " " + ImapConstants.RETURN + " (" + ImapConstants.STATUS + " "
+                        + statusItems + ")";
+            }
+            final HashMap<String, String> statuses = new HashMap<String, String>();
             List<ImapResponse> responses = connection.executeSimpleCommand(imapCommand);
             for (ImapResponse response : responses) {
                 // S: * LIST (\Noselect) "/" ~/Mail/foo
@@ -416,13 +542,34 @@ public class ImapStore extends Store {
                     ImapFolder folder =
                         addMailbox(mContext, mAccount.mId, folderName, delimiterChar, selectable);
                     mailboxes.put(folderName, folder);
+                } else if (listStatus) {
+                    // S: * STATUS "foo" (MESSAGES 231 UNSEEN 4 UIDNEXT 44292 UIDVALIDITY 7)
+                    parseStatus(response, statuses);
                 }
             }
             Folder newFolder =
                 addMailbox(mContext, mAccount.mId, ImapConstants.INBOX, '\0', true /*selectable*/);
             mailboxes.put(ImapConstants.INBOX, (ImapFolder)newFolder);
+            if (withStatus && !listStatus) {
+                fetchStatus(connection, mailboxes.values(), statusItems, statuses);
+            }
+            for (Map.Entry<String, String> entry : statuses.entrySet()) {
+                final ImapFolder folder = mailboxes.get(entry.getKey());
+                if (folder != null) {
+                    folder.mMailbox.mTotalCount = getStatusMessageCount(entry.getValue());
+                }
+            }
             createHierarchy(mailboxes);
             saveMailboxList(mContext, mailboxes);
+            if (withStatus) {
+                synchronized (this) {
+                    for (Map.Entry<String, String> entry : statuses.entrySet()) {
+                        if (hasStatusModSeq(entry.getValue())) {
+                            mFolderStatus.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+            }
             return mailboxes.values().toArray(new Folder[] {});
         } catch (IOException ioe) {
             connection.close();
@@ -440,6 +587,101 @@ public class ImapStore extends Store {
         }
     }
 
+    private static String getStatusItems(ImapConnection connection) {
+        final StringBuilder items = new StringBuilder("(").append(ImapConstants.MESSAGES)
+                .append(' ').append(ImapConstants.UNSEEN)
+                .append(' ').append(ImapConstants.UIDNEXT)
+                .append(' ').append(ImapConstants.UIDVALIDITY);
+        if (connection.isCapable(ImapConnection.CAPABILITY_CONDSTORE)) {
+            items.append(' ').append(ImapConstants.HIGHESTMODSEQ);
+        }
+        return items.append(')').toString();
+    }
+
+    /**
+     * Sends a STATUS command for each selectable folder, pipelined.  Folders the server refuses
+     * to report on are left out of {@code statuses}.
+     */
+    private void fetchStatus(ImapConnection connection, Collection<ImapFolder> folders,
+            String statusItems, final HashMap<String, String> statuses)
+            throws IOException, MessagingException {
+        final ArrayList<String> names = new ArrayList<String>();
+        for (ImapFolder folder : folders) {
+            if ((folder.mMailbox.mFlags & Mailbox.FLAG_HOLDS_MAIL) != 0) {
+                names.add(folder.getName());
+            }
+        }
+        Collections.sort(names);
+        final ArrayList<String> commands = new ArrayList<String>(names.size());
+        for (String name : names) {
+            commands.add(ImapConstants.STATUS + " \"" + encodeFolderName(name, mPathPrefix)
+                    + "\" " + statusItems);
+        }
+        final ImapConnection.PipelinedResponseHandler handler =
+                new ImapConnection.PipelinedResponseHandler() {
+            @Override
+            public void handleResponse(int commandIndex, ImapResponse response) {
+                parseStatus(response, statuses);
+            }
+        };
+        for (int start = 0; start < commands.size(); start += MAX_PIPELINED_STATUS) {
+            final int end = Math.min(start + MAX_PIPELINED_STATUS, commands.size());
+            connection.executePipelinedCommands(commands.subList(start, end), handler);
+            connection.destroyResponses();
+        }
+    }
+
+    /**
+     * Adds the status in a STATUS response to {@code statuses}; other responses are ignored.
+     */
+    private void parseStatus(ImapResponse response, HashMap<String, String> statuses) {
+        // S: * STATUS "foo" (MESSAGES 231 UNSEEN 4 UIDNEXT 44292 UIDVALIDITY 7)
+        if (!response.isDataResponse(0, ImapConstants.STATUS)) {
+            return;
+        }
+        final ImapString encodedFolder = response.getStringOrEmpty(1);
+        final ImapList items = response.getListOrEmpty(2);
+        final ImapString uidNext = items.getKeyedStringOrEmpty(ImapConstants.UIDNEXT);
+        if (encodedFolder.isEmpty() || uidNext.isEmpty()) {
+            return;
+        }
+        String folderName = decodeFolderName(encodedFolder.getString(), mPathPrefix);
+        if (ImapConstants.INBOX.equalsIgnoreCase(folderName)) {
+            folderName = ImapConstants.INBOX;
+        }
+        final StringBuilder status = new StringBuilder()
+                .append(items.getKeyedStringOrEmpty(ImapConstants.UIDVALIDITY).getString())
+                .append(':').append(uidNext.getString())
+                .append(':').append(items.getKeyedStringOrEmpty(ImapConstants.MESSAGES)
+                        .getNumberOrZero())
+                .append(':').append(items.getKeyedStringOrEmpty(ImapConstants.UNSEEN)
+                        .getNumberOrZero());
+        final ImapString highestModSeq = items.getKeyedStringOrEmpty(ImapConstants.HIGHESTMODSEQ);
+        if (!highestModSeq.isEmpty()) {
+            status.append(':').append(highestModSeq.getString());
+        }
+        statuses.put(folderName, status.toString());
+    }
+
+    /** @return the MESSAGES count of a status built by {@link #parseStatus}. */
+    private static int getStatusMessageCount(String status) {
+        final String[] fields = status.split(":");
+        try {
+            return Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return whether a status built by {@link #parseStatus} has a HIGHESTMODSEQ, which a
+     * mailbox without mod-sequences reports as 0 (RFC 7162)
+     */
+    private static boolean hasStatusModSeq(String status) {
+        final String[] fields = status.split(":");
+        return fields.length > 4 && !"0".equals(fields[4]);
+    }
+
     @Override
     public Bundle checkSettings() throws MessagingException {
         int result = MessagingException.NO_ERROR;
@@ -504,33 +746,70 @@ public class ImapStore extends Store {
      */
     ImapConnection getConnection() {
         ImapConnection connection = null;
-        while ((connection = mConnectionPool.poll()) != null) {
+        while ((connection = mConnectionPool.take()) != null) {
             try {
                 connection.setStore(this, mUsername, mPassword);
                 connection.executeSimpleCommand(ImapConstants.NOOP);
-                break;
+                mConnectionPool.recordHit();
+                return connection;
             } catch (MessagingException e) {
                 // Fall through
             } catch (IOException e) {
                 // Fall through
             }
-            connection.close();
-            connection = null;
+            mConnectionPool.discard(connection);
         }
-        if (connection == null) {
-            connection = new ImapConnection(this, mUsername, mPassword);
+        mConnectionPool.recordMiss();
+        return new ImapConnection(this, mUsername, mPassword);
+    }
+
+    /**
+     * Takes a connection from the pool without checking that it's still usable, so that the
+     * caller can pipeline the check with its first command.  The caller must report the outcome
+     * of the check with {@link #onPooledConnectionChecked}.
+     *
+     * @return the connection, or null if the pool is empty.
+     */
+    ImapConnection getPooledConnection() {
+        final ImapConnection connection = mConnectionPool.take();
+        if (connection != null) {
+            connection.setStore(this, mUsername, mPassword);
         }
         return connection;
     }
 
+    /**
+     * Reports whether a connection from {@link #getPooledConnection} turned out to be alive.
+     * A dead connection is closed.
+     */
+    void onPooledConnectionChecked(ImapConnection connection, boolean alive) {
+        if (alive) {
+            mConnectionPool.recordHit();
+        } else {
+            mConnectionPool.discard(connection);
+        }
+    }
+
+    /**
+     * Creates a new, unpooled connection; e.g. for a connection that must stay in the IDLE state.
+     */
+    ImapConnection createConnection() {
+        return new ImapConnection(this, mUsername, mPassword);
+    }
+
     /**
      * Save a {@link ImapConnection} in the pool for reuse. Any responses associated with the
-     * connection are destroyed before adding the connection to the pool.
+     * connection are destroyed before adding the connection to the pool.  A connection that
+     * isn't open saves no handshake, so it's closed instead.
      */
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
-            connection.destroyResponses();
-            mConnectionPool.add(connection);
+            if (connection.isTransportOpen()) {
+                connection.destroyResponses();
+                mConnectionPool.put(connection);
+            } else {
+                connection.close();
+            }
         }
     }
 
@@ -583,6 +862,19 @@ public class ImapStore extends Store {
         return sb.toString();
     }
 
+    /**
+     * Returns UIDs of Messages as IMAP sequence sets, with runs of consecutive UIDs collapsed
+     * into ranges, split so that each set holds at most {@code maxCount} UIDs and is at most
+     * {@code maxLength} characters long.
+     */
+    static String[] getMessageUidSets(Message[] messages, int maxCount, int maxLength) {
+        final String[] uids = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            uids[i] = messages[i].getUid();
+        }
+        return ImapUtility.getImapSequenceSets(uids, maxCount, maxLength);
+    }
+
     static class ImapMessage extends MimeMessage {
         ImapMessage(String uid, ImapFolder folder) {
             mUid = uid;
@@ -58,6 +58,8 @@ public class Pop3Store extends Store {
     private static boolean DEBUG_LOG_RAW_STREAM = false;
 
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
+    /** Maximum number of commands sent ahead of their responses, with PIPELINING */
+    private static final int MAX_PIPELINED_COMMANDS = 16;
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
@@ -216,6 +218,12 @@ public class Pop3Store extends Store {
         private final String mName;
         private int mMessageCount;
         private Pop3Capabilities mCapabilities;
+        /** Whether the saved index has been looked at since the folder was opened */
+        private boolean mIndexChecked;
+        /** Whether the saved index was valid, so the messages it lists are indexed already */
+        private boolean mIndexRestored;
+        /** Whether the index has changed since it was restored (or saved) */
+        private boolean mIndexDirty;
 
         public Pop3Folder(String name) {
             if (name.equalsIgnoreCase(POP3_MAILBOX_NAME)) {
@@ -330,6 +338,9 @@ public class Pop3Store extends Store {
             mUidToMsgMap.clear();
             mMsgNumToMsgMap.clear();
             mUidToMsgNumMap.clear();
+            mIndexChecked = false;
+            mIndexRestored = false;
+            mIndexDirty = false;
         }
 
         @Override
@@ -346,6 +357,9 @@ public class Pop3Store extends Store {
          */
         @Override
         public void close(boolean expunge) {
+            if (mIndexDirty) {
+                saveIndex();
+            }
             try {
                 executeSimpleCommand("QUIT");
             }
@@ -440,6 +454,7 @@ public class Pop3Store extends Store {
          */
         private void indexMsgNums(int start, int end)
                 throws MessagingException, IOException {
+            restoreIndex();
             int unindexedMessageCount = 0;
             for (int msgNum = start; msgNum <= end; msgNum++) {
                 if (mMsgNumToMsgMap.get(msgNum) == null) {
@@ -450,11 +465,12 @@ public class Pop3Store extends Store {
                 return;
             }
             UidlParser parser = new UidlParser();
-            if (DEBUG_FORCE_SINGLE_LINE_UIDL ||
-                    (unindexedMessageCount < 50 && mMessageCount > 5000)) {
+            if (DEBUG_FORCE_SINGLE_LINE_UIDL || (unindexedMessageCount < 50
+                    && (mMessageCount > 5000 || mIndexRestored))) {
                 /*
                  * In extreme cases we'll do a UIDL command per message instead of a bulk
-                 * download.
+                 * download.  The same goes for the few new messages of a mailbox whose index
+                 * was restored.
                  */
                 for (int msgNum = start; msgNum <= end; msgNum++) {
                     Pop3Message message = mMsgNumToMsgMap.get(msgNum);
@@ -476,13 +492,12 @@ public class Pop3Store extends Store {
                     if (parser.mEndOfMessage) {
                         break;
                     }
+                    // Index every message, as the whole list has to be read anyway
                     int msgNum = parser.mMessageNumber;
-                    if (msgNum >= start && msgNum <= end) {
-                        Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                        if (message == null) {
-                            message = new Pop3Message(parser.mUniqueId, this);
-                            indexMessage(msgNum, message);
-                        }
+                    Pop3Message message = mMsgNumToMsgMap.get(msgNum);
+                    if (message == null) {
+                        message = new Pop3Message(parser.mUniqueId, this);
+                        indexMessage(msgNum, message);
                     }
                 }
             }
@@ -490,6 +505,7 @@ public class Pop3Store extends Store {
 
         private void indexUids(ArrayList<String> uids)
                 throws MessagingException, IOException {
+            restoreIndex();
             HashSet<String> unindexedUids = new HashSet<String>();
             for (String uid : uids) {
                 if (mUidToMsgMap.get(uid) == null) {
@@ -624,6 +640,66 @@ public class Pop3Store extends Store {
             mMsgNumToMsgMap.put(msgNum, message);
             mUidToMsgMap.put(message.getUid(), message);
             mUidToMsgNumMap.put(message.getUid(), msgNum);
+            mIndexDirty = true;
+        }
+
+        /**
+         * Indexes the messages saved by {@link #saveIndex} when the folder was last closed, if
+         * they are still numbered the same: the server has at least as many messages, and the
+         * last of them has the same unique id.  This takes a single UIDL command, whereas
+         * indexing them from scratch takes a list of every message.
+         */
+        private void restoreIndex() throws MessagingException, IOException {
+            if (mIndexChecked) {
+                return;
+            }
+            mIndexChecked = true;
+            if (!mAccount.isSaved()) {
+                return;
+            }
+            final String[] uids = Pop3UidlIndex.load(mContext, mAccount.mId);
+            if (uids == null || uids.length == 0 || uids.length > mMessageCount) {
+                return;
+            }
+            final int lastMsgNum = uids.length;
+            final String response;
+            try {
+                response = executeSimpleCommand("UIDL " + lastMsgNum);
+            } catch (MessagingException me) {
+                // -ERR; the message has been deleted
+                return;
+            }
+            UidlParser parser = new UidlParser();
+            if (!parser.parseSingleLine(response) || parser.mMessageNumber != lastMsgNum
+                    || !uids[lastMsgNum - 1].equals(parser.mUniqueId)) {
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, "POP3 UIDL index is out of date");
+                }
+                return;
+            }
+            for (int msgNum = 1; msgNum <= lastMsgNum; msgNum++) {
+                indexMessage(msgNum, new Pop3Message(uids[msgNum - 1], this));
+            }
+            mIndexRestored = true;
+            mIndexDirty = false;
+        }
+
+        /**
+         * Saves the unique ids of the messages indexed from number 1 on, up to the first gap,
+         * for {@link #restoreIndex}.  Deleted messages leave a gap, as the messages after them
+         * will be renumbered.
+         */
+        private void saveIndex() {
+            if (!mAccount.isSaved()) {
+                return;
+            }
+            final ArrayList<String> uids = new ArrayList<String>();
+            Pop3Message message;
+            while ((message = mMsgNumToMsgMap.get(uids.size() + 1)) != null) {
+                uids.add(message.getUid());
+            }
+            Pop3UidlIndex.save(mContext, mAccount.mId, uids);
+            mIndexDirty = false;
         }
 
         @Override
@@ -664,6 +740,39 @@ public class Pop3Store extends Store {
                 }
                 throw new MessagingException("fetch", ioe);
             }
+            final boolean fetchBody = fp.contains(FetchProfile.Item.BODY)
+                    || fp.contains(FetchProfile.Item.BODY_SANE);
+            int lines = -1;
+            if (!fp.contains(FetchProfile.Item.BODY) && fp.contains(FetchProfile.Item.BODY_SANE)) {
+                /*
+                 * To convert the suggested download size we take the size
+                 * divided by the maximum line size (76).
+                 */
+                if (SystemProperties.getBoolean("persist.env.email.syncsize", true)) {
+                    if (syncSize != Utility.ENTIRE_MAIL) {
+                        // syncSize == Utility.ENTIRE_MAIL couldn't be here
+                        lines = syncSize / 76;
+                    } else {
+                        Log.w(Logging.LOG_TAG, "Pop3 fetch message with fetch field :"
+                                + "BODY_SANE, but this account need sync entire mail.");
+                    }
+                } else {
+                    lines = FETCH_BODY_SANE_SUGGESTED_SIZE / 76;
+                }
+            }
+            if (fetchBody && messages.length > 1 && mCapabilities != null
+                    && mCapabilities.pipelining) {
+                try {
+                    fetchBodiesPipelined(messages, lines, listener);
+                } catch (IOException ioe) {
+                    mTransport.close();
+                    if (Email.DEBUG) {
+                        Log.d(Logging.LOG_TAG, ioe.toString());
+                    }
+                    throw new MessagingException("Unable to fetch message", ioe);
+                }
+                return;
+            }
             for (int i = 0, count = messages.length; i < count; i++) {
                 Message message = messages[i];
                 if (!(message instanceof Pop3Message)) {
@@ -671,26 +780,7 @@ public class Pop3Store extends Store {
                 }
                 Pop3Message pop3Message = (Pop3Message)message;
                 try {
-                    if (fp.contains(FetchProfile.Item.BODY)) {
-                        fetchBody(pop3Message, -1);
-                    }
-                    else if (fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        /*
-                         * To convert the suggested download size we take the size
-                         * divided by the maximum line size (76).
-                         */
-                        int lines = -1;
-                        if (SystemProperties.getBoolean("persist.env.email.syncsize", true)) {
-                            if (syncSize != Utility.ENTIRE_MAIL) {
-                                // syncSize == Utility.ENTIRE_MAIL couldn't be here
-                                lines = syncSize / 76;
-                            } else {
-                                Log.w(Logging.LOG_TAG, "Pop3 fetch message with fetch field :"
-                                        + "BODY_SANE, but this account need sync entire mail.");
-                            }
-                        } else {
-                            lines = FETCH_BODY_SANE_SUGGESTED_SIZE / 76;
-                        }
+                    if (fetchBody) {
                         fetchBody(pop3Message, lines);
                     }
                     else if (fp.contains(FetchProfile.Item.STRUCTURE)) {
@@ -816,24 +906,109 @@ public class Pop3Store extends Store {
                 }
             }
             if (response != null)  {
-                try {
-                    InputStream in = mTransport.getInputStream();
-                    if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
-                        in = new LoggingInputStream(in);
-                    }
-                    message.parse(new Pop3ResponseInputStream(in));
+                parseBody(message, lines);
+            }
+        }
+
+        /**
+         * Fetches the bodies of the given messages like {@link #fetchBody}, but keeps up to
+         * {@link #MAX_PIPELINED_COMMANDS} RETR or TOP commands ahead of the responses, so that a
+         * batch of messages doesn't take a round trip each.  Only for servers that advertise
+         * PIPELINING, as TOP is only sent to servers that advertise it.
+         */
+        private void fetchBodiesPipelined(Message[] messages, int lines,
+                MessageRetrievalListener listener) throws IOException, MessagingException {
+            open(OpenMode.READ_WRITE);
+            final int count = messages.length;
+            final int[] msgNums = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (!(messages[i] instanceof Pop3Message)) {
+                    throw new MessagingException("Pop3Store.fetch called with non-Pop3 Message");
+                }
+                msgNums[i] = mUidToMsgNumMap.get(messages[i].getUid());
+            }
+            final boolean top = lines != -1 && mCapabilities.top;
+            // Messages that TOP failed for are fetched again, without pipelining
+            final ArrayList<Pop3Message> retries = new ArrayList<Pop3Message>();
+            // As with fetchBody, a failed RETR of a whole message fails the fetch, but only once
+            // the responses to the other commands have been read
+            String failedResponse = null;
+            int sent = 0;
+            for (int received = 0; received < count; received++) {
+                while (sent < count && sent - received < MAX_PIPELINED_COMMANDS) {
+                    mTransport.writeLine(top
+                            ? String.format(Locale.US, "TOP %d %d", msgNums[sent], lines)
+                            : String.format(Locale.US, "RETR %d", msgNums[sent]), null);
+                    sent++;
                 }
-                catch (MessagingException me) {
-                    /*
-                     * If we're only downloading headers it's possible
-                     * we'll get a broken MIME message which we're not
-                     * real worried about. If we've downloaded the body
-                     * and can't parse it we need to let the user know.
-                     */
+                final Pop3Message message = (Pop3Message) messages[received];
+                final String response = mTransport.readLine();
+                if (response.length() > 1 && response.charAt(0) == '-') {
+                    if (top) {
+                        retries.add(message);
+                        continue;
+                    }
                     if (lines == -1) {
+                        if (failedResponse == null) {
+                            failedResponse = response;
+                        }
+                    } else {
+                        Log.w(Logging.LOG_TAG, "Can't read message " + msgNums[received]);
+                    }
+                    // Nothing was read, so the message isn't reported as retrieved
+                    continue;
+                } else {
+                    try {
+                        parseBody(message, lines);
+                    } catch (MessagingException me) {
+                        // The responses to the other commands are still on their way
+                        mTransport.close();
                         throw me;
                     }
                 }
+                if (listener != null) {
+                    listener.messageRetrieved(message);
+                }
+            }
+            if (failedResponse != null) {
+                throw new MessagingException(failedResponse);
+            }
+            for (Pop3Message message : retries) {
+                fetchBody(message, lines);
+                if (listener != null) {
+                    listener.messageRetrieved(message);
+                }
+            }
+        }
+
+        /**
+         * Parses the multi-line response to a RETR or TOP command into the message.  The whole
+         * response is read, even if it can't be parsed, so that the next response can be.
+         */
+        private void parseBody(Pop3Message message, int lines)
+                throws IOException, MessagingException {
+            InputStream in = mTransport.getInputStream();
+            if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
+                in = new LoggingInputStream(in);
+            }
+            final Pop3ResponseInputStream response = new Pop3ResponseInputStream(in);
+            try {
+                message.parse(response);
+            }
+            catch (MessagingException me) {
+                /*
+                 * If we're only downloading headers it's possible
+                 * we'll get a broken MIME message which we're not
+                 * real worried about. If we've downloaded the body
+                 * and can't parse it we need to let the user know.
+                 */
+                if (lines == -1) {
+                    throw me;
+                }
+            } finally {
+                while (response.read() != -1) {
+                    // skip the rest of the response
+                }
             }
         }
 
@@ -865,14 +1040,28 @@ public class Pop3Store extends Store {
                 return;
             }
             try {
+                // The messages may have been created from their UIDs alone, without the folder
+                // having been indexed; messages that are no longer on the server are skipped
+                if (mUidToMsgNumMap.size() == 0) {
+                    indexMsgNums(1, mMessageCount);
+                }
+                if (messages.length > 1 && mCapabilities != null && mCapabilities.pipelining
+                        && isOpen()) {
+                    deletePipelined(messages);
+                    return;
+                }
                 for (Message message : messages) {
                     try {
                         final String uid = message.getUid();
-                        final int msgNum = mUidToMsgNumMap.get(uid);
+                        final Integer msgNum = mUidToMsgNumMap.get(uid);
+                        if (msgNum == null) {
+                            continue;
+                        }
                         executeSimpleCommand(String.format(Locale.US, "DELE %s", msgNum));
                         // Remove from the maps
                         mMsgNumToMsgMap.remove(msgNum);
                         mUidToMsgNumMap.remove(uid);
+                        mIndexDirty = true;
                     } catch (MessagingException e) {
                         // A failed deletion isn't a problem
                     }
@@ -887,6 +1076,45 @@ public class Pop3Store extends Store {
             }
         }
 
+        /**
+         * Deletes the given messages, keeping up to {@link #MAX_PIPELINED_COMMANDS} DELE
+         * commands ahead of the responses.  As with a single DELE, a failed deletion isn't a
+         * problem.
+         */
+        private void deletePipelined(Message[] messages) throws MessagingException {
+            final ArrayList<String> uids = new ArrayList<String>(messages.length);
+            for (Message message : messages) {
+                if (mUidToMsgNumMap.containsKey(message.getUid())) {
+                    uids.add(message.getUid());
+                }
+            }
+            final int count = uids.size();
+            try {
+                int sent = 0;
+                for (int received = 0; received < count; received++) {
+                    while (sent < count && sent - received < MAX_PIPELINED_COMMANDS) {
+                        mTransport.writeLine(String.format(Locale.US, "DELE %d",
+                                mUidToMsgNumMap.get(uids.get(sent))), null);
+                        sent++;
+                    }
+                    final String response = mTransport.readLine();
+                    if (response.length() > 1 && response.charAt(0) == '-') {
+                        continue;
+                    }
+                    // Remove from the maps
+                    final String uid = uids.get(received);
+                    mMsgNumToMsgMap.remove(mUidToMsgNumMap.remove(uid));
+                    mIndexDirty = true;
+                }
+            } catch (IOException ioe) {
+                mTransport.close();
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, ioe.toString());
+                }
+                throw new MessagingException("setFlags()", ioe);
+            }
+        }
+
         @Override
         public void copyMessages(Message[] msgs, Folder folder, MessageUpdateCallbacks callbacks) {
             throw new UnsupportedOperationException("copyMessages is not supported in POP3");
@@ -1031,7 +1259,7 @@ public class Pop3Store extends Store {
         public boolean user;
         /** the optional UIDL command is supported (unused) */
         public boolean uidl;
-        /** the server is capable of accepting multiple commands at a time (unused) */
+        /** the server is capable of accepting multiple commands at a time */
         public boolean pipelining;
 
         @Override
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+
+/**
+ * The unique ids of the messages of a POP3 mailbox, in message number order, as last seen by
+ * {@link Pop3Store}.  It is kept in a private file per account, so that a sync doesn't have to
+ * list the unique ids of every message on the server again.
+ *
+ * POP3 only ever appends messages, and numbers them from 1, with no gaps.  So if the server
+ * still has at least as many messages, and the last known message still has the same number,
+ * every known message does; only the messages after it need to be listed.
+ */
+public class Pop3UidlIndex {
+    private static final String FILE_PREFIX = "pop3-uidl-";
+
+    private static String getFileName(long accountId) {
+        return FILE_PREFIX + accountId;
+    }
+
+    /**
+     * Loads the unique ids saved for the account.
+     *
+     * @return the unique ids of messages 1 to n, or null if none were saved (or they can't be
+     * read)
+     */
+    static String[] load(Context context, long accountId) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    context.openFileInput(getFileName(accountId)), "US-ASCII"));
+            final ArrayList<String> uids = new ArrayList<String>();
+            String uid;
+            while ((uid = reader.readLine()) != null) {
+                uids.add(uid);
+            }
+            return uids.toArray(new String[uids.size()]);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to read POP3 UIDL index: " + e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the unique ids of messages 1 to {@code uids.size()}, replacing those saved before.
+     */
+    static void save(Context context, long accountId, ArrayList<String> uids) {
+        if (uids.isEmpty()) {
+            delete(context, accountId);
+            return;
+        }
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    context.openFileOutput(getFileName(accountId), Context.MODE_PRIVATE),
+                    "US-ASCII"));
+            for (String uid : uids) {
+                writer.write(uid);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to save POP3 UIDL index: " + e);
+            delete(context, accountId);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the unique ids saved for the account, e.g. when the account is deleted.
+     */
+    public static void delete(Context context, long accountId) {
+        context.deleteFile(getFileName(accountId));
+    }
+}
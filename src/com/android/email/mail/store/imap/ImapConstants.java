@@ -22,6 +22,7 @@ public final class ImapConstants {
     private ImapConstants() {}
 
     public static final String FETCH_FIELD_BODY_PEEK_BARE = "BODY.PEEK";
+    public static final String FETCH_FIELD_BINARY_PEEK_BARE = "BINARY.PEEK";
     public static final String FETCH_FIELD_BODY_PEEK = FETCH_FIELD_BODY_PEEK_BARE + "[]";
     public static final String FETCH_FIELD_BODY_PEEK_SANE
             = String.format("BODY.PEEK[]<0.%d>", Store.FETCH_BODY_SANE_SUGGESTED_SIZE);
@@ -29,20 +30,34 @@ public final class ImapConstants {
             "BODY.PEEK[HEADER.FIELDS (date subject from content-type to cc message-id)]";
 
     public static final String ALERT = "ALERT";
+    public static final String ALL = "ALL";
     public static final String APPEND = "APPEND";
     public static final String BAD = "BAD";
     public static final String BADCHARSET = "BADCHARSET";
+    public static final String BINARY = "BINARY";
+    public static final String BINARY_SIZE = "BINARY.SIZE";
     public static final String BODY = "BODY";
     public static final String BODY_BRACKET_HEADER = "BODY[HEADER";
     public static final String BODYSTRUCTURE = "BODYSTRUCTURE";
     public static final String BYE = "BYE";
     public static final String CAPABILITY = "CAPABILITY";
     public static final String CHECK = "CHECK";
+    public static final String CHANGEDSINCE = "CHANGEDSINCE";
     public static final String CLOSE = "CLOSE";
+    public static final String COMPRESS = "COMPRESS";
+    public static final String COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
+    public static final String CONDSTORE = "CONDSTORE";
     public static final String COPY = "COPY";
     public static final String COPYUID = "COPYUID";
+    public static final String COUNT = "COUNT";
     public static final String CREATE = "CREATE";
+    public static final String DEFLATE = "DEFLATE";
     public static final String DELETE = "DELETE";
+    public static final String DONE = "DONE";
+    public static final String EARLIER = "EARLIER";
+    public static final String ENABLE = "ENABLE";
+    public static final String ENABLED = "ENABLED";
+    public static final String ESEARCH = "ESEARCH";
     public static final String EXAMINE = "EXAMINE";
     public static final String EXISTS = "EXISTS";
     public static final String EXPUNGE = "EXPUNGE";
@@ -54,23 +69,33 @@ public final class ImapConstants {
     public static final String FLAG_SEEN = "\\SEEN";
     public static final String FLAGS = "FLAGS";
     public static final String FLAGS_SILENT = "FLAGS.SILENT";
+    public static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
     public static final String ID = "ID";
+    public static final String IDLE = "IDLE";
     public static final String INBOX = "INBOX";
     public static final String INTERNALDATE = "INTERNALDATE";
     public static final String LIST = "LIST";
+    public static final String LIST_STATUS = "LIST-STATUS";
     public static final String LOGIN = "LOGIN";
     public static final String LOGOUT = "LOGOUT";
     public static final String LSUB = "LSUB";
+    public static final String MESSAGES = "MESSAGES";
+    public static final String MODSEQ = "MODSEQ";
+    public static final String MOVE = "MOVE";
     public static final String NAMESPACE = "NAMESPACE";
     public static final String NO = "NO";
+    public static final String NOMODSEQ = "NOMODSEQ";
     public static final String NOOP = "NOOP";
     public static final String OK = "OK";
     public static final String PARSE = "PARSE";
+    public static final String PARTIAL = "PARTIAL";
     public static final String PERMANENTFLAGS = "PERMANENTFLAGS";
     public static final String PREAUTH = "PREAUTH";
+    public static final String QRESYNC = "QRESYNC";
     public static final String READ_ONLY = "READ-ONLY";
     public static final String READ_WRITE = "READ-WRITE";
     public static final String RENAME = "RENAME";
+    public static final String RETURN = "RETURN";
     public static final String RFC822_SIZE = "RFC822.SIZE";
     public static final String SEARCH = "SEARCH";
     public static final String SELECT = "SELECT";
@@ -82,7 +107,9 @@ public final class ImapConstants {
     public static final String TRYCREATE = "TRYCREATE";
     public static final String UID = "UID";
     public static final String UID_COPY = "UID COPY";
+    public static final String UID_EXPUNGE = "UID EXPUNGE";
     public static final String UID_FETCH = "UID FETCH";
+    public static final String UID_MOVE = "UID MOVE";
     public static final String UID_SEARCH = "UID SEARCH";
     public static final String UID_STORE = "UID STORE";
     public static final String UIDNEXT = "UIDNEXT";
@@ -90,6 +117,7 @@ public final class ImapConstants {
     public static final String UIDVALIDITY = "UIDVALIDITY";
     public static final String UNSEEN = "UNSEEN";
     public static final String UNSUBSCRIBE = "UNSUBSCRIBE";
+    public static final String VANISHED = "VANISHED";
     public static final String APPENDUID = "APPENDUID";
     public static final String NIL = "NIL";
 }
@@ -29,10 +29,18 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * IMAP response parser.
+ *
+ * <p>In the low-allocation mode, bytes are read from the stream in bulk into a byte array,
+ * atoms and quoted strings are scanned in place, and atoms that occur in almost every response
+ * (such as FETCH, UID, FLAGS or \Seen) are matched against a table of shared, immutable
+ * {@link ImapString}s instead of creating a new String and ImapString for each of them.  The
+ * parsed responses are the same in both modes.
  */
 public class ImapResponseParser {
     private static final boolean DEBUG_LOG_RAW_STREAM = false; // DO NOT RELEASE AS 'TRUE'
@@ -42,9 +50,117 @@ public class ImapResponseParser {
      */
     private static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
-    /** Input stream */
+    /** Initial size of {@link #mBuffer}; it grows if a single atom doesn't fit. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Atoms are strings of 8-bit chars; see {@link #parseBareString}. */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Atoms shared by all responses in the low-allocation mode.  Matching is case sensitive, so
+     * that the parsed responses are exactly the same as in the default mode; both our constants
+     * and the spelling most servers use are listed.
+     */
+    private static final String[] SHARED_ATOMS = {
+        ImapConstants.OK, ImapConstants.NO, ImapConstants.BAD, ImapConstants.FETCH,
+        ImapConstants.UID, ImapConstants.FLAGS, ImapConstants.EXISTS, ImapConstants.EXPUNGE,
+        "RECENT", ImapConstants.INTERNALDATE, ImapConstants.RFC822_SIZE,
+        ImapConstants.BODYSTRUCTURE, ImapConstants.MODSEQ, ImapConstants.SEARCH,
+        ImapConstants.LIST, ImapConstants.STATUS, ImapConstants.CAPABILITY,
+        ImapConstants.VANISHED, ImapConstants.EARLIER, ImapConstants.UIDVALIDITY,
+        ImapConstants.UIDNEXT, ImapConstants.HIGHESTMODSEQ, ImapConstants.PERMANENTFLAGS,
+        ImapConstants.READ_ONLY, ImapConstants.READ_WRITE, ImapConstants.UNSEEN,
+        ImapConstants.FLAG_ANSWERED, ImapConstants.FLAG_DELETED, ImapConstants.FLAG_FLAGGED,
+        ImapConstants.FLAG_SEEN, "\\Answered", "\\Deleted", "\\Flagged", "\\Seen",
+        "\\Draft", "\\Recent", "\\*",
+    };
+
+    /** {@link #SHARED_ATOMS} as ImapStrings and as bytes, indexed by length */
+    private static final ImapSimpleString[][] sSharedAtoms;
+    private static final byte[][][] sSharedAtomBytes;
+
+    static {
+        int maxLength = 0;
+        for (String atom : SHARED_ATOMS) {
+            maxLength = Math.max(maxLength, atom.length());
+        }
+        sSharedAtoms = new ImapSimpleString[maxLength + 1][0];
+        sSharedAtomBytes = new byte[maxLength + 1][0][];
+        for (String atom : SHARED_ATOMS) {
+            final int length = atom.length();
+            final int count = sSharedAtoms[length].length;
+            sSharedAtoms[length] = Arrays.copyOf(sSharedAtoms[length], count + 1);
+            sSharedAtoms[length][count] = new ImapSimpleString(atom, true);
+            sSharedAtomBytes[length] = Arrays.copyOf(sSharedAtomBytes[length], count + 1);
+            sSharedAtomBytes[length][count] = atom.getBytes(ISO_8859_1);
+        }
+    }
+
+    /**
+     * Consumes the content of literals while they're being read from the stream, instead of
+     * them being stored in {@link ImapString}s.
+     */
+    public interface LiteralHandler {
+        /**
+         * Called when a literal is found.  If the handler consumes the literal, the literal is
+         * replaced by an empty string in the response.
+         *
+         * @param key the string element just before the literal in the same list, e.g.
+         * "BODY[2]", or null if there is none.
+         * @param in the content of the literal.  Whatever the handler doesn't read is skipped.
+         * @param size the size of the literal.
+         * @return false, without reading from {@code in}, if the literal should be stored as
+         * usual.
+         */
+        public boolean handleLiteral(String key, InputStream in, int size) throws IOException;
+    }
+
+    /** Input stream; only used in the default mode */
     private final PeekableInputStream mIn;
 
+    /** Raw input stream, which is read in bulk into {@link #mBuffer} in the low-allocation mode */
+    private final InputStream mRawIn;
+
+    /** Bytes read ahead from {@link #mRawIn}; null in the default mode. */
+    private byte[] mBuffer;
+    /** Position of the next byte to parse in {@link #mBuffer} */
+    private int mBufferPos;
+    /** End of the valid bytes in {@link #mBuffer} */
+    private int mBufferLimit;
+    /** Position of the first byte in {@link #mBuffer} not yet given to the discourse logger */
+    private int mLogPos;
+
+    /** See {@link #setLiteralHandler} */
+    private LiteralHandler mLiteralHandler;
+
+    /** The string element before the element being parsed, for {@link #mLiteralHandler}. */
+    private String mLiteralKey;
+
+    /**
+     * Reads literals in the low-allocation mode; serves what's in {@link #mBuffer} first, then
+     * reads directly from {@link #mRawIn}.
+     */
+    private final InputStream mLiteralSource = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (mBufferPos < mBufferLimit) {
+                return mBuffer[mBufferPos++] & 0xff;
+            }
+            return mRawIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (mBufferPos < mBufferLimit) {
+                final int count = Math.min(length, mBufferLimit - mBufferPos);
+                System.arraycopy(mBuffer, mBufferPos, b, offset, count);
+                mBufferPos += count;
+                return count;
+            }
+            return mRawIn.read(b, offset, length);
+        }
+    };
+
     /**
      * To log network activities when the parser crashes.
      *
@@ -89,10 +205,34 @@ public class ImapResponseParser {
      */
     /* package for test */ ImapResponseParser(InputStream in, DiscourseLogger discourseLogger,
             int literalKeepInMemoryThreshold) {
+        this(in, discourseLogger, literalKeepInMemoryThreshold, false);
+    }
+
+    /**
+     * Constructor to choose the parser mode.
+     *
+     * @param lowAllocation whether to use the low-allocation mode.  In this mode the parser
+     * reads ahead whatever bytes the stream has available, so nothing else may read from the
+     * stream while the parser is in use.
+     */
+    public ImapResponseParser(InputStream in, DiscourseLogger discourseLogger,
+            boolean lowAllocation) {
+        this(in, discourseLogger, LITERAL_KEEP_IN_MEMORY_THRESHOLD, lowAllocation);
+    }
+
+    /* package for test */ ImapResponseParser(InputStream in, DiscourseLogger discourseLogger,
+            int literalKeepInMemoryThreshold, boolean lowAllocation) {
         if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        if (lowAllocation) {
+            mIn = null;
+            mRawIn = in;
+            mBuffer = new byte[BUFFER_SIZE];
+        } else {
+            mIn = new PeekableInputStream(in);
+            mRawIn = null;
+        }
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
@@ -112,6 +252,12 @@ public class ImapResponseParser {
      * we shouldn't see EOF during parsing.
      */
     private int peek() throws IOException {
+        if (mBuffer != null) {
+            if (mBufferPos == mBufferLimit && !fillBuffer(mBufferPos)) {
+                throw newEOSException();
+            }
+            return mBuffer[mBufferPos] & 0xff;
+        }
         final int next = mIn.peek();
         if (next == -1) {
             throw newEOSException();
@@ -126,6 +272,12 @@ public class ImapResponseParser {
      * we shouldn't see EOF during parsing.
      */
     private int readByte() throws IOException {
+        if (mBuffer != null) {
+            // Logged in bulk by flushDiscourseLog()
+            final int next = peek();
+            mBufferPos++;
+            return next;
+        }
         int next = mIn.read();
         if (next == -1) {
             throw newEOSException();
@@ -134,6 +286,65 @@ public class ImapResponseParser {
         return next;
     }
 
+    /**
+     * Sets the {@link LiteralHandler} that's given literals before they're stored, or null.
+     */
+    public void setLiteralHandler(LiteralHandler handler) {
+        mLiteralHandler = handler;
+    }
+
+    /**
+     * Reads more bytes into {@link #mBuffer}.  Bytes before {@code keepFrom} are discarded, and
+     * the rest are moved to the start of the buffer, so positions into the buffer must be
+     * adjusted by {@code keepFrom}.  Only blocks if no bytes are available at all.
+     *
+     * @return false if the end of the stream has been reached.
+     */
+    private boolean fillBuffer(int keepFrom) throws IOException {
+        flushDiscourseLog();
+        final int keep = mBufferLimit - keepFrom;
+        if (keepFrom > 0) {
+            System.arraycopy(mBuffer, keepFrom, mBuffer, 0, keep);
+        } else if (keep == mBuffer.length) {
+            // A single token fills the whole buffer
+            mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+        }
+        mBufferPos -= keepFrom;
+        mBufferLimit = keep;
+        mLogPos = mBufferPos;
+
+        // Don't ask for more than what's available, so that we never block waiting for bytes
+        // the server hasn't sent because it's waiting for our next command.
+        int available = mRawIn.available();
+        if (available <= 0) {
+            final int next = mRawIn.read();
+            if (next == -1) {
+                return false;
+            }
+            mBuffer[mBufferLimit++] = (byte) next;
+            available = mRawIn.available();
+        }
+        if (available > 0) {
+            final int read = mRawIn.read(mBuffer, mBufferLimit,
+                    Math.min(available, mBuffer.length - mBufferLimit));
+            if (read > 0) {
+                mBufferLimit += read;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the bytes parsed since the last call to {@link #mDiscourseLogger}, in the
+     * low-allocation mode.
+     */
+    private void flushDiscourseLog() {
+        if (mBuffer != null && mLogPos < mBufferPos) {
+            mDiscourseLogger.addReceivedBytes(mBuffer, mLogPos, mBufferPos - mLogPos);
+            mLogPos = mBufferPos;
+        }
+    }
+
     /**
      * Destroy all the {@link ImapResponse}s stored in the internal storage and clear it.
      *
@@ -146,6 +357,17 @@ public class ImapResponseParser {
         mResponsesToDestroy.clear();
     }
 
+    /**
+     * Destroy a single {@link ImapResponse} stored in the internal storage right away, leaving
+     * the others alone.  Used when reading the responses of pipelined commands, where the tagged
+     * responses of the earlier commands must outlive the untagged responses of the later ones.
+     */
+    public void destroyResponse(ImapResponse response) {
+        if (mResponsesToDestroy.remove(response)) {
+            response.destroy();
+        }
+    }
+
     /**
      * Reads the next response available on the stream and returns an
      * {@link ImapResponse} object that represents it.
@@ -173,6 +395,8 @@ public class ImapResponseParser {
             // Network error, or received an unexpected char.
             onParseError(e);
             throw e;
+        } finally {
+            flushDiscourseLog();
         }
 
         // Handle this outside of try-catch.  We don't have to dump protocol log when getting BYE.
@@ -201,6 +425,7 @@ public class ImapResponseParser {
             }
         } catch (IOException ignore) {
         }
+        flushDiscourseLog();
         Log.w(Logging.LOG_TAG, "Exception detected: " + e.getMessage());
         mDiscourseLogger.logLastDiscourse();
     }
@@ -223,6 +448,22 @@ public class ImapResponseParser {
      */
     /* package for test */ String readUntil(char end) throws IOException {
         mBufferReadUntil.setLength(0);
+        if (mBuffer != null) {
+            for (;;) {
+                for (int i = mBufferPos; i < mBufferLimit; i++) {
+                    if ((mBuffer[i] & 0xff) == end) {
+                        appendBytes(mBufferReadUntil, mBufferPos, i);
+                        mBufferPos = i + 1;
+                        return mBufferReadUntil.toString();
+                    }
+                }
+                appendBytes(mBufferReadUntil, mBufferPos, mBufferLimit);
+                mBufferPos = mBufferLimit;
+                if (!fillBuffer(mBufferPos)) {
+                    throw newEOSException();
+                }
+            }
+        }
         for (;;) {
             final int ch = readByte();
             if (ch != end) {
@@ -336,9 +577,17 @@ public class ImapResponseParser {
                 return parseList('[', ']');
             case '"':
                 readByte(); // Skip "
+                if (mBuffer != null) {
+                    final int end = scanToken(true);
+                    final ImapString quoted = newString(mBufferPos, end - mBufferPos);
+                    mBufferPos = end + 1; // Skip "
+                    return quoted;
+                }
                 return new ImapSimpleString(readUntil('"'));
             case '{':
                 return parseLiteral();
+            case '~':
+                return parseLiteral8OrAtom();
             case '\r':  // CR
                 readByte(); // Consume \r
                 expect('\n'); // Should be followed by LF.
@@ -361,6 +610,21 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
+        if (mBuffer != null) {
+            final int end = scanToken(false);
+            final int start = mBufferPos;
+            final int length = end - start;
+            if (length == 0) {
+                throw new MessagingException("Expected string, none found.");
+            }
+            mBufferPos = end;
+            // NIL will be always converted into the empty string.
+            if (length == 3 && (mBuffer[start] | 0x20) == 'n' && (mBuffer[start + 1] | 0x20) == 'i'
+                    && (mBuffer[start + 2] | 0x20) == 'l') {
+                return ImapString.EMPTY;
+            }
+            return newString(start, length);
+        }
         mParseBareString.setLength(0);
         for (;;) {
             final int ch = peek();
@@ -399,6 +663,84 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * Whether {@code ch} ends an atom; see {@link #parseBareString}.
+     */
+    private static boolean isAtomEnd(int ch) {
+        return ch == '(' || ch == ')' || ch == '{' || ch == ' ' || ch == ']' || ch == '%'
+                || ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f;
+    }
+
+    /**
+     * Finds the end of the atom or quoted string starting at {@link #mBufferPos}, reading more
+     * bytes as needed so that the whole token is in {@link #mBuffer}.  Nothing is consumed.
+     * Used in the low-allocation mode.
+     *
+     * @param quoted if true, the token ends at the next '"'.  Otherwise it's an atom, with the
+     * same special case for '[' as {@link #parseBareString}.
+     * @return the position of the first byte after the token.  Note the token starts at
+     * {@link #mBufferPos}, which may have changed.
+     */
+    private int scanToken(boolean quoted) throws IOException {
+        boolean inBracket = false;
+        int i = mBufferPos;
+        for (;;) {
+            if (i == mBufferLimit) {
+                final int start = mBufferPos;
+                if (!fillBuffer(start)) {
+                    throw newEOSException();
+                }
+                i -= start;
+                continue;
+            }
+            final int ch = mBuffer[i] & 0xff;
+            if (quoted) {
+                if (ch == '"') {
+                    return i;
+                }
+            } else if (inBracket) {
+                if (ch == ']') {
+                    inBracket = false;
+                }
+            } else if (ch == '[') {
+                // Eat all until next ']'
+                inBracket = true;
+            } else if (isAtomEnd(ch)) {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Returns an ImapString for bytes in {@link #mBuffer}; a shared one if there is one.
+     */
+    private ImapString newString(int start, int length) {
+        if (length < sSharedAtoms.length) {
+            final byte[][] candidates = sSharedAtomBytes[length];
+            candidates:
+            for (int c = 0; c < candidates.length; c++) {
+                final byte[] candidate = candidates[c];
+                for (int i = 0; i < length; i++) {
+                    if (mBuffer[start + i] != candidate[i]) {
+                        continue candidates;
+                    }
+                }
+                return sSharedAtoms[length][c];
+            }
+        }
+        return new ImapSimpleString(new String(mBuffer, start, length, ISO_8859_1));
+    }
+
+    /**
+     * Appends bytes in {@link #mBuffer} to {@code sb}, as 8-bit chars.
+     */
+    private void appendBytes(StringBuilder sb, int start, int end) {
+        for (int i = start; i < end; i++) {
+            sb.append((char) (mBuffer[i] & 0xff));
+        }
+    }
+
     private void parseElements(ImapList list, char end)
             throws IOException, MessagingException {
         for (;;) {
@@ -413,6 +755,11 @@ public class ImapResponseParser {
                 // Skip space
                 readByte();
             }
+            if (mLiteralHandler != null) {
+                final int size = list.size();
+                mLiteralKey = (size > 0 && list.getElementOrNone(size - 1).isString())
+                        ? list.getStringOrEmpty(size - 1).getString() : null;
+            }
             final ImapElement el = parseElement();
             if (el == null) { // EOL
                 return;
@@ -430,6 +777,24 @@ public class ImapResponseParser {
         return list;
     }
 
+    /**
+     * Parses a literal8 per RFC 3516, e.g. the content of a BINARY[] item, which is a literal
+     * prefixed with "~" that may contain NULs; or else an atom that starts with "~".
+     */
+    private ImapString parseLiteral8OrAtom() throws IOException, MessagingException {
+        readByte(); // Skip ~
+        final int next = peek();
+        if (next == '{') {
+            return parseLiteral();
+        }
+        if (isAtomEnd(next)) {
+            return new ImapSimpleString("~");
+        }
+        final ImapString rest = parseBareString();
+        // parseBareString() turns NIL into the empty string, but "~NIL" is just an atom
+        return new ImapSimpleString("~" + (rest.isEmpty() ? ImapConstants.NIL : rest.getString()));
+    }
+
     private ImapString parseLiteral() throws IOException, MessagingException {
         expect('{');
         final int size;
@@ -440,11 +805,45 @@ public class ImapResponseParser {
         }
         expect('\r');
         expect('\n');
+        if (mBuffer != null) {
+            // Literals aren't logged
+            flushDiscourseLog();
+            FixedLengthInputStream in = new FixedLengthInputStream(mLiteralSource, size);
+            ImapString literal = handleLiteral(in);
+            if (literal == null) {
+                literal = (size > mLiteralKeepInMemoryThreshold)
+                        ? new ImapTempFileLiteral(in) : new ImapMemoryLiteral(in);
+            }
+            // Skip the bytes of the literal that were read from mBuffer
+            mLogPos = mBufferPos;
+            return literal;
+        }
         FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
+        final ImapString literal = handleLiteral(in);
+        if (literal != null) {
+            return literal;
+        } else if (size > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
             return new ImapMemoryLiteral(in);
         }
     }
+
+    /**
+     * Gives a literal to {@link #mLiteralHandler}.
+     *
+     * @return the element to put in the response instead of the literal, or null if the literal
+     * wasn't handled.
+     */
+    private ImapString handleLiteral(FixedLengthInputStream in) throws IOException {
+        if (mLiteralHandler == null
+                || !mLiteralHandler.handleLiteral(mLiteralKey, in, in.getLength())) {
+            return null;
+        }
+        // Skip what the handler didn't read
+        final byte[] skip = new byte[1024];
+        while (in.read(skip) != -1) {
+        }
+        return ImapString.EMPTY;
+    }
 }
@@ -26,13 +26,23 @@ import java.io.InputStream;
  */
 public class ImapSimpleString extends ImapString {
     private String mString;
+    /** Whether the instance is shared by many responses; if so it's never destroyed */
+    private final boolean mShared;
 
     /* package */  ImapSimpleString(String string) {
+        this(string, false);
+    }
+
+    /* package */  ImapSimpleString(String string, boolean shared) {
         mString = (string != null) ? string : "";
+        mShared = shared;
     }
 
     @Override
     public void destroy() {
+        if (mShared) {
+            return;
+        }
         mString = null;
         super.destroy();
     }
@@ -118,6 +118,18 @@ public abstract class ImapString extends ImapElement {
         return mParsedInteger;
     }
 
+    /**
+     * @return value parsed as a long, or 0 if it can't be parsed.  Used for values that may not
+     * fit in an int, such as mod-sequences (RFC 7162).
+     */
+    public final long getLongOrZero() {
+        try {
+            return Long.parseLong(getString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
      */
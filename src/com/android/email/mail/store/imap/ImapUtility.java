@@ -21,6 +21,7 @@ import com.android.emailcommon.Logging;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Utility methods for use with IMAP.
@@ -90,6 +91,55 @@ public class ImapUtility {
         return list.toArray(stringList);
     }
 
+    /**
+     * Gets all of the values in a sequence set per RFC 3501 as numbers, in the order they appear
+     * in the set.  Unlike {@link #getImapSequenceValues}, this doesn't create a string per value,
+     * so it suits the large sets returned by ESEARCH.  Invalid items, including "*", are skipped.
+     */
+    public static long[] getImapSequenceNumbers(String set) {
+        if (set == null) {
+            return new long[0];
+        }
+        final String[] items = set.split(",");
+        // Parse the ranges first, to size the result
+        final long[] ranges = new long[items.length * 2];
+        int rangeCount = 0;
+        long count = 0;
+        for (String item : items) {
+            try {
+                final int colonPos = item.indexOf(':');
+                final long first;
+                final long last;
+                if (colonPos == -1) {
+                    first = last = Long.parseLong(item);
+                } else {
+                    first = Long.parseLong(item.substring(0, colonPos));
+                    last = Long.parseLong(item.substring(colonPos + 1));
+                }
+                ranges[rangeCount++] = first;
+                ranges[rangeCount++] = last;
+                count += Math.abs(last - first) + 1;
+            } catch (NumberFormatException e) {
+                Log.d(Logging.LOG_TAG, "Invalid sequence set item " + item);
+            }
+        }
+        if (count > Integer.MAX_VALUE) {
+            Log.d(Logging.LOG_TAG, "Sequence set too large " + set);
+            return new long[0];
+        }
+        final long[] values = new long[(int) count];
+        int i = 0;
+        for (int r = 0; r < rangeCount; r += 2) {
+            final long first = ranges[r];
+            final long last = ranges[r + 1];
+            final long step = (first <= last) ? 1 : -1;
+            for (long value = first; value != last + step; value += step) {
+                values[i++] = value;
+            }
+        }
+        return values;
+    }
+
     /**
      * Expand the given number range into a list of individual numbers. If the range is not valid,
      * an empty array is returned.
@@ -124,4 +174,115 @@ public class ImapUtility {
         String[] stringList = new String[list.size()];
         return list.toArray(stringList);
     }
+
+    /**
+     * Builds sequence sets per RFC 3501 containing the given UIDs, collapsing runs of
+     * consecutive UIDs into ranges; e.g. {"3", "1", "2", "7"} becomes "1:3,7".  The order of
+     * the UIDs is not preserved, and duplicates are dropped.  UIDs that aren't numbers are
+     * appended as-is.
+     *
+     * The UIDs are split into several sets if needed, so that each contains at most
+     * {@code maxCount} UIDs and is at most {@code maxLength} characters long (unless a single
+     * UID is longer than that), which keeps the commands built from them within server limits.
+     *
+     * @return the sequence sets, which is empty if {@code uids} is.
+     */
+    public static String[] getImapSequenceSets(String[] uids, int maxCount, int maxLength) {
+        final long[] numbers = new long[uids.length];
+        int numberCount = 0;
+        ArrayList<String> others = null;
+        for (String uid : uids) {
+            try {
+                numbers[numberCount] = Long.parseLong(uid);
+                numberCount++;
+            } catch (NumberFormatException e) {
+                if (others == null) {
+                    others = new ArrayList<String>();
+                }
+                others.add(uid);
+            }
+        }
+        Arrays.sort(numbers, 0, numberCount);
+
+        final ArrayList<String> sets = new ArrayList<String>();
+        final StringBuilder sb = new StringBuilder(Math.min(maxLength, 16 * uids.length));
+        int count = 0;
+        int i = 0;
+        while (i < numberCount) {
+            if (count == maxCount) {
+                sets.add(sb.toString());
+                sb.setLength(0);
+                count = 0;
+            }
+            // Find the longest run starting at i that fits in the current set
+            final long first = numbers[i];
+            long last = first;
+            int runCount = 1;
+            i++;
+            while (i < numberCount && count + runCount < maxCount
+                    && (numbers[i] == last || numbers[i] == last + 1)) {
+                if (numbers[i] != last) {
+                    last = numbers[i];
+                    runCount++;
+                }
+                i++;
+            }
+            final int length = (sb.length() > 0 ? 1 : 0) + numberLength(first)
+                    + (last != first ? 1 + numberLength(last) : 0);
+            if (sb.length() > 0 && sb.length() + length > maxLength) {
+                sets.add(sb.toString());
+                sb.setLength(0);
+                count = 0;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(first);
+            if (last != first) {
+                sb.append(':').append(last);
+            }
+            count += runCount;
+        }
+        if (others != null) {
+            for (String uid : others) {
+                if (sb.length() > 0 && (count + 1 > maxCount
+                        || sb.length() + 1 + uid.length() > maxLength)) {
+                    sets.add(sb.toString());
+                    sb.setLength(0);
+                    count = 0;
+                }
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(uid);
+                count++;
+            }
+        }
+        if (sb.length() > 0) {
+            sets.add(sb.toString());
+        }
+        return sets.toArray(new String[sets.size()]);
+    }
+
+    /**
+     * Builds a single sequence set containing the given UIDs.
+     *
+     * @see #getImapSequenceSets
+     */
+    public static String getImapSequenceSet(String[] uids) {
+        final String[] sets = getImapSequenceSets(uids, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        return sets.length == 0 ? "" : sets[0];
+    }
+
+    /**
+     * @return the number of characters in the decimal representation of a non-negative number.
+     */
+    private static int numberLength(long n) {
+        int length = 1;
+        while (n >= 10) {
+            n /= 10;
+            length++;
+        }
+        return length;
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counters of a compressed connection (e.g. IMAP COMPRESS=DEFLATE, RFC 4978), on the wire
+ * and before compression / after decompression, so that the savings can be measured.
+ */
+public class CompressionStats {
+    private final AtomicLong mWireBytesReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mWireBytesSent = new AtomicLong();
+
+    /* package */ void addReceived(long wireBytes, long bytes) {
+        mWireBytesReceived.addAndGet(wireBytes);
+        mBytesReceived.addAndGet(bytes);
+    }
+
+    /* package */ void addSent(long bytes, long wireBytes) {
+        mBytesSent.addAndGet(bytes);
+        mWireBytesSent.addAndGet(wireBytes);
+    }
+
+    /** @return the number of compressed bytes received from the server. */
+    public long getWireBytesReceived() {
+        return mWireBytesReceived.get();
+    }
+
+    /** @return the number of bytes received from the server, after decompression. */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /** @return the number of bytes sent to the server, before compression. */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /** @return the number of compressed bytes sent to the server. */
+    public long getWireBytesSent() {
+        return mWireBytesSent.get();
+    }
+
+    /**
+     * @return the compression ratio of the received data, i.e. decompressed size / wire size,
+     * or 1 if nothing has been received.
+     */
+    public float getReceiveRatio() {
+        return ratio(getBytesReceived(), getWireBytesReceived());
+    }
+
+    /**
+     * @return the compression ratio of the sent data, i.e. uncompressed size / wire size,
+     * or 1 if nothing has been sent.
+     */
+    public float getSendRatio() {
+        return ratio(getBytesSent(), getWireBytesSent());
+    }
+
+    private static float ratio(long bytes, long wireBytes) {
+        return (wireBytes == 0) ? 1.0f : (float) bytes / wireBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("received %d/%d bytes (%.2fx), sent %d/%d bytes (%.2fx)",
+                getBytesReceived(), getWireBytesReceived(), getReceiveRatio(),
+                getBytesSent(), getWireBytesSent(), getSendRatio());
+    }
+}
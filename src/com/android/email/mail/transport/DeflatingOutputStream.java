@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a raw DEFLATE stream (RFC 1951), such as the client side of an IMAP connection after
+ * COMPRESS DEFLATE (RFC 4978).
+ *
+ * The data is sent in stored (i.e. uncompressed) blocks, one per {@link #flush()}.  Every
+ * command must reach the server as soon as it's flushed, and {@link java.util.zip.Deflater}
+ * only supports sync flushes from API 19; but what we send is a few short commands, while the
+ * savings are in what the server sends us.
+ */
+public class DeflatingOutputStream extends FilterOutputStream {
+    /** The maximum length of a stored block */
+    private static final int MAX_BLOCK_SIZE = 0xffff;
+    /** Size of the header of a stored block: BFINAL/BTYPE byte, LEN and NLEN */
+    private static final int BLOCK_HEADER_SIZE = 5;
+
+    private final CompressionStats mStats;
+    private final byte[] mBuffer = new byte[BLOCK_HEADER_SIZE + MAX_BLOCK_SIZE];
+    private int mCount;
+
+    public DeflatingOutputStream(OutputStream out, CompressionStats stats) {
+        super(out);
+        mStats = stats;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (mCount == MAX_BLOCK_SIZE) {
+            writeBlock();
+        }
+        mBuffer[BLOCK_HEADER_SIZE + mCount++] = (byte) oneByte;
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mCount == MAX_BLOCK_SIZE) {
+                writeBlock();
+            }
+            final int count = Math.min(length, MAX_BLOCK_SIZE - mCount);
+            System.arraycopy(b, offset, mBuffer, BLOCK_HEADER_SIZE + mCount, count);
+            mCount += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the buffered bytes as a non-final stored block.
+     */
+    private void writeBlock() throws IOException {
+        mBuffer[0] = 0; // BFINAL = 0, BTYPE = 00 (no compression)
+        mBuffer[1] = (byte) mCount;
+        mBuffer[2] = (byte) (mCount >> 8);
+        mBuffer[3] = (byte) ~mCount;
+        mBuffer[4] = (byte) (~mCount >> 8);
+        out.write(mBuffer, 0, BLOCK_HEADER_SIZE + mCount);
+        mStats.addSent(mCount, BLOCK_HEADER_SIZE + mCount);
+        mCount = 0;
+    }
+}
@@ -75,6 +75,15 @@ public class DiscourseLogger {
         }
     }
 
+    /**
+     * Store bytes received from the server, as {@link #addReceivedByte} does for each of them.
+     */
+    public void addReceivedBytes(byte[] bytes, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            addReceivedByte(bytes[i] & 0xff);
+        }
+    }
+
     /** Add a line sent to the server to {@link #mBuffer}. */
     public void addSentCommand(String command) {
         addLine(command);
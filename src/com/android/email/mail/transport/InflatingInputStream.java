@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a raw DEFLATE stream (RFC 1951), such as the server side of an IMAP connection
+ * after COMPRESS DEFLATE (RFC 4978).
+ *
+ * Unlike {@link java.util.zip.InflaterInputStream}, {@link #available()} returns the number of
+ * decompressed bytes that can really be read without blocking, which is what
+ * {@link com.android.email.mail.store.imap.ImapResponseParser} relies on to read ahead without
+ * waiting for data the server will never send.
+ */
+public class InflatingInputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Inflater mInflater = new Inflater(true);
+    private final CompressionStats mStats;
+    private final byte[] mInput = new byte[BUFFER_SIZE];
+    private final byte[] mOutput = new byte[BUFFER_SIZE];
+    private int mOutputPos;
+    private int mOutputLimit;
+
+    public InflatingInputStream(InputStream in, CompressionStats stats) {
+        super(in);
+        mStats = stats;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (mOutputPos == mOutputLimit) {
+            fill(false);
+        }
+        return mOutputLimit - mOutputPos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mOutputPos == mOutputLimit && !fill(true)) {
+            return -1;
+        }
+        return mOutput[mOutputPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (mOutputPos == mOutputLimit && !fill(true)) {
+            return -1;
+        }
+        final int count = Math.min(length, mOutputLimit - mOutputPos);
+        System.arraycopy(mOutput, mOutputPos, b, offset, count);
+        mOutputPos += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInflater.end();
+        super.close();
+    }
+
+    /**
+     * Decompresses more bytes into {@link #mOutput}, which must be empty.
+     *
+     * @param block whether to wait for more compressed bytes if needed.  If false, only the bytes
+     * the underlying stream has available are used.
+     * @return false if no bytes could be decompressed; i.e. the end of the stream has been
+     * reached, or nothing is available without blocking.
+     */
+    private boolean fill(boolean block) throws IOException {
+        for (;;) {
+            final int count;
+            try {
+                count = mInflater.inflate(mOutput);
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed data: " + e.getMessage());
+            }
+            if (count > 0) {
+                mOutputPos = 0;
+                mOutputLimit = count;
+                mStats.addReceived(0, count);
+                return true;
+            }
+            if (mInflater.finished() || mInflater.needsDictionary()) {
+                return false;
+            }
+            if (!mInflater.needsInput()) {
+                throw new IOException("Inflater made no progress");
+            }
+            int toRead = mInput.length;
+            if (!block) {
+                toRead = Math.min(toRead, in.available());
+                if (toRead <= 0) {
+                    return false;
+                }
+            }
+            final int read = in.read(mInput, 0, toRead);
+            if (read == -1) {
+                return false;
+            }
+            mStats.addReceived(read, 0);
+            mInflater.setInput(mInput, 0, read);
+        }
+    }
+}
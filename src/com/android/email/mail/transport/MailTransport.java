@@ -76,6 +76,8 @@ public class MailTransport implements Transport {
     private Socket mSocket;
     private InputStream mIn;
     private OutputStream mOut;
+    /** Counters of the compressed streams; null if the connection isn't compressed */
+    private CompressionStats mCompressionStats;
 
     /**
      * Simple constructor for starting from scratch.  Call setUri() and setSecurity() to
@@ -179,6 +181,7 @@ public class MailTransport implements Transport {
             }
             mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
             mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mCompressionStats = null;
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -224,6 +227,22 @@ public class MailTransport implements Transport {
         }
     }
 
+    /**
+     * Wraps the streams in DEFLATE streams.  Any bytes already buffered are compressed ones, so
+     * the buffered streams are kept underneath.
+     */
+    @Override
+    public void startCompression() {
+        mCompressionStats = new CompressionStats();
+        mIn = new InflatingInputStream(mIn, mCompressionStats);
+        mOut = new DeflatingOutputStream(mOut, mCompressionStats);
+    }
+
+    @Override
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
+
     /**
      * Lightweight version of SSLCertificateSocketFactory.verifyHostname, which provides this
      * service but is not in the public API.
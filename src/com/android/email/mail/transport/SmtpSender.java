@@ -16,11 +16,13 @@
 
 package com.android.email.mail.transport;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.os.SystemProperties;
 import android.util.Base64;
 import android.util.Log;
 
+import com.android.email.Clock;
 import com.android.email.Email;
 import com.android.email.mail.Sender;
 import com.android.email.mail.Transport;
@@ -31,15 +33,22 @@ import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Formatter;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -51,16 +60,96 @@ import javax.net.ssl.SSLException;
  */
 public class SmtpSender extends Sender {
 
+    /** Size of the chunks a message is sent in, with BDAT */
+    private static final int BDAT_CHUNK_SIZE = 64 * 1024;
+    /**
+     * How long a session is kept open after a message has been sent, so that the next message
+     * doesn't need a new connection, TLS handshake and authentication
+     */
+    private static final long SESSION_IDLE_MILLIS =
+            SystemProperties.getInt("persist.env.email.smtpidle", 30) * 1000L;
+
+    /**
+     * Senders of saved accounts, by the id of their HostAuth, so that their sessions outlive an
+     * outbox flush
+     */
+    @VisibleForTesting
+    static final HashMap<Long, SmtpSender> sSenders = new HashMap<Long, SmtpSender>();
+    /** Closes idle sessions.  Guarded by SmtpSender.class, as are the counters. */
+    private static Timer sIdleTimer;
+    private static long sSessionsOpened;
+    private static long sSessionsReused;
+
     private final Context mContext;
+    /**
+     * A copy of the settings the sender was created with, since the HostAuth may be changed in
+     * place; a sender is replaced when they change
+     */
+    private final ContentValues mHostAuthValues;
     private Transport mTransport;
     private String mUsername;
     private String mPassword;
+    /** The server accepts several commands before responding (RFC 2920) */
+    private boolean mPipelining;
+    /** The server accepts messages in chunks, with BDAT (RFC 3030) */
+    private boolean mChunking;
+    /** The server takes the size of a message up front, to refuse it early (RFC 1870) */
+    private boolean mSizeDeclaration;
+    /** When the session was last used to send a message.  Guarded by "this". */
+    private long mLastUsedTime;
+    /** Closes the session once it has been idle for too long.  Guarded by "this". */
+    private TimerTask mIdleCloseTask;
 
     /**
-     * Static named constructor.
+     * Static named constructor.  The sender of a saved account is kept, with its session.
      */
     public static Sender newInstance(Account account, Context context) throws MessagingException {
-        return new SmtpSender(context, account);
+        HostAuth sendAuth = account.getOrCreateHostAuthSend(context);
+        if (sendAuth == null || sendAuth.mId == EmailContent.NOT_SAVED) {
+            return new SmtpSender(context, account);
+        }
+        SmtpSender staleSender = null;
+        SmtpSender sender;
+        synchronized (sSenders) {
+            sender = sSenders.get(sendAuth.mId);
+            if (sender != null && !sender.mHostAuthValues.equals(sendAuth.toContentValues())) {
+                // The server or the credentials have changed since the session was opened
+                staleSender = sender;
+                sender = null;
+            }
+            if (sender == null) {
+                sender = new SmtpSender(context, account);
+                sSenders.put(sendAuth.mId, sender);
+            }
+        }
+        if (staleSender != null) {
+            staleSender.close();
+        }
+        return sender;
+    }
+
+    /**
+     * Forgets the sender of the given account, closing its session, e.g. when the account is
+     * deleted.
+     */
+    public static void removeInstance(Account account) {
+        SmtpSender sender;
+        synchronized (sSenders) {
+            sender = sSenders.remove(account.mHostAuthKeySend);
+        }
+        if (sender != null) {
+            sender.close();
+        }
+    }
+
+    /** @return the number of sessions opened, i.e. connections, TLS handshakes and logins. */
+    public static synchronized long getSessionsOpened() {
+        return sSessionsOpened;
+    }
+
+    /** @return the number of messages sent over a session already open, with no handshake. */
+    public static synchronized long getSessionsReused() {
+        return sSessionsReused;
     }
 
     /**
@@ -72,6 +161,7 @@ public class SmtpSender extends Sender {
         if (sendAuth == null || !"smtp".equalsIgnoreCase(sendAuth.mProtocol)) {
             throw new MessagingException("Unsupported protocol");
         }
+        mHostAuthValues = sendAuth.toContentValues();
         // defaults, which can be changed by security modifiers
         int connectionSecurity = Transport.CONNECTION_SECURITY_NONE;
         int defaultPort = SystemProperties.getInt("persist.env.c.email.defsmtp", 587);
@@ -111,7 +201,10 @@ public class SmtpSender extends Sender {
     }
 
     @Override
-    public void open() throws MessagingException {
+    public synchronized void open() throws MessagingException {
+        synchronized (SmtpSender.class) {
+            sSessionsOpened++;
+        }
         try {
             mTransport.open();
 
@@ -161,6 +254,9 @@ public class SmtpSender extends Sender {
             /*
              * result contains the results of the EHLO in concatenated form
              */
+            mPipelining = result.contains("PIPELINING");
+            mChunking = result.contains("CHUNKING");
+            mSizeDeclaration = result.contains("SIZE");
             boolean authLoginSupported = result.matches(".*AUTH.*LOGIN.*$");
             boolean authPlainSupported = result.matches(".*AUTH.*PLAIN.*$");
             boolean cramMD5Supported = result.matches(".*AUTH.*CRAM-MD5.*$");
@@ -196,11 +292,78 @@ public class SmtpSender extends Sender {
         }
     }
 
+    /**
+     * Sends a message, over the current session if there is one that's not been idle for too
+     * long.  The session is kept open afterwards, for {@link #SESSION_IDLE_MILLIS}.
+     */
     @Override
-    public void sendMessage(long messageId) throws MessagingException {
-        close();
-        open();
+    public synchronized void sendMessage(long messageId) throws MessagingException {
+        if (!resetSession()) {
+            close();
+            open();
+        }
+        boolean sent = false;
+        try {
+            sendMessageInternal(messageId);
+            sent = true;
+        } finally {
+            if (sent) {
+                mLastUsedTime = Clock.INSTANCE.getTime();
+                scheduleIdleClose();
+            } else {
+                // The session may be in any state
+                close();
+            }
+        }
+    }
+
+    /**
+     * Gets the current session ready for a new message, with RSET, which also checks that the
+     * server is still there.
+     *
+     * @return whether the session can be used
+     */
+    private boolean resetSession() {
+        if (!mTransport.isOpen()
+                || Clock.INSTANCE.getTime() - mLastUsedTime > SESSION_IDLE_MILLIS) {
+            return false;
+        }
+        try {
+            executeSimpleCommand("RSET");
+        } catch (IOException ioe) {
+            return false;
+        } catch (MessagingException me) {
+            return false;
+        }
+        synchronized (SmtpSender.class) {
+            sSessionsReused++;
+        }
+        return true;
+    }
 
+    private void scheduleIdleClose() {
+        synchronized (SmtpSender.class) {
+            if (sIdleTimer == null) {
+                sIdleTimer = new Timer("SmtpSender", true);
+            }
+        }
+        if (mIdleCloseTask != null) {
+            mIdleCloseTask.cancel();
+        }
+        mIdleCloseTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (SmtpSender.this) {
+                    if (mIdleCloseTask == this) {
+                        close();
+                    }
+                }
+            }
+        };
+        sIdleTimer.schedule(mIdleCloseTask, SESSION_IDLE_MILLIS);
+    }
+
+    private void sendMessageInternal(long messageId) throws MessagingException {
         Message message = Message.restoreMessageWithId(mContext, messageId);
         if (message == null) {
             throw new MessagingException("Trying to send non-existent message id="
@@ -212,24 +375,55 @@ public class SmtpSender extends Sender {
         Address[] bcc = Address.unpack(message.mBcc);
 
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from.getAddress() + ">");
+            ArrayList<String> envelope = new ArrayList<String>();
+            String mailFrom = "MAIL FROM:" + "<" + from.getAddress() + ">";
+            if (mSizeDeclaration) {
+                // Measured without writing, so a message too large for the server is refused
+                // before any of it is sent
+                mailFrom += " SIZE=" + Rfc822Output.getSize(mContext, messageId,
+                        false /* do not use smart reply */,
+                        false /* do not send BCC */);
+            }
+            envelope.add(mailFrom);
             for (Address address : to) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+                envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
             }
             for (Address address : cc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+                envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
             }
             for (Address address : bcc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+                envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
+            }
+            if (mPipelining) {
+                // The whole envelope in one round trip.  DATA (or BDAT) is sent on its own, as
+                // the message mustn't go to the recipients that were accepted if any wasn't.
+                executePipelinedCommands(envelope);
+            } else {
+                for (String command : envelope) {
+                    executeSimpleCommand(command);
+                }
+            }
+            if (mChunking) {
+                // No dot-stuffing or end-of-data line with BDAT, as chunks are sized
+                OutputStream out = new EOLConvertingOutputStream(new BdatOutputStream());
+                Rfc822Output.writeTo(mContext, messageId, out,
+                        false /* do not use smart reply */,
+                        false /* do not send BCC */);
+                out.close();
+            } else {
+                executeSimpleCommand("DATA");
+                // TODO byte stuffing
+                Rfc822Output.writeTo(mContext, messageId,
+                        new EOLConvertingOutputStream(mTransport.getOutputStream()),
+                        false /* do not use smart reply */,
+                        false /* do not send BCC */);
+                executeSimpleCommand("\r\n.");
             }
-            executeSimpleCommand("DATA");
-            // TODO byte stuffing
-            Rfc822Output.writeTo(mContext, messageId,
-                    new EOLConvertingOutputStream(mTransport.getOutputStream()),
-                    false /* do not use smart reply */,
-                    false /* do not send BCC */);
-            executeSimpleCommand("\r\n.");
         } catch (IOException ioe) {
+            if (ioe.getCause() instanceof MessagingException) {
+                // The server rejected a BDAT chunk
+                throw (MessagingException) ioe.getCause();
+            }
             throw new MessagingException("Unable to send message", ioe);
         }
     }
@@ -239,7 +433,11 @@ public class SmtpSender extends Sender {
      * exceptions.
      */
     @Override
-    public void close() {
+    public synchronized void close() {
+        if (mIdleCloseTask != null) {
+            mIdleCloseTask.cancel();
+            mIdleCloseTask = null;
+        }
         mTransport.close();
     }
 
@@ -271,6 +469,40 @@ public class SmtpSender extends Sender {
             mTransport.writeLine(command, sensitiveReplacement);
         }
 
+        return readResponse();
+    }
+
+    /**
+     * Send commands without waiting for responses, then read all the responses.  Throws
+     * MessagingException if any response code is 4xx or 5xx, once every response has been read.
+     * @param commands The command strings to send to the server.
+     */
+    private void executePipelinedCommands(ArrayList<String> commands)
+            throws IOException, MessagingException {
+        for (String command : commands) {
+            mTransport.writeLine(command, null);
+        }
+        MessagingException failure = null;
+        for (int i = 0, count = commands.size(); i < count; i++) {
+            try {
+                readResponse();
+            } catch (MessagingException me) {
+                if (failure == null) {
+                    failure = me;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Read a single response. Handles responses that continue onto multiple lines. Throws
+     * MessagingException if response code is 4xx or 5xx.
+     * @return Returns the response string from the server.
+     */
+    private String readResponse() throws IOException, MessagingException {
         String line = mTransport.readLine();
 
         String result = line;
@@ -290,6 +522,86 @@ public class SmtpSender extends Sender {
         return result;
     }
 
+    /**
+     * Sends what is written to it as BDAT chunks of {@link #BDAT_CHUNK_SIZE} bytes, the last one
+     * when closed.  With pipelining, the responses to the chunks are only read after the last
+     * chunk has been sent; otherwise each is read before the next chunk is sent.
+     */
+    private class BdatOutputStream extends OutputStream {
+        private final byte[] mBuffer = new byte[BDAT_CHUNK_SIZE];
+        private int mCount;
+        private int mPendingResponses;
+        private boolean mClosed;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mCount == mBuffer.length) {
+                sendChunk(false);
+            }
+            mBuffer[mCount++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (mCount == mBuffer.length) {
+                    sendChunk(false);
+                }
+                final int length = Math.min(count, mBuffer.length - mCount);
+                System.arraycopy(buffer, offset, mBuffer, mCount, length);
+                mCount += length;
+                offset += length;
+                count -= length;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            sendChunk(true);
+            readResponses();
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            mTransport.writeLine("BDAT " + mCount + (last ? " LAST" : ""), null);
+            OutputStream out = mTransport.getOutputStream();
+            out.write(mBuffer, 0, mCount);
+            out.flush();
+            mCount = 0;
+            mPendingResponses++;
+            if (!mPipelining) {
+                readResponses();
+            }
+        }
+
+        /**
+         * Reads the responses to all the chunks sent so far.  A chunk that was refused doesn't
+         * stop the responses to the later ones from being read, so that the session is left
+         * in step with the server (e.g. for a RSET and the next message); the first refusal is
+         * thrown once they all have been.
+         */
+        private void readResponses() throws IOException {
+            MessagingException failure = null;
+            while (mPendingResponses > 0) {
+                mPendingResponses--;
+                try {
+                    readResponse();
+                } catch (MessagingException me) {
+                    if (failure == null) {
+                        failure = me;
+                    }
+                }
+            }
+            if (failure != null) {
+                // Unwrapped by sendMessage()
+                throw new IOException(failure.getMessage(), failure);
+            }
+        }
+    }
+
     // C: AUTH LOGIN
     // S: 334 VXNlcm5hbWU6
     // C: d2VsZG9u
@@ -17,14 +17,12 @@
 package com.android.email.provider;
 
 import android.content.ContentValues;
-import android.database.CrossProcessCursor;
+import android.database.AbstractCursor;
 import android.database.Cursor;
-import android.database.CursorWindow;
-import android.database.CursorWrapper;
-import android.database.MatrixCursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.util.Log;
-import android.util.LruCache;
 
 import com.android.email.Email;
 import com.google.common.annotations.VisibleForTesting;
@@ -34,6 +32,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An LRU cache for EmailContent (Account, HostAuth, Mailbox, and Message, thus far).  The intended
@@ -68,10 +67,14 @@ import java.util.Set;
  * 2. Update the row: db.update(...);
  * 3. Unlock the row in the cache, passing in the new values: cache.unlock(id, values);
  *
- * Synchronization note: All of the public methods in ContentCache are synchronized (i.e. on the
- * cache itself) except for methods that are solely used for debugging and do not modify the cache.
- * All references to ContentCache that are external to the ContentCache class MUST synchronize on
- * the ContentCache instance (e.g. CachedCursor.close())
+ * The cache holds a copy of each row (a CachedRow), rather than the cursor it was read from; a
+ * CachedRow never changes once it's cached, and updates replace it.  Cursors returned by the
+ * cache are CachedCursors, which read a CachedRow and need no cleanup.
+ *
+ * Synchronization note: Reads of the cache take no lock.  Tokens and row locks are kept in
+ * stripes (chosen by the hash of the id), and each write to the cache synchronizes on the stripe
+ * of its id, so that writes to different rows don't wait for each other.  Invalidating the whole
+ * cache synchronizes on each of the stripes in turn.
  */
 public final class ContentCache {
     private static final boolean DEBUG_CACHE = false;  // DO NOT CHECK IN TRUE
@@ -82,35 +85,41 @@ public final class ContentCache {
     // If false, reads will not use the cache; this is intended for debugging only
     private static final boolean READ_CACHE_ENABLED = true;  // DO NOT CHECK IN FALSE
 
+    // The number of stripes that tokens and row locks are divided into
+    private static final int LOCK_STRIPES = 16;
+
     // Count of non-cacheable queries (debug only)
     private static int sNotCacheable = 0;
     // A map of queries that aren't cacheable (debug only)
     private static final CounterMap<String> sNotCacheableMap = new CounterMap<String>();
 
-    private final LruCache<String, Cursor> mLruCache;
+    // The cached rows, by id
+    private final ConcurrentHashMap<String, CachedRow> mRows;
+    // The maximum number of cached rows
+    private final int mMaxSize;
+    // Incremented on each read of a row, to find the least recently used row; increments are not
+    // atomic, so racing reads may see the same time, which only matters to the eviction order
+    private volatile int mAccessClock;
 
     // All defined caches
     private static final ArrayList<ContentCache> sContentCaches = new ArrayList<ContentCache>();
-    // A set of all unclosed, cached cursors; this will typically be a very small set, as cursors
-    // tend to be closed quickly after use.  The value, for each cursor, is its reference count
-    /*package*/ static final CounterMap<Cursor> sActiveCursors = new CounterMap<Cursor>(24);
 
-    // A set of locked content id's
-    private final CounterMap<String> mLockMap = new CounterMap<String>(4);
-    // A set of active tokens
-    /*package*/ TokenList mTokenList;
+    // The locked content id's and the active tokens, divided by the hash of their id's
+    private final Stripe[] mStripes = new Stripe[LOCK_STRIPES];
 
     // The name of the cache (used for logging)
     private final String mName;
     // The base projection (only queries in which all columns exist in this projection will be
     // able to avoid a cache miss)
     private final String[] mBaseProjection;
+    // The index of each column of the base projection
+    private final HashMap<String, Integer> mColumnIndices;
     // The tag used for logging
     private final String mLogTag;
-    // Cache statistics
+    // Cache statistics (debug only; readers update these without synchronizing)
     private final Statistics mStats;
     /** If {@code true}, lock the cache for all writes */
-    private static boolean sLockCache;
+    private static volatile boolean sLockCache;
 
     /**
      * A synchronized reference counter for arbitrary objects
@@ -234,6 +243,21 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * The locked id's and the active tokens of the id's that hash to one stripe; all access to
+     * them is synchronized on the stripe
+     */
+    private static final class Stripe {
+        // A set of locked content id's
+        private final CounterMap<String> mLockMap = new CounterMap<String>(4);
+        // A set of active tokens
+        private final TokenList mTokenList;
+
+        private Stripe(String name) {
+            mTokenList = new TokenList(name);
+        }
+    }
+
     /**
      * A CacheToken is an opaque object that must be passed into putCursor in order to attempt to
      * write into the cache.  The token becomes invalidated by any intervening write to the cached
@@ -271,132 +295,241 @@ public final class ContentCache {
     }
 
     /**
-     * The cached cursor is simply a CursorWrapper whose underlying cursor contains zero or one
-     * rows.  We handle simple movement (moveToFirst(), moveToNext(), etc.), and override close()
-     * to keep the underlying cursor alive (unless it's no longer cached due to an invalidation).
-     * Multiple CachedCursor's can use the same underlying cursor, so we override the various
-     * moveX methods such that each CachedCursor can have its own position information
+     * The values of a cached row, in the order of the base projection of its cache; a row read
+     * from a cursor with no rows is cached too, as an empty row.  Integer and float values are
+     * kept unboxed, in mLongs (floats as their bits), and strings and blobs in mObjects.
+     *
+     * The values never change; only the time of the last read does.
      */
-    public static final class CachedCursor extends CursorWrapper implements CrossProcessCursor {
-        // The cursor we're wrapping
-        private final Cursor mCursor;
-        // The cache which generated this cursor
-        private final ContentCache mCache;
-        private final String mId;
-        // The current position of the cursor (can only be 0 or 1)
-        private int mPosition = -1;
-        // The number of rows in this cursor (-1 = not determined)
-        private int mCount = -1;
-        private boolean isClosed = false;
-
-        public CachedCursor(Cursor cursor, ContentCache cache, String id) {
-            super(cursor);
-            mCursor = cursor;
-            mCache = cache;
-            mId = id;
-            // Add this to our set of active cursors
-            sActiveCursors.add(cursor);
+    /*package*/ static final class CachedRow {
+        /*package*/ static final CachedRow EMPTY = new CachedRow(null, null, null);
+
+        // The Cursor.FIELD_TYPE_* of each column, or null for an empty row
+        private final byte[] mTypes;
+        private final long[] mLongs;
+        private final Object[] mObjects;
+        // The value of mAccessClock when the row was last read
+        private volatile int mAccessTime;
+
+        private CachedRow(byte[] types, long[] longs, Object[] objects) {
+            mTypes = types;
+            mLongs = longs;
+            mObjects = objects;
         }
 
         /**
-         * Close this cursor; if the cursor's cache no longer contains the underlying cursor, and
-         * there are no other users of that cursor, we'll close it here. In any event,
-         * we'll remove the cursor from our set of active cursors.
+         * Copy the current row of a cursor (or an empty row, if it isn't on a row)
          */
-        @Override
-        public void close() {
-            synchronized(mCache) {
-                int count = sActiveCursors.subtract(mCursor);
-                if ((count == 0) && mCache.mLruCache.get(mId) != (mCursor)) {
-                    super.close();
-                }
+        /*package*/ static CachedRow fromCursor(Cursor c) {
+            if (c.isBeforeFirst() || c.isAfterLast()) {
+                return EMPTY;
             }
-            isClosed = true;
-        }
-
-        @Override
-        public boolean isClosed() {
-            return isClosed;
-        }
-
-        @Override
-        public int getCount() {
-            if (mCount < 0) {
-                mCount = super.getCount();
+            int count = c.getColumnCount();
+            byte[] types = new byte[count];
+            long[] longs = new long[count];
+            Object[] objects = new Object[count];
+            for (int i = 0; i < count; i++) {
+                int type = c.getType(i);
+                switch (type) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        longs[i] = c.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        longs[i] = Double.doubleToRawLongBits(c.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        objects[i] = c.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        objects[i] = c.getBlob(i);
+                        break;
+                }
+                types[i] = (byte) type;
             }
-            return mCount;
+            return new CachedRow(types, longs, objects);
         }
 
         /**
-         * We'll be happy to move to position 0 or -1
+         * Return a copy of this row with the supplied values, or null if any of the values isn't
+         * in the projection
          */
-        @Override
-        public boolean moveToPosition(int pos) {
-            if (pos >= getCount() || pos < -1) {
-                return false;
+        /*package*/ CachedRow withValues(ContentValues values, HashMap<String, Integer> indices) {
+            if (mTypes == null) {
+                return null;
+            }
+            byte[] types = mTypes.clone();
+            long[] longs = mLongs.clone();
+            Object[] objects = mObjects.clone();
+            for (Map.Entry<String, Object> entry: values.valueSet()) {
+                Integer index = indices.get(entry.getKey());
+                if (index == null) {
+                    return null;
+                }
+                int i = index;
+                Object value = entry.getValue();
+                longs[i] = 0;
+                objects[i] = null;
+                if (value == null) {
+                    types[i] = Cursor.FIELD_TYPE_NULL;
+                } else if (value instanceof Boolean) {
+                    types[i] = Cursor.FIELD_TYPE_INTEGER;
+                    longs[i] = ((Boolean) value) ? 1 : 0;
+                } else if (value instanceof Float || value instanceof Double) {
+                    types[i] = Cursor.FIELD_TYPE_FLOAT;
+                    longs[i] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+                } else if (value instanceof Number) {
+                    types[i] = Cursor.FIELD_TYPE_INTEGER;
+                    longs[i] = ((Number) value).longValue();
+                } else if (value instanceof byte[]) {
+                    types[i] = Cursor.FIELD_TYPE_BLOB;
+                    objects[i] = value;
+                } else {
+                    types[i] = Cursor.FIELD_TYPE_STRING;
+                    objects[i] = value.toString();
+                }
             }
-            mPosition = pos;
-            return true;
+            return new CachedRow(types, longs, objects);
         }
 
-        @Override
-        public boolean moveToFirst() {
-            return moveToPosition(0);
+        /*package*/ boolean isEmpty() {
+            return mTypes == null;
+        }
+    }
+
+    /**
+     * A read-only cursor over a cached row, which has zero or one rows.  A CachedCursor may
+     * present the columns of the row in a different order, or only some of them.  Nothing is
+     * shared with the cache but the (unchanging) row, so there is nothing to release on close().
+     */
+    public static final class CachedCursor extends AbstractCursor {
+        private final CachedRow mRow;
+        private final String[] mColumnNames;
+        // The column of the row for each of our columns, or null if they're the same
+        private final int[] mColumnMap;
+
+        /*package*/ CachedCursor(CachedRow row, String[] columnNames, int[] columnMap) {
+            mRow = row;
+            mColumnNames = columnNames;
+            mColumnMap = columnMap;
+        }
+
+        private int getRowColumn(int column) {
+            checkPosition();
+            if (column < 0 || column >= mColumnNames.length) {
+                throw new CursorIndexOutOfBoundsException("Requested column: " + column
+                        + ", # of columns: " + mColumnNames.length);
+            }
+            return (mColumnMap == null) ? column : mColumnMap[column];
         }
 
         @Override
-        public boolean moveToNext() {
-            return moveToPosition(mPosition + 1);
+        public int getCount() {
+            return mRow.isEmpty() ? 0 : 1;
         }
 
         @Override
-        public boolean moveToPrevious() {
-            return moveToPosition(mPosition - 1);
+        public String[] getColumnNames() {
+            return mColumnNames;
         }
 
         @Override
-        public int getPosition() {
-            return mPosition;
+        public int getType(int column) {
+            return mRow.mTypes[getRowColumn(column)];
         }
 
         @Override
-        public final boolean move(int offset) {
-            return moveToPosition(mPosition + offset);
+        public boolean isNull(int column) {
+            return getType(column) == Cursor.FIELD_TYPE_NULL;
         }
 
         @Override
-        public final boolean moveToLast() {
-            return moveToPosition(getCount() - 1);
+        public String getString(int column) {
+            int i = getRowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return Long.toString(mRow.mLongs[i]);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return Double.toString(Double.longBitsToDouble(mRow.mLongs[i]));
+                case Cursor.FIELD_TYPE_STRING:
+                    return (String) mRow.mObjects[i];
+                default:
+                    throw new SQLiteException("Unable to convert BLOB to string");
+            }
         }
 
         @Override
-        public final boolean isLast() {
-            return mPosition == (getCount() - 1);
+        public long getLong(int column) {
+            int i = getRowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return 0;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return mRow.mLongs[i];
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return (long) Double.longBitsToDouble(mRow.mLongs[i]);
+                case Cursor.FIELD_TYPE_STRING:
+                    try {
+                        return Long.parseLong((String) mRow.mObjects[i]);
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                default:
+                    throw new SQLiteException("Unable to convert BLOB to long");
+            }
         }
 
         @Override
-        public final boolean isBeforeFirst() {
-            return mPosition == -1;
+        public double getDouble(int column) {
+            int i = getRowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return 0;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return mRow.mLongs[i];
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return Double.longBitsToDouble(mRow.mLongs[i]);
+                case Cursor.FIELD_TYPE_STRING:
+                    try {
+                        return Double.parseDouble((String) mRow.mObjects[i]);
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                default:
+                    throw new SQLiteException("Unable to convert BLOB to double");
+            }
         }
 
         @Override
-        public final boolean isAfterLast() {
-            return mPosition == 1;
+        public int getInt(int column) {
+            return (int) getLong(column);
         }
 
         @Override
-        public CursorWindow getWindow() {
-           return ((CrossProcessCursor)mCursor).getWindow();
+        public short getShort(int column) {
+            return (short) getLong(column);
         }
 
         @Override
-        public void fillWindow(int pos, CursorWindow window) {
-            ((CrossProcessCursor)mCursor).fillWindow(pos, window);
+        public float getFloat(int column) {
+            return (float) getDouble(column);
         }
 
         @Override
-        public boolean onMove(int oldPosition, int newPosition) {
-            return true;
+        public byte[] getBlob(int column) {
+            int i = getRowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                case Cursor.FIELD_TYPE_STRING:
+                    return ((String) mRow.mObjects[i]).getBytes();
+                case Cursor.FIELD_TYPE_BLOB:
+                    // Don't let the caller change the cached value
+                    return ((byte[]) mRow.mObjects[i]).clone();
+                default:
+                    throw new SQLiteException("Unable to convert number to blob");
+            }
         }
     }
 
@@ -409,20 +542,18 @@ public final class ContentCache {
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
         mName = name;
-        mLruCache = new LruCache<String, Cursor>(maxSize) {
-            @Override
-            protected void entryRemoved(
-                    boolean evicted, String key, Cursor oldValue, Cursor newValue) {
-                // Close this cursor if it's no longer being used
-                if (evicted && !sActiveCursors.contains(oldValue)) {
-                    oldValue.close();
-                }
-            }
-        };
+        mRows = new ConcurrentHashMap<String, CachedRow>(maxSize * 2, 0.75f, LOCK_STRIPES);
+        mMaxSize = maxSize;
         mBaseProjection = baseProjection;
+        mColumnIndices = new HashMap<String, Integer>(baseProjection.length * 2);
+        for (int i = 0; i < baseProjection.length; i++) {
+            mColumnIndices.put(baseProjection[i], i);
+        }
         mLogTag = "ContentCache-" + name;
         sContentCaches.add(this);
-        mTokenList = new TokenList(mName);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mStripes[i] = new Stripe(mName);
+        }
         mStats = new Statistics(this);
     }
 
@@ -435,33 +566,47 @@ public final class ContentCache {
         return mBaseProjection;
     }
 
+    private Stripe getStripe(String id) {
+        return mStripes[(id.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
 
     /**
      * Get a CacheToken for a row as specified by its id (_id column)
      * @param id the id of the record
      * @return a CacheToken needed in order to write data for the record back to the cache
      */
-    public synchronized CacheToken getCacheToken(String id) {
-        // If another thread is already writing the data, return an invalid token
-        CacheToken token = mTokenList.add(id);
-        if (mLockMap.contains(id)) {
-            token.invalidate();
+    public CacheToken getCacheToken(String id) {
+        Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            // If another thread is already writing the data, return an invalid token
+            CacheToken token = stripe.mTokenList.add(id);
+            if (stripe.mLockMap.contains(id)) {
+                token.invalidate();
+            }
+            return token;
         }
-        return token;
     }
 
     public int size() {
-        return mLruCache.size();
+        return mRows.size();
     }
 
     @VisibleForTesting
-    Cursor get(String id) {
-        return mLruCache.get(id);
+    CachedRow get(String id) {
+        return mRows.get(id);
     }
 
+    /**
+     * Return a cursor for each of the cached rows, by id
+     */
     protected Map<String, Cursor> getSnapshot() {
-        return mLruCache.snapshot();
+        HashMap<String, Cursor> snapshot = new HashMap<String, Cursor>();
+        for (Map.Entry<String, CachedRow> entry: mRows.entrySet()) {
+            snapshot.put(entry.getKey(), new CachedCursor(entry.getValue(), mBaseProjection, null));
+        }
+        return snapshot;
     }
+
     /**
      * Try to cache a cursor for the given id and projection; returns a valid cursor, either a
      * cached cursor (if caching was successful) or the original cursor
@@ -472,37 +617,62 @@ public final class ContentCache {
      * @return whether or not the cursor was cached
      */
     public Cursor putCursor(Cursor c, String id, String[] projection, CacheToken token) {
-        // Make sure the underlying cursor is at the first row, and do this without synchronizing,
-        // to prevent deadlock with a writing thread (which might, for example, be calling into
-        // CachedCursor.invalidate)
-        c.moveToPosition(0);
-        return putCursorImpl(c, id, projection, token);
-    }
-    public synchronized Cursor putCursorImpl(Cursor c, String id, String[] projection,
-            CacheToken token) {
-        try {
-            if (!token.isValid()) {
-                if (Email.DEBUG && DEBUG_CACHE) {
-                    Log.d(mLogTag, "============ Stale token for " + id);
+        // Copy the row without synchronizing, to prevent deadlock with a writing thread, and so
+        // as not to hold up other writers; a stale copy is dropped below
+        CachedRow row = null;
+        if (c != null && token.isValid() && Arrays.equals(projection, mBaseProjection)
+                && !sLockCache && c.getCount() <= 1) {
+            c.moveToPosition(0);
+            row = CachedRow.fromCursor(c);
+        }
+        Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            try {
+                if (!token.isValid()) {
+                    if (Email.DEBUG && DEBUG_CACHE) {
+                        Log.d(mLogTag, "============ Stale token for " + id);
+                    }
+                    mStats.mStaleCount++;
+                    return c;
+                }
+                if (row == null || sLockCache) {
+                    return c;
                 }
-                mStats.mStaleCount++;
-                return c;
-            }
-            if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
                 if (Email.DEBUG && DEBUG_CACHE) {
                     Log.d(mLogTag, "============ Caching cursor for: " + id);
                 }
-                // If we've already cached this cursor, invalidate the older one
-                Cursor existingCursor = get(id);
-                if (existingCursor != null) {
-                   unlockImpl(id, null, false);
+                row.mAccessTime = ++mAccessClock;
+                mRows.put(id, row);
+            } finally {
+                stripe.mTokenList.remove(token);
+            }
+        }
+        trimToSize();
+        // The row has been copied; the cursor we return doesn't need the original
+        c.close();
+        return new CachedCursor(row, mBaseProjection, null);
+    }
+
+    /**
+     * Remove the least recently read rows until there are at most mMaxSize; this scans the
+     * rows, but it only runs when a row is added, and the caches are small
+     */
+    private void trimToSize() {
+        while (mRows.size() > mMaxSize) {
+            String eldestId = null;
+            CachedRow eldestRow = null;
+            for (Map.Entry<String, CachedRow> entry: mRows.entrySet()) {
+                CachedRow row = entry.getValue();
+                if (eldestRow == null || row.mAccessTime - eldestRow.mAccessTime < 0) {
+                    eldestId = entry.getKey();
+                    eldestRow = row;
                 }
-                mLruCache.put(id, c);
-                return new CachedCursor(c, this, id);
             }
-            return c;
-        } finally {
-            mTokenList.remove(token);
+            if (eldestRow == null) {
+                return;
+            }
+            // Removing a row never needs its lock; whoever reads it next will miss
+            mRows.remove(eldestId, eldestRow);
         }
     }
 
@@ -512,91 +682,53 @@ public final class ContentCache {
      * @param projection the requested projection for a query
      * @return a cursor based on cached values, or null if the row is not cached
      */
-    public synchronized Cursor getCachedCursor(String id, String[] projection) {
+    public Cursor getCachedCursor(String id, String[] projection) {
         if (Email.DEBUG && DEBUG_STATISTICS) {
             // Every 200 calls to getCursor, report cache statistics
             dumpOnCount(200);
         }
-        if (projection == mBaseProjection) {
-            return getCachedCursorImpl(id);
-        } else {
-            return getMatrixCursor(id, projection);
-        }
-    }
-
-    private CachedCursor getCachedCursorImpl(String id) {
-        Cursor c = get(id);
-        if (c != null) {
-            mStats.mHitCount++;
-            return new CachedCursor(c, this, id);
+        CachedRow row = get(id);
+        if (row == null) {
+            mStats.mMissCount++;
+            return null;
         }
-        mStats.mMissCount++;
-        return null;
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection) {
-        return getMatrixCursor(id, projection, null);
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection,
-            ContentValues values) {
-        Cursor c = get(id);
-        if (c != null) {
-            // Make a new MatrixCursor with the requested columns
-            MatrixCursor mc = new MatrixCursor(projection, 1);
-            if (c.getCount() == 0) {
-                return mc;
-            }
-            Object[] row = new Object[projection.length];
-            if (values != null) {
-                // Make a copy; we don't want to change the original
-                values = new ContentValues(values);
+        int[] columnMap = null;
+        if (projection != mBaseProjection && !Arrays.equals(projection, mBaseProjection)) {
+            if (projection == null) {
+                mStats.mProjectionMissCount++;
+                return null;
             }
-            int i = 0;
-            for (String column: projection) {
-                int columnIndex = c.getColumnIndex(column);
-                if (columnIndex < 0) {
+            columnMap = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                Integer columnIndex = mColumnIndices.get(projection[i]);
+                if (columnIndex == null) {
                     mStats.mProjectionMissCount++;
                     return null;
-                } else {
-                    String value;
-                    if (values != null && values.containsKey(column)) {
-                        Object val = values.get(column);
-                        if (val instanceof Boolean) {
-                            value = (val == Boolean.TRUE) ? "1" : "0";
-                        } else {
-                            value = values.getAsString(column);
-                        }
-                        values.remove(column);
-                    } else {
-                        value = c.getString(columnIndex);
-                    }
-                    row[i++] = value;
                 }
+                columnMap[i] = columnIndex;
             }
-            if (values != null && values.size() != 0) {
-                return null;
-            }
-            mc.addRow(row);
-            mStats.mHitCount++;
-            return mc;
         }
-        mStats.mMissCount++;
-        return null;
+        row.mAccessTime = ++mAccessClock;
+        mStats.mHitCount++;
+        return new CachedCursor(row, (columnMap == null) ? mBaseProjection : projection,
+                columnMap);
     }
 
     /**
      * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
      * @param id the id of the row to lock
      */
-    public synchronized void lock(String id) {
-        // Prevent new valid tokens from being created
-        mLockMap.add(id);
-        // Invalidate current tokens
-        int count = mTokenList.invalidateTokens(id);
-        if (Email.DEBUG && DEBUG_TOKENS) {
-            Log.d(mTokenList.mLogTag, "============ Lock invalidated " + count +
-                    " tokens for: " + id);
+    public void lock(String id) {
+        Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            // Prevent new valid tokens from being created
+            stripe.mLockMap.add(id);
+            // Invalidate current tokens
+            int count = stripe.mTokenList.invalidateTokens(id);
+            if (Email.DEBUG && DEBUG_TOKENS) {
+                Log.d(stripe.mTokenList.mLogTag, "============ Lock invalidated " + count +
+                        " tokens for: " + id);
+            }
         }
     }
 
@@ -604,8 +736,8 @@ public final class ContentCache {
      * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
      * @param id the id of the item whose cursor is cached
      */
-    public synchronized void unlock(String id) {
-        unlockImpl(id, null, true);
+    public void unlock(String id) {
+        unlockImpl(id, null);
     }
 
     /**
@@ -615,53 +747,47 @@ public final class ContentCache {
      * @param id the id of the item whose cursor is cached
      * @param values updated values for this row
      */
-    public synchronized void unlock(String id, ContentValues values) {
-        unlockImpl(id, values, true);
+    public void unlock(String id, ContentValues values) {
+        unlockImpl(id, values);
     }
 
     /**
-     * If values are passed in, replaces any cached cursor with one containing new values, and
-     * then closes the previously cached one (if any, and if not in use)
+     * If values are passed in, replaces any cached row with one containing new values
      * If values are not passed in, removes the row from cache
-     * If the row was locked, unlock it
+     * Then unlocks the row
      * @param id the id of the row
      * @param values new ContentValues for the row (or null if row should simply be removed)
-     * @param wasLocked whether or not the row was locked; if so, the lock will be removed
      */
-    private void unlockImpl(String id, ContentValues values, boolean wasLocked) {
-        Cursor c = get(id);
-        if (c != null) {
-            if (Email.DEBUG && DEBUG_CACHE) {
-                Log.d(mLogTag, "=========== Unlocking cache for: " + id);
-            }
-            if (values != null && !sLockCache) {
-                MatrixCursor cursor = getMatrixCursor(id, mBaseProjection, values);
-                if (cursor != null) {
+    private void unlockImpl(String id, ContentValues values) {
+        Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            CachedRow row = get(id);
+            if (row != null) {
+                if (Email.DEBUG && DEBUG_CACHE) {
+                    Log.d(mLogTag, "=========== Unlocking cache for: " + id);
+                }
+                CachedRow newRow = null;
+                if (values != null && !sLockCache) {
+                    newRow = row.withValues(values, mColumnIndices);
+                }
+                if (newRow != null) {
                     if (Email.DEBUG && DEBUG_CACHE) {
                         Log.d(mLogTag, "=========== Recaching with new values: " + id);
                     }
-                    cursor.moveToFirst();
-                    mLruCache.put(id, cursor);
+                    newRow.mAccessTime = row.mAccessTime;
+                    mRows.put(id, newRow);
                 } else {
-                    mLruCache.remove(id);
+                    mRows.remove(id);
                 }
-            } else {
-                mLruCache.remove(id);
-            }
-            // If there are no cursors using the old cached cursor, close it
-            if (!sActiveCursors.contains(c)) {
-                c.close();
             }
-        }
-        if (wasLocked) {
-            mLockMap.subtract(id);
+            stripe.mLockMap.subtract(id);
         }
     }
 
     /**
      * Invalidate the entire cache, without logging
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         invalidate(null, null, null);
     }
 
@@ -673,16 +799,30 @@ public final class ContentCache {
      * @param uri the uri causing the invalidate (or null)
      * @param selection the selection used with the uri (or null)
      */
-    public synchronized void invalidate(String operation, Uri uri, String selection) {
+    public void invalidate(String operation, Uri uri, String selection) {
         if (DEBUG_CACHE && (operation != null)) {
             Log.d(mLogTag, "============ INVALIDATED BY " + operation + ": " + uri +
                     ", SELECTION: " + selection);
         }
         mStats.mInvalidateCount++;
-        // Close all cached cursors that are no longer in use
-        mLruCache.evictAll();
-        // Invalidate all current tokens
-        mTokenList.invalidate();
+        // Invalidate all current tokens first, so that no row read before now can be put in
+        // the cache once it's been cleared
+        for (Stripe stripe: mStripes) {
+            synchronized (stripe) {
+                stripe.mTokenList.invalidate();
+            }
+        }
+        mRows.clear();
+    }
+
+    /*package*/ int getTokenCount() {
+        int count = 0;
+        for (Stripe stripe: mStripes) {
+            synchronized (stripe) {
+                count += stripe.mTokenList.size();
+            }
+        }
+        return count;
     }
 
     // Debugging code below
@@ -807,7 +947,7 @@ public final class ContentCache {
                 hits += cache.mStats.hits;
                 miss += cache.mStats.miss;
                 mCursorCount += cache.size();
-                mTokenCount += cache.mTokenList.size();
+                mTokenCount += cache.getTokenCount();
             }
         }
 
@@ -828,7 +968,7 @@ public final class ContentCache {
             append(sb, "Hits", mHitCount);
             append(sb, "Misses", mMissCount + mProjectionMissCount);
             append(sb, "Inval", mInvalidateCount);
-            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
+            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.getTokenCount());
             append(sb, "Hit%", mHitCount * 100 / totalTries);
             append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
             append(sb, "Miss time", missTimes / 1000000.0 / miss);
@@ -25,6 +25,7 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.ContactsContract;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.email.Email;
@@ -122,10 +123,11 @@ public final class DBHelper {
     // Version 37: Add flag for settings support in folders
     // Version 38&39: Add threadTopic to message (for future support)
     // Version 40: add sync size field
+    // Version 41: Add composite indices for the message list queries; drop the mailboxKey index
 
     // Versions 100+ are in Email2
 
-    public static final int DATABASE_VERSION = 40;
+    public static final int DATABASE_VERSION = 41;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -134,10 +136,22 @@ public final class DBHelper {
     // Version 5: Database wipe required; changing AccountManager interface w/Exchange
     // Version 6: Adding Body.mIntroText column
     // Version 7/8: Adding quoted text start pos
+    // Version 9: Add the full-text index of the messages (Message_Search)
 
     // Versions 100+ are in Email2
 
-    public static final int BODY_DATABASE_VERSION = 8;
+    public static final int BODY_DATABASE_VERSION = 9;
+
+    // The columns of the full-text index of the messages; the docid is the message id
+    /* package */ static final String SEARCH_SUBJECT = "subject";
+    /* package */ static final String SEARCH_SENDER = "sender";
+    /* package */ static final String SEARCH_RECIPIENTS = "recipients";
+    /* package */ static final String SEARCH_BODY = "body";
+
+    // A row in this table means that the full-text index is still to be filled from the existing
+    // messages; it holds the id of the last message indexed so far
+    /* package */ static final String SEARCH_REBUILD_TABLE_NAME = "Message_SearchRebuild";
+    /* package */ static final String SEARCH_REBUILD_LAST_ID = "lastMessageId";
 
     /*
      * Internal helper method for index creation.
@@ -151,6 +165,40 @@ public final class DBHelper {
             + " on " + tableName + " (" + columnName + ");";
     }
 
+    /*
+     * Composite indices for the message lists (and the widget), which select the loaded messages
+     * of a mailbox, or the starred messages, newest first.  An equality on the first column
+     * leaves the rows in timestamp order, so they needn't be sorted; flagLoaded is last so that
+     * the selection can be checked without reading the rows.
+     */
+    /* package */
+    static final String[][] MESSAGE_COMPOSITE_INDICES = {
+        {MessageColumns.MAILBOX_KEY, MessageColumns.TIMESTAMP, MessageColumns.FLAG_LOADED},
+        {MessageColumns.FLAG_FAVORITE, MessageColumns.TIMESTAMP, MessageColumns.FLAG_LOADED},
+    };
+
+    /*
+     * Internal helper method for composite index creation.
+     * Example:
+     * "create index message_mailboxKey_timestamp on Message (mailboxKey, timestamp);"
+     */
+    /* package */
+    static String createIndex(String tableName, String[] columnNames) {
+        return "create index " + getIndexName(tableName, columnNames) + " on " + tableName
+            + " (" + TextUtils.join(", ", columnNames) + ");";
+    }
+
+    /* package */
+    static String getIndexName(String tableName, String[] columnNames) {
+        return tableName.toLowerCase() + '_' + TextUtils.join("_", columnNames);
+    }
+
+    static void createMessageCompositeIndices(SQLiteDatabase db) {
+        for (String[] columnNames : MESSAGE_COMPOSITE_INDICES) {
+            db.execSQL(createIndex(Message.TABLE_NAME, columnNames));
+        }
+    }
+
     static void createMessageTable(SQLiteDatabase db) {
         String messageColumns = MessageColumns.DISPLAY_NAME + " text, "
             + MessageColumns.TIMESTAMP + " integer, "
@@ -195,17 +243,18 @@ public final class DBHelper {
         db.execSQL("create table " + Message.UPDATED_TABLE_NAME + altCreateString);
         db.execSQL("create table " + Message.DELETED_TABLE_NAME + altCreateString);
 
+        // The composite indices start with mailboxKey, which needs no index of its own
         String indexColumns[] = {
             MessageColumns.TIMESTAMP,
             MessageColumns.FLAG_READ,
             MessageColumns.FLAG_LOADED,
-            MessageColumns.MAILBOX_KEY,
             SyncColumns.SERVER_ID
         };
 
         for (String columnName : indexColumns) {
             db.execSQL(createIndex(Message.TABLE_NAME, columnName));
         }
+        createMessageCompositeIndices(db);
 
         // Deleting a Message deletes all associated Attachments
         // Deleting the associated Body cannot be done in a trigger, because the Body is stored
@@ -484,6 +533,24 @@ public final class DBHelper {
         db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY));
     }
 
+    /**
+     * The full-text index of the messages lives next to the bodies, which are most of what it
+     * indexes.  It is maintained by EmailProvider, since the Message table is in the other
+     * database, out of reach of triggers.
+     */
+    static void createMessageSearchTable(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + Message.SEARCH_TABLE_NAME + " using fts4("
+                + SEARCH_SUBJECT + ", "
+                + SEARCH_SENDER + ", "
+                + SEARCH_RECIPIENTS + ", "
+                + SEARCH_BODY
+                + ");");
+        // The new index is filled in the background, once the databases are attached
+        db.execSQL("create table " + SEARCH_REBUILD_TABLE_NAME + " ("
+                + SEARCH_REBUILD_LAST_ID + " integer);");
+        db.execSQL("insert into " + SEARCH_REBUILD_TABLE_NAME + " values (0);");
+    }
+
     static void upgradeBodyTable(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (oldVersion < 5) {
             try {
@@ -513,6 +580,15 @@ public final class DBHelper {
             }
             oldVersion = 8;
         }
+        if (oldVersion == 8) {
+            try {
+                createMessageSearchTable(db);
+            } catch (SQLException e) {
+                // Shouldn't be needed unless we're debugging and interrupt the process
+                Log.w(TAG, "Exception upgrading EmailProviderBody.db from v8 to v9", e);
+            }
+            oldVersion = 9;
+        }
     }
 
     protected static class BodyDatabaseHelper extends SQLiteOpenHelper {
@@ -524,6 +600,7 @@ public final class DBHelper {
         public void onCreate(SQLiteDatabase db) {
             Log.d(TAG, "Creating EmailProviderBody database");
             createBodyTable(db);
+            createMessageSearchTable(db);
         }
 
         @Override
@@ -953,6 +1030,17 @@ public final class DBHelper {
                 }
                 oldVersion = 40;
             }
+            if (oldVersion == 40) {
+                try {
+                    createMessageCompositeIndices(db);
+                    db.execSQL("drop index if exists " + Message.TABLE_NAME.toLowerCase() + '_'
+                            + MessageColumns.MAILBOX_KEY);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 40 to 41 " + e);
+                }
+                oldVersion = 41;
+            }
         }
 
         @Override
@@ -28,9 +28,11 @@ import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -55,6 +57,8 @@ import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.QuickResponse;
+import com.android.emailcommon.utility.TextUtilities;
+import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
@@ -62,6 +66,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -159,6 +165,7 @@ public class EmailProvider extends ContentProvider {
     private static final int MESSAGE = MESSAGE_BASE;
     private static final int MESSAGE_ID = MESSAGE_BASE + 1;
     private static final int SYNCED_MESSAGE_ID = MESSAGE_BASE + 2;
+    private static final int MESSAGE_SEARCH = MESSAGE_BASE + 3;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -295,6 +302,66 @@ public class EmailProvider extends ContentProvider {
 
     private static final String ID_EQUALS = EmailContent.RECORD_ID + "=?";
 
+    /** The message columns in the full-text index, other than the body */
+    private static final String[] SEARCH_INDEX_MESSAGE_COLUMNS = {
+        MessageColumns.SUBJECT, MessageColumns.DISPLAY_NAME, MessageColumns.FROM_LIST,
+        MessageColumns.TO_LIST, MessageColumns.CC_LIST, MessageColumns.BCC_LIST
+    };
+
+    private static final String SEARCH_INDEX_QUERY = "select " + EmailContent.RECORD_ID + ", " +
+        MessageColumns.SUBJECT + ", " + MessageColumns.DISPLAY_NAME + ", " +
+        MessageColumns.FROM_LIST + ", " + MessageColumns.TO_LIST + ", " +
+        MessageColumns.CC_LIST + ", " + MessageColumns.BCC_LIST + ", " +
+        "(select " + BodyColumns.TEXT_CONTENT + " from " + Body.TABLE_NAME + " where " +
+        BodyColumns.MESSAGE_KEY + '=' + Message.TABLE_NAME + '.' + EmailContent.RECORD_ID +
+        "), (select " + BodyColumns.HTML_CONTENT + " from " + Body.TABLE_NAME + " where " +
+        BodyColumns.MESSAGE_KEY + '=' + Message.TABLE_NAME + '.' + EmailContent.RECORD_ID +
+        ") from " + Message.TABLE_NAME + " where ";
+
+    private static final String SEARCH_INDEX_WHERE_BODY_ID = EmailContent.RECORD_ID +
+        "=(select " + BodyColumns.MESSAGE_KEY + " from " + Body.TABLE_NAME + " where " +
+        EmailContent.RECORD_ID + "=?)";
+
+    private static final String SEARCH_INDEX_INSERT = "insert into " + Message.SEARCH_TABLE_NAME +
+        " (docid, " + DBHelper.SEARCH_SUBJECT + ", " + DBHelper.SEARCH_SENDER + ", " +
+        DBHelper.SEARCH_RECIPIENTS + ", " + DBHelper.SEARCH_BODY + ") values (?, ?, ?, ?, ?)";
+
+    private static final String SEARCH_INDEX_DELETE = "delete from " + Message.SEARCH_TABLE_NAME +
+        " where docid=";
+
+    private static final String SEARCH_INDEX_DELETE_MESSAGES = "delete from " +
+        Message.SEARCH_TABLE_NAME + " where docid in (select " + EmailContent.RECORD_ID +
+        " from " + Message.TABLE_NAME;
+
+    private static final String DELETE_ORPHAN_SEARCH_INDEX = "delete from " +
+        Message.SEARCH_TABLE_NAME + " where docid in (select docid from " +
+        Message.SEARCH_TABLE_NAME + " except select " + EmailContent.RECORD_ID + " from " +
+        Message.TABLE_NAME + ')';
+
+    private static final String SEARCH_REBUILD_POSITION_QUERY = "select " +
+        DBHelper.SEARCH_REBUILD_LAST_ID + " from " + DBHelper.SEARCH_REBUILD_TABLE_NAME;
+
+    private static final String SEARCH_REBUILD_NEXT_SELECTION = EmailContent.RECORD_ID + ">?";
+
+    private static final String SEARCH_REBUILD_REMAINING_QUERY = "select count(*) from (select 1" +
+        " from " + Message.TABLE_NAME + " where " + SEARCH_REBUILD_NEXT_SELECTION + " limit 1)";
+
+    // The number of messages indexed in each transaction of a rebuild of the full-text index
+    private static final int SEARCH_REBUILD_BATCH_SIZE = 200;
+
+    // The number of hits in each message, i.e. the occurrences of the query's words in its
+    // columns (every word matches, or the message isn't found); offsets() lists 4 numbers for each
+    private static final String SEARCH_HIT_COUNT = "(length(offsets(" +
+        Message.SEARCH_TABLE_NAME + ")) - length(replace(offsets(" + Message.SEARCH_TABLE_NAME +
+        "), ' ', '')) + 1) / 4";
+
+    private static final String SEARCH_QUERY_FROM = " from " + Message.TABLE_NAME +
+        " join (select docid, " + SEARCH_HIT_COUNT + " as hits from " +
+        Message.SEARCH_TABLE_NAME + " where " + Message.SEARCH_TABLE_NAME + " match ?)" +
+        " on " + EmailContent.RECORD_ID + "=docid";
+
+    private static final String SEARCH_ORDER = "hits desc, " + Message.KEY_TIMESTAMP_DESC;
+
     private static final ContentValues CONTENT_VALUES_RESET_NEW_MESSAGE_COUNT;
 
     public static final String MESSAGE_URI_PARAMETER_MAILBOX_ID = "mailboxId";
@@ -334,6 +401,8 @@ public class EmailProvider extends ContentProvider {
         // A specific message
         // insert into this URI causes an attachment to be added to the message
         matcher.addURI(EmailContent.AUTHORITY, "message/#", MESSAGE_ID);
+        // Full-text search of the messages (query only)
+        matcher.addURI(EmailContent.AUTHORITY, "messageSearch", MESSAGE_SEARCH);
 
         // A specific attachment
         matcher.addURI(EmailContent.AUTHORITY, "attachment", ATTACHMENT);
@@ -434,6 +503,9 @@ public class EmailProvider extends ContentProvider {
 
     private SQLiteDatabase mDatabase;
     private SQLiteDatabase mBodyDatabase;
+    /** The notifications held back by a batch being applied on this thread, if any */
+    private final ThreadLocal<BatchNotifications> mBatchNotifications =
+        new ThreadLocal<BatchNotifications>();
 
     public static Uri uiUri(String type, long id) {
         return Uri.parse(uiUriString(type, id));
@@ -462,6 +534,260 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the id of the last message indexed by an unfinished rebuild of the full-text index,
+     * or -1 if the index isn't being rebuilt
+     */
+    private static long getSearchIndexRebuildPosition(SQLiteDatabase db) {
+        Cursor c = db.rawQuery(SEARCH_REBUILD_POSITION_QUERY, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Whether the full-text index is still to be filled from some of the messages; if it's being
+     * rebuilt, but there are no messages left to index, finishes the rebuild
+     */
+    private static boolean isSearchIndexRebuildNeeded(SQLiteDatabase db) {
+        long position = getSearchIndexRebuildPosition(db);
+        if (position < 0) {
+            return false;
+        }
+        if (DatabaseUtils.longForQuery(db, SEARCH_REBUILD_REMAINING_QUERY,
+                new String[] {Long.toString(position)}) > 0) {
+            return true;
+        }
+        db.delete(DBHelper.SEARCH_REBUILD_TABLE_NAME, null, null);
+        return false;
+    }
+
+    /**
+     * Indexes the messages for full-text search when the index is new, a batch at a time, each
+     * in its own transaction, so that other writers aren't held up for long.  The position is
+     * saved with each batch, so a rebuild cut short by the process dying resumes where it
+     * stopped the next time the database is opened.
+     */
+    @VisibleForTesting
+    static void rebuildSearchIndex(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        while (true) {
+            db.beginTransaction();
+            try {
+                long position = getSearchIndexRebuildPosition(db);
+                if (position < 0) {
+                    break;
+                }
+                StringBuilder ids = new StringBuilder();
+                Cursor c = db.query(Message.TABLE_NAME, EmailContent.ID_PROJECTION,
+                        SEARCH_REBUILD_NEXT_SELECTION, new String[] {Long.toString(position)},
+                        null, null, EmailContent.RECORD_ID,
+                        Integer.toString(SEARCH_REBUILD_BATCH_SIZE));
+                try {
+                    while (c.moveToNext()) {
+                        if (ids.length() > 0) {
+                            ids.append(',');
+                        }
+                        position = c.getLong(EmailContent.ID_PROJECTION_COLUMN);
+                        ids.append(position);
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+                if (ids.length() == 0) {
+                    db.delete(DBHelper.SEARCH_REBUILD_TABLE_NAME, null, null);
+                    db.setTransactionSuccessful();
+                    break;
+                }
+                indexMessages(db, EmailContent.RECORD_ID + " in (" + ids + ')', null);
+                ContentValues cv = new ContentValues();
+                cv.put(DBHelper.SEARCH_REBUILD_LAST_ID, position);
+                db.update(DBHelper.SEARCH_REBUILD_TABLE_NAME, cv, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        Log.d(TAG, "Rebuilt the search index (" + count + " messages) in " +
+                (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * (Re)indexes a message for full-text search, or, while a batch is being applied on this
+     * thread, once the batch is done; a message and its body are often written in the same batch.
+     */
+    private void indexMessage(SQLiteDatabase db, String messageId) {
+        final BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.mMessagesToIndex.add(Long.valueOf(messageId));
+        } else {
+            indexMessages(db, ID_EQUALS, new String[] {messageId});
+        }
+    }
+
+    /**
+     * (Re)indexes the given messages for full-text search, with their bodies.  The text of
+     * HTML-only bodies is indexed, without the markup.
+     *
+     * @param db the EmailProvider database, with the body database attached
+     * @param where a selection on the Message table
+     * @param whereArgs the arguments of the selection
+     */
+    private static void indexMessages(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.rawQuery(SEARCH_INDEX_QUERY + where, whereArgs);
+        try {
+            if (c.getCount() == 0) {
+                return;
+            }
+            SQLiteStatement insert = db.compileStatement(SEARCH_INDEX_INSERT);
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    String body = c.getString(7);
+                    if (body == null) {
+                        String html = c.getString(8);
+                        if (html != null) {
+                            body = TextUtilities.makeTextFromHtmlText(html);
+                        }
+                    }
+                    db.execSQL(SEARCH_INDEX_DELETE + id);
+                    insert.bindLong(1, id);
+                    DatabaseUtils.bindObjectToProgram(insert, 2, c.getString(1));
+                    DatabaseUtils.bindObjectToProgram(insert, 3,
+                            joinNonNull(c.getString(2), c.getString(3)));
+                    DatabaseUtils.bindObjectToProgram(insert, 4,
+                            joinNonNull(joinNonNull(c.getString(4), c.getString(5)),
+                                    c.getString(6)));
+                    DatabaseUtils.bindObjectToProgram(insert, 5, body);
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String joinNonNull(String a, String b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a + ' ' + b;
+    }
+
+    /**
+     * Whether an update of a message with these values changes its full-text index entry
+     */
+    private static boolean isSearchIndexed(ContentValues values) {
+        for (String column : SEARCH_INDEX_MESSAGE_COLUMNS) {
+            if (values.containsKey(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether an update of a body with these values changes its message's full-text index entry
+     */
+    private static boolean isBodySearchIndexed(ContentValues values) {
+        return values.containsKey(BodyColumns.TEXT_CONTENT)
+                || values.containsKey(BodyColumns.HTML_CONTENT);
+    }
+
+    /**
+     * Returns the ids in the given column of the rows of a table matching a selection, in a form
+     * for "in (...)"; or null if no rows match
+     */
+    private static String getIdList(SQLiteDatabase db, String table, String column,
+            String selection, String[] selectionArgs) {
+        Cursor c = db.query(table, new String[] {column}, selection, selectionArgs, null, null,
+                null);
+        try {
+            if (c.getCount() == 0) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            while (c.moveToNext()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(c.getLong(0));
+            }
+            return sb.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Turns the words of a user's search into an FTS match expression: each word becomes a
+     * quoted prefix phrase, so that the search can't be malformed, and all must match.  Words
+     * without letters or digits are dropped, since the index doesn't have them.
+     *
+     * @return the match expression, or null if there is nothing to search for
+     */
+    @VisibleForTesting
+    static String buildSearchMatch(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String word : query.split("\\s+")) {
+            word = word.replace('"', ' ').replace('*', ' ').trim();
+            boolean searchable = false;
+            for (int i = 0; i < word.length() && !searchable; i++) {
+                searchable = Character.isLetterOrDigit(word.charAt(i));
+            }
+            if (!searchable) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(word).append("*\"");
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
+    /**
+     * Queries the full-text index; see {@link Message#buildSearchUri}.  Unless a sort order is
+     * given, the messages with the most occurrences of the words come first, and then the newest.
+     */
+    private Cursor searchQuery(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, String limit) {
+        String match = buildSearchMatch(uri.getQueryParameter(Message.SEARCH_PARAMETER_QUERY));
+        if (match == null) {
+            return new MatrixCursor(
+                    (projection != null) ? projection : Message.CONTENT_PROJECTION, 0);
+        }
+        StringBuilder sql = new StringBuilder("select ");
+        if (projection == null) {
+            sql.append(Message.TABLE_NAME).append(".*");
+        } else {
+            sql.append(TextUtils.join(", ", projection));
+        }
+        sql.append(SEARCH_QUERY_FROM);
+        if (selection != null) {
+            sql.append(" where ").append(selection);
+        }
+        sql.append(" order by ").append((sortOrder != null) ? sortOrder : SEARCH_ORDER);
+        if (limit != null) {
+            sql.append(" limit ").append(limit);
+        }
+        int argCount = (selectionArgs != null) ? selectionArgs.length : 0;
+        String[] args = new String[argCount + 1];
+        args[0] = match;
+        if (argCount > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, argCount);
+        }
+        return db.rawQuery(sql.toString(), args);
+    }
+
     @VisibleForTesting
     synchronized SQLiteDatabase getDatabase(Context context) {
         // Always return the cached database, if we've got one
@@ -495,6 +821,22 @@ public class EmailProvider extends ContentProvider {
                 Account.TABLE_NAME);
         deleteUnlinked(mDatabase, Policy.TABLE_NAME, PolicyColumns.ID, AccountColumns.POLICY_KEY,
                 Account.TABLE_NAME);
+        // Fill the full-text index if it's new, or if filling it was cut short; on a large
+        // mailbox this takes a while, so it's done in the background
+        if (isSearchIndexRebuildNeeded(mDatabase)) {
+            final SQLiteDatabase db = mDatabase;
+            Utility.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rebuildSearchIndex(db);
+                    } catch (RuntimeException e) {
+                        // e.g. the database was closed; the rebuild resumes on the next open
+                        Log.w(TAG, "Exception rebuilding the search index", e);
+                    }
+                }
+            });
+        }
         preCacheData();
         return mDatabase;
     }
@@ -699,7 +1041,6 @@ public class EmailProvider extends ContentProvider {
         int table = match >> BASE_SHIFT;
         String id = "0";
         boolean messageDeletion = false;
-        ContentResolver resolver = context.getContentResolver();
 
         ContentCache cache = mContentCaches[table];
         String tableName = TABLE_NAMES[table];
@@ -816,6 +1157,16 @@ public class EmailProvider extends ContentProvider {
                             cache.invalidate("Delete", uri, selection);
                             break;
                     }
+                    if (match == MESSAGE) {
+                        // Remove the messages from the full-text index while we can find them
+                        String sql = SEARCH_INDEX_DELETE_MESSAGES +
+                                ((selection != null) ? " where " + selection : "") + ')';
+                        if (selectionArgs != null) {
+                            db.execSQL(sql, selectionArgs);
+                        } else {
+                            db.execSQL(sql);
+                        }
+                    }
                     result = db.delete(tableName, selection, selectionArgs);
                     switch(match) {
                         case ACCOUNT:
@@ -836,8 +1187,20 @@ public class EmailProvider extends ContentProvider {
                     // Delete the Body record associated with the deleted message
                     db.execSQL(DELETE_BODY + id);
                 } else {
-                    // Delete any orphaned Body records
-                    db.execSQL(DELETE_ORPHAN_BODIES);
+                    // Delete any orphaned Body records, once the batch is done if there's one;
+                    // a batch may delete many messages, a chunk of them at a time
+                    final BatchNotifications batch = mBatchNotifications.get();
+                    if (batch != null) {
+                        batch.mDeleteOrphanBodies = true;
+                    } else {
+                        db.execSQL(DELETE_ORPHAN_BODIES);
+                    }
+                }
+                if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
+                    db.execSQL(SEARCH_INDEX_DELETE + id);
+                } else if (match != MESSAGE) {
+                    // Messages were deleted by trigger (e.g. with their mailbox)
+                    db.execSQL(DELETE_ORPHAN_SEARCH_INDEX);
                 }
                 db.setTransactionSuccessful();
             }
@@ -854,7 +1217,7 @@ public class EmailProvider extends ContentProvider {
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
 
         // Notify all email content cursors
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return result;
     }
 
@@ -882,6 +1245,7 @@ public class EmailProvider extends ContentProvider {
                 return mimeType;
             case UPDATED_MESSAGE:
             case MESSAGE:
+            case MESSAGE_SEARCH:
                 return "vnd.android.cursor.dir/email-message";
             case MAILBOX:
                 return "vnd.android.cursor.dir/email-mailbox";
@@ -909,7 +1273,6 @@ public class EmailProvider extends ContentProvider {
     public Uri insert(Uri uri, ContentValues values) {
         int match = findMatch(uri, "insert");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
 
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
@@ -943,6 +1306,14 @@ public class EmailProvider extends ContentProvider {
                     longId = db.insert(TABLE_NAMES[table], "foo", values);
                     resultUri = ContentUris.withAppendedId(uri, longId);
                     switch(match) {
+                        case MESSAGE:
+                            indexMessage(db, Long.toString(longId));
+                            break;
+                        case BODY:
+                            if (values.containsKey(BodyColumns.MESSAGE_KEY)) {
+                                indexMessage(db, values.getAsString(BodyColumns.MESSAGE_KEY));
+                            }
+                            break;
                         case MAILBOX:
                             if (values.containsKey(MailboxColumns.TYPE)) {
                                 // Only cache special mailbox types
@@ -1018,7 +1389,7 @@ public class EmailProvider extends ContentProvider {
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
 
         // Notify all existing cursors.
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return resultUri;
     }
 
@@ -1115,6 +1486,12 @@ public class EmailProvider extends ContentProvider {
                 case MAILBOX_MOST_RECENT_MESSAGE:
                     c = mostRecentMessageQuery(uri);
                     return c;
+                case MESSAGE_SEARCH:
+                    // Not a query of the message cache
+                    cache = null;
+                    c = searchQuery(db, uri, projection, selection, selectionArgs, sortOrder,
+                            limit);
+                    break;
                 case ACCOUNT_DEFAULT_ID:
                     // Start with a snapshot of the cache
                     Map<String, Cursor> accountCache = mCacheAccount.getSnapshot();
@@ -1453,7 +1830,6 @@ public class EmailProvider extends ContentProvider {
 
         int match = findMatch(uri, "update");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
         int table = match >> BASE_SHIFT;
@@ -1549,6 +1925,12 @@ outer:
                             cache.unlock(id, values);
                         }
                     }
+                    if ((match == MESSAGE_ID || match == SYNCED_MESSAGE_ID)
+                            && isSearchIndexed(values)) {
+                        indexMessage(db, id);
+                    } else if (match == BODY_ID && isBodySearchIndexed(values)) {
+                        indexMessages(db, SEARCH_INDEX_WHERE_BODY_ID, new String[] {id});
+                    }
                     if (match == ATTACHMENT_ID) {
                         long attId = Integer.parseInt(id);
                         if (values.containsKey(Attachment.FLAGS)) {
@@ -1596,7 +1978,21 @@ outer:
                             cache.invalidate("Update", uri, selection);
                             //$FALL-THROUGH$
                         default:
+                            // Find the messages to reindex before the update, which might change
+                            // what the selection matches
+                            String reindexIds = null;
+                            if (match == MESSAGE && isSearchIndexed(values)) {
+                                reindexIds = getIdList(db, tableName, EmailContent.RECORD_ID,
+                                        selection, selectionArgs);
+                            } else if (match == BODY && isBodySearchIndexed(values)) {
+                                reindexIds = getIdList(db, tableName, BodyColumns.MESSAGE_KEY,
+                                        selection, selectionArgs);
+                            }
                             result = db.update(tableName, values, selection, selectionArgs);
+                            if (reindexIds != null) {
+                                indexMessages(db, EmailContent.RECORD_ID + " in (" + reindexIds +
+                                        ')', null);
+                            }
                             break outer;
                     }
                 case ACCOUNT_RESET_NEW_COUNT_ID:
@@ -1640,7 +2036,7 @@ outer:
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
 
-        resolver.notifyChange(notificationUri, null);
+        notifyChange(notificationUri);
         return result;
     }
 
@@ -1694,6 +2090,16 @@ outer:
             longId = Long.valueOf(id);
         } catch (NumberFormatException ignore) {}
 
+        final BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            // Observers of the base URI (with or without the op) hear about the whole batch once
+            batch.mUris.add(uri);
+            if (baseUri.equals(Message.NOTIFIER_URI)) {
+                batch.mMessageListChanged = true;
+            }
+            return;
+        }
+
         final ContentResolver resolver = getContext().getContentResolver();
         if (longId > 0) {
             resolver.notifyChange(ContentUris.withAppendedId(uri, longId), null);
@@ -1707,6 +2113,30 @@ outer:
         }
     }
 
+    /**
+     * Notifies the observers of a URI, or, while a batch is being applied on this thread, holds
+     * the notification back until the batch is done.
+     */
+    private void notifyChange(Uri uri) {
+        final BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.mUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * The change notifications, the messages to index and the clean-up of orphaned bodies, held
+     * back while a batch is applied (see {@link #applyBatch}).
+     */
+    private static class BatchNotifications {
+        final LinkedHashSet<Uri> mUris = new LinkedHashSet<Uri>();
+        boolean mMessageListChanged;
+        final HashSet<Long> mMessagesToIndex = new HashSet<Long>();
+        boolean mDeleteOrphanBodies;
+    }
+
     private void sendMessageListDataChangedNotification() {
         final Context context = getContext();
         final Intent intent = new Intent(ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED);
@@ -1721,13 +2151,44 @@ outer:
             throws OperationApplicationException {
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
+        // Each distinct change notification is sent once, after the whole batch
+        final boolean outermost = mBatchNotifications.get() == null;
+        if (outermost) {
+            mBatchNotifications.set(new BatchNotifications());
+        }
+        boolean succeeded = false;
         db.beginTransaction();
         try {
             ContentProviderResult[] results = super.applyBatch(operations);
+            if (outermost) {
+                final BatchNotifications batch = mBatchNotifications.get();
+                if (batch.mDeleteOrphanBodies) {
+                    db.execSQL(DELETE_ORPHAN_BODIES);
+                }
+                if (!batch.mMessagesToIndex.isEmpty()) {
+                    indexMessages(db, EmailContent.RECORD_ID + " in (" +
+                            TextUtils.join(",", batch.mMessagesToIndex) + ')', null);
+                }
+            }
             db.setTransactionSuccessful();
+            succeeded = true;
             return results;
         } finally {
+            final BatchNotifications batch = mBatchNotifications.get();
+            if (outermost) {
+                mBatchNotifications.remove();
+            }
             db.endTransaction();
+            // A batch that failed was rolled back, so there's nothing to notify
+            if (outermost && succeeded) {
+                final ContentResolver resolver = context.getContentResolver();
+                for (Uri uri : batch.mUris) {
+                    resolver.notifyChange(uri, null);
+                }
+                if (batch.mMessageListChanged) {
+                    sendMessageListDataChangedNotification();
+                }
+            }
         }
     }
 
@@ -1743,8 +2204,7 @@ outer:
         int table = match >> BASE_SHIFT;
         ContentCache cache = mContentCaches[table];
         if (cache == null) return false;
-        Cursor cc = cache.get(Long.toString(id));
-        return (cc != null);
+        return cache.get(Long.toString(id)) != null;
     }
 
     public static interface AttachmentService {
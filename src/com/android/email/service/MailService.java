@@ -38,6 +38,7 @@ import com.android.email.Controller;
 import com.android.email.Email;
 import com.android.email.Preferences;
 import com.android.email.SingleRunningTask;
+import com.android.email.mail.store.ImapPusher;
 import com.android.email.provider.AccountReconciler;
 import com.android.emailcommon.AccountManagerTypes;
 import com.android.emailcommon.mail.MessagingException;
@@ -50,6 +51,8 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -79,6 +82,10 @@ public class MailService extends Service {
     /** Time between watchdog checks; in milliseconds */
     private static final long WATCHDOG_DELAY = 10 * 60 * 1000;   // 10 minutes
 
+    /** Polling interval for push accounts whose server can't push; in minutes */
+    @VisibleForTesting
+    static final int PUSH_FALLBACK_INTERVAL = 15;
+
     /** Sentinel value asking to update mSyncReports if it's currently empty */
     @VisibleForTesting
     static final int SYNC_REPORTS_ALL_ACCOUNTS_IF_EMPTY = -1;
@@ -100,6 +107,16 @@ public class MailService extends Service {
     /*package*/ static HashMap<Long,AccountSyncReport> mSyncReports =
         new HashMap<Long,AccountSyncReport>();
 
+    /** Running IMAP IDLE pushers, by account id.  Access must be synchronized on mSyncReports. */
+    private static final HashMap<Long, ImapPusher> sPushers = new HashMap<Long, ImapPusher>();
+    /**
+     * Accounts set to push whose server turned out not to support it, with their incoming
+     * settings at the time; these are polled at {@link #PUSH_FALLBACK_INTERVAL} instead, until
+     * the settings change.  Access must be synchronized on mSyncReports.
+     */
+    @VisibleForTesting
+    static final HashMap<Long, HostAuth> sPushUnavailable = new HashMap<Long, HostAuth>();
+
     public static void actionReschedule(Context context) {
         Intent i = new Intent();
         i.setClass(context, MailService.class);
@@ -288,6 +305,12 @@ public class MailService extends Service {
         AlarmManager alarmMgr = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
         PendingIntent pi = createAlarmIntent(-1, null, false);
         alarmMgr.cancel(pi);
+        synchronized (mSyncReports) {
+            for (ImapPusher pusher : sPushers.values()) {
+                pusher.stop();
+            }
+            sPushers.clear();
+        }
     }
 
     /**
@@ -373,7 +396,95 @@ public class MailService extends Service {
                             + " for " + nextAccount);
                 }
             }
+
+            updatePushersLocked();
+        }
+    }
+
+    /**
+     * Starts an IDLE pusher for each account set to push, and stops the pushers of accounts that
+     * no longer are.  Must be synchronized on mSyncReports.
+     */
+    private void updatePushersLocked() {
+        final boolean masterSync = ContentResolver.getMasterSyncAutomatically();
+        final HashSet<Long> pushAccounts = new HashSet<Long>();
+        for (AccountSyncReport report : mSyncReports.values()) {
+            if (masterSync && report.syncEnabled
+                    && report.syncInterval == Account.CHECK_INTERVAL_PUSH) {
+                pushAccounts.add(report.accountId);
+            }
+        }
+        final Iterator<ImapPusher> iterator = sPushers.values().iterator();
+        while (iterator.hasNext()) {
+            final ImapPusher pusher = iterator.next();
+            if (!pushAccounts.contains(pusher.getAccountId())) {
+                pusher.stop();
+                iterator.remove();
+            }
+        }
+        for (long accountId : pushAccounts) {
+            if (!sPushers.containsKey(accountId)) {
+                if (Email.DEBUG) {
+                    Log.d(LOG_TAG, "starting push for account " + accountId);
+                }
+                final ImapPusher pusher =
+                        new ImapPusher(this, accountId, new PushCallback(getApplicationContext()));
+                sPushers.put(accountId, pusher);
+                pusher.start();
+            }
+        }
+    }
+
+    /**
+     * Syncs the inbox when an {@link ImapPusher} reports a change, and falls back to polling
+     * when it can't push.
+     */
+    private static class PushCallback implements ImapPusher.Callback {
+        private final Context mContext;
+
+        PushCallback(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public void onMailboxChanged(long accountId) {
+            long inboxId = Mailbox.findMailboxOfType(mContext, accountId, Mailbox.TYPE_INBOX);
+            if (inboxId != Mailbox.NO_MAILBOX) {
+                Controller.getInstance(mContext).updateMailbox(accountId, inboxId, false);
+            }
+        }
+
+        @Override
+        public void onPushUnavailable(long accountId) {
+            Account account = Account.restoreAccountWithId(mContext, accountId);
+            HostAuth recvAuth = (account == null) ? null
+                    : HostAuth.restoreHostAuthWithId(mContext, account.mHostAuthKeyRecv);
+            synchronized (mSyncReports) {
+                if (recvAuth != null) {
+                    sPushUnavailable.put(accountId, recvAuth);
+                }
+                sPushers.remove(accountId);
+            }
+            actionReschedule(mContext);
+        }
+    }
+
+    /**
+     * Whether an account set to push is known to be unable to.  The account is given another
+     * chance to push if its incoming settings have changed since, e.g. to another server or
+     * with a new password.  Must be synchronized on mSyncReports.
+     */
+    private static boolean isPushUnavailableLocked(Context context, Account account) {
+        HostAuth unavailableAuth = sPushUnavailable.get(account.mId);
+        if (unavailableAuth == null) {
+            return false;
+        }
+        if (unavailableAuth.equals(
+                HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv))) {
+            return true;
         }
+        sPushUnavailable.remove(account.mId);
+        return false;
     }
 
     /**
@@ -531,6 +642,13 @@ public class MailService extends Service {
                     syncInterval = Account.CHECK_INTERVAL_NEVER;
                 } else if (oneMinuteRefresh && syncInterval >= 0) {
                     syncInterval = 1;
+                } else if (syncInterval == Account.CHECK_INTERVAL_PUSH
+                        && isPushUnavailableLocked(context, account)) {
+                    syncInterval = PUSH_FALLBACK_INTERVAL;
+                }
+                if (account.mSyncInterval != Account.CHECK_INTERVAL_PUSH) {
+                    // Push is tried again if it's turned off and back on
+                    sPushUnavailable.remove(account.mId);
                 }
 
                 report.accountId = account.mId;
@@ -552,6 +670,10 @@ public class MailService extends Service {
         } finally {
             c.close();
         }
+        if (accountId == SYNC_REPORTS_ALL_ACCOUNTS_IF_EMPTY) {
+            // Forget the accounts that have been deleted
+            sPushUnavailable.keySet().retainAll(mSyncReports.keySet());
+        }
     }
 
     /**
@@ -33,7 +33,6 @@ import android.util.Log;
 import com.android.email.Controller;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.AccountColumns;
-import com.android.emailcommon.provider.Mailbox;
 
 public class PopImapSyncAdapterService extends Service {
     private static final String TAG = "PopImapSyncService";
@@ -94,14 +93,10 @@ public class PopImapSyncAdapterService extends Service {
                         EmailContent.ID_PROJECTION, AccountColumns.EMAIL_ADDRESS + "=?",
                         new String[] {emailAddress}, null);
                 if (c != null && c.moveToNext()) {
-                    // If we have one, find the inbox and start it syncing
+                    // If we have one, start its inbox and other synced mailboxes syncing
                     long accountId = c.getLong(EmailContent.ID_PROJECTION_COLUMN);
-                    long mailboxId = Mailbox.findMailboxOfType(context, accountId,
-                            Mailbox.TYPE_INBOX);
-                    if (mailboxId > 0) {
-                        Log.d(TAG, "Starting manual sync for account " + emailAddress);
-                        Controller.getInstance(context).updateMailbox(accountId, mailboxId, false);
-                    }
+                    Log.d(TAG, "Starting manual sync for account " + emailAddress);
+                    Controller.getInstance(context).updateAllMailboxes(accountId);
                 }
             } finally {
                 if ( c != null) {
@@ -16,14 +16,35 @@
 
 package com.android.email;
 
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessageTestUtils;
+import com.android.emailcommon.mail.MessageTestUtils.MessageBuilder;
+import com.android.emailcommon.mail.MessageTestUtils.MultipartBuilder;
+import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.MockFolder;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.Mailbox;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This is a series of unit tests for the MessagingController class.
  * 
@@ -72,6 +93,269 @@ public class MessagingControllerUnitTests extends AndroidTestCase {
         }
     }
 
+    /**
+     * Test that a batch of downloaded messages is written with their bodies and attachments,
+     * and that the new messages get their ids.
+     */
+    public void testMessageBatch() throws MessagingException {
+        createTestAccount();
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("inbox", mAccountId, true, getContext());
+        MessagingController controller = MessagingController.getInstance(getContext(),
+                Controller.getInstance(getContext()));
+
+        MessagingController.MessageBatch batch = controller.new MessageBatch();
+        EmailContent.Message[] localMessages = new EmailContent.Message[3];
+        for (int i = 0; i < localMessages.length; i++) {
+            Message message = new MessageBuilder()
+                    .setBody(new MultipartBuilder("multipart/mixed")
+                            .addBodyPart(MessageTestUtils.textPart("text/plain", "Body " + i))
+                            .addBodyPart(MessageTestUtils.bodyPart("image/jpg", null))
+                            .build())
+                    .build();
+            message.setUid("UID" + i);
+            localMessages[i] = new EmailContent.Message();
+            localMessages[i].mAccountKey = mAccountId;
+            localMessages[i].mMailboxKey = mailbox.mId;
+            batch.addMessage(message, localMessages[i],
+                    EmailContent.Message.FLAG_LOADED_COMPLETE);
+            // Nothing is written until the batch is
+            assertFalse(localMessages[i].isSaved());
+        }
+        batch.flush();
+
+        for (int i = 0; i < localMessages.length; i++) {
+            long messageId = localMessages[i].mId;
+            EmailContent.Message message =
+                    EmailContent.Message.restoreMessageWithId(getContext(), messageId);
+            assertNotNull(message);
+            assertEquals("UID" + i, message.mServerId);
+            assertEquals(EmailContent.Message.FLAG_LOADED_COMPLETE, message.mFlagLoaded);
+            assertTrue(message.mFlagAttachment);
+            assertEquals("Body " + i,
+                    EmailContent.Body.restoreBodyTextWithMessageId(getContext(), messageId));
+            Uri uri = ContentUris.withAppendedId(Attachment.MESSAGE_ID_URI, messageId);
+            assertEquals(1, EmailContent.count(getContext(), uri, null, null));
+        }
+    }
+
+    /**
+     * Test that when a batch can't be written, its messages are written one at a time, each with
+     * a single body and its attachments.
+     */
+    public void testMessageBatchFallback() throws MessagingException {
+        createTestAccount();
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("inbox", mAccountId, true, getContext());
+        MessagingController controller = MessagingController.getInstance(getContext(),
+                Controller.getInstance(getContext()));
+
+        MessagingController.MessageBatch batch = controller.new MessageBatch() {
+            @Override
+            ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+                    throws OperationApplicationException {
+                throw new OperationApplicationException("Batch failed");
+            }
+        };
+        Message message = new MessageBuilder()
+                .setBody(new MultipartBuilder("multipart/mixed")
+                        .addBodyPart(MessageTestUtils.textPart("text/plain", "Body"))
+                        .addBodyPart(MessageTestUtils.bodyPart("image/jpg", null))
+                        .build())
+                .build();
+        message.setUid("UID");
+        EmailContent.Message localMessage = new EmailContent.Message();
+        localMessage.mAccountKey = mAccountId;
+        localMessage.mMailboxKey = mailbox.mId;
+        batch.addMessage(message, localMessage, EmailContent.Message.FLAG_LOADED_COMPLETE);
+        batch.flush();
+
+        assertTrue(localMessage.isSaved());
+        long messageId = localMessage.mId;
+        assertEquals(EmailContent.Message.FLAG_LOADED_COMPLETE,
+                EmailContent.Message.restoreMessageWithId(getContext(), messageId).mFlagLoaded);
+        assertEquals(1, EmailContent.count(getContext(), EmailContent.Body.CONTENT_URI,
+                EmailContent.BodyColumns.MESSAGE_KEY + "=?",
+                new String[] { Long.toString(messageId) }));
+        assertEquals("Body",
+                EmailContent.Body.restoreBodyTextWithMessageId(getContext(), messageId));
+        Uri uri = ContentUris.withAppendedId(Attachment.MESSAGE_ID_URI, messageId);
+        assertEquals(1, EmailContent.count(getContext(), uri, null, null));
+    }
+
+    /**
+     * Test that deleting local messages in bulk takes their bodies, attachments, and the rows
+     * of the updates and deletes tables with them, and nothing else.
+     */
+    public void testDeleteLocalMessages() throws MessagingException {
+        createTestAccount();
+        Context context = getContext();
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("inbox", mAccountId, true, context);
+        EmailContent.Message updated = ProviderTestUtils.setupMessage("updated", mAccountId,
+                mailbox.mId, true, true, context);
+        EmailContent.Message deleted = ProviderTestUtils.setupMessage("deleted", mAccountId,
+                mailbox.mId, true, true, context);
+        EmailContent.Message kept = ProviderTestUtils.setupMessage("kept", mAccountId,
+                mailbox.mId, true, true, context);
+        ProviderTestUtils.setupAttachment(updated.mId, "a", 100, true, context);
+        ProviderTestUtils.setupAttachment(kept.mId, "b", 100, true, context);
+
+        // Leave a row in the updates table, and one in the deletes table
+        ContentResolver resolver = context.getContentResolver();
+        ContentValues cv = new ContentValues();
+        cv.put(EmailContent.MessageColumns.FLAG_READ, false);
+        resolver.update(ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI,
+                updated.mId), cv, null, null);
+        resolver.delete(ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI,
+                deleted.mId), null, null);
+        String where = EmailContent.RECORD_ID + " in (" + updated.mId + "," + deleted.mId + ")";
+        assertEquals(1, EmailContent.count(context, EmailContent.Message.UPDATED_CONTENT_URI,
+                where, null));
+        assertEquals(1, EmailContent.count(context, EmailContent.Message.DELETED_CONTENT_URI,
+                where, null));
+
+        ArrayList<Long> messageIds = new ArrayList<Long>();
+        messageIds.add(updated.mId);
+        messageIds.add(deleted.mId);
+        MessagingController.deleteLocalMessages(resolver, messageIds);
+
+        assertNull(EmailContent.Message.restoreMessageWithId(context, updated.mId));
+        assertNull(EmailContent.Body.restoreBodyWithMessageId(context, updated.mId));
+        assertNull(EmailContent.Body.restoreBodyWithMessageId(context, deleted.mId));
+        assertEquals(0, EmailContent.count(context,
+                ContentUris.withAppendedId(Attachment.MESSAGE_ID_URI, updated.mId), null, null));
+        assertEquals(0, EmailContent.count(context, EmailContent.Message.UPDATED_CONTENT_URI,
+                where, null));
+        assertEquals(0, EmailContent.count(context, EmailContent.Message.DELETED_CONTENT_URI,
+                where, null));
+
+        // The other message is untouched
+        assertNotNull(EmailContent.Message.restoreMessageWithId(context, kept.mId));
+        assertNotNull(EmailContent.Body.restoreBodyWithMessageId(context, kept.mId));
+        assertEquals(1, EmailContent.count(context,
+                ContentUris.withAppendedId(Attachment.MESSAGE_ID_URI, kept.mId), null, null));
+    }
+
+    private static Mailbox createFolder(long id, int type) {
+        Mailbox folder = new Mailbox();
+        folder.mId = id;
+        folder.mType = type;
+        folder.mDisplayName = "folder" + id;
+        return folder;
+    }
+
+    private static ArrayList<Mailbox> createFolders(int count) {
+        ArrayList<Mailbox> folders = new ArrayList<Mailbox>();
+        for (int i = 0; i < count; i++) {
+            folders.add(createFolder(i, Mailbox.TYPE_MAIL));
+        }
+        return folders;
+    }
+
+    /**
+     * Test that the inbox is synced first, the other folders in the given order, and never the
+     * outbox
+     */
+    public void testGetFoldersToSync() {
+        ArrayList<Mailbox> folders = new ArrayList<Mailbox>();
+        folders.add(createFolder(1, Mailbox.TYPE_SENT));
+        folders.add(createFolder(2, Mailbox.TYPE_OUTBOX));
+        folders.add(createFolder(3, Mailbox.TYPE_MAIL));
+        folders.add(createFolder(4, Mailbox.TYPE_INBOX));
+        folders.add(createFolder(5, Mailbox.TYPE_DRAFTS));
+
+        ArrayList<Mailbox> queue = MessagingController.getFoldersToSync(folders);
+        assertEquals(4, queue.size());
+        assertEquals(4, queue.get(0).mId);
+        assertEquals(1, queue.get(1).mId);
+        assertEquals(3, queue.get(2).mId);
+        assertEquals(5, queue.get(3).mId);
+    }
+
+    /**
+     * Test that, one at a time, the folders are synced in order on the calling thread
+     */
+    public void testRunOnFoldersSerial() {
+        final ArrayList<Mailbox> folders = createFolders(5);
+        final ArrayList<Long> synced = new ArrayList<Long>();
+        final Thread caller = Thread.currentThread();
+        MessagingController.runOnFolders(folders, 1, new MessagingController.FolderTask() {
+            public void run(Mailbox folder) {
+                assertSame(caller, Thread.currentThread());
+                synced.add(folder.mId);
+            }
+        });
+        assertEquals(5, synced.size());
+        for (int i = 0; i < synced.size(); i++) {
+            assertEquals(i, (long) synced.get(i));
+        }
+    }
+
+    /**
+     * Test that no more folders than the limit are synced at the same time, and that the limit
+     * is reached
+     */
+    public void testRunOnFoldersParallel() {
+        final int maxThreads = 3;
+        final ArrayList<Mailbox> folders = createFolders(10);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger synced = new AtomicInteger();
+        // The first syncs wait for each other, so that they all run at once
+        final CountDownLatch started = new CountDownLatch(maxThreads);
+        MessagingController.runOnFolders(folders, maxThreads, new MessagingController.FolderTask() {
+            public void run(Mailbox folder) {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                started.countDown();
+                try {
+                    started.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Fall through; the counts are checked below
+                }
+                synced.incrementAndGet();
+                running.decrementAndGet();
+            }
+        });
+        assertEquals(10, synced.get());
+        assertEquals(maxThreads, maxRunning.get());
+        assertEquals(0, running.get());
+
+        // More threads than folders
+        synced.set(0);
+        MessagingController.runOnFolders(createFolders(2), 8, new MessagingController.FolderTask() {
+            public void run(Mailbox folder) {
+                synced.incrementAndGet();
+            }
+        });
+        assertEquals(2, synced.get());
+    }
+
+    /**
+     * Test that a folder whose sync fails doesn't keep the others from being synced
+     */
+    public void testRunOnFoldersFailure() {
+        final ArrayList<Mailbox> folders = createFolders(6);
+        for (int maxThreads = 1; maxThreads <= 3; maxThreads++) {
+            final HashSet<Long> synced = new HashSet<Long>();
+            MessagingController.runOnFolders(folders, maxThreads,
+                    new MessagingController.FolderTask() {
+                public void run(Mailbox folder) {
+                    if (folder.mId % 2 == 0) {
+                        throw new IllegalStateException("Sync failed");
+                    }
+                    synchronized (synced) {
+                        synced.add(folder.mId);
+                    }
+                }
+            });
+            assertEquals(3, synced.size());
+            assertTrue(synced.contains(1L));
+            assertTrue(synced.contains(3L));
+            assertTrue(synced.contains(5L));
+        }
+    }
+
     /**
      * Create a dummy account with minimal fields
      */
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SearchResultCache}.
+ */
+@SmallTest
+public class SearchResultCacheTest extends TestCase {
+    private static final long[] UIDS = new long[] {3, 2, 1};
+
+    private MockClock mClock;
+    private SearchResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new MockClock();
+        mCache = new SearchResultCache(mClock);
+    }
+
+    public void testKey() {
+        mCache.put(1, 2, "foo", UIDS);
+        assertSame(UIDS, mCache.get(1, 2, "foo"));
+        assertNull(mCache.get(9, 2, "foo"));
+        assertNull(mCache.get(1, 9, "foo"));
+        assertNull(mCache.get(1, 2, "bar"));
+
+        mCache.remove(1, 2, "foo");
+        assertNull(mCache.get(1, 2, "foo"));
+    }
+
+    public void testLeastRecentlyUsedEviction() {
+        for (int i = 0; i < SearchResultCache.MAX_ENTRIES; i++) {
+            mCache.put(1, i, "foo", UIDS);
+        }
+        // Use the first search, so that the second one is the least recently used
+        assertNotNull(mCache.get(1, 0, "foo"));
+        mCache.put(1, SearchResultCache.MAX_ENTRIES, "foo", UIDS);
+
+        assertEquals(SearchResultCache.MAX_ENTRIES, mCache.size());
+        assertNotNull(mCache.get(1, 0, "foo"));
+        assertNull(mCache.get(1, 1, "foo"));
+    }
+
+    public void testExpiry() {
+        mCache.put(1, 2, "foo", UIDS);
+        mClock.advance(SearchResultCache.MAX_AGE_MILLIS);
+        assertNotNull(mCache.get(1, 2, "foo"));
+        mClock.advance();
+        assertNull(mCache.get(1, 2, "foo"));
+        assertEquals(0, mCache.size());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import com.android.email.MockClock;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ImapConnectionPool}.
+ */
+@SmallTest
+public class ImapConnectionPoolTest extends TestCase {
+    private static final long MAX_IDLE = 1000;
+
+    private MockClock mClock;
+    private ImapConnectionPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new MockClock();
+        mPool = new ImapConnectionPool(2, MAX_IDLE, mClock);
+    }
+
+    private static ImapConnection newConnection() {
+        return new ImapConnection(null, "user", "password");
+    }
+
+    public void testMostRecentFirst() {
+        final ImapConnection con1 = newConnection();
+        final ImapConnection con2 = newConnection();
+        mPool.put(con1);
+        mPool.put(con2);
+
+        assertSame(con2, mPool.take());
+        assertSame(con1, mPool.take());
+        assertNull(mPool.take());
+    }
+
+    public void testMaxSize() {
+        final ImapConnection con1 = newConnection();
+        final ImapConnection con2 = newConnection();
+        final ImapConnection con3 = newConnection();
+        mPool.put(con1);
+        mPool.put(con2);
+        mPool.put(con3);
+
+        // The least recently pooled connection was evicted
+        assertEquals(2, mPool.size());
+        assertEquals(1, mPool.getEvictions());
+        assertSame(con3, mPool.take());
+        assertSame(con2, mPool.take());
+        assertNull(mPool.take());
+    }
+
+    public void testIdleEviction() {
+        final ImapConnection con1 = newConnection();
+        final ImapConnection con2 = newConnection();
+        mPool.put(con1);
+        mClock.advance(MAX_IDLE / 2);
+        mPool.put(con2);
+
+        // Only con1 has been idle for too long
+        mClock.advance(MAX_IDLE / 2 + 1);
+        assertSame(con2, mPool.take());
+        assertEquals(1, mPool.getEvictions());
+        assertEquals(0, mPool.size());
+
+        mPool.put(con2);
+        mClock.advance(MAX_IDLE + 1);
+        assertNull(mPool.take());
+        assertEquals(2, mPool.getEvictions());
+    }
+
+    public void testEvictAll() {
+        mPool.put(newConnection());
+        mPool.put(newConnection());
+        mPool.evictAll();
+
+        assertEquals(0, mPool.size());
+        assertEquals(2, mPool.getEvictions());
+        assertNull(mPool.take());
+    }
+
+    public void testCounters() {
+        assertFalse(mPool.hasBeenUsed());
+        mPool.recordMiss();
+        assertTrue(mPool.hasBeenUsed());
+
+        final ImapConnection connection = newConnection();
+        mPool.recordWarmUp();
+        mPool.put(connection);
+        mPool.take();
+        mPool.recordHit();
+        mPool.put(connection);
+        mPool.take();
+        mPool.recordHit();
+        mPool.put(connection);
+        mPool.discard(mPool.take());
+
+        assertEquals(2, mPool.getHits());
+        assertEquals(1, mPool.getMisses());
+        assertEquals(1, mPool.getEvictions());
+        // Two reuses, less the handshake spent on the warm-up
+        assertEquals(1, mPool.getHandshakesSaved());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.email.mail.Transport;
+import com.android.email.mail.transport.MockTransport;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.HostAuth;
+
+/**
+ * Tests of the IMAP IDLE pusher, against a MockTransport.
+ *
+ * To run these tests alone, use:
+ *   $ runtest -c com.android.email.mail.store.ImapPusherTest email
+ */
+@SmallTest
+public class ImapPusherTest extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 1;
+
+    private ImapStore mStore;
+    private MockTransport mTransport;
+    private ImapPusher mPusher;
+    private int mChanges;
+    private int mPushUnavailable;
+
+    /** Counts the calls, and stops the pusher after a given number of changes */
+    private class TestCallback implements ImapPusher.Callback {
+        private final int mStopAfter;
+
+        TestCallback(int stopAfter) {
+            mStopAfter = stopAfter;
+        }
+
+        @Override
+        public void onMailboxChanged(long accountId) {
+            assertEquals(ACCOUNT_ID, accountId);
+            if (++mChanges >= mStopAfter) {
+                mPusher.stop();
+            }
+        }
+
+        @Override
+        public void onPushUnavailable(long accountId) {
+            assertEquals(ACCOUNT_ID, accountId);
+            mPushUnavailable++;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        HostAuth testAuth = new HostAuth();
+        Account testAccount = new Account();
+        testAuth.setLogin("user", "password");
+        testAuth.setConnection("imap", "server", 999);
+        testAccount.mHostAuthRecv = testAuth;
+        mStore = (ImapStore) ImapStore.newInstance(testAccount, getContext());
+
+        mTransport = new MockTransport();
+        mTransport.setSecurity(Transport.CONNECTION_SECURITY_NONE, false);
+        mTransport.setHost("mock.server.com");
+        mStore.setTransportForTest(mTransport);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mPusher != null) {
+            mPusher.stop();
+        }
+        super.tearDown();
+    }
+
+    /** Expects the banner, CAPABILITY (tag 1) and LOGIN (tag 2) */
+    private void expectLogin(String capabilities) {
+        mTransport.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mTransport.expect("1 CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 " + capabilities,
+                "1 oK CAPABILITY completed"});
+        mTransport.expect("2 LOGIN user \"password\"", "2 oK user authenticated (Success)");
+    }
+
+    /** Returns an open connection to a server that can IDLE */
+    private ImapConnection openConnection() throws Exception {
+        expectLogin("iDLE");
+        ImapConnection connection = mStore.createConnection();
+        connection.open();
+        return connection;
+    }
+
+    /**
+     * Test that the pusher examines the inbox, reports a change to catch up, and then idles,
+     * ending IDLE with DONE as soon as the server reports a change
+     */
+    public void testPush() throws Exception {
+        mPusher = new ImapPusher(getContext(), ACCOUNT_ID, new TestCallback(2));
+        expectLogin("iDLE");
+        mTransport.expect("3 EXAMINE \"INBOX\"", new String[] {
+                "* 2 eXISTS",
+                "3 oK [rEAD-oNLY] INBOX selected. (Success)"});
+        mTransport.expect("4 IDLE", new String[] {"+ idling", "* 3 eXISTS"});
+        mTransport.expect("DONE", "4 oK IDLE terminated");
+
+        assertTrue(mPusher.push(mStore.createConnection()));
+        assertEquals(2, mChanges);
+        assertEquals(0, mPushUnavailable);
+    }
+
+    /**
+     * Test that a server without IDLE is reported, and not used any further
+     */
+    public void testPushUnavailable() throws Exception {
+        mPusher = new ImapPusher(getContext(), ACCOUNT_ID, new TestCallback(1));
+        // Anything more than the login would overflow the mock
+        expectLogin("sTARTTLS");
+
+        assertFalse(mPusher.push(mStore.createConnection()));
+        assertEquals(0, mChanges);
+        assertEquals(1, mPushUnavailable);
+    }
+
+    /**
+     * Test that changes to the messages of the mailbox end IDLE, and other responses don't
+     */
+    public void testIdleChanges() throws Exception {
+        mPusher = new ImapPusher(getContext(), ACCOUNT_ID, new TestCallback(1));
+        ImapConnection connection = openConnection();
+
+        mTransport.expect("3 IDLE", new String[] {"+ idling", "* 1 fETCH (fLAGS (\\Seen))"});
+        mTransport.expect("DONE", "3 oK IDLE terminated");
+        assertTrue(mPusher.idle(connection));
+
+        mTransport.expect("4 IDLE", new String[] {"+ idling", "* 1 eXPUNGE"});
+        mTransport.expect("DONE", "4 oK IDLE terminated");
+        assertTrue(mPusher.idle(connection));
+
+        // The server may end IDLE itself, e.g. before logging the client out; no DONE is sent
+        mTransport.expect("5 IDLE", new String[] {
+                "+ idling", "* oK Still here", "* 4 rECENT", "5 oK IDLE terminated"});
+        assertFalse(mPusher.idle(connection));
+    }
+
+    /**
+     * Test that a failed IDLE is reported
+     */
+    public void testIdleFailed() throws Exception {
+        mPusher = new ImapPusher(getContext(), ACCOUNT_ID, new TestCallback(1));
+        ImapConnection connection = openConnection();
+
+        mTransport.expect("3 IDLE", "3 bAD Unknown command");
+        try {
+            mPusher.idle(connection);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+    }
+}
@@ -36,7 +36,9 @@ import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapTestUtils;
 import com.android.email.mail.transport.MockTransport;
 import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.internet.FileBody;
 import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.internet.TextBody;
@@ -55,12 +57,16 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.regex.Pattern;
 
 /**
@@ -798,6 +804,181 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * Helper which stuffs the mock with a login and SELECT from a server with QRESYNC.
+     */
+    private void setupOpenFolderWithQresync(MockTransport mock, String highestModSeq) {
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 cONDSTORE qRESYNC",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        mock.expect(getNextTag(false) + " ENABLE QRESYNC", new String[] {
+                "* eNABLED qRESYNC",
+                getNextTag(true) + " oK enabled"});
+        mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_ENCODED + "\" \\(CONDSTORE\\)",
+                new String[] {
+                "* fLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
+                "* 3 eXISTS",
+                "* OK [uIDVALIDITY 67890]",
+                "* OK [hIGHESTMODSEQ " + highestModSeq + "]",
+                getNextTag(true) + " oK [rEAD-wRITE] " + FOLDER_ENCODED + " selected."});
+    }
+
+    /**
+     * Test that COMPRESS DEFLATE is negotiated right after login when the server supports it.
+     */
+    public void testCompressDeflate() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 cOMPRESS=dEFLATE",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        mock.expect(getNextTag(false) + " COMPRESS DEFLATE",
+                getNextTag(true) + " oK DEFLATE active");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        assertNotNull(mock.getCompressionStats());
+    }
+
+    /**
+     * Test that a refused COMPRESS DEFLATE leaves the connection uncompressed.
+     */
+    public void testCompressDeflateRefused() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 cOMPRESS=dEFLATE",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        mock.expect(getNextTag(false) + " COMPRESS DEFLATE",
+                getNextTag(true) + " nO [COMPRESSIONACTIVE] TLS compression already active");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        assertNull(mock.getCompressionStats());
+    }
+
+    private void expectOpenWithCapabilities(MockTransport mock, String capabilities) {
+        expectLoginWithCapabilities(mock, capabilities);
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+    }
+
+    private void expectLoginWithCapabilities(MockTransport mock, String capabilities) {
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 " + capabilities,
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+    }
+
+    /**
+     * Expects the pieces of a UID SEARCH for "foo", answered with an ESEARCH response.
+     */
+    private void expectESearch(MockTransport mock, String returnOptions, String resultData) {
+        final String tag = getNextTag(false);
+        mock.expect(tag + " UID SEARCH " + returnOptions
+                + "CHARSET US-ASCII OR FROM \\{3\\}", "+ go");
+        mock.expect("foo \\(OR TO \\{3\\}", "+ go");
+        mock.expect("foo \\(OR CC \\{3\\}", "+ go");
+        mock.expect("foo \\(OR SUBJECT \\{3\\}", "+ go");
+        mock.expect("foo BODY \\{3\\}", "+ go");
+        mock.expect("foo\\)\\)\\)", new String[] {
+                "* eSEARCH (tAG \"" + tag + "\") uID " + resultData,
+                getNextTag(true) + " oK SEARCH completed"});
+    }
+
+    /**
+     * Test that a server with PARTIAL returns only the requested page of search results.
+     */
+    public void testGetMessageUidsPartial() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        expectOpenWithCapabilities(mock, "eSEARCH pARTIAL");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        final SearchParams params = new SearchParams(1, "foo");
+        params.mOffset = 10;
+        params.mLimit = 5;
+        expectESearch(mock, "RETURN \\(COUNT PARTIAL -11:-15\\) ",
+                "cOUNT 27 pARTIAL (-11:-15 12:14,20,22)");
+        MoreAsserts.assertEquals(new long[] {22, 20, 14, 13, 12}, mFolder.getMessageUids(params));
+        assertEquals(27, params.mTotalCount);
+
+        // No matches
+        params.mOffset = 0;
+        expectESearch(mock, "RETURN \\(COUNT PARTIAL -1:-5\\) ", "cOUNT 0 pARTIAL (-1:-5 nIL)");
+        MoreAsserts.assertEquals(new long[0], mFolder.getMessageUids(params));
+        assertEquals(0, params.mTotalCount);
+    }
+
+    /**
+     * Test that a server with ESEARCH but no PARTIAL returns all the search results as a set.
+     */
+    public void testGetMessageUidsEsearch() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        expectOpenWithCapabilities(mock, "eSEARCH");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        final SearchParams params = new SearchParams(1, "foo");
+        expectESearch(mock, "RETURN \\(ALL\\) ", "aLL 3:5,9");
+        MoreAsserts.assertEquals(new long[] {9, 5, 4, 3}, mFolder.getMessageUids(params));
+        assertEquals(4, params.mTotalCount);
+    }
+
+    /**
+     * Test that only changed flags are fetched when the server supports CONDSTORE/QRESYNC.
+     */
+    public void testFetchChangedFlags() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithQresync(mock, "90060128194045007");
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals("67890:90060128194045007", mFolder.getSyncKey());
+
+        final Message[] messages = new Message[] {
+                mFolder.createMessage("1"), mFolder.createMessage("2"), mFolder.createMessage("3")};
+        final HashSet<String> vanished = new HashSet<String>();
+
+        // Unknown or stale UIDVALIDITY; caller must do a full scan
+        assertNull(mFolder.fetchChangedFlags(messages, null, vanished));
+        assertNull(mFolder.fetchChangedFlags(messages, "12345:90060128194045000", vanished));
+        // Nothing changed; no command is sent
+        assertEquals(0, mFolder.fetchChangedFlags(
+                messages, "67890:90060128194045007", vanished).length);
+
+        mock.expect(getNextTag(false) + " UID FETCH 1:3 \\(UID FLAGS\\)" +
+                " \\(CHANGEDSINCE 90060128194045000 VANISHED\\)",
+                new String[] {
+                "* vANISHED (eARLIER) 4:5",
+                "* 2 fETCH (uID 2 mODSEQ (90060128194045003) fLAGS (\\Seen \\Flagged))",
+                getNextTag(true) + " oK SUCCESS"});
+        final Message[] changed =
+                mFolder.fetchChangedFlags(messages, "67890:90060128194045000", vanished);
+        assertEquals(1, changed.length);
+        assertEquals("2", changed[0].getUid());
+        assertTrue(changed[0].isSet(Flag.SEEN));
+        assertTrue(changed[0].isSet(Flag.FLAGGED));
+        assertEquals(2, vanished.size());
+        assertTrue(vanished.contains("4"));
+        assertTrue(vanished.contains("5"));
+    }
+
+    /**
+     * Test that servers without CONDSTORE fall back to a full flag scan.
+     */
+    public void testFetchChangedFlagsNotSupported() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message[] messages = new Message[] { mFolder.createMessage("1") };
+        assertNull(mFolder.fetchChangedFlags(messages, "67890:12", null));
+    }
+
     /**
      * Test for fetching simple BODYSTRUCTURE.
      */
@@ -1055,6 +1236,189 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * With BINARY, structure fetches get the decoded sizes of the parts, and parts are fetched
+     * decoded by the server.
+     */
+    public void testFetchAttachmentBinary() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectOpenWithCapabilities(mock, "bINARY");
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.STRUCTURE);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODYSTRUCTURE\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODYSTRUCTURE ((\"tEXT\" \"PLAIN\" (\"cHARSET\" \"iSO-8859-1\")" +
+                        " CID nIL \"7bIT\" 18 3 NIL NIL NIL)" +
+                        "(\"IMAGE\" \"PNG\"" +
+                        " (\"nAME\" \"device.png\") NIL NIL \"bASE64\" 117840 NIL (\"aTTACHMENT\"" +
+                        "(\"fILENAME\" \"device.png\")) NIL)" +
+                        "\"mIXED\"))",
+                getNextTag(true) + " OK SUCCESS"
+        });
+        // Only the base64 part is asked for
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BINARY.SIZE\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bINARY.sIZE[2] 88380)",
+                getNextTag(true) + " OK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+
+        MimeBodyPart part = (MimeBodyPart) ((MimeMultipart) message.getBody()).getBodyPart(1);
+        assertEquals(88380, part.getSize());
+        assertEquals("attachment;\n filename=\"device.png\";\n size=88380",
+                part.getHeader(MimeHeader.HEADER_CONTENT_DISPOSITION)[0]);
+
+        // The content arrives as a literal8, which mustn't be decoded again
+        fp.clear();
+        fp.add(part);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BINARY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bINARY[2] ~{4}",
+                "YWJj)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+
+        assertEquals("YWJj",
+                Utility.fromUtf8(IOUtils.toByteArray(part.getBody().getInputStream())));
+    }
+
+    /**
+     * A part the server can't decode is fetched again with BODY, and decoded locally.
+     */
+    public void testFetchAttachmentBinaryFallback() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectOpenWithCapabilities(mock, "bINARY");
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setSize(3);
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "image/png;\n name=\"device.png\"");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        final MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(part);
+        message.setBody(multipart);
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(part);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BINARY.PEEK\\[2\\]\\)",
+                getNextTag(true) + " nO [uNKNOWN-CTE] Can't decode");
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2] {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+
+        assertEquals("abc",
+                Utility.fromUtf8(IOUtils.toByteArray(part.getBody().getInputStream())));
+    }
+
+    /**
+     * When a BINARY fetch fails for some of the messages, only those are fetched again, so the
+     * listener hears of each message once.
+     */
+    public void testFetchAttachmentBinaryPartialFallback() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectOpenWithCapabilities(mock, "bINARY");
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message1 = mFolder.createMessage("1");
+        final Message message2 = mFolder.createMessage("2");
+
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setSize(3);
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "image/png;\n name=\"device.png\"");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(part);
+        mock.expect(getNextTag(false) + " UID FETCH 1:2 \\(UID BINARY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bINARY[2] ~{3}",
+                "abc)",
+                getNextTag(true) + " nO [uNKNOWN-CTE] Can't decode"
+        });
+        mock.expect(getNextTag(false) + " UID FETCH 2 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 10 fETCH (uID 2 bODY[2] {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final ArrayList<Message> retrieved = new ArrayList<Message>();
+        mFolder.fetch(new Message[] { message1, message2 }, fp,
+                new Folder.MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message m) {
+                retrieved.add(m);
+            }
+
+            @Override
+            public void loadAttachmentProgress(int p) {
+            }
+        });
+
+        assertEquals(2, retrieved.size());
+        assertSame(message1, retrieved.get(0));
+        assertSame(message2, retrieved.get(1));
+    }
+
+    /**
+     * With a part destination, the part is decoded straight into the destination file.
+     */
+    public void testFetchAttachmentToDestination() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+
+        // A shell part, like the one MessagingController.loadAttachment() creates
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setSize(3);
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "image/png;\n name=\"device.png\"");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        final MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(part);
+        message.setBody(multipart);
+
+        final File destination = new File(TempDirectory.getTempDirectory(), "attachment-test");
+        destination.delete();
+        final FetchProfile fp = new FetchProfile();
+        fp.add(part);
+        fp.setPartDestination(destination);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2] {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final int[] progress = new int[] { -1 };
+        mFolder.fetch(new Message[] { message }, fp, new Folder.MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message m) {
+            }
+
+            @Override
+            public void loadAttachmentProgress(int p) {
+                progress[0] = p;
+            }
+        });
+
+        assertTrue(part.getBody() instanceof FileBody);
+        assertEquals(destination, ((FileBody) part.getBody()).getFile());
+        assertEquals("abc",
+                Utility.fromUtf8(IOUtils.toByteArray(new FileInputStream(destination))));
+        assertEquals(100, progress[0]);
+        destination.delete();
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
@@ -1141,6 +1505,34 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertTrue(message1.isSet(Flag.SEEN));
     }
 
+    /**
+     * Test that runs of UIDs are sent as ranges.
+     */
+    public void testFetchUidRanges() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("5"), mFolder.createMessage("1"),
+                mFolder.createMessage("2"), mFolder.createMessage("3")};
+
+        FetchProfile fp = new FetchProfile();
+        fp.clear();
+        fp.add(FetchProfile.Item.FLAGS);
+        mock.expect(getNextTag(false) + " UID FETCH 1:3,5 \\(UID FLAGS\\)",
+                new String[] {
+                "* 1 fETCH (uID 1 fLAGS (\\Seen))",
+                "* 4 fETCH (uID 5 fLAGS (\\Seen))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(messages, fp, null);
+
+        assertTrue(messages[0].isSet(Flag.SEEN));
+        assertTrue(messages[1].isSet(Flag.SEEN));
+        assertFalse(messages[2].isSet(Flag.SEEN));
+    }
+
 
     private ImapMessage prepareForAppendTest(MockTransport mock, String response) throws Exception {
         ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
@@ -1199,26 +1591,45 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         ImapMessage message = prepareForAppendTest(mock, "OK Success");
 
-        // First try w/o parenthesis
+        // First try w/o parenthesis; as it succeeds, there's no second try w/ parenthesis
         mock.expectLiterally(
                 getNextTag(false) + " UID SEARCH HEADER MESSAGE-ID <message.id@test.com>",
                 new String[] {
                     "* sEARCH 321",
                     getNextTag(true) + " oK success"
                 });
-        // If that fails, then try w/ parenthesis
-        mock.expectLiterally(
-                getNextTag(false) + " UID SEARCH (HEADER MESSAGE-ID <message.id@test.com>)",
-                new String[] {
-                    "* sEARCH 321",
-                    getNextTag(true) + " oK success"
-                });
 
         mFolder.appendMessages(new Message[] {message});
 
         assertEquals("321", message.getUid());
     }
 
+    /**
+     * The UID from APPENDUID is reported through the callbacks, without any search.
+     */
+    public void testAppendMessagesCallbacks() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ImapMessage message = prepareForAppendTest(mock, "oK [aPPENDUID 1234567 13] (Success)");
+
+        final HashMap<Message, String> newUids = new HashMap<Message, String>();
+        mFolder.appendMessages(new Message[] {message}, new Folder.MessageUpdateCallbacks() {
+            @Override
+            public void onMessageUidChange(Message m, String newUid) {
+                newUids.put(m, newUid);
+            }
+
+            @Override
+            public void onMessageNotFound(Message m) {
+            }
+        });
+
+        assertEquals(1, newUids.size());
+        assertEquals("13", newUids.get(message));
+    }
+
     /**
      * Test for append failure.
      *
@@ -1289,6 +1700,102 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * With LIST-STATUS, the status of every folder comes with the LIST.  A mailbox without
+     * mod-sequences gets its count, but no status, as its flags could change unnoticed.
+     */
+    public void testUpdateFoldersAndStatusWithListStatus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLoginWithCapabilities(mock, "lIST-sTATUS cONDSTORE");
+
+        expectNoop(mock, true);
+        mock.expect(getNextTag(false) + " LIST \"\" \"\\*\" RETURN \\(STATUS "
+                + "\\(MESSAGES UNSEEN UIDNEXT UIDVALIDITY HIGHESTMODSEQ\\)\\)",
+                new String[] {
+                "* lIST (\\HAsNoChildren) \"/\" \"inbox\"",
+                "* sTATUS \"inbox\" (mESSAGES 5 uNSEEN 1 uIDNEXT 20 uIDVALIDITY 7 "
+                        + "hIGHESTMODSEQ 99)",
+                "* lIST (\\HAsNoChildren) \"/\" \"Drafts\"",
+                "* sTATUS \"Drafts\" (mESSAGES 2 uNSEEN 0 uIDNEXT 10 uIDVALIDITY 7 "
+                        + "hIGHESTMODSEQ 0)",
+                "* lIST (\\nOselect) \"/\" \"no select\"",
+                getNextTag(true) + " oK SUCCESS"
+                });
+        Folder[] folders = mStore.updateFoldersAndStatus();
+
+        for (Folder folder : folders) {
+            final Mailbox mailbox = ((ImapFolder) folder).mMailbox;
+            if ("INBOX".equals(folder.getName())) {
+                assertEquals(5, mailbox.mTotalCount);
+            } else if ("Drafts".equals(folder.getName())) {
+                assertEquals(2, mailbox.mTotalCount);
+            }
+            // The counts were saved
+            assertEquals(mailbox.mTotalCount,
+                    Mailbox.restoreMailboxWithId(mTestContext, mailbox.mId).mTotalCount);
+        }
+        assertEquals("7:20:5:1:99", mStore.takeFolderStatus("INBOX"));
+        assertNull(mStore.takeFolderStatus("Drafts"));
+        assertNull(mStore.takeFolderStatus("no select"));
+        // A status is only handed out once
+        assertNull(mStore.takeFolderStatus("INBOX"));
+    }
+
+    /**
+     * Without LIST-STATUS, a STATUS command per selectable folder is pipelined after the LIST.
+     */
+    public void testUpdateFoldersAndStatusPipelined() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLoginWithCapabilities(mock, "cONDSTORE");
+
+        expectNoop(mock, true);
+        mock.expect(getNextTag(false) + " LIST \"\" \"\\*\"",
+                new String[] {
+                "* lIST (\\HAsNoChildren) \"/\" \"inbox\"",
+                "* lIST (\\HAsNoChildren) \"/\" \"Drafts\"",
+                "* lIST (\\nOselect) \"/\" \"no select\"",
+                getNextTag(true) + " oK SUCCESS"
+                });
+        final String draftsTag = getNextTag(false);
+        mock.expect(draftsTag + " STATUS \"Drafts\" \\(MESSAGES UNSEEN UIDNEXT UIDVALIDITY "
+                + "HIGHESTMODSEQ\\)");
+        getNextTag(true);
+        final String inboxTag = getNextTag(false);
+        mock.expect(inboxTag + " STATUS \"INBOX\" \\(MESSAGES UNSEEN UIDNEXT UIDVALIDITY "
+                + "HIGHESTMODSEQ\\)",
+                new String[] {
+                draftsTag + " nO no such mailbox",
+                "* sTATUS \"INBOX\" (mESSAGES 5 uNSEEN 1 uIDNEXT 20 uIDVALIDITY 7 "
+                        + "hIGHESTMODSEQ 99)",
+                inboxTag + " oK STATUS completed"
+                });
+        getNextTag(true);
+        mStore.updateFoldersAndStatus();
+
+        assertEquals("7:20:5:1:99", mStore.takeFolderStatus("INBOX"));
+        assertNull(mStore.takeFolderStatus("Drafts"));
+    }
+
+    /**
+     * Without CONDSTORE, flag changes don't show in the status, so none is handed out.
+     */
+    public void testUpdateFoldersAndStatusWithoutCondstore() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLoginWithCapabilities(mock, "lIST-sTATUS");
+
+        expectNoop(mock, true);
+        mock.expect(getNextTag(false) + " LIST \"\" \"\\*\" RETURN \\(STATUS "
+                + "\\(MESSAGES UNSEEN UIDNEXT UIDVALIDITY\\)\\)",
+                new String[] {
+                "* lIST (\\HAsNoChildren) \"/\" \"inbox\"",
+                "* sTATUS \"inbox\" (mESSAGES 5 uNSEEN 1 uIDNEXT 20 uIDVALIDITY 7)",
+                getNextTag(true) + " oK SUCCESS"
+                });
+        mStore.updateFoldersAndStatus();
+
+        assertNull(mStore.takeFolderStatus("INBOX"));
+    }
+
     public void testEncodeFolderName() {
         // null prefix
         assertEquals("",
@@ -1574,7 +2081,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      * Returns the pattern for the IMAP request to copy messages.
      */
     private String getCopyMessagesPattern() {
-        return getNextTag(false) + " UID COPY 11\\,12 \\\"&ZeVnLIqe-\\\"";
+        return getNextTag(false) + " UID COPY 11:12 \\\"&ZeVnLIqe-\\\"";
     }
 
     /**
@@ -1601,6 +2108,56 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         }
     }
 
+    /**
+     * With MOVE, messages are moved with a single command, and COPYUID comes untagged.
+     */
+    public void testMoveMessages() throws Exception {
+        mCopyMock = openAndInjectMockTransport();
+        expectOpenWithCapabilities(mCopyMock, "mOVE uIDPLUS");
+        mFolder.open(OpenMode.READ_WRITE);
+        mCopyToFolder = mStore.getFolder("\u65E5\u672C\u8A9E");
+        mCopyMessages = new Message[] { mFolder.createMessage("11"), mFolder.createMessage("12") };
+
+        mCopyMock.expect(getNextTag(false) + " UID MOVE 11:12 \\\"&ZeVnLIqe-\\\"",
+                new String[] {
+                    "* oK [cOPYUID 777 11,12 45,46] Moved",
+                    "* 3 eXPUNGE",
+                    "* 3 eXPUNGE",
+                    getNextTag(true) + " oK UID MOVE completed"
+                });
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
+    /**
+     * Without MOVE, messages are copied, then deleted and expunged.
+     */
+    public void testMoveMessagesWithoutMove() throws Exception {
+        setupCopyMessages(true);
+        mCopyMock.expect(getCopyMessagesPattern(),
+                new String[] {
+                    getNextTag(true) + " oK [COPYUID 777 11,12 45,46] UID COPY completed"
+                });
+        mCopyMock.expect(
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                new String[] {
+                    getNextTag(true) + " oK success"
+                });
+        mCopyMock.expect(getNextTag(false) + " UID EXPUNGE 11:12",
+                new String[] {
+                    getNextTag(true) + " oK success"
+                });
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
     // TODO Test additional degenerate cases; src msg not found, ...
     // Golden case; successful copy with UIDCOPY result
     public void testCopyMessages1() throws Exception {
@@ -1844,6 +2401,98 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response. (src message not found)
     }
 
+    /**
+     * With UIDPLUS, only the messages we deleted are expunged.
+     */
+    public void testUpdateFlagsUidExpunge() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock, new String[] {"* iD nIL", "oK"}, "rEAD-wRITE", true);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("11"),
+                mFolder.createMessage("12"),
+                };
+
+        mock.expect(
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+        mock.expect(getNextTag(false) + " UID EXPUNGE 11:12",
+                new String[] {
+                "* 1 eXPUNGE",
+                "* 1 eXPUNGE",
+                getNextTag(true) + " oK success"
+                });
+        mFolder.updateFlags(messages, new Flag[] {Flag.DELETED}, null, true);
+    }
+
+    /**
+     * Consecutive UIDs are sent as ranges, whatever the order of the messages.
+     */
+    public void testUpdateFlagsSequenceSet() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("13"),
+                mFolder.createMessage("11"),
+                mFolder.createMessage("12"),
+                mFolder.createMessage("20"),
+                };
+
+        mock.expect(getNextTag(false) + " UID STORE 11:13,20 \\+FLAGS.SILENT \\(\\\\SEEN\\)",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+        mFolder.updateFlags(messages, new Flag[] {Flag.SEEN}, null, false);
+    }
+
+    public void testUpdateFlagsPipelined() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("11"),
+                };
+
+        // Both STOREs are sent before any response is read; without UIDPLUS, the EXPUNGE is
+        // only sent once they have succeeded
+        final String setTag = getNextTag(false);
+        mock.expect(setTag + " UID STORE 11 \\+FLAGS.SILENT \\(\\\\SEEN\\)");
+        getNextTag(true);
+        final String clearTag = getNextTag(false);
+        mock.expect(clearTag + " UID STORE 11 \\-FLAGS.SILENT \\(\\\\FLAGGED\\)",
+                new String[] {
+                setTag + " oK success",
+                clearTag + " oK success"
+                });
+        getNextTag(true);
+        mock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {
+                "* 1 eXPUNGE",
+                getNextTag(true) + " oK success"
+                });
+        mFolder.updateFlags(messages, new Flag[] {Flag.SEEN}, new Flag[] {Flag.FLAGGED}, true);
+
+        // A failed STORE is reported, and the folder isn't expunged
+        final String failTag = getNextTag(false);
+        mock.expect(failTag + " UID STORE 11 \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                new String[] {
+                failTag + " nO no such message"
+                });
+        getNextTag(true);
+        try {
+            mFolder.updateFlags(messages, new Flag[] {Flag.DELETED}, null, true);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        // Any further command, e.g. an EXPUNGE, would overflow the mock transport
+    }
+
     public void testSearchForUids() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -2047,6 +2696,12 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // It should be a new connection.
         assertNotSame(con1, con3);
         assertNotSame(con2, con3);
+
+        // con1b was reused; con1, con2 and con3 were new; con2 was dropped.
+        final ImapConnectionPool pool = mStore.getConnectionPool();
+        assertEquals(1, pool.getHits());
+        assertEquals(3, pool.getMisses());
+        assertEquals(1, pool.getEvictions());
     }
 
     public void testCheckSettings() throws Exception {
@@ -39,6 +39,8 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
 
+import java.util.ArrayList;
+
 /**
  * This is a series of unit tests for the POP3 Store class.  These tests must be locally
  * complete - no server(s) required.
@@ -77,6 +79,7 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         testAuth.setConnection("pop3", "server", 999);
         testAccount.mHostAuthRecv = testAuth;
         testAccount.save(mMockContext);
+        Pop3UidlIndex.delete(mMockContext, testAccount.mId);
         mStore = (Pop3Store) Pop3Store.newInstance(testAccount, mMockContext);
         mFolder = (Pop3Store.Pop3Folder) mStore.getFolder("INBOX");
     }
@@ -377,6 +380,154 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         assertTrue("message with uid2", msg2 != null);
     }
 
+    /**
+     * Test that the unique ids are saved when the folder is closed, and that only the new
+     * messages are listed on the next sync, as long as the saved ids are still valid.
+     */
+    public void testUidlIndex() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        // First sync: every message is listed
+        setupOpenFolder(mockTransport, 2, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 2);
+        Message[] messages = mFolder.getMessages(1, 2, null);
+        assertEquals(getSingleMessageUID(2), messages[1].getUid());
+        mockTransport.expect("QUIT", "+OK Goodbye");
+        mFolder.close(false);
+
+        // The mailbox has grown; only the last known message and the new one are listed
+        setupOpenFolder(mockTransport, 3, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        mockTransport.expect("UIDL 2", "+OK 2 " + getSingleMessageUID(2));
+        mockTransport.expect("UIDL 3", "+OK 3 " + getSingleMessageUID(3));
+        messages = mFolder.getMessages(1, 3, null);
+        assertEquals(3, messages.length);
+        assertEquals(getSingleMessageUID(1), messages[0].getUid());
+        assertEquals(getSingleMessageUID(3), messages[2].getUid());
+        mockTransport.expect("QUIT", "+OK Goodbye");
+        mFolder.close(false);
+
+        // Messages have been deleted; the saved ids are out of date, so all are listed again
+        setupOpenFolder(mockTransport, 3, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        mockTransport.expect("UIDL 3", "+OK 3 " + getSingleMessageUID(4));
+        mockTransport.expect("UIDL", "+OK sending UIDL list");
+        mockTransport.expect(null, "1 " + getSingleMessageUID(2));
+        mockTransport.expect(null, "2 " + getSingleMessageUID(3));
+        mockTransport.expect(null, "3 " + getSingleMessageUID(4));
+        mockTransport.expect(null, ".");
+        messages = mFolder.getMessages(1, 3, null);
+        assertEquals(getSingleMessageUID(2), messages[0].getUid());
+        assertEquals(getSingleMessageUID(4), messages[2].getUid());
+    }
+
+    /**
+     * Test that with PIPELINING, TOP commands are all sent before the responses are read, and
+     * that a message TOP fails for is fetched again on its own.
+     */
+    public void testFetchPipelined() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 3, "TOP,PIPELINING,UIDL");
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 3);
+        Message[] messages = mFolder.getMessages(1, 3, null);
+
+        mockTransport.expect("TOP 1 673");
+        mockTransport.expect("TOP 2 673");
+        mockTransport.expect("TOP 3 673");
+        mockTransport.expect(null, "+OK message follows");
+        setupMessageLines(mockTransport);
+        mockTransport.expect(null, "-ERR no such message");
+        mockTransport.expect(null, "+OK message follows");
+        setupMessageLines(mockTransport);
+        setupSingleMessageTop(mockTransport, 2, true, false);
+
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY_SANE);
+        mFolder.fetch(messages, fp, null);
+        checkFetchedMessage(messages[0], 1, false);
+        checkFetchedMessage(messages[1], 2, false);
+        checkFetchedMessage(messages[2], 3, false);
+    }
+
+    /**
+     * Test that with PIPELINING, a failed RETR fails the fetch once the other responses have been
+     * read, and that the message it failed for isn't reported as retrieved.
+     */
+    public void testFetchPipelinedRetrFailed() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 3, "PIPELINING,UIDL");
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 3);
+        Message[] messages = mFolder.getMessages(1, 3, null);
+
+        mockTransport.expect("RETR 1");
+        mockTransport.expect("RETR 2");
+        mockTransport.expect("RETR 3");
+        mockTransport.expect(null, "+OK message follows");
+        setupMessageLines(mockTransport);
+        mockTransport.expect(null, "-ERR no such message");
+        mockTransport.expect(null, "+OK message follows");
+        setupMessageLines(mockTransport);
+
+        final ArrayList<Message> retrieved = new ArrayList<Message>();
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        try {
+            mFolder.fetch(messages, fp, new Folder.MessageRetrievalListener() {
+                @Override
+                public void messageRetrieved(Message message) {
+                    retrieved.add(message);
+                }
+
+                @Override
+                public void loadAttachmentProgress(int progress) {
+                }
+            });
+            fail("A failed RETR should fail the fetch");
+        } catch (MessagingException expected) {
+        }
+        assertEquals(2, retrieved.size());
+        assertSame(messages[0], retrieved.get(0));
+        assertSame(messages[2], retrieved.get(1));
+    }
+
+    /**
+     * Test that with PIPELINING, DELE commands are all sent before the responses are read.
+     */
+    public void testDeletePipelined() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 2, "PIPELINING,UIDL");
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 2);
+        Message[] messages = mFolder.getMessages(1, 2, null);
+
+        mockTransport.expect("DELE 1");
+        mockTransport.expect("DELE 2");
+        mockTransport.expect(null, "+OK message deleted");
+        mockTransport.expect(null, "+OK message deleted");
+        mFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+    }
+
+    /**
+     * Test that messages created from their UIDs alone can be deleted; the folder is indexed
+     * first, and messages that are no longer on the server are skipped.
+     */
+    public void testDeleteCreatedMessages() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 2, "UIDL");
+        mFolder.open(OpenMode.READ_WRITE);
+        Message[] messages = new Message[] {
+                mFolder.createMessage(getSingleMessageUID(2)),
+                mFolder.createMessage("gone"),
+                };
+
+        setupUidlSequence(mockTransport, 2);
+        mockTransport.expect("DELE 2", "+OK message deleted");
+        mFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+    }
+
     /**
      * Test the scenario where the transport is "open" but not really (e.g. server closed).  Two
      * things should happen:  We should see an intermediate failure that makes sense, and the next
@@ -1048,7 +1199,13 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         } else {
             transport.expect(retrCommand, "+OK message follows");
         }
+        setupMessageLines(transport);
+    }
 
+    /**
+     * Setup the lines of a message, as retrieved by RETR or TOP.
+     */
+    private static void setupMessageLines(MockTransport transport) {
         transport.expect(null, "Date: 26 Aug 76 1429 EDT");
         transport.expect(null, "From: Jones@Registry.Org");
         transport.expect(null, "To:   Smith@Registry.Org");
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.email.mail.transport.DiscourseLogger;
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.utility.Utility;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Benchmarks parsing a large FETCH response, like the one for the flags and envelopes of a
+ * mailbox sync, in both parser modes; the results are logged.
+ */
+@LargeTest
+public class ImapResponseParserLargeTest extends AndroidTestCase {
+    private static final String TAG = "ImapResponseParserLargeTest";
+    private static final int MESSAGE_COUNT = 2000;
+    private static final int ITERATIONS = 5;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    public void testFetchThroughput() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= MESSAGE_COUNT; i++) {
+            sb.append("* ").append(i).append(" FETCH (UID ").append(i + 1000)
+                    .append(" RFC822.SIZE ").append(2000 + i)
+                    .append(" FLAGS (\\Seen").append(i % 3 == 0 ? " \\Flagged" : "")
+                    .append(") INTERNALDATE \"10-Oct-2011 12:34:56 -0700\"")
+                    .append(" BODYSTRUCTURE (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"UTF-8\") NIL NIL")
+                    .append(" \"7BIT\" ").append(100 + i).append(" 3 NIL NIL NIL)")
+                    .append(" BODY[HEADER.FIELDS (DATE SUBJECT FROM)] {42}\r\n")
+                    .append("Subject: message number ").append(String.format("%05d", i))
+                    .append("\r\nFrom: a\r\n\r\n)\r\n");
+        }
+        sb.append("1 OK FETCH completed\r\n");
+        final byte[] responses = Utility.toAscii(sb.toString());
+
+        // Both modes must give the same results.
+        final ImapResponseParser p = newParser(responses, false);
+        final ImapResponseParser lp = newParser(responses, true);
+        for (int i = 0; i <= MESSAGE_COUNT; i++) {
+            ImapTestUtils.assertElement(p.readResponse(), lp.readResponse());
+        }
+        p.destroyResponses();
+        lp.destroyResponses();
+
+        final long defaultTime = runBenchmark(responses, false);
+        final long lowAllocationTime = runBenchmark(responses, true);
+        Log.d(TAG, MESSAGE_COUNT + " messages, " + responses.length + " bytes: default "
+                + defaultTime + "ms, low-allocation " + lowAllocationTime + "ms");
+    }
+
+    private static ImapResponseParser newParser(byte[] responses, boolean lowAllocation) {
+        return new ImapResponseParser(new ByteArrayInputStream(responses),
+                new DiscourseLogger(64), lowAllocation);
+    }
+
+    /**
+     * @return the average time to parse {@code responses}, in milliseconds.
+     */
+    private static long runBenchmark(byte[] responses, boolean lowAllocation) throws Exception {
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ImapResponseParser parser = newParser(responses, lowAllocation);
+            ImapResponse response;
+            do {
+                response = parser.readResponse();
+                parser.destroyResponses();
+            } while (!response.isTagged());
+        }
+        return (SystemClock.elapsedRealtime() - start) / ITERATIONS;
+    }
+}
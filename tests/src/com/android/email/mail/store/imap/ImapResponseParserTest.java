@@ -32,6 +32,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SmallTest
 public class ImapResponseParserTest extends AndroidTestCase {
@@ -220,6 +221,32 @@ public class ImapResponseParserTest extends AndroidTestCase {
                 ), r);
     }
 
+    /**
+     * literal8 per RFC 3516, in both parser modes.
+     */
+    public void testLiteral8() throws Exception {
+        final String responses =
+                "* 1 FETCH (BINARY[2] ~{4}\r\n" +
+                "a\0bc ~abc ~ ~NIL)\r\n";
+        for (boolean lowAllocation : new boolean[] {false, true}) {
+            final ImapResponseParser p = new ImapResponseParser(
+                    new ByteArrayInputStream(Utility.toAscii(responses)), new DiscourseLogger(4),
+                    3, lowAllocation);
+            final ImapResponse r = p.readResponse();
+            assertElement(buildResponse(null, false,
+                    new ImapSimpleString("1"),
+                    new ImapSimpleString("FETCH"),
+                    buildList(
+                            new ImapSimpleString("BINARY[2]"),
+                            new ImapTempFileLiteral(createFixedLengthInputStream("a\0bc")),
+                            new ImapSimpleString("~abc"),
+                            new ImapSimpleString("~"),
+                            new ImapSimpleString("~NIL"))
+                    ), r);
+            p.destroyResponses();
+        }
+    }
+
     public void testAlert() throws Exception {
         ImapResponse r;
         final ImapResponseParser p = generateParser(100000,
@@ -360,6 +387,133 @@ public class ImapResponseParserTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * The low-allocation mode must parse exactly what the default mode does.
+     */
+    public void testLowAllocationParity() throws Exception {
+        final StringBuilder longAtom = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longAtom.append((char) ('a' + i % 26));
+        }
+        final String responses =
+                "* 1 FETCH (UID 10 FLAGS (\\Seen \\Flagged $Label1) RFC822.SIZE 1234)\r\n" +
+                "* 2 fetch (uid 11 flags () BODY[HEADER.FIELDS (\"DATE\")] {5}\r\n" +
+                "abcde NIL nil \"NIL\" \"\" \"a b\")\r\n" +
+                "* 3 EXISTS\r\n" +
+                "* OK [UIDVALIDITY 3857529045] UIDs valid\r\n" +
+                "* OK [ALERT] alert ( message ) %*\r\n" +
+                "* a b\n" +
+                "* " + longAtom + " \"" + longAtom + "\"\r\n" +
+                "+ continuation request+(\r\n" +
+                "100 OK [READ-WRITE] SELECT completed\r\n";
+
+        final ImapResponseParser p = generateParser(3, responses);
+        final ImapResponseParser lp = new ImapResponseParser(
+                new ByteArrayInputStream(Utility.toAscii(responses)), new DiscourseLogger(4), 3,
+                true);
+        for (int i = 0; i < 9; i++) {
+            final ImapResponse expected = p.readResponse();
+            final ImapResponse actual = lp.readResponse();
+            assertElement(expected, actual);
+        }
+        p.destroyResponses();
+        lp.destroyResponses();
+    }
+
+    /**
+     * Atoms shared between responses in the low-allocation mode must survive
+     * {@link ImapResponseParser#destroyResponses}.
+     */
+    public void testLowAllocationSharedAtoms() throws Exception {
+        final ImapResponseParser p = new ImapResponseParser(new ByteArrayInputStream(
+                Utility.toAscii("* 1 FETCH (UID 10)\r\n* 2 FETCH (UID 11)\r\n")),
+                new DiscourseLogger(4), true);
+        final ImapResponse r1 = p.readResponse();
+        final ImapString fetch = r1.getStringOrEmpty(1);
+        p.destroyResponses();
+        assertEquals(ImapConstants.FETCH, fetch.getString());
+
+        final ImapResponse r2 = p.readResponse();
+        assertTrue(r2.isDataResponse(1, ImapConstants.FETCH));
+        assertEquals(11, r2.getListOrEmpty(2).getKeyedStringOrEmpty(ImapConstants.UID)
+                .getNumberOrZero());
+        p.destroyResponses();
+    }
+
+    /**
+     * Literals given to a {@link ImapResponseParser.LiteralHandler} are replaced by empty
+     * strings, and the rest of the response is parsed as usual.
+     */
+    public void testLiteralHandler() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (UID 1 BODY[2] {5}\r\n" +
+                "abcde BODY[3] {3}\r\n" +
+                "xyz)\r\n");
+        final StringBuilder handled = new StringBuilder();
+        p.setLiteralHandler(new ImapResponseParser.LiteralHandler() {
+            @Override
+            public boolean handleLiteral(String key, InputStream in, int size)
+                    throws IOException {
+                if (!"BODY[2]".equals(key)) {
+                    return false;
+                }
+                handled.append((char) in.read()); // Read only a part of it
+                return true;
+            }
+        });
+        final ImapResponse r = p.readResponse();
+        assertEquals("a", handled.toString());
+        final ImapList fetch = r.getListOrEmpty(2);
+        assertEquals("1", fetch.getKeyedStringOrEmpty("UID").getString());
+        assertEquals("", fetch.getKeyedStringOrEmpty("BODY[2]").getString());
+        assertEquals("xyz", fetch.getKeyedStringOrEmpty("BODY[3]").getString());
+    }
+
+    /**
+     * Literals, whether stored or given to a {@link ImapResponseParser.LiteralHandler}, aren't
+     * given to the {@link DiscourseLogger}, in either mode.
+     */
+    public void testLiteralsNotLogged() throws Exception {
+        final String responses =
+                "* 1 FETCH (UID 1 BODY[1] {6}\r\n" +
+                "secret BODY[2] {7}\r\n" +
+                "private BODY[3] {12}\r\n" +
+                "confidential)\r\n" +
+                "1 OK done\r\n";
+        for (boolean lowAllocation : new boolean[] {false, true}) {
+            final StringBuilder logged = new StringBuilder();
+            final DiscourseLogger logger = new DiscourseLogger(4) {
+                @Override
+                public void addReceivedByte(int b) {
+                    logged.append((char) b);
+                    super.addReceivedByte(b);
+                }
+            };
+            // BODY[1] is kept in memory, BODY[3] in a temp file, and BODY[2] is handled
+            final ImapResponseParser p = new ImapResponseParser(
+                    new ByteArrayInputStream(Utility.toAscii(responses)), logger, 10,
+                    lowAllocation);
+            p.setLiteralHandler(new ImapResponseParser.LiteralHandler() {
+                @Override
+                public boolean handleLiteral(String key, InputStream in, int size) {
+                    return "BODY[2]".equals(key);
+                }
+            });
+            final ImapResponse r = p.readResponse();
+            assertEquals("secret", r.getListOrEmpty(2).getKeyedStringOrEmpty("BODY[1]")
+                    .getString());
+            assertTrue(p.readResponse().isTagged());
+            p.destroyResponses();
+
+            final String log = logged.toString();
+            assertTrue(log, log.contains("BODY[3] {12}"));
+            assertTrue(log, log.contains("1 OK done"));
+            assertFalse(log, log.contains("secret"));
+            assertFalse(log, log.contains("private"));
+            assertFalse(log, log.contains("confidential"));
+        }
+    }
+
     // Compatibility tests...
 
     /**
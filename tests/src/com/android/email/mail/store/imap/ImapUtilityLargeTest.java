@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Benchmarks building UID sets for mailboxes with 100k messages; the results are logged.
+ *
+ * Compares a plain comma-separated list (what the sync used to send in one UID FETCH) against
+ * the sequence sets sent in chunks.
+ */
+@LargeTest
+public class ImapUtilityLargeTest extends AndroidTestCase {
+    private static final String TAG = "ImapUtilityLargeTest";
+    private static final int MAILBOX_SIZE = 100000;
+    private static final int ITERATIONS = 10;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int MAX_SET_LENGTH = 4000;
+
+    /** All UIDs in order; e.g. a mailbox where nothing has been deleted */
+    public void testContiguousUids() {
+        final String[] uids = new String[MAILBOX_SIZE];
+        for (int i = 0; i < MAILBOX_SIZE; i++) {
+            uids[i] = Integer.toString(i + 1);
+        }
+        runBenchmark("contiguous", uids);
+    }
+
+    /** Every other UID; the worst case, where no ranges can be formed */
+    public void testSparseUids() {
+        final String[] uids = new String[MAILBOX_SIZE];
+        for (int i = 0; i < MAILBOX_SIZE; i++) {
+            uids[i] = Integer.toString(i * 2 + 1);
+        }
+        runBenchmark("sparse", uids);
+    }
+
+    /** Randomly deleted messages, in random order */
+    public void testRandomUids() {
+        final Random random = new Random(0);
+        final String[] uids = new String[MAILBOX_SIZE];
+        int uid = 0;
+        for (int i = 0; i < MAILBOX_SIZE; i++) {
+            uid += 1 + (random.nextInt(10) == 0 ? random.nextInt(5) : 0);
+            uids[i] = Integer.toString(uid);
+        }
+        for (int i = MAILBOX_SIZE - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final String temp = uids[i];
+            uids[i] = uids[j];
+            uids[j] = temp;
+        }
+        runBenchmark("random", uids);
+    }
+
+    private void runBenchmark(String name, String[] uids) {
+        // Baseline: a single comma-separated list
+        String joined = null;
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final StringBuilder sb = new StringBuilder();
+            for (String uid : uids) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(uid);
+            }
+            joined = sb.toString();
+        }
+        final long joinTime = (SystemClock.elapsedRealtime() - start) / ITERATIONS;
+
+        String[] sets = null;
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sets = ImapUtility.getImapSequenceSets(uids, CHUNK_SIZE, MAX_SET_LENGTH);
+        }
+        final long setTime = (SystemClock.elapsedRealtime() - start) / ITERATIONS;
+
+        int totalLength = 0;
+        int count = 0;
+        for (String set : sets) {
+            assertTrue(set.length() <= MAX_SET_LENGTH);
+            totalLength += set.length();
+            final int setCount = ImapUtility.getImapSequenceValues(set).length;
+            assertTrue(setCount <= CHUNK_SIZE);
+            count += setCount;
+        }
+        assertEquals(uids.length, count);
+
+        Log.d(TAG, name + ": joined " + joined.length() + " chars in " + joinTime + "ms; "
+                + sets.length + " sequence sets, " + totalLength + " chars in " + setTime + "ms");
+    }
+}
@@ -92,6 +92,27 @@ public class ImapUtilityTests extends AndroidTestCase {
         MoreAsserts.assertEquals(expected, actual);
     }
 
+    /**
+     * Test getting the numbers in an IMAP sequence set.
+     */
+    public void testGetImapSequenceNumbers() {
+        MoreAsserts.assertEquals(new long[] {1},
+                ImapUtility.getImapSequenceNumbers("1"));
+        MoreAsserts.assertEquals(new long[] {1, 2, 3, 4, 9, 8, 7},
+                ImapUtility.getImapSequenceNumbers("1,2:4,9:7"));
+        // Larger than an int
+        MoreAsserts.assertEquals(new long[] {4294967294L, 4294967295L},
+                ImapUtility.getImapSequenceNumbers("4294967294:4294967295"));
+
+        // Invalid items are skipped
+        MoreAsserts.assertEquals(new long[] {1, 5},
+                ImapUtility.getImapSequenceNumbers("1,x,5"));
+        MoreAsserts.assertEquals(new long[] {1, 2, 3},
+                ImapUtility.getImapSequenceNumbers("a:d,1:3,*"));
+        MoreAsserts.assertEquals(new long[0], ImapUtility.getImapSequenceNumbers(""));
+        MoreAsserts.assertEquals(new long[0], ImapUtility.getImapSequenceNumbers(null));
+    }
+
     /**
      * Test getting elements of an IMAP range.
      */
@@ -137,4 +158,37 @@ public class ImapUtilityTests extends AndroidTestCase {
         actual = ImapUtility.getImapRangeValues("1:*");
         MoreAsserts.assertEquals(expected, actual);
     }
+
+    /**
+     * Test building sequence sets from UIDs.
+     */
+    public void testGetImapSequenceSets() {
+        final int max = Integer.MAX_VALUE;
+
+        // Runs are collapsed into ranges, regardless of order and duplicates
+        MoreAsserts.assertEquals(new String[] {"1:3,7:8"}, ImapUtility.getImapSequenceSets(
+                new String[] {"3", "1", "2", "8", "7", "7"}, max, max));
+        MoreAsserts.assertEquals(new String[] {"5"}, ImapUtility.getImapSequenceSets(
+                new String[] {"5"}, max, max));
+        MoreAsserts.assertEquals(EmptyArray.STRING, ImapUtility.getImapSequenceSets(
+                EmptyArray.STRING, max, max));
+
+        // Non-numeric values are passed through
+        MoreAsserts.assertEquals(new String[] {"1:2,a"}, ImapUtility.getImapSequenceSets(
+                new String[] {"a", "2", "1"}, max, max));
+
+        // Split by count; ranges are split too
+        MoreAsserts.assertEquals(new String[] {"1:2", "3:4", "5,9", "11"},
+                ImapUtility.getImapSequenceSets(
+                        new String[] {"1", "2", "3", "4", "5", "9", "11"}, 2, max));
+
+        // Split by length
+        MoreAsserts.assertEquals(new String[] {"100,102", "104,106"},
+                ImapUtility.getImapSequenceSets(
+                        new String[] {"100", "102", "104", "106"}, max, 8));
+
+        // Single set
+        assertEquals("1:3,5", ImapUtility.getImapSequenceSet(new String[] {"5", "1", "2", "3"}));
+        assertEquals("", ImapUtility.getImapSequenceSet(EmptyArray.STRING));
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.MoreAsserts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link InflatingInputStream} and {@link DeflatingOutputStream}.
+ */
+public class CompressionStreamsTest extends TestCase {
+    private static final String DATA = "* 1 FETCH (UID 1 FLAGS (\\Seen))\r\n"
+            + "* 2 FETCH (UID 2 FLAGS (\\Seen))\r\n"
+            + "* 3 FETCH (UID 3 FLAGS (\\Seen \\Flagged))\r\n";
+
+    /** Compresses {@code data} into a complete raw DEFLATE stream */
+    private static byte[] deflate(byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        final byte[] buffer = new byte[data.length + 64];
+        final int length = deflater.deflate(buffer);
+        deflater.end();
+        final byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[7]; // Small, to exercise partial reads
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    public void testInflate() throws Exception {
+        final byte[] data = DATA.getBytes("US-ASCII");
+        final byte[] compressed = deflate(data);
+        final CompressionStats stats = new CompressionStats();
+        final InflatingInputStream in =
+                new InflatingInputStream(new ByteArrayInputStream(compressed), stats);
+        MoreAsserts.assertEquals(data, readAll(in));
+        assertEquals(compressed.length, stats.getWireBytesReceived());
+        assertEquals(data.length, stats.getBytesReceived());
+        assertTrue(stats.getReceiveRatio() > 1.0f);
+    }
+
+    /**
+     * available() must not claim bytes that can't be read without blocking.
+     */
+    public void testAvailable() throws Exception {
+        final byte[] data = DATA.getBytes("US-ASCII");
+        final byte[] compressed = deflate(data);
+        // A stream that has nothing available, e.g. a socket with no pending data
+        final InputStream slow = new ByteArrayInputStream(compressed) {
+            @Override
+            public synchronized int available() {
+                return 0;
+            }
+        };
+        final InflatingInputStream in = new InflatingInputStream(slow, new CompressionStats());
+        assertEquals(0, in.available());
+        assertEquals('*', in.read());
+        assertEquals(data.length - 1, in.available());
+    }
+
+    public void testDeflateRoundTrip() throws Exception {
+        final byte[] data = DATA.getBytes("US-ASCII");
+        final CompressionStats stats = new CompressionStats();
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        final DeflatingOutputStream out = new DeflatingOutputStream(wire, stats);
+        out.write(data, 0, 10);
+        out.flush();
+        out.write(data, 10, data.length - 10);
+        out.flush();
+        out.flush(); // Nothing to flush; no empty block
+
+        assertEquals(data.length, stats.getBytesSent());
+        assertEquals(wire.size(), stats.getWireBytesSent());
+        assertEquals(data.length + 2 * 5, wire.size()); // Two stored blocks
+
+        final InflatingInputStream in = new InflatingInputStream(
+                new ByteArrayInputStream(wire.toByteArray()), new CompressionStats());
+        MoreAsserts.assertEquals(data, readAll(in));
+    }
+
+    /**
+     * Writes longer than a stored block are split.
+     */
+    public void testDeflateLargeWrite() throws Exception {
+        final byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        final DeflatingOutputStream out = new DeflatingOutputStream(wire, new CompressionStats());
+        out.write(data);
+        out.flush();
+        final InflatingInputStream in = new InflatingInputStream(
+                new ByteArrayInputStream(wire.toByteArray()), new CompressionStats());
+        MoreAsserts.assertEquals(data, readAll(in));
+    }
+}
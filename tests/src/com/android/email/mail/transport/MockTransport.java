@@ -44,6 +44,7 @@ public class MockTransport implements Transport {
     private static final String SPECIAL_RESPONSE_IOEXCEPTION = "!!!IOEXCEPTION!!!";
 
     private boolean mTlsStarted = false;
+    private CompressionStats mCompressionStats;
 
     private boolean mOpen;
     private boolean mInputOpen;
@@ -309,6 +310,20 @@ public class MockTransport implements Transport {
         return line;
     }
 
+    /**
+     * Compression isn't simulated; the test lines are still plain text.
+     */
+    @Override
+    public void startCompression() {
+        SmtpSenderUnitTests.assertTrue(mOpen);
+        mCompressionStats = new CompressionStats();
+    }
+
+    @Override
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
+
     @Override
     public void reopenTls() /* throws MessagingException */ {
         SmtpSenderUnitTests.assertTrue(mOpen);
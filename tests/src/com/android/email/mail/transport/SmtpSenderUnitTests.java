@@ -88,6 +88,38 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         mSender.open();
     }
 
+    /**
+     * Test that the sender of a saved account is kept, until its settings change or it's removed
+     */
+    public void testSenderInstances() throws Exception {
+        HostAuth auth = new HostAuth();
+        auth.setLogin("user", "password");
+        auth.setConnection("smtp", "server", 999);
+        // As if saved; newInstance doesn't read the HostAuth back
+        auth.mId = 999;
+        Account account = new Account();
+        account.mHostAuthSend = auth;
+        account.mHostAuthKeySend = auth.mId;
+        try {
+            SmtpSender sender = (SmtpSender) SmtpSender.newInstance(account, mProviderContext);
+            assertSame(sender, SmtpSender.newInstance(account, mProviderContext));
+
+            // A new password, even changed in place, means a new sender
+            auth.setLogin("user", "new password");
+            SmtpSender newSender = (SmtpSender) SmtpSender.newInstance(account, mProviderContext);
+            assertNotSame(sender, newSender);
+            assertSame(newSender, SmtpSender.newInstance(account, mProviderContext));
+            assertSame(newSender, SmtpSender.sSenders.get(auth.mId));
+
+            // As when the account is deleted
+            SmtpSender.removeInstance(account);
+            assertFalse(SmtpSender.sSenders.containsKey(auth.mId));
+            assertNotSame(newSender, SmtpSender.newInstance(account, mProviderContext));
+        } finally {
+            SmtpSender.removeInstance(account);
+        }
+    }
+
     /**
      * TODO: Test with SSL negotiation (faked)
      * TODO: Test with SSL required but not supported
@@ -158,6 +190,166 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         mSender.sendMessage(message.mId);
     }
 
+    /**
+     * Test:  A second message is sent over the same session, after a RSET, with no new handshake.
+     */
+    public void testSendMessagesReuseSession() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        expectSimpleMessage(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        final long opened = SmtpSender.getSessionsOpened();
+        final long reused = SmtpSender.getSessionsReused();
+        mSender.sendMessage(message.mId);
+
+        mockTransport.expect("RSET", "250 2.0.0 OK");
+        expectSimpleMessage(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        mSender.sendMessage(message.mId);
+
+        assertEquals(opened + 1, SmtpSender.getSessionsOpened());
+        assertEquals(reused + 1, SmtpSender.getSessionsReused());
+        mSender.close();
+    }
+
+    /**
+     * Test:  The message size isn't declared to a server that doesn't advertise SIZE.
+     */
+    public void testSendMessageWithoutSize() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
+                "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
+                "250 2.1.5 <Smith@Registry.Org> recipient ok");
+        mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        expectSimpleHeaders(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+
+        mSender.sendMessage(message.mId);
+    }
+
+    /**
+     * Test:  With PIPELINING, the envelope is sent in one go, and the responses read after.
+     */
+    public void testSendMessagePipelined() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN,SIZE 15728640,PIPELINING");
+
+        Message message = setupSimpleMessage();
+        message.mBcc = Address.parseAndPack("Brown@Registry.Org");
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> SIZE=[0-9]+");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>");
+        mockTransport.expect("RCPT TO:<Brown@Registry.Org>");
+        mockTransport.expect(null, "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect(null, "250 2.1.5 <Smith@Registry.Org> recipient ok");
+        mockTransport.expect(null, "250 2.1.5 <Brown@Registry.Org> recipient ok");
+        mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        expectSimpleHeaders(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+
+        mSender.sendMessage(message.mId);
+    }
+
+    /**
+     * Test:  A rejected recipient fails the message, even with PIPELINING.
+     */
+    public void testSendMessagePipelinedRejected() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN,SIZE 15728640,PIPELINING");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> SIZE=[0-9]+");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>");
+        mockTransport.expect(null, "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect(null, "550 5.1.1 <Smith@Registry.Org> no such user");
+
+        try {
+            mSender.sendMessage(message.mId);
+            fail("A rejected recipient should fail the message");
+        } catch (MessagingException me) {
+            assertTrue(me.getMessage().startsWith("550"));
+        }
+    }
+
+    /**
+     * Test:  With CHUNKING, the message is sent with BDAT, without an end-of-data line.
+     */
+    public void testSendMessageChunking() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH PLAIN,SIZE 15728640,CHUNKING");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> SIZE=[0-9]+",
+                "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
+                "250 2.1.5 <Smith@Registry.Org> recipient ok");
+        mockTransport.expect("BDAT [0-9]+ LAST",
+                "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        expectSimpleHeaders(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+
+        mSender.sendMessage(message.mId);
+    }
+
     /**
      * Prepare to send a simple message (see setReceiveSimpleMessage)
      */
@@ -174,11 +366,18 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
      * Prepare to receive a simple message (see setupSimpleMessage)
      */
     private void expectSimpleMessage(MockTransport mockTransport) {
-        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> SIZE=[0-9]+",
                 "250 2.1.0 <Jones@Registry.Org> sender ok");
         mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
                 "250 2.1.5 <Smith@Registry.Org> recipient ok");
         mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        expectSimpleHeaders(mockTransport);
+    }
+
+    /**
+     * Prepare to receive the headers of a simple message (see setupSimpleMessage)
+     */
+    private void expectSimpleHeaders(MockTransport mockTransport) {
         mockTransport.expect("Date: .*");
         mockTransport.expect("Message-ID: .*");
         mockTransport.expect("From: Jones@Registry.Org");
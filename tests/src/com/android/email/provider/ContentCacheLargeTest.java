@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Benchmarks reading from a ContentCache on several threads at once, while another thread
+ * updates rows, as during a sync; the results are logged.
+ *
+ * Compares the cache against the same calls serialized on the cache, as all of its methods used
+ * to be, and checks that every row read is consistent.
+ */
+@LargeTest
+public class ContentCacheLargeTest extends AndroidTestCase {
+    private static final String TAG = "ContentCacheLargeTest";
+    private static final String[] PROJECTION = new String[] {"_id", "name", "count", "flags"};
+    private static final String[] SMALL_PROJECTION = new String[] {"_id", "count"};
+    private static final int ROWS = 32;
+    private static final int READS_PER_THREAD = 200000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    /** A row whose count is a multiple of its id, so that readers can check it */
+    private static Cursor getRowCursor(long id) {
+        MatrixCursor cursor = new MatrixCursor(PROJECTION, 1);
+        cursor.addRow(new Object[] {id, "Row " + id, id, 0});
+        return cursor;
+    }
+
+    private static ContentCache createCache() {
+        ContentCache cache = new ContentCache("Benchmark", PROJECTION, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            String id = Integer.toString(i);
+            cache.putCursor(getRowCursor(i), id, PROJECTION, cache.getCacheToken(id));
+        }
+        return cache;
+    }
+
+    public void testContention() throws Exception {
+        for (int threads: THREAD_COUNTS) {
+            long serialized = runBenchmark(threads, true);
+            long concurrent = runBenchmark(threads, false);
+            Log.d(TAG, threads + " readers: serialized " + serialized + "ms, concurrent "
+                    + concurrent + "ms");
+        }
+    }
+
+    /**
+     * Returns the time taken by the readers, each reading READS_PER_THREAD rows (half of them
+     * with a smaller projection), while a writer updates random rows.
+     */
+    private long runBenchmark(int threadCount, final boolean serialize) throws Exception {
+        final ContentCache cache = createCache();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Random random = new Random(seed);
+                        for (int i = 0; i < READS_PER_THREAD; i++) {
+                            int id = random.nextInt(ROWS);
+                            String[] projection = ((i & 1) == 0) ? PROJECTION : SMALL_PROJECTION;
+                            Cursor c;
+                            if (serialize) {
+                                synchronized (cache) {
+                                    c = read(cache, id, projection);
+                                }
+                            } else {
+                                c = read(cache, id, projection);
+                            }
+                            check(c, id, projection);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(-1);
+                ContentValues values = new ContentValues();
+                long multiple = 1;
+                while (done.getCount() > 0) {
+                    int id = random.nextInt(ROWS);
+                    String key = Integer.toString(id);
+                    values.put("count", id * ++multiple);
+                    if (serialize) {
+                        synchronized (cache) {
+                            cache.lock(key);
+                            cache.unlock(key, values);
+                        }
+                    } else {
+                        cache.lock(key);
+                        cache.unlock(key, values);
+                    }
+                    SystemClock.sleep(1);
+                }
+            }
+        };
+
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        writer.start();
+        long startTime = SystemClock.elapsedRealtime();
+        start.countDown();
+        done.await();
+        long time = SystemClock.elapsedRealtime() - startTime;
+        writer.join();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        return time;
+    }
+
+    /**
+     * Reads a row from the cache, caching it again if it was removed; returns null if the row
+     * was removed again before it could be read
+     */
+    private static Cursor read(ContentCache cache, int id, String[] projection) {
+        String key = Integer.toString(id);
+        Cursor c = cache.getCachedCursor(key, projection);
+        if (c == null) {
+            cache.putCursor(getRowCursor(id), key, PROJECTION, cache.getCacheToken(key))
+                    .close();
+            c = cache.getCachedCursor(key, projection);
+        }
+        return c;
+    }
+
+    private static void check(Cursor c, int id, String[] projection) {
+        if (c == null) {
+            return;
+        }
+        try {
+            assertTrue(c.moveToFirst());
+            int idColumn = c.getColumnIndex("_id");
+            int countColumn = c.getColumnIndex("count");
+            assertEquals(id, c.getLong(idColumn));
+            long count = c.getLong(countColumn);
+            assertTrue("Inconsistent row " + id + ": " + count,
+                    id == 0 ? count == 0 : count % id == 0);
+            assertEquals(projection.length, c.getColumnCount());
+        } finally {
+            c.close();
+        }
+    }
+}
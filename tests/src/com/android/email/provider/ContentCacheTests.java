@@ -25,6 +25,7 @@ import com.android.emailcommon.provider.Mailbox;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
@@ -149,15 +150,9 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         Cursor wrappedCursor = ((CursorWrapper)cursor).getWrappedCursor();
         assertTrue(wrappedCursor instanceof CachedCursor);
         CachedCursor cachedCursor = (CachedCursor)wrappedCursor;
-        // The cursor wrapped in cachedCursor is the underlying cursor
-        Cursor activeCursor = cachedCursor.getWrappedCursor();
 
-        // The cursor should be in active cursors
-        int activeCount = ContentCache.sActiveCursors.getCount(activeCursor);
-        assertEquals(1, activeCount);
-
-        // Some basic functionality that shouldn't throw exceptions and should otherwise act as the
-        // underlying cursor would
+        // Some basic functionality that shouldn't throw exceptions and should otherwise act as a
+        // database cursor would
         String[] columnNames = cursor.getColumnNames();
         assertEquals(Mailbox.CONTENT_PROJECTION.length, columnNames.length);
         for (int i = 0; i < Mailbox.CONTENT_PROJECTION.length; i++) {
@@ -170,27 +165,24 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         cursor.moveToPosition(0);
         assertEquals(0, cursor.getPosition());
         assertFalse(cursor.moveToPosition(1));
+        cursor.moveToFirst();
+        assertEquals(box.mId, cursor.getLong(Mailbox.CONTENT_ID_COLUMN));
+        assertEquals("box2", cursor.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN));
+        assertEquals(acct.mId, cursor.getLong(Mailbox.CONTENT_ACCOUNT_KEY_COLUMN));
 
         cursor.close();
         // We've closed the cached cursor; make sure
         assertTrue(cachedCursor.isClosed());
-        // The underlying cursor shouldn't be closed because it's in a cache (we'll test
-        // that in testContentCache)
-        assertFalse(activeCursor.isClosed());
-        // Our cursor should no longer be in the active cursors map
-        assertFalse(ContentCache.sActiveCursors.contains(activeCursor));
-
-        // TODO - change the code or the test to enforce the assertion that a cached cursor
-        // should have only zero or one rows.  We cannot test this in the constructor, however,
-        // due to potential for deadlock.
-//        // Make sure that we won't accept cursors with multiple rows
-//        cursor = resolver.query(Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION, null, null, null);
-//        try {
-//            cursor = new CachedCursor(cursor, null, "Foo");
-//            fail("Mustn't accept cursor with more than one row");
-//        } catch (IllegalArgumentException e) {
-//            // Correct
-//        }
+
+        // A second query is answered from the same cached row
+        cursor = resolver.query(uri, Mailbox.CONTENT_PROJECTION, null, null, null);
+        try {
+            assertTrue(((CursorWrapper)cursor).getWrappedCursor() instanceof CachedCursor);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("box2", cursor.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN));
+        } finally {
+            cursor.close();
+        }
     }
 
     private static final String[] SIMPLE_PROJECTION = new String[] {"Foo"};
@@ -217,7 +209,7 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         // Get a token for arbitrary object named "2"
         token = cache.getCacheToken("2");
         // Put the cursor in the cache
-        cache.putCursor(cursor1, "2", SIMPLE_PROJECTION, token);
+        cache.putCursor(cursor2, "2", SIMPLE_PROJECTION, token);
         assertEquals(2, cache.size());
 
         // We should be able to find both now in the cache
@@ -228,16 +220,16 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         assertNotNull(cachedCursor);
         assertTrue(cachedCursor instanceof CachedCursor);
 
-        // Both cursors should be open
-        assertFalse(cursor1.isClosed());
-        assertFalse(cursor2.isClosed());
+        // The rows have been copied, so the cursors they came from have been closed
+        assertTrue(cursor1.isClosed());
+        assertTrue(cursor2.isClosed());
 
         // Add another random cursor; what's in it doesn't matter
         Cursor cursor3 = getOneRowCursor();
         // Get a token for arbitrary object named "3"
         token = cache.getCacheToken("3");
         // Put the cursor in the cache
-        cache.putCursor(cursor1, "3", SIMPLE_PROJECTION, token);
+        cache.putCursor(cursor3, "3", SIMPLE_PROJECTION, token);
         // We should never have more than 2 entries in the cache
         assertEquals(2, cache.size());
 
@@ -252,48 +244,133 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         assertNotNull(cachedCursor);
         assertTrue(cachedCursor instanceof CachedCursor);
 
-        // Even cursor1 should be open, since all cached cursors are in mActiveCursors until closed
-        assertFalse(cursor1.isClosed());
-        assertFalse(cursor2.isClosed());
-        assertFalse(cursor3.isClosed());
+        // Reading "2" again makes "3" the eldest
+        cache.getCachedCursor("2", SIMPLE_PROJECTION);
+        token = cache.getCacheToken("4");
+        cache.putCursor(getOneRowCursor(), "4", SIMPLE_PROJECTION, token);
+        assertNotNull(cache.getCachedCursor("2", SIMPLE_PROJECTION));
+        assertNull(cache.getCachedCursor("3", SIMPLE_PROJECTION));
     }
 
-    public void testCloseCachedCursor() {
-        // Create a cache of size 2
+    public void testStaleToken() {
         ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 2);
-        // Random cursor; what's in it doesn't matter
-        Cursor underlyingCursor = getOneRowCursor();
-        Cursor cachedCursor1 = new CachedCursor(underlyingCursor, cache, "1");
-        Cursor cachedCursor2 = new CachedCursor(underlyingCursor, cache, "1");
-        assertEquals(2, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        cachedCursor1.close();
-        assertTrue(cachedCursor1.isClosed());
-        // Underlying cursor should be open (still one cached cursor open)
-        assertFalse(underlyingCursor.isClosed());
-        cachedCursor2.close();
-        assertTrue(cachedCursor2.isClosed());
-        assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        // Underlying cursor should be closed (no cached cursors open)
-        assertTrue(underlyingCursor.isClosed());
-
-        underlyingCursor = getOneRowCursor();
-        cachedCursor1 = cache.putCursor(
-                underlyingCursor, "2", SIMPLE_PROJECTION, cache.getCacheToken("2"));
-        cachedCursor2 = new CachedCursor(underlyingCursor, cache, "2");
-        assertEquals(2, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        cachedCursor1.close();
-        cachedCursor2.close();
-        assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        // Underlying cursor should still be open; it's in the cache
-        assertFalse(underlyingCursor.isClosed());
-        // Cache a new cursor
-        cachedCursor2 = new CachedCursor(underlyingCursor, cache, "2");
-        assertEquals(1, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        // Remove "2" from the cache and close the cursor
+        // A write to the row makes the token stale
+        CacheToken token = cache.getCacheToken("1");
+        cache.lock("1");
+        Cursor cursor = getOneRowCursor();
+        assertSame(cursor, cache.putCursor(cursor, "1", SIMPLE_PROJECTION, token));
+        assertFalse(cursor.isClosed());
+        assertEquals(0, cache.size());
+        // No valid token can be taken until the row is unlocked
+        assertFalse(cache.getCacheToken("1").isValid());
+        cache.unlock("1");
+        assertTrue(cache.getCacheToken("1").isValid());
+
+        // Invalidating the cache makes every token stale
+        token = cache.getCacheToken("2");
         cache.invalidate();
-        cachedCursor2.close();
-        // The underlying cursor should now be closed (not in the cache and no cached cursors)
-        assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
-        assertTrue(underlyingCursor.isClosed());
+        assertSame(cursor, cache.putCursor(cursor, "2", SIMPLE_PROJECTION, token));
+        assertEquals(0, cache.size());
+
+        // Only the base projection can be cached
+        token = cache.getCacheToken("3");
+        assertSame(cursor, cache.putCursor(cursor, "3", new String[] {"Other"}, token));
+        assertEquals(0, cache.size());
+        cursor.close();
+    }
+
+    private static final String[] TYPED_PROJECTION =
+        new String[] {"_id", "name", "size", "ratio", "data", "empty"};
+
+    private Cursor getTypedCursor() {
+        MatrixCursor cursor = new MatrixCursor(TYPED_PROJECTION, 1);
+        cursor.addRow(new Object[] {7L, "Seven", 12345678901L, 0.5, new byte[] {1, 2}, null});
+        return cursor;
+    }
+
+    public void testCachedRowTypes() {
+        ContentCache cache = new ContentCache("Name", TYPED_PROJECTION, 2);
+        cache.putCursor(getTypedCursor(), "7", TYPED_PROJECTION, cache.getCacheToken("7"));
+        Cursor cursor = cache.getCachedCursor("7", TYPED_PROJECTION);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(0));
+        assertEquals(7, cursor.getInt(0));
+        assertEquals("7", cursor.getString(0));
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(1));
+        assertEquals("Seven", cursor.getString(1));
+        assertEquals(12345678901L, cursor.getLong(2));
+        assertEquals(0.5, cursor.getDouble(3));
+        assertEquals(Cursor.FIELD_TYPE_FLOAT, cursor.getType(3));
+        byte[] blob = cursor.getBlob(4);
+        assertEquals(2, blob.length);
+        // Changing a blob that was read doesn't change the cache
+        blob[0] = 9;
+        assertEquals(1, cursor.getBlob(4)[0]);
+        assertTrue(cursor.isNull(5));
+        assertNull(cursor.getString(5));
+        assertEquals(0, cursor.getLong(5));
+        cursor.close();
+
+        // Some of the columns, in another order
+        cursor = cache.getCachedCursor("7", new String[] {"size", "_id"});
+        assertTrue(cursor.moveToFirst());
+        assertEquals(2, cursor.getColumnCount());
+        assertEquals(12345678901L, cursor.getLong(0));
+        assertEquals(7, cursor.getLong(1));
+        assertEquals(1, cursor.getColumnIndex("_id"));
+        cursor.close();
+
+        // A column that isn't cached
+        assertNull(cache.getCachedCursor("7", new String[] {"_id", "other"}));
+
+        // A row that doesn't exist is cached too, as an empty cursor
+        cache.putCursor(new MatrixCursor(TYPED_PROJECTION, 0), "8", TYPED_PROJECTION,
+                cache.getCacheToken("8"));
+        cursor = cache.getCachedCursor("8", TYPED_PROJECTION);
+        assertEquals(0, cursor.getCount());
+        assertFalse(cursor.moveToFirst());
+        cursor.close();
+    }
+
+    public void testUnlockWithValues() {
+        ContentCache cache = new ContentCache("Name", TYPED_PROJECTION, 2);
+        cache.putCursor(getTypedCursor(), "7", TYPED_PROJECTION, cache.getCacheToken("7"));
+        Cursor before = cache.getCachedCursor("7", TYPED_PROJECTION);
+
+        // New values replace the cached row
+        cache.lock("7");
+        ContentValues values = new ContentValues();
+        values.put("name", "Eight");
+        values.put("size", 8);
+        values.put("empty", true);
+        values.putNull("ratio");
+        cache.unlock("7", values);
+        Cursor after = cache.getCachedCursor("7", TYPED_PROJECTION);
+        assertTrue(after.moveToFirst());
+        assertEquals(7, after.getLong(0));
+        assertEquals("Eight", after.getString(1));
+        assertEquals(8, after.getLong(2));
+        assertTrue(after.isNull(3));
+        assertEquals(1, after.getInt(5));
+        after.close();
+
+        // Cursors read before the update still see the old row
+        assertTrue(before.moveToFirst());
+        assertEquals("Seven", before.getString(1));
+        before.close();
+
+        // Values for a column that isn't cached remove the row
+        cache.lock("7");
+        values.clear();
+        values.put("other", 1);
+        cache.unlock("7", values);
+        assertNull(cache.getCachedCursor("7", TYPED_PROJECTION));
+
+        // As does unlocking without values
+        cache.putCursor(getTypedCursor(), "7", TYPED_PROJECTION, cache.getCacheToken("7"));
+        assertEquals(1, cache.size());
+        cache.lock("7");
+        cache.unlock("7");
+        assertEquals(0, cache.size());
     }
 }
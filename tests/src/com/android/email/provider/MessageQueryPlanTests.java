@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the query plans of the message list, widget and combined view queries, so that schema
+ * changes can't silently turn them into full scans of the Message table, or (for a single
+ * mailbox) into sorts of the whole mailbox.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageQueryPlanTests email
+ */
+@SmallTest
+public class MessageQueryPlanTests extends ProviderTestCase2<EmailProvider> {
+    /** The order of all of these queries (see MessagesAdapter and EmailWidgetLoader) */
+    private static final String ORDER = MessageColumns.TIMESTAMP + " DESC";
+
+    // The plan details differ between SQLite versions, e.g. "SCAN TABLE Message" or "SCAN Message"
+    private static final Pattern SCAN_MESSAGE = Pattern.compile(
+            "^SCAN (TABLE )?" + Message.TABLE_NAME + "\\b");
+    private static final Pattern SEARCH_MESSAGE = Pattern.compile(
+            "^SEARCH (TABLE )?" + Message.TABLE_NAME + " USING (COVERING )?INDEX ");
+    private static final Pattern SORT = Pattern.compile("TEMP B-TREE FOR ORDER BY");
+
+    private Context mMockContext;
+    private SQLiteDatabase mDatabase;
+    private Account mAccount;
+    private Mailbox mInbox;
+
+    public MessageQueryPlanTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        ContentCache.invalidateAllCaches();
+        mDatabase = getProvider().getDatabase(mMockContext);
+        mAccount = ProviderTestUtils.setupAccount("plan", true, mMockContext);
+        mInbox = ProviderTestUtils.setupMailbox("inbox", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+    }
+
+    /** Returns the details of the query plan of a query of the Message table */
+    private ArrayList<String> getQueryPlan(String selection) {
+        String sql = "EXPLAIN QUERY PLAN SELECT " + TextUtils.join(", ", Message.LIST_PROJECTION)
+                + " FROM " + Message.TABLE_NAME + " WHERE " + selection + " ORDER BY " + ORDER;
+        ArrayList<String> plan = new ArrayList<String>();
+        Cursor c = mDatabase.rawQuery(sql, null);
+        try {
+            int detailColumn = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detailColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return plan;
+    }
+
+    private static boolean matches(ArrayList<String> plan, Pattern pattern) {
+        for (String detail : plan) {
+            if (pattern.matcher(detail).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Asserts that the messages are found through an index, rather than by scanning them */
+    private ArrayList<String> assertIndexed(String selection) {
+        ArrayList<String> plan = getQueryPlan(selection);
+        assertFalse(plan.toString(), matches(plan, SCAN_MESSAGE));
+        assertTrue(plan.toString(), matches(plan, SEARCH_MESSAGE));
+        return plan;
+    }
+
+    /** Asserts that the messages are found through an index, and already in order */
+    private void assertIndexedAndOrdered(String selection, String[] indexColumns) {
+        ArrayList<String> plan = assertIndexed(selection);
+        assertFalse(plan.toString(), matches(plan, SORT));
+        assertTrue(plan.toString(), matches(plan, Pattern.compile(
+                DBHelper.getIndexName(Message.TABLE_NAME, indexColumns))));
+    }
+
+    /** The message list of a mailbox (see Message.buildMessageListSelection) */
+    public void testMailboxList() {
+        assertIndexedAndOrdered(
+                Message.buildMessageListSelection(mMockContext, mAccount.mId, mInbox.mId),
+                DBHelper.MESSAGE_COMPOSITE_INDICES[0]);
+        Mailbox outbox = ProviderTestUtils.setupMailbox("outbox", mAccount.mId, true,
+                mMockContext, Mailbox.TYPE_OUTBOX);
+        assertIndexedAndOrdered(
+                Message.buildMessageListSelection(mMockContext, mAccount.mId, outbox.mId),
+                DBHelper.MESSAGE_COMPOSITE_INDICES[0]);
+    }
+
+    /** The widget's view of a mailbox (see EmailWidgetLoader) */
+    public void testWidgetMailbox() {
+        assertIndexedAndOrdered(MessageColumns.ACCOUNT_KEY + "=" + mAccount.mId + " AND " +
+                MessageColumns.MAILBOX_KEY + "=" + mInbox.mId + " AND " +
+                Message.FLAG_LOADED_SELECTION, DBHelper.MESSAGE_COMPOSITE_INDICES[0]);
+    }
+
+    /** The starred messages, of all accounts and of one */
+    public void testFavorites() {
+        assertIndexedAndOrdered(Message.buildMessageListSelection(mMockContext,
+                Account.ACCOUNT_ID_COMBINED_VIEW, Mailbox.QUERY_ALL_FAVORITES),
+                DBHelper.MESSAGE_COMPOSITE_INDICES[1]);
+        assertIndexedAndOrdered(Message.buildMessageListSelection(mMockContext,
+                mAccount.mId, Mailbox.QUERY_ALL_FAVORITES),
+                DBHelper.MESSAGE_COMPOSITE_INDICES[1]);
+    }
+
+    /**
+     * The combined views, and the widget's views of all inboxes; these merge several mailboxes,
+     * so they may be sorted
+     */
+    public void testCombinedViews() {
+        assertIndexed(Message.ALL_INBOX_SELECTION);
+        assertIndexed(Message.ALL_UNREAD_SELECTION);
+        assertIndexed(Message.ALL_DRAFT_SELECTION);
+        assertIndexed(Message.ALL_OUTBOX_SELECTION);
+        // The per-account selections take the account id as their argument
+        String accountKey = MessageColumns.ACCOUNT_KEY + "=" + mAccount.mId;
+        assertIndexed(Message.PER_ACCOUNT_INBOX_SELECTION.replace(
+                MessageColumns.ACCOUNT_KEY + "=?", accountKey));
+        assertIndexed(Message.PER_ACCOUNT_UNREAD_SELECTION.replace(
+                MessageColumns.ACCOUNT_KEY + "=?", accountKey));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Benchmarks searching the local messages of a 100k-message mailbox; the results are logged.
+ *
+ * Compares the full-text index against the LIKE scans it replaces, and checks that both find
+ * the same messages.
+ */
+@LargeTest
+public class MessageSearchLargeTest extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "MessageSearchLargeTest";
+    private static final int MAILBOX_SIZE = 100000;
+    private static final int BATCH_SIZE = 500;
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final int BODY_WORDS = 100;
+    private static final int PAGE_SIZE = 20;
+
+    private static final String LIKE_SELECTION = MessageColumns.SUBJECT + " like ? or " +
+        MessageColumns.FROM_LIST + " like ? or " + MessageColumns.TO_LIST + " like ? or " +
+        EmailContent.RECORD_ID + " in (select " + BodyColumns.MESSAGE_KEY + " from " +
+        Body.TABLE_NAME + " where " + BodyColumns.TEXT_CONTENT + " like ?)";
+
+    private Context mMockContext;
+    private ContentResolver mResolver;
+
+    public MessageSearchLargeTest() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mResolver = mMockContext.getContentResolver();
+        ContentCache.invalidateAllCaches();
+    }
+
+    /** Words of the same length, so that none contains another */
+    private static String word(int i) {
+        return "w" + (100000 + i);
+    }
+
+    /** Picks words with a skewed distribution, as in real text: low numbers are common */
+    private static String pickWord(Random random) {
+        return word((int) (VOCABULARY_SIZE * Math.pow(random.nextDouble(), 3)));
+    }
+
+    public void testSearch() throws Exception {
+        Account account = ProviderTestUtils.setupAccount("large", true, mMockContext);
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("inbox", account.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        Random random = new Random(0);
+
+        // Fill the mailbox, as a sync would; this includes indexing the messages
+        long start = SystemClock.elapsedRealtime();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < MAILBOX_SIZE; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put(MessageColumns.ACCOUNT_KEY, account.mId);
+            cv.put(MessageColumns.MAILBOX_KEY, mailbox.mId);
+            cv.put(MessageColumns.TIMESTAMP, i);
+            cv.put(MessageColumns.FLAG_READ, 1);
+            cv.put(MessageColumns.SUBJECT, pickWord(random) + " " + pickWord(random));
+            cv.put(MessageColumns.FROM_LIST, pickWord(random) + "@example.com");
+            cv.put(MessageColumns.TO_LIST, pickWord(random) + "@example.com");
+            int messageOp = ops.size();
+            ops.add(ContentProviderOperation.newInsert(Message.CONTENT_URI)
+                    .withValues(cv).build());
+            StringBuilder body = new StringBuilder();
+            for (int j = 0; j < BODY_WORDS; j++) {
+                body.append(pickWord(random)).append(' ');
+            }
+            ops.add(ContentProviderOperation.newInsert(Body.CONTENT_URI)
+                    .withValue(BodyColumns.TEXT_CONTENT, body.toString())
+                    .withValueBackReference(BodyColumns.MESSAGE_KEY, messageOp)
+                    .build());
+            if (ops.size() >= BATCH_SIZE * 2) {
+                mResolver.applyBatch(EmailContent.AUTHORITY, ops);
+                ops.clear();
+            }
+        }
+        if (!ops.isEmpty()) {
+            mResolver.applyBatch(EmailContent.AUTHORITY, ops);
+        }
+        Log.d(TAG, "Inserted " + MAILBOX_SIZE + " messages in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        runBenchmark("common", word(0));
+        runBenchmark("uncommon", word(VOCABULARY_SIZE / 2));
+        runBenchmark("rare", word(VOCABULARY_SIZE - 1));
+        runBenchmark("missing", word(VOCABULARY_SIZE));
+    }
+
+    private void runBenchmark(String name, String word) {
+        // Baseline: the LIKE scans over the messages and their bodies
+        long start = SystemClock.elapsedRealtime();
+        String like = "%" + word + "%";
+        int likeCount = count(mResolver.query(Message.CONTENT_URI, EmailContent.ID_PROJECTION,
+                LIKE_SELECTION, new String[] {like, like, like, like}, null));
+        long likeTime = SystemClock.elapsedRealtime() - start;
+
+        // All of the matches
+        start = SystemClock.elapsedRealtime();
+        int searchCount = count(mResolver.query(
+                Message.buildSearchUri(word, 0, MAILBOX_SIZE), EmailContent.ID_PROJECTION,
+                null, null, null));
+        long searchTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(likeCount, searchCount);
+
+        // The first page of the matches, e.g. for the message list
+        start = SystemClock.elapsedRealtime();
+        int pageCount = count(mResolver.query(
+                Message.buildSearchUri(word, 0, PAGE_SIZE), Message.LIST_PROJECTION,
+                null, null, null));
+        long pageTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(Math.min(PAGE_SIZE, searchCount), pageCount);
+
+        Log.d(TAG, name + ": " + searchCount + " matches; LIKE " + likeTime + "ms, search "
+                + searchTime + "ms, first page " + pageTime + "ms");
+    }
+
+    private static int count(Cursor c) {
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of the full-text index of the messages, and of searching it
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageSearchTests email
+ */
+@SmallTest
+public class MessageSearchTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+    private ContentResolver mResolver;
+    private Account mAccount;
+    private Mailbox mInbox;
+    private Mailbox mSent;
+
+    public MessageSearchTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mResolver = mMockContext.getContentResolver();
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+        mAccount = ProviderTestUtils.setupAccount("search", true, mMockContext);
+        mInbox = ProviderTestUtils.setupMailbox("inbox", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        mSent = ProviderTestUtils.setupMailbox("sent", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_SENT);
+    }
+
+    private Message createMessage(String name, Mailbox mailbox) {
+        return ProviderTestUtils.setupMessage(name, mAccount.mId, mailbox.mId, true, true,
+                mMockContext);
+    }
+
+    /** Returns the ids of the messages matching a search, in order */
+    private long[] search(String query, int offset, int count, String selection) {
+        Cursor c = mResolver.query(Message.buildSearchUri(query, offset, count),
+                EmailContent.ID_PROJECTION, selection, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(EmailContent.ID_PROJECTION_COLUMN);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private long[] search(String query) {
+        return search(query, 0, 100, null);
+    }
+
+    private static void assertIds(long[] actual, long... expected) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    private long getIndexSize() {
+        return DatabaseUtils.queryNumEntries(getProvider().getDatabase(mMockContext),
+                Message.SEARCH_TABLE_NAME);
+    }
+
+    public void testBuildSearchMatch() {
+        assertNull(EmailProvider.buildSearchMatch(null));
+        assertNull(EmailProvider.buildSearchMatch(""));
+        assertNull(EmailProvider.buildSearchMatch("  - \" * "));
+        assertEquals("\"word*\"", EmailProvider.buildSearchMatch("word"));
+        assertEquals("\"two*\" \"words*\"", EmailProvider.buildSearchMatch(" two\twords "));
+        // Nothing in the query is taken as FTS syntax
+        assertEquals("\"a*\" \"OR*\" \"b*\" \"NEAR*\" \"c*\"",
+                EmailProvider.buildSearchMatch("\"a OR b\" NEAR c*"));
+        assertEquals("\"jones@example.com*\"",
+                EmailProvider.buildSearchMatch("jones@example.com"));
+    }
+
+    /**
+     * Test that messages are indexed by subject, sender, recipients and body, and that the
+     * index follows changes to them
+     */
+    public void testIndexFollowsMessages() {
+        Message apple = createMessage("apple", mInbox);
+        Message banana = createMessage("banana", mInbox);
+        assertEquals(2, getIndexSize());
+
+        // ProviderTestUtils puts the name in the subject, sender, recipients and text
+        assertIds(search("apple"), apple.mId);
+        assertIds(search("subject banana"), banana.mId);
+        assertIds(search("from apple"), apple.mId);
+        assertIds(search("to banana"), banana.mId);
+        assertIds(search("text apple"), apple.mId);
+        assertEquals(2, search("body").length);
+        // Words match the words they start
+        assertIds(search("ban"), banana.mId);
+        assertEquals(0, search("anana").length);
+
+        // A new subject
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, "cherry");
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, banana.mId), cv,
+                null, null);
+        assertIds(search("cherry"), banana.mId);
+        assertEquals(0, search("subject banana").length);
+
+        // Changes that aren't indexed leave the index alone
+        cv.clear();
+        cv.put(MessageColumns.FLAG_READ, 0);
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, banana.mId), cv,
+                null, null);
+        assertIds(search("cherry"), banana.mId);
+
+        // A new body
+        cv.clear();
+        cv.put(BodyColumns.TEXT_CONTENT, "date");
+        Body.updateBodyWithMessageId(mMockContext, apple.mId, cv);
+        assertIds(search("date"), apple.mId);
+        assertEquals(0, search("text apple").length);
+
+        // An update of many bodies
+        cv.clear();
+        cv.put(BodyColumns.TEXT_CONTENT, "elderberry");
+        mResolver.update(Body.CONTENT_URI, cv, null, null);
+        assertEquals(2, search("elderberry").length);
+
+        // Deletions
+        mResolver.delete(ContentUris.withAppendedId(Message.CONTENT_URI, apple.mId), null, null);
+        assertEquals(0, search("apple").length);
+        assertEquals(1, getIndexSize());
+        mResolver.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, mInbox.mId), null,
+                null);
+        assertEquals(0, search("banana").length);
+        assertEquals(0, getIndexSize());
+    }
+
+    /**
+     * Test that the text of HTML bodies is indexed, and not the markup
+     */
+    public void testIndexHtmlBody() {
+        Message message = ProviderTestUtils.setupMessage("fig", mAccount.mId, mInbox.mId, false,
+                true, mMockContext);
+        ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.HTML_CONTENT, "<html><body><b>grape</b>&nbsp;kiwi</body></html>");
+        Body.updateBodyWithMessageId(mMockContext, message.mId, cv);
+        assertIds(search("grape kiwi"), message.mId);
+        assertEquals(0, search("body").length);
+    }
+
+    /**
+     * Test that the messages with the most hits come first, then the newest; and that
+     * the results can be paged and restricted
+     */
+    public void testRankingAndPaging() {
+        // ProviderTestUtils makes "lemon" newer than "lime"
+        Message lemon = createMessage("lemon", mInbox);
+        Message lime = createMessage("lime", mInbox);
+        Message limeLemon = ProviderTestUtils.setupMessage("lime-lemon", mAccount.mId,
+                mSent.mId, true, false, mMockContext);
+        limeLemon.mTimeStamp = 1;
+        limeLemon.save(mMockContext);
+        Message mango = createMessage("mango", mInbox);
+
+        // "l" occurs twice as often in the oldest message as in the others
+        assertIds(search("l"), limeLemon.mId, lemon.mId, lime.mId);
+        assertIds(search("l", 1, 1, null), lemon.mId);
+        assertIds(search("l", 2, 10, null), lime.mId);
+        assertIds(search("l", 3, 10, null));
+        assertIds(search("l", 0, 10, MessageColumns.MAILBOX_KEY + "=" + mInbox.mId),
+                lemon.mId, lime.mId);
+        // As many hits, so the newest first
+        assertIds(search("lemon"), lemon.mId, limeLemon.mId);
+
+        // Nothing to search for
+        assertIds(search(""));
+        assertIds(search("-"));
+        assertEquals(0, search("mang* OR").length);
+        assertIds(search("mango"), mango.mId);
+    }
+
+    /**
+     * Test that a rebuild indexes the messages that are already there, and that a rebuild that
+     * was cut short carries on from where it stopped
+     */
+    public void testRebuildIndex() {
+        Message apple = createMessage("apple", mInbox);
+        Message banana = createMessage("banana", mInbox);
+        SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+
+        // As after an upgrade, the index is empty and the messages are still to be indexed
+        db.execSQL("delete from " + Message.SEARCH_TABLE_NAME);
+        db.execSQL("insert into " + DBHelper.SEARCH_REBUILD_TABLE_NAME + " values (0)");
+        assertEquals(0, search("apple").length);
+        EmailProvider.rebuildSearchIndex(db);
+        assertIds(search("apple"), apple.mId);
+        assertIds(search("banana"), banana.mId);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, DBHelper.SEARCH_REBUILD_TABLE_NAME));
+
+        // A rebuild that stopped after the first message
+        db.execSQL("delete from " + Message.SEARCH_TABLE_NAME);
+        db.execSQL("insert into " + DBHelper.SEARCH_REBUILD_TABLE_NAME + " values (" +
+                apple.mId + ")");
+        EmailProvider.rebuildSearchIndex(db);
+        assertEquals(0, search("apple").length);
+        assertIds(search("banana"), banana.mId);
+        assertEquals(1, getIndexSize());
+
+        // Nothing to do when the index isn't being rebuilt
+        db.execSQL("delete from " + Message.SEARCH_TABLE_NAME);
+        EmailProvider.rebuildSearchIndex(db);
+        assertEquals(0, getIndexSize());
+    }
+}
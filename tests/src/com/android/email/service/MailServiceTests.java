@@ -289,6 +289,53 @@ public class MailServiceTests extends AccountTestCase {
         }
     }
 
+    /**
+     * Test that an account whose server can't push is polled instead, until its incoming
+     * settings change, and that deleted accounts are forgotten
+     */
+    public void testPushUnavailable() {
+        Account account = ProviderTestUtils.setupAccount("account1", false, mMockContext);
+        account.mHostAuthRecv = setupSimpleHostAuth("imap");
+        account.mHostAuthSend = setupSimpleHostAuth("smtp");
+        account.mSyncInterval = Account.CHECK_INTERVAL_PUSH;
+        account.save(mMockContext);
+
+        MailService mailService = new MailService();
+        mailService.mController = new TestController(mMockContext, getContext());
+        HashMap<Long, AccountSyncReport> syncReportMap = MailService.mSyncReports;
+        try {
+            synchronized (syncReportMap) {
+                // As when the pusher found that the server can't IDLE
+                MailService.sPushUnavailable.put(account.mId,
+                        HostAuth.restoreHostAuthWithId(mMockContext, account.mHostAuthKeyRecv));
+                mailService.setupSyncReportsLocked(MailService.SYNC_REPORTS_RESET, mMockContext);
+                assertEquals(MailService.PUSH_FALLBACK_INTERVAL,
+                        syncReportMap.get(account.mId).syncInterval);
+
+                // New settings; push is tried again
+                ContentValues cv = new ContentValues();
+                cv.put(HostAuth.ADDRESS, "new.server.com");
+                account.mHostAuthRecv.update(mMockContext, cv);
+                mailService.setupSyncReportsLocked(MailService.SYNC_REPORTS_RESET, mMockContext);
+                assertEquals(Account.CHECK_INTERVAL_PUSH,
+                        syncReportMap.get(account.mId).syncInterval);
+                assertFalse(MailService.sPushUnavailable.containsKey(account.mId));
+
+                // A deleted account
+                MailService.sPushUnavailable.put(account.mId, account.mHostAuthRecv);
+                mMockContext.getContentResolver().delete(
+                        ContentUris.withAppendedId(Account.CONTENT_URI, account.mId), null, null);
+                mailService.setupSyncReportsLocked(MailService.SYNC_REPORTS_RESET, mMockContext);
+                assertFalse(MailService.sPushUnavailable.containsKey(account.mId));
+            }
+        } finally {
+            synchronized (syncReportMap) {
+                MailService.sPushUnavailable.clear();
+            }
+            mailService.mController.cleanupForTest();
+        }
+    }
+
     /**
      * Test that setupSyncReports will skip over poorly-formed accounts which can be left
      * over after unit tests.
@@ -33,12 +33,15 @@ import org.apache.james.mime4j.message.Multipart;
 
 import android.content.Context;
 import android.test.ProviderTestCase2;
+import android.util.Base64;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
 
 
 /**
@@ -433,6 +436,96 @@ public class Rfc822OutputTests extends ProviderTestCase2<EmailProvider> {
         }
     }
 
+    /**
+     * Tests that quoting matches the regexes it replaced, including for unusual line endings.
+     */
+    public void testQuotedText() {
+        Pattern startOfLine = Pattern.compile("(?m)^");
+        Pattern endlineCrlf = Pattern.compile("\r\n");
+        String[] quotedTexts = new String[] {
+                "", "one line", "dos\r\nlines\r\n", "unix\nlines\n\n", "mac\rlines\r",
+                "\r\r\n", "\n\r", "line\u2028separator", "trailing\r\n\r\n"
+        };
+        for (String quotedText : quotedTexts) {
+            Message message = createTestMessage(TEXT, true);
+            message.mId = -1;        // Changing the message; need to reset the id
+            message.mTextReply = quotedText;
+            message.save(mMockContext);
+            Body body = createTestBody(message);
+
+            String expected = endlineCrlf.matcher(quotedText).replaceAll("\n");
+            expected = startOfLine.matcher(expected).replaceAll(">");
+            String[] bodyParts = Rfc822Output.buildBodyText(body, message.mFlags, false);
+            assertEquals(TEXT + REPLY_INTRO_TEXT + expected, bodyParts[0]);
+        }
+    }
+
+    /**
+     * Tests that attachments are encoded exactly as by {@link Base64}, whatever their length.
+     */
+    public void testWriteToBase64() throws IOException, MessagingException {
+        Random random = new Random(0);
+        int[] lengths = new int[] { 0, 1, 2, 3, 56, 57, 58, 114, 1000, 10000 };
+        for (int length : lengths) {
+            byte[] content = new byte[length];
+            random.nextBytes(content);
+            Message msg = new Message();
+            msg.mText = TEXT;
+            msg.mFrom = SENDER;
+            msg.mAttachments = new ArrayList<Attachment>();
+            Attachment att = new Attachment();
+            att.mContentBytes = content;
+            att.mMimeType = "application/octet-stream";
+            att.mFileName = "random.bin";
+            msg.mAttachments.add(att);
+            msg.save(mMockContext);
+
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            Rfc822Output.writeTo(mMockContext, msg.mId, byteStream, true, false);
+            String output = byteStream.toString("US-ASCII");
+            String expected = "\r\n\r\n" + Base64.encodeToString(content, Base64.CRLF)
+                    + "\r\n--";
+            assertTrue("length " + length, output.contains(expected));
+            assertEquals(Base64.encodeToString(content, Base64.CRLF).length(),
+                    Rfc822Output.getBase64Length(length));
+        }
+    }
+
+    /**
+     * Tests that getSize() returns the number of bytes writeTo() writes.
+     */
+    public void testGetSize() throws IOException, MessagingException {
+        // Text only
+        Message msg = new Message();
+        msg.mText = TEXT;
+        msg.mFrom = SENDER;
+        msg.mTo = RECIPIENT_TO;
+        msg.mSubject = SUBJECT;
+        msg.save(mMockContext);
+        checkSize(msg.mId, false);
+
+        // A reply with non-ASCII text, an HTML alternate and an attachment
+        msg = createTestMessage("caf\u00e9 \u65e5\u672c \ud83d\ude00 \ud83d", false);
+        msg.mSubject = "R\u00e9ponse";
+        msg.mAttachments = new ArrayList<Attachment>();
+        Attachment att = new Attachment();
+        att.mContentBytes = "<html>Hi</html>".getBytes("UTF-8");
+        att.mMimeType = "text/html";
+        att.mFileName = "t\u00e9st.html";
+        msg.mAttachments.add(att);
+        msg.save(mMockContext);
+        checkSize(msg.mId, false);
+        checkSize(msg.mId, true);
+    }
+
+    private void checkSize(long messageId, boolean useSmartReply)
+            throws IOException, MessagingException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        Rfc822Output.writeTo(mMockContext, messageId, byteStream, useSmartReply, false);
+        assertEquals(byteStream.size(),
+                Rfc822Output.getSize(mMockContext, messageId, useSmartReply, false));
+    }
+
     /**
      * Confirm that the constructed message includes "MIME-VERSION: 1.0"
      */
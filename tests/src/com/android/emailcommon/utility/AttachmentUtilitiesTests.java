@@ -16,12 +16,18 @@
 
 package com.android.emailcommon.utility;
 
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
 
+import android.content.ContentUris;
+import android.content.Context;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 
 import java.io.File;
+import java.io.IOException;
 
 public class AttachmentUtilitiesTests extends AndroidTestCase {
     /**
@@ -137,4 +143,50 @@ public class AttachmentUtilitiesTests extends AndroidTestCase {
         AttachmentUtilities.getFilenameExtension("filename.");
         AttachmentUtilities.getFilenameExtension(".extension");
     }
+
+    /**
+     * Test that the sweep deletes the files of attachments that no longer exist, and no others
+     */
+    public void testDeleteOrphanAttachmentFiles() throws IOException {
+        Context context = getContext();
+        Account account = ProviderTestUtils.setupAccount("orphans", true, context);
+        Attachment kept = ProviderTestUtils.setupAttachment(1, "kept", 100, true, context);
+        try {
+            Attachment gone = ProviderTestUtils.setupAttachment(1, "gone", 100, true, context);
+            context.getContentResolver().delete(
+                    ContentUris.withAppendedId(Attachment.CONTENT_URI, gone.mId), null, null);
+
+            File dir = AttachmentUtilities.getAttachmentDirectory(context, account.mId);
+            dir.mkdirs();
+            File keptFile = AttachmentUtilities.getAttachmentFilename(context, account.mId,
+                    kept.mId);
+            File goneFile = AttachmentUtilities.getAttachmentFilename(context, account.mId,
+                    gone.mId);
+            File otherFile = new File(dir, "other");
+            keptFile.createNewFile();
+            goneFile.createNewFile();
+            otherFile.createNewFile();
+
+            assertEquals(1, AttachmentUtilities.deleteOrphanAttachmentFiles(context, account.mId));
+            assertTrue(keptFile.exists());
+            assertFalse(goneFile.exists());
+            assertTrue(otherFile.exists());
+
+            // Nothing left to sweep
+            assertEquals(0, AttachmentUtilities.deleteOrphanAttachmentFiles(context, account.mId));
+        } finally {
+            context.getContentResolver().delete(
+                    ContentUris.withAppendedId(Attachment.CONTENT_URI, kept.mId), null, null);
+            context.getContentResolver().delete(
+                    ContentUris.withAppendedId(Account.CONTENT_URI, account.mId), null, null);
+            File dir = AttachmentUtilities.getAttachmentDirectory(context, account.mId);
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
 }
@@ -80,6 +80,21 @@ public class TextUtilitiesTests extends AndroidTestCase {
         // TODO: Add tests here if/when we find problematic HTML
     }
 
+    public void testTextFromHtml() {
+        assertEquals("", TextUtilities.makeTextFromHtmlText(null));
+        assertEquals("Hi there", TextUtilities.makeTextFromHtmlText("<html>Hi&nbsp;there</html>"));
+
+        // Unlike a snippet, all of the text is kept
+        StringBuilder html = new StringBuilder("<html>");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            html.append("<p>word ").append(i).append("</p>\n");
+            text.append("word ").append(i).append(' ');
+        }
+        html.append("</html>");
+        assertEquals(text.toString().trim(), TextUtilities.makeTextFromHtmlText(html.toString()));
+    }
+
     public void testStripHtmlEntityEdgeCases() {
         int[] skipCount = new int[1];
         // Bare & isn't an entity